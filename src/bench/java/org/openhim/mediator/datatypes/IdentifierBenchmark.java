@@ -0,0 +1,73 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.datatypes;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing, encoding and comparison of CX identifiers, and parsing of the XCN and XON author values.
+ * The *_split benchmarks are the previous regex split based parsing, as a baseline for {@link HL7Codec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IdentifierBenchmark {
+
+    private String cx = "76cc765a442f410^^^&1.3.6.1.4.1.21367.2005.3.7&ISO^PI";
+    private Identifier identifier = new Identifier("76cc765a442f410", new AssigningAuthority("", "1.3.6.1.4.1.21367.2005.3.7", "ISO"), "PI");
+    private Identifier sameIdentifier = new Identifier("76cc765a442f410", new AssigningAuthority("", "1.3.6.1.4.1.21367.2005.3.7", "ISO"), "PI");
+    private Identifier otherIdentifier = new Identifier("76cc765a442f411", new AssigningAuthority("", "1.3.6.1.4.1.21367.2005.3.7", "ISO"), "PI");
+    private String xcn = "pro111^Smitty^Gerald^^^^^^&1.2.3.4.5.6.7.8.9.1789&ISO";
+    private String xon = "Some Hospital^^^^^&1.2.3.4.5.6.7.8.9.1789&ISO^^^^45";
+
+    @Benchmark
+    public Identifier parseCX() throws Exception {
+        return new Identifier(cx);
+    }
+
+    @Benchmark
+    public String toCX() {
+        return identifier.toCX();
+    }
+
+    @Benchmark
+    public String[] parseCX_split() throws Exception {
+        return SplitHL7Parser.parseCX(cx);
+    }
+
+    @Benchmark
+    public boolean equals_same() {
+        return identifier.equals(sameIdentifier);
+    }
+
+    @Benchmark
+    public boolean equals_other() {
+        return identifier.equals(otherIdentifier);
+    }
+
+    @Benchmark
+    public Identifier parseXCN() {
+        return HL7Codec.parseXCN(xcn);
+    }
+
+    @Benchmark
+    public String[] parseXCN_split() {
+        return SplitHL7Parser.parseXCN(xcn);
+    }
+
+    @Benchmark
+    public Identifier parseXON() {
+        return HL7Codec.parseXON(xon);
+    }
+
+    @Benchmark
+    public String[] parseXON_split() {
+        return SplitHL7Parser.parseXON(xon);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.ATNAAudit;
+import org.openhim.mediator.messages.ResolvePatientIdentifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stored query enrichment, PIX message handling and ATNA audit generation.
+ * <br/><br/>
+ * The actors are created with TestActorRef so that their methods can be called directly,
+ * without measuring any messaging overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DenormalizationBenchmark {
+
+    private ActorSystem system;
+    private PIXRequestActor pixActor;
+    private ATNAAuditingActor atnaActor;
+    private ATNAAuditingActor atnaMetadataActor;
+    private ATNAAuditingActor atnaDigestActor;
+
+    private String adhocQuery;
+    private byte[] adhocQueryBytes;
+    private String pixResponse;
+    private Identifier patientId;
+    private ResolvePatientIdentifier resolvePatientIdentifier;
+    private ATNAAudit pnrAudit;
+
+    @Setup
+    public void setup() throws Exception {
+        MediatorConfig config = new MediatorConfig();
+        config.setName("xds-benchmarks");
+        config.setProperties("mediator-unit-test.properties");
+
+        system = ActorSystem.create();
+        pixActor = TestActorRef.<PIXRequestActor>create(system, Props.create(PIXRequestActor.class, config)).underlyingActor();
+        atnaActor = TestActorRef.<ATNAAuditingActor>create(system, Props.create(ATNAAuditingActor.class, config)).underlyingActor();
+        atnaMetadataActor = createATNAActor("metadata");
+        atnaDigestActor = createATNAActor("digest");
+
+        adhocQuery = loadFixture("adhocQueryRequest_wSOAP.xml");
+        adhocQueryBytes = adhocQuery.getBytes(StandardCharsets.UTF_8);
+        pixResponse = loadFixture("pixResponse.er7");
+        patientId = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+        resolvePatientIdentifier = new ResolvePatientIdentifier(
+                null, null, new Identifier("1234", new AssigningAuthority("test", "1.2.3", "ISO")), new AssigningAuthority("ECID", "ECID")
+        );
+
+        pnrAudit = new ATNAAudit(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED);
+        pnrAudit.setMessage(loadFixture("pnr1.xml"));
+        pnrAudit.setParticipantIdentifiers(Collections.singletonList(patientId));
+        pnrAudit.setUniqueId("1.2.3.4.5");
+        pnrAudit.setDocumentUniqueIds(Collections.singletonList("1.2.3.4.5.1"));
+        pnrAudit.setOutcome(true);
+        pnrAudit.setSourceIP("127.0.0.1");
+    }
+
+    @TearDown
+    public void tearDown() {
+        JavaTestKit.shutdownActorSystem(system);
+    }
+
+    private ATNAAuditingActor createATNAActor(String payloadMode) throws IOException {
+        MediatorConfig config = new MediatorConfig();
+        config.setName("xds-benchmarks");
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("atna.payload.default", payloadMode);
+        return TestActorRef.<ATNAAuditingActor>create(system, Props.create(ATNAAuditingActor.class, config)).underlyingActor();
+    }
+
+    static String loadFixture(String name) throws IOException {
+        InputStream in = DenormalizationBenchmark.class.getClassLoader().getResourceAsStream(name);
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Benchmark
+    public byte[] enrichStoredQuery() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(adhocQueryBytes.length + 64);
+        StoredQueryEnricher.enrich(new ByteArrayInputStream(adhocQueryBytes), out, patientId);
+        return out.toByteArray();
+    }
+
+    /**
+     * Baseline for {@link #enrichStoredQuery()}
+     */
+    @Benchmark
+    public String enrichStoredQuery_eventAPI() throws Exception {
+        return EventStoredQueryEnricher.enrichStoredQueryXML(patientId, IOUtils.toInputStream(adhocQuery));
+    }
+
+    @Benchmark
+    public String constructPIXQuery() throws Exception {
+        return pixActor.constructQBP_Q21("benchmark", resolvePatientIdentifier);
+    }
+
+    @Benchmark
+    public Identifier parsePIXResponse() throws Exception {
+        return pixActor.parseRSP_K23(pixResponse);
+    }
+
+    @Benchmark
+    public String generatePnRAudit() throws Exception {
+        return atnaActor.generateForPNRReceived(pnrAudit);
+    }
+
+    /**
+     * {@link #generatePnRAudit()} with atna.payload.default=metadata
+     */
+    @Benchmark
+    public String generatePnRAudit_metadata() throws Exception {
+        return atnaMetadataActor.generateForPNRReceived(pnrAudit);
+    }
+
+    /**
+     * {@link #generatePnRAudit()} with atna.payload.default=digest
+     */
+    @Benchmark
+    public String generatePnRAudit_digest() throws Exception {
+        return atnaDigestActor.generateForPNRReceived(pnrAudit);
+    }
+}
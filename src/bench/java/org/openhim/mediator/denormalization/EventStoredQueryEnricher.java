@@ -0,0 +1,64 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.normalization.ParseRegistryStoredQueryActor;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.*;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+/**
+ * The previous stored query enrichment, based on the StAX event API and creating its factories per call.
+ * Kept as a baseline for {@link StoredQueryEnricher}.
+ */
+public class EventStoredQueryEnricher {
+
+    public static String enrichStoredQueryXML(Identifier id, InputStream xml) throws XMLStreamException {
+        XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(xml);
+        StringWriter output = new StringWriter();
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(output);
+        XMLEventFactory eventFactory = XMLEventFactory.newFactory();
+
+        String curSlot = null;
+        boolean patientIdSlot = false;
+
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+
+            if (event.getEventType() == XMLEvent.START_ELEMENT) {
+                StartElement elem = event.asStartElement();
+                if ("Slot".equals(elem.getName().getLocalPart())) {
+                    curSlot = elem.getAttributeByName(new QName("name")).getValue();
+                } else if ("Value".equals(elem.getName().getLocalPart()) &&
+                        ParseRegistryStoredQueryActor.PATIENT_ID_SLOT_TYPE.equals(curSlot)) {
+                    patientIdSlot = true;
+                    writer.add(event);
+                }
+            } else if (event.getEventType() == XMLEvent.END_ELEMENT) {
+                EndElement elem = event.asEndElement();
+                if (patientIdSlot && "Value".equals(elem.getName().getLocalPart())) {
+                    XMLEvent ecidEvent = eventFactory.createCharacters("'" + id.toString() + "'");
+                    writer.add(ecidEvent);
+                    patientIdSlot = false;
+                }
+            }
+
+            if (!patientIdSlot) {
+                writer.add(event);
+            }
+        }
+
+        writer.close();
+        return output.toString();
+    }
+}
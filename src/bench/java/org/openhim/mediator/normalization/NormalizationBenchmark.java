@@ -0,0 +1,77 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import ihe.iti.xds_b._2007.ObjectFactory;
+import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serialization of XDS.b Provide and Register Document Set requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NormalizationBenchmark {
+
+    private String pnr;
+    private String pnrSOAP;
+    private String pnrMTOM;
+    private ProvideAndRegisterDocumentSetRequestType parsedPnR;
+    private XDSbMimeProcessorActor.ParsedMimeMessage parsedMTOM;
+
+    @Setup
+    public void setup() throws Exception {
+        pnr = loadFixture("pnr1.xml");
+        pnrSOAP = loadFixture("pnr_e2e.xml");
+        pnrMTOM = loadFixture("pnr_e2e_mtom.xml");
+        parsedPnR = ParseProvideAndRegisterRequestActor.parseRequest(pnr);
+        parsedMTOM = XDSbMimeProcessorActor.parseMimeMessage(pnrMTOM, "multipart/related");
+    }
+
+    static String loadFixture(String name) throws IOException {
+        InputStream in = NormalizationBenchmark.class.getClassLoader().getResourceAsStream(name);
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Benchmark
+    public ProvideAndRegisterDocumentSetRequestType parseProvideAndRegister() throws Exception {
+        return ParseProvideAndRegisterRequestActor.parseRequest(pnr);
+    }
+
+    @Benchmark
+    public String marshallProvideAndRegister() throws Exception {
+        return Util.marshallJAXBObject("ihe.iti.xds_b._2007", new ObjectFactory().createProvideAndRegisterDocumentSetRequest(parsedPnR), false);
+    }
+
+    @Benchmark
+    public String soapWrapperRoundTrip() throws Exception {
+        SOAPWrapper wrapper = new SOAPWrapper(pnrSOAP);
+        wrapper.setSoapBody(wrapper.getSoapBody());
+        return wrapper.getFullDocument();
+    }
+
+    @Benchmark
+    public XDSbMimeProcessorActor.ParsedMimeMessage parseMTOM() throws Exception {
+        return XDSbMimeProcessorActor.parseMimeMessage(pnrMTOM, "multipart/related");
+    }
+
+    @Benchmark
+    public String rebuildMTOM() throws Exception {
+        return XDSbMimeProcessorActor.buildEnrichedMimeMessage(parsedMTOM.mimeMessage, parsedMTOM.soapPart);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.ATNAAudit;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decides how much of a transaction's message is embedded in its ATNA audit (as the ParticipantObjectQuery).
+ * <br/><br/>
+ * The policy is configured per audit type with <code>atna.payload.&lt;TYPE&gt;</code>, e.g.
+ * <code>atna.payload.PROVIDE_AND_REGISTER_RECEIVED=metadata</code>, falling back to <code>atna.payload.default</code>:
+ * <ul>
+ *     <li>full: the whole message (the default)</li>
+ *     <li>metadata: the submission set and document entry unique IDs extracted while the transaction was processed</li>
+ *     <li>truncated: the first <code>atna.payload.truncateBytes</code> bytes of the message (UTF-8)</li>
+ *     <li>digest: the SHA-256 digest and size of the message</li>
+ * </ul>
+ */
+public class ATNAPayloadPolicy {
+
+    public enum Mode {
+        FULL, METADATA, TRUNCATED, DIGEST
+    }
+
+    private final Map<ATNAAudit.TYPE, Mode> modes = new EnumMap<>(ATNAAudit.TYPE.class);
+    private final long truncateBytes;
+
+
+    public ATNAPayloadPolicy(MediatorConfig config) {
+        Mode defaultMode = parseMode(config.getProperty("atna.payload.default"), Mode.FULL);
+        for (ATNAAudit.TYPE type : ATNAAudit.TYPE.values()) {
+            modes.put(type, parseMode(config.getProperty("atna.payload." + type.name()), defaultMode));
+        }
+        truncateBytes = Util.getLongProperty(config, "atna.payload.truncateBytes", 4096);
+    }
+
+    static Mode parseMode(String value, Mode defaultMode) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultMode;
+        }
+        return Mode.valueOf(value.trim().toUpperCase());
+    }
+
+    public Mode getMode(ATNAAudit.TYPE type) {
+        return modes.get(type);
+    }
+
+    /**
+     * @return the payload to embed in the audit for a transaction, or null if there is none
+     */
+    public String payloadFor(ATNAAudit audit) {
+        String message = audit.getMessage();
+        switch (modes.get(audit.getType())) {
+            case METADATA:
+                return metadata(audit);
+            case TRUNCATED:
+                return message != null ? truncate(message, truncateBytes) : null;
+            case DIGEST:
+                return message != null ? digest(message) : null;
+            default:
+                return message;
+        }
+    }
+
+    private static String metadata(ATNAAudit audit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("uniqueId=").append(audit.getUniqueId());
+        if (audit.getDocumentUniqueIds() != null) {
+            for (String documentUniqueId : audit.getDocumentUniqueIds()) {
+                sb.append("\ndocumentUniqueId=").append(documentUniqueId);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the longest prefix of the message that is at most maxBytes long when UTF-8 encoded
+     */
+    static String truncate(String message, long maxBytes) {
+        long bytes = 0;
+        for (int i=0; i<message.length(); i++) {
+            char c = message.charAt(i);
+            int charBytes;
+            if (c < 0x80) {
+                charBytes = 1;
+            } else if (c < 0x800) {
+                charBytes = 2;
+            } else if (Character.isHighSurrogate(c) && i+1 < message.length()) {
+                charBytes = 4;
+            } else {
+                charBytes = 3;
+            }
+            if (bytes + charBytes > maxBytes) {
+                return message.substring(0, i);
+            }
+            bytes += charBytes;
+            if (charBytes == 4) {
+                i++;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the SHA-256 digest and UTF-8 size of the message
+     */
+    static String digest(String message) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+            Writer writer = new OutputStreamWriter(new DigestOutputStream(counter, sha256), StandardCharsets.UTF_8);
+            writer.write(message);
+            writer.flush();
+            return "sha256=" + DatatypeConverter.printHexBinary(sha256.digest()).toLowerCase() + "\nsize=" + counter.getByteCount();
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            //SHA-256 is always available and the stream doesn't do any I/O
+            throw new IllegalStateException(ex);
+        }
+    }
+}
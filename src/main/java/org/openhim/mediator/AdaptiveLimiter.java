@@ -0,0 +1,297 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorRef;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the calls in flight to an upstream dependency (e.g. the PIX manager), shared by all the actors that call it.
+ * The limit adapts to the latency of the dependency (AIMD): it grows by about one call for every <code>limit</code>
+ * calls that complete without congestion, and shrinks by <code>backoffRatio</code> when a call fails or times out, or
+ * when its latency exceeds <code>latencyTolerance</code> times the baseline latency of the dependency. The baseline is
+ * the lowest latency seen, drifting slowly upwards so that a dependency that has become slower isn't seen as
+ * congested forever.
+ * <br/><br/>
+ * Calls over the limit wait in a queue with a lane per {@link Priority} class, each bounded by <code>maxQueued</code>.
+ * Permits are handed out across the lanes in weighted rounds (<code>priority.weights</code>, see
+ * {@link WeightedFairQueue}), so interactive calls don't wait behind a backlog of bulk ones. A queued caller is sent
+ * a Permit with the key it was queued with once the call can be made. Calls are rejected if their lane is full.
+ * <br/><br/>
+ * Limiters are configured with the <code>&lt;dependency&gt;.limiter.*</code> properties, e.g. <code>pix.limiter.maxLimit</code>,
+ * and can be switched off with <code>&lt;dependency&gt;.limiter.enabled=false</code>.
+ */
+public class AdaptiveLimiter {
+
+    public enum Result {
+        ACQUIRED, QUEUED, REJECTED
+    }
+
+    public static class Permit {
+        final Object key;
+
+        public Permit(Object key) {
+            this.key = key;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+    }
+
+    private static class Waiter {
+        final ActorRef requester;
+        final Object key;
+
+        Waiter(ActorRef requester, Object key) {
+            this.requester = requester;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Waiter)) return false;
+            Waiter waiter = (Waiter) o;
+            return requester.equals(waiter.requester) && key.equals(waiter.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * requester.hashCode() + key.hashCode();
+        }
+    }
+
+    private final String dependency;
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+
+    private double limit;
+    private int inFlight;
+    private long baselineLatencyNanos;
+    private final WeightedFairQueue<Waiter> queue;
+
+    private final MetricsRegistry.Counter rejections;
+
+
+    AdaptiveLimiter(String dependency, boolean enabled, int initialLimit, int minLimit, int maxLimit, int maxQueued,
+                    double latencyTolerance, double backoffRatio) {
+        this(dependency, enabled, initialLimit, minLimit, maxLimit, maxQueued, latencyTolerance, backoffRatio, WeightedFairQueue.DEFAULT_WEIGHTS);
+    }
+
+    AdaptiveLimiter(String dependency, boolean enabled, int initialLimit, int minLimit, int maxLimit, int maxQueued,
+                    double latencyTolerance, double backoffRatio, int[] priorityWeights) {
+        this.dependency = dependency;
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.maxQueued = maxQueued;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.queue = new WeightedFairQueue<>(priorityWeights);
+
+        rejections = MetricsRegistry.getInstance().counter(
+                "mediator_upstream_limiter_rejections_total", "Upstream calls rejected because the limiter queue was full",
+                MetricsRegistry.labels("dependency", dependency)
+        );
+    }
+
+    /**
+     * @return the limiter for a dependency, shared by all the actors of the mediator
+     */
+    public static AdaptiveLimiter forDependency(SharedResources resources, final MediatorConfig config, final String dependency) {
+        return resources.getOrCreate(SharedResources.key("limiter", config, dependency), new SharedResources.Factory<AdaptiveLimiter, RuntimeException>() {
+            @Override
+            public AdaptiveLimiter create() {
+                String prefix = dependency + ".limiter.";
+                AdaptiveLimiter limiter = new AdaptiveLimiter(
+                        dependency,
+                        Util.isPropertyTrue(config, prefix + "enabled", true),
+                        (int) Util.getLongProperty(config, prefix + "initialLimit", 10),
+                        (int) Util.getLongProperty(config, prefix + "minLimit", 1),
+                        (int) Util.getLongProperty(config, prefix + "maxLimit", 100),
+                        (int) Util.getLongProperty(config, prefix + "maxQueued", 1000),
+                        doubleProperty(config, prefix + "latencyTolerance", 2.0),
+                        doubleProperty(config, prefix + "backoffRatio", 0.9),
+                        WeightedFairQueue.parseWeights(config.getProperty("priority.weights"))
+                );
+                limiter.registerGauges();
+                return limiter;
+            }
+        });
+    }
+
+    private static double doubleProperty(MediatorConfig config, String key, double defaultValue) {
+        String value = config.getProperty(key);
+        return value != null && !value.trim().isEmpty() ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+
+    private void registerGauges() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        String labels = MetricsRegistry.labels("dependency", dependency);
+        metrics.gauge("mediator_upstream_limit", "Current concurrency limit for an upstream dependency", labels, new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getLimit();
+            }
+        });
+        metrics.gauge("mediator_upstream_in_flight", "Calls in flight to an upstream dependency", labels, new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getInFlight();
+            }
+        });
+        metrics.gauge("mediator_upstream_queued", "Calls waiting for the concurrency limit of an upstream dependency", labels, new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getQueued();
+            }
+        });
+        for (final Priority priority : Priority.values()) {
+            metrics.gauge(
+                    "mediator_upstream_queued_by_priority", "Calls waiting for the concurrency limit of an upstream dependency, by priority class",
+                    MetricsRegistry.labels("dependency", dependency, "priority", priority.name().toLowerCase()), new MetricsRegistry.Gauge() {
+                        @Override
+                        public double getValue() {
+                            return getQueued(priority);
+                        }
+                    }
+            );
+        }
+    }
+
+    /**
+     * Acquire a permit for a call. Every acquired permit must be given back with {@link #onSuccess(long)},
+     * {@link #onDropped()} or {@link #release()}.
+     *
+     * @param requester the actor that is sent a Permit if the call is queued
+     * @param key identifies the call in the Permit
+     */
+    public Result acquire(ActorRef requester, Object key) {
+        return acquire(requester, key, Priority.NORMAL);
+    }
+
+    /**
+     * Acquire a permit for a call of a priority class, see {@link #acquire(ActorRef, Object)}
+     */
+    public synchronized Result acquire(ActorRef requester, Object key, Priority priority) {
+        if (!enabled) {
+            return Result.ACQUIRED;
+        }
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return Result.ACQUIRED;
+        }
+        if (queue.size(priority) < maxQueued) {
+            queue.add(priority, new Waiter(requester, key));
+            return Result.QUEUED;
+        }
+        rejections.increment();
+        return Result.REJECTED;
+    }
+
+    /**
+     * Give back the permit of a call that completed, adapting the limit to its latency
+     */
+    public synchronized void onSuccess(long latencyNanos) {
+        if (!enabled) {
+            return;
+        }
+        boolean congested = baselineLatencyNanos > 0 && latencyNanos > latencyTolerance * baselineLatencyNanos;
+        if (baselineLatencyNanos == 0 || latencyNanos < baselineLatencyNanos) {
+            baselineLatencyNanos = latencyNanos;
+        } else {
+            baselineLatencyNanos += (latencyNanos - baselineLatencyNanos) / 100;
+        }
+
+        if (congested) {
+            decrease();
+        } else if (inFlight >= (int) limit) {
+            //only grow while the limit is actually being used
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        releasePermit();
+    }
+
+    /**
+     * Give back the permit of a call that failed or timed out, reducing the limit
+     */
+    public synchronized void onDropped() {
+        if (!enabled) {
+            return;
+        }
+        decrease();
+        releasePermit();
+    }
+
+    /**
+     * Give back the permit of a call that wasn't made, without adapting the limit
+     */
+    public synchronized void release() {
+        if (!enabled) {
+            return;
+        }
+        releasePermit();
+    }
+
+    /**
+     * Remove a queued call
+     *
+     * @return false if the call wasn't queued, e.g. because it has already been sent a Permit
+     */
+    public synchronized boolean cancel(ActorRef requester, Object key) {
+        return queue.remove(new Waiter(requester, key));
+    }
+
+    private void decrease() {
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+
+    private void releasePermit() {
+        inFlight--;
+        while (!queue.isEmpty() && inFlight < (int) limit) {
+            Waiter waiter = queue.poll();
+            inFlight++;
+            waiter.requester.tell(new Permit(waiter.key), ActorRef.noSender());
+        }
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized int getQueued(Priority priority) {
+        return queue.size(priority);
+    }
+
+    /**
+     * @return the latency of an uncongested call, or 0 if it isn't known yet (or the limiter is disabled)
+     */
+    public synchronized long getBaselineLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(baselineLatencyNanos);
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorRef;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the transactions that a mediator route (e.g. /xdsrepository) processes at the same time, shared by all the
+ * actors handling the route.
+ * <br/><br/>
+ * A transaction is admitted if it fits within the route's limits on in-flight transactions and in-flight request
+ * bytes, both overall and per client (the first X-Forwarded-For address). Otherwise it waits in a bounded queue for up
+ * to <code>queueTimeoutMs</code>, and is rejected with a 503 if it couldn't be admitted in time or if the queue is full.
+ * A request that is larger than the byte limit is still admitted once nothing else is in flight.
+ * <br/><br/>
+ * Limits are configured with the <code>admission.*</code> properties, e.g. <code>admission.maxInFlight</code>, and can be
+ * overridden per route, e.g. <code>admission.xdsrepository.maxInFlight</code>. A limit of 0 means no limit, and none of
+ * the limits apply unless <code>admission.enabled</code> is true.
+ * <br/><br/>
+ * Route actors call {@link #admit(ActorContext, MediatorHTTPRequest)} for each request and {@link #release(Ticket)}
+ * once they stop. A queued actor receives Admitted once its transaction is admitted, or QueueDeadline once its
+ * queue timeout has passed, after which it should call {@link #expire(Ticket)}.
+ */
+public class AdmissionController {
+
+    public static class Admitted {}
+
+    public static class QueueDeadline {}
+
+    public static class Ticket {
+        final ActorRef requester;
+        final String client;
+        final long bytes;
+        final boolean queued;
+        boolean admitted;
+        boolean done;
+
+        Ticket(ActorRef requester, String client, long bytes, boolean queued) {
+            this.requester = requester;
+            this.client = client;
+            this.bytes = bytes;
+            this.queued = queued;
+        }
+
+        /**
+         * @return true if the transaction had to wait. It may only proceed once Admitted is received.
+         */
+        public boolean isQueued() {
+            return queued;
+        }
+    }
+
+    private static class ClientUsage {
+        int inFlight;
+        long bytes;
+    }
+
+    private final String route;
+    private final long maxInFlight;
+    private final long maxBytes;
+    private final long perClientMaxInFlight;
+    private final long perClientMaxBytes;
+    private final long queueTimeoutMillis;
+    private final long maxQueued;
+
+    private int inFlight;
+    private long inFlightBytes;
+    private final Map<String, ClientUsage> clients = new HashMap<>();
+    private final Deque<Ticket> queue = new ArrayDeque<>();
+
+
+    AdmissionController(String route, long maxInFlight, long maxBytes, long perClientMaxInFlight, long perClientMaxBytes,
+                        long queueTimeoutMillis, long maxQueued) {
+        this.route = route;
+        this.maxInFlight = maxInFlight;
+        this.maxBytes = maxBytes;
+        this.perClientMaxInFlight = perClientMaxInFlight;
+        this.perClientMaxBytes = perClientMaxBytes;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return the controller for a route, shared by all the actors of the mediator
+     */
+    public static AdmissionController forRoute(SharedResources resources, final MediatorConfig config, final String route) {
+        return resources.getOrCreate(SharedResources.key("admission", config, route), new SharedResources.Factory<AdmissionController, RuntimeException>() {
+            @Override
+            public AdmissionController create() {
+                String name = StringUtils.removeStart(route, "/");
+                boolean enabled = Util.isPropertyTrue(config, "admission.enabled", false);
+                AdmissionController controller = new AdmissionController(
+                        route,
+                        enabled ? limit(config, name, "maxInFlight") : 0,
+                        enabled ? limit(config, name, "maxBytes") : 0,
+                        enabled ? limit(config, name, "perClient.maxInFlight") : 0,
+                        enabled ? limit(config, name, "perClient.maxBytes") : 0,
+                        enabled ? limit(config, name, "queueTimeoutMs") : 0,
+                        enabled ? limit(config, name, "maxQueued") : 0
+                );
+                controller.registerMetrics();
+                return controller;
+            }
+        });
+    }
+
+    private static long limit(MediatorConfig config, String routeName, String limit) {
+        return Util.getLongProperty(config, "admission." + routeName + "." + limit,
+                Util.getLongProperty(config, "admission." + limit, 0));
+    }
+
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        String labels = MetricsRegistry.labels("route", route);
+        metrics.gauge("mediator_admission_in_flight", "Transactions being processed by a route", labels, new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getInFlight();
+            }
+        });
+        metrics.gauge("mediator_admission_in_flight_bytes", "Size of the requests being processed by a route", labels, new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getInFlightBytes();
+            }
+        });
+        metrics.gauge("mediator_admission_queued", "Transactions waiting to be admitted to a route", labels, new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getQueued();
+            }
+        });
+
+        String help = "Admission limits of a route (0 is unlimited)";
+        registerLimit(help, "maxInFlight", maxInFlight);
+        registerLimit(help, "maxBytes", maxBytes);
+        registerLimit(help, "perClient.maxInFlight", perClientMaxInFlight);
+        registerLimit(help, "perClient.maxBytes", perClientMaxBytes);
+        registerLimit(help, "maxQueued", maxQueued);
+    }
+
+    private void registerLimit(String help, String limit, final long value) {
+        MetricsRegistry.getInstance().gauge("mediator_admission_limit", help, MetricsRegistry.labels("route", route, "limit", limit),
+                new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return value;
+            }
+        });
+    }
+
+    private void count(String result) {
+        MetricsRegistry.getInstance().counter(
+                "mediator_admission_requests_total", "Admission decisions per route", MetricsRegistry.labels("route", route, "result", result)
+        ).increment();
+    }
+
+    private static boolean exceeds(long limit, long current, long requested) {
+        //a single request is always allowed when nothing is in flight, otherwise oversized requests would never be admitted
+        return limit > 0 && current > 0 && current + requested > limit;
+    }
+
+    private boolean fits(String client, long bytes) {
+        if (maxInFlight > 0 && inFlight >= maxInFlight) {
+            return false;
+        }
+        if (exceeds(maxBytes, inFlightBytes, bytes)) {
+            return false;
+        }
+        ClientUsage usage = clients.get(client);
+        if (usage != null) {
+            if (perClientMaxInFlight > 0 && usage.inFlight >= perClientMaxInFlight) {
+                return false;
+            }
+            if (exceeds(perClientMaxBytes, usage.bytes, bytes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void take(Ticket ticket) {
+        ticket.admitted = true;
+        inFlight++;
+        inFlightBytes += ticket.bytes;
+        ClientUsage usage = clients.get(ticket.client);
+        if (usage == null) {
+            usage = new ClientUsage();
+            clients.put(ticket.client, usage);
+        }
+        usage.inFlight++;
+        usage.bytes += ticket.bytes;
+    }
+
+    /**
+     * Admit a transaction
+     *
+     * @param client the client the transaction is counted against
+     * @param bytes the size of the request
+     * @return a ticket that must be released, or null if the transaction is rejected
+     */
+    public synchronized Ticket admit(ActorRef requester, String client, long bytes) {
+        if (fits(client, bytes)) {
+            Ticket ticket = new Ticket(requester, client, bytes, false);
+            take(ticket);
+            count("admitted");
+            return ticket;
+        }
+        if (queueTimeoutMillis > 0 && (maxQueued <= 0 || queue.size() < maxQueued)) {
+            Ticket ticket = new Ticket(requester, client, bytes, true);
+            queue.add(ticket);
+            count("queued");
+            return ticket;
+        }
+        count("rejected");
+        return null;
+    }
+
+    /**
+     * Admit a request received by a route actor. If the request is queued, QueueDeadline is scheduled to the actor.
+     *
+     * @return a ticket that must be released, or null if the request is rejected
+     */
+    public Ticket admit(ActorContext context, MediatorHTTPRequest request) {
+        String body = request.getBody();
+        Ticket ticket = admit(context.self(), clientOf(request), body != null ? body.length() : 0);
+        if (ticket != null && ticket.isQueued()) {
+            context.system().scheduler().scheduleOnce(
+                    Duration.create(queueTimeoutMillis, TimeUnit.MILLISECONDS), context.self(), new QueueDeadline(), context.dispatcher(), context.self()
+            );
+        }
+        return ticket;
+    }
+
+    /**
+     * Release a transaction's ticket once it is complete, admitting queued transactions that now fit.
+     * Releasing a ticket more than once, or a null ticket, has no effect.
+     */
+    public synchronized void release(Ticket ticket) {
+        if (ticket == null || ticket.done) {
+            return;
+        }
+        ticket.done = true;
+        if (!ticket.admitted) {
+            queue.remove(ticket);
+            return;
+        }
+
+        inFlight--;
+        inFlightBytes -= ticket.bytes;
+        ClientUsage usage = clients.get(ticket.client);
+        usage.inFlight--;
+        usage.bytes -= ticket.bytes;
+        if (usage.inFlight == 0) {
+            clients.remove(ticket.client);
+        }
+
+        Iterator<Ticket> it = queue.iterator();
+        while (it.hasNext()) {
+            Ticket queued = it.next();
+            if (fits(queued.client, queued.bytes)) {
+                it.remove();
+                take(queued);
+                count("admitted");
+                queued.requester.tell(new Admitted(), ActorRef.noSender());
+            }
+        }
+    }
+
+    /**
+     * Remove a queued transaction whose queue timeout has passed
+     *
+     * @return true if the transaction was removed and should be rejected,
+     * or false if it has already been admitted (and Admitted is on its way)
+     */
+    public synchronized boolean expire(Ticket ticket) {
+        if (ticket == null || ticket.admitted || ticket.done) {
+            return false;
+        }
+        ticket.done = true;
+        queue.remove(ticket);
+        count("expired");
+        return true;
+    }
+
+    /**
+     * @return the client a request is counted against: the first X-Forwarded-For address, if any
+     */
+    public static String clientOf(MediatorHTTPRequest request) {
+        String xForwardedFor = request.getHeaders() != null ? request.getHeaders().get("X-Forwarded-For") : null;
+        if (StringUtils.isBlank(xForwardedFor)) {
+            return "unknown";
+        }
+        return StringUtils.substringBefore(xForwardedFor, ",").trim();
+    }
+
+    /**
+     * @return the response for a rejected transaction
+     */
+    public FinishRequest rejection() {
+        return new FinishRequest("The mediator is too busy to process requests on " + route + ". Please try again later.",
+                "text/plain", HttpStatus.SC_SERVICE_UNAVAILABLE);
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+}
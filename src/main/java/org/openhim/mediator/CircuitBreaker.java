@@ -0,0 +1,177 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorContext;
+import akka.actor.Cancellable;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A circuit breaker for an upstream dependency (e.g. the PIX manager), shared by all the actors that call it.
+ * <br/><br/>
+ * Callers ask the breaker before each call ({@link #tryAcquire()}), limit the call to the breaker's call timeout
+ * (see {@link #scheduleCallTimeout(ActorContext, Object)}) and report whether it succeeded. Once
+ * <code>failureThreshold</code> calls in a row have failed or timed out, the breaker opens and calls fail fast
+ * instead of waiting for the dependency. After <code>resetTimeoutMs</code> the breaker lets up to
+ * <code>halfOpenProbes</code> calls through: if a probe succeeds the breaker closes again, otherwise it reopens.
+ * <br/><br/>
+ * Breakers are configured with the <code>&lt;dependency&gt;.breaker.*</code> properties, e.g.
+ * <code>pix.breaker.callTimeoutMs</code>, and can be switched off with <code>&lt;dependency&gt;.breaker.enabled=false</code>.
+ * Their state and transitions are available as metrics.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String dependency;
+    private final boolean enabled;
+    private final long callTimeoutMillis;
+    private final int failureThreshold;
+    private final long resetTimeoutMillis;
+    private final int halfOpenProbes;
+
+    private State state = State.CLOSED;
+    private int failures;
+    //when the breaker last opened, or started probing
+    private long since;
+    private int probes;
+
+    private final MetricsRegistry.Counter rejections;
+
+
+    CircuitBreaker(String dependency, boolean enabled, long callTimeoutMillis, int failureThreshold, long resetTimeoutMillis, int halfOpenProbes) {
+        this.dependency = dependency;
+        this.enabled = enabled;
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.resetTimeoutMillis = resetTimeoutMillis;
+        this.halfOpenProbes = halfOpenProbes;
+
+        rejections = MetricsRegistry.getInstance().counter(
+                "mediator_circuit_breaker_rejections_total", "Calls failed fast by an open circuit breaker", MetricsRegistry.labels("dependency", dependency)
+        );
+    }
+
+    private void registerStateGauge() {
+        MetricsRegistry.getInstance().gauge("mediator_circuit_breaker_state", "Circuit breaker state (0 closed, 1 half-open, 2 open)",
+                MetricsRegistry.labels("dependency", dependency), new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return getState().ordinal();
+            }
+        });
+    }
+
+    /**
+     * @return the breaker for a dependency, shared by all the actors of the mediator
+     */
+    public static CircuitBreaker forDependency(SharedResources resources, final MediatorConfig config, final String dependency) {
+        return resources.getOrCreate(SharedResources.key("breaker", config, dependency), new SharedResources.Factory<CircuitBreaker, RuntimeException>() {
+            @Override
+            public CircuitBreaker create() {
+                CircuitBreaker breaker = new CircuitBreaker(
+                        dependency,
+                        Util.isPropertyTrue(config, dependency + ".breaker.enabled", true),
+                        Util.getLongProperty(config, dependency + ".breaker.callTimeoutMs", 15000),
+                        (int) Util.getLongProperty(config, dependency + ".breaker.failureThreshold", 5),
+                        Util.getLongProperty(config, dependency + ".breaker.resetTimeoutMs", 30000),
+                        (int) Util.getLongProperty(config, dependency + ".breaker.halfOpenProbes", 1)
+                );
+                breaker.registerStateGauge();
+                return breaker;
+            }
+        });
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void transition(State newState) {
+        state = newState;
+        MetricsRegistry.getInstance().counter(
+                "mediator_circuit_breaker_transitions_total", "Circuit breaker state changes",
+                MetricsRegistry.labels("dependency", dependency, "state", newState.name().toLowerCase())
+        ).increment();
+    }
+
+    /**
+     * @return true if a call may be made. Every permitted call must be followed by {@link #onSuccess()} or {@link #onFailure()}.
+     */
+    public synchronized boolean tryAcquire() {
+        if (!enabled) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN && now - since >= resetTimeoutMillis) {
+            transition(State.HALF_OPEN);
+            probes = 0;
+            since = now;
+        } else if (state == State.HALF_OPEN && probes >= halfOpenProbes && now - since >= resetTimeoutMillis) {
+            //the probes never reported back, so probe again rather than staying half-open
+            probes = 0;
+            since = now;
+        }
+
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && probes < halfOpenProbes) {
+            probes++;
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        if (state == State.HALF_OPEN) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (!enabled) {
+            return;
+        }
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            transition(State.OPEN);
+            since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Schedule a message to the actor once the call timeout has passed
+     *
+     * @return the scheduled message, or null if the breaker is disabled
+     */
+    public Cancellable scheduleCallTimeout(ActorContext context, Object msg) {
+        if (!enabled) {
+            return null;
+        }
+        return context.system().scheduler().scheduleOnce(
+                Duration.create(callTimeoutMillis, TimeUnit.MILLISECONDS), context.self(), msg, context.dispatcher(), context.self()
+        );
+    }
+
+    public long getCallTimeoutMillis() {
+        return callTimeoutMillis;
+    }
+}
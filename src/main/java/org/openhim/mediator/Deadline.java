@@ -0,0 +1,119 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorContext;
+import akka.actor.Cancellable;
+import org.openhim.mediator.engine.MediatorConfig;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a transaction has to be completed, after which the OpenHIM core will have given up on it.
+ * <br/><br/>
+ * Route actors start the deadline of each request they receive with {@link #forRequest(MediatorConfig)}
+ * (<code>mediator.timeout</code> after the request was received, less <code>mediator.deadline.marginMs</code>) and
+ * pass it along with the messages they send for the transaction. Actors that call upstream services skip calls
+ * that can't complete before the deadline, and the route actor stops itself (and so its per-request children) once
+ * it has passed.
+ */
+public final class Deadline {
+
+    /**
+     * No deadline, e.g. for work that isn't done on behalf of a client
+     */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    /**
+     * Sent to an actor once its deadline has passed (see {@link #schedule(ActorContext)})
+     */
+    public static class Expired {}
+
+    /**
+     * A message that carries the deadline of the transaction it was sent for
+     */
+    public interface Carrier {
+        Deadline getDeadline();
+    }
+
+    private final long deadlineNanos;
+    private final boolean bounded;
+
+
+    private Deadline(long deadlineNanos, boolean bounded) {
+        this.deadlineNanos = deadlineNanos;
+        this.bounded = bounded;
+    }
+
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+    }
+
+    /**
+     * @return the deadline of a request received now
+     */
+    public static Deadline forRequest(MediatorConfig config) {
+        long timeout = Util.getLongProperty(config, "mediator.timeout", 60000);
+        long margin = Util.getLongProperty(config, "mediator.deadline.marginMs", 0);
+        return after(Math.max(0, timeout - margin));
+    }
+
+    /**
+     * @return the deadline of a message, or {@link #NONE} if it doesn't carry one
+     */
+    public static Deadline of(Object msg) {
+        if (msg instanceof Carrier && ((Carrier) msg).getDeadline() != null) {
+            return ((Carrier) msg).getDeadline();
+        }
+        return NONE;
+    }
+
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * @return the time left, or Long.MAX_VALUE if there is no deadline
+     */
+    public long remainingMillis() {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
+    public boolean hasPassed() {
+        return bounded && deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return true if a call that is expected to take this long can complete before the deadline
+     */
+    public boolean allows(long expectedMillis) {
+        return !hasPassed() && remainingMillis() >= expectedMillis;
+    }
+
+    /**
+     * Send {@link Expired} to the actor once the deadline has passed
+     *
+     * @return the scheduled message, or null if there is no deadline
+     */
+    public Cancellable schedule(ActorContext context) {
+        if (!bounded) {
+            return null;
+        }
+        return context.system().scheduler().scheduleOnce(
+                Duration.create(Math.max(0, remainingMillis()), TimeUnit.MILLISECONDS), context.self(), new Expired(), context.dispatcher(), context.self()
+        );
+    }
+
+    @Override
+    public String toString() {
+        return bounded ? remainingMillis() + "ms left" : "no deadline";
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import scala.concurrent.ExecutionContext;
+
+/**
+ * Identifiers for the dispatchers and mailboxes configured in application.conf.
+ * <br/><br/>
+ * If a dispatcher or mailbox isn't configured (e.g. when running with a custom Akka config)
+ * the helpers fall back to the default one rather than failing actor creation.
+ */
+public final class MediatorDispatchers {
+    /** CPU-bound XML parsing and marshalling */
+    public static final String XML = "mediator-dispatchers.xml";
+    /** Blocking Mongo and HTTP I/O */
+    public static final String BLOCKING_IO = "mediator-dispatchers.blocking-io";
+    /** Blocking socket writes to the audit repository */
+    public static final String AUDIT_IO = "mediator-dispatchers.audit-io";
+    /** Serves interactive transactions ahead of bulk ones (see {@link PriorityMailbox}) */
+    public static final String PRIORITY_MAILBOX = "mediator-mailboxes.priority";
+
+
+    public static Props withDispatcher(ActorSystem system, Props props, String dispatcher) {
+        if (system.dispatchers().hasDispatcher(dispatcher)) {
+            return props.withDispatcher(dispatcher);
+        }
+        return props;
+    }
+
+    public static Props withMailbox(ActorSystem system, Props props, String mailbox) {
+        if (system.settings().config().hasPath(mailbox)) {
+            return props.withMailbox(mailbox);
+        }
+        return props;
+    }
+
+    public static ExecutionContext lookup(ActorSystem system, String dispatcher) {
+        if (system.dispatchers().hasDispatcher(dispatcher)) {
+            return system.dispatchers().lookup(dispatcher);
+        }
+        return system.dispatcher();
+    }
+
+    private MediatorDispatchers() {
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.exceptions.ValidationException;
+import org.openhim.mediator.messages.ATNAAudit;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The settings read on every transaction (upstream endpoints, workflow switches, assigning authorities and the PIX
+ * message header), compiled from the mediator properties into an immutable snapshot so that the hot paths don't
+ * look up and parse string properties for every request.
+ * <br/><br/>
+ * Actors get the current snapshot with {@link #get(MediatorConfig)}, which is a lock-free read. The snapshot is
+ * replaced as a whole with {@link #reload(MediatorConfig, Properties)} (e.g. by the {@link SettingsReloadActor} when
+ * the properties file changes), so a transaction that holds on to a snapshot sees consistent settings. Settings that
+ * size actors, breakers, limiters and admission control are read when those are created and still need a restart.
+ */
+public final class MediatorSettings {
+
+    private static final ConcurrentMap<String, MediatorSettings> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * An upstream service endpoint
+     */
+    public static final class Endpoint {
+        private final String host;
+        private final int port;
+        private final boolean secure;
+        private final String path;
+        private final URI uri;
+
+        Endpoint(String host, int port, boolean secure, String path) throws ValidationException {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+            this.path = path;
+            try {
+                String uriPath = StringUtils.isEmpty(path) || path.startsWith("/") ? path : "/" + path;
+                this.uri = new URI(getScheme(), null, host, port, uriPath, null, null);
+            } catch (URISyntaxException ex) {
+                throw new ValidationException("Invalid endpoint " + host + ":" + port + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return the secure port if the endpoint is secure, else the plain port
+         */
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isSecure() {
+            return secure;
+        }
+
+        /**
+         * @return the path as configured, or null if the endpoint doesn't have one
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getScheme() {
+            return secure ? "https" : "http";
+        }
+
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
+
+    //the properties of the MediatorConfig the snapshot was first compiled for
+    private final Properties origin;
+
+    private final Endpoint registry;
+    private final String registryUpdatePath;
+    private final Endpoint repository;
+    private final Endpoint pixManager;
+    private final Endpoint pixm;
+    private final Endpoint ilr;
+    private final Endpoint atna;
+    private final boolean atnaUseTcp;
+
+    private final String pixSendingApplication;
+    private final String pixSendingFacility;
+    private final String pixReceivingApplication;
+    private final String pixReceivingFacility;
+    private final String ilrProviderExpression;
+    private final String ilrFacilityExpression;
+
+    private final String clientAuthority;
+    private final String clientAuthorityId;
+    private final String providerAuthority;
+    private final String providerAuthorityId;
+    private final String facilityAuthority;
+    private final String facilityAuthorityId;
+
+    private final boolean autoRegisterPatients;
+    private final boolean enrichProviders;
+    private final boolean enrichFacilities;
+    private final boolean deferEnrichment;
+    private final long enrichmentBudgetMillis;
+    private final boolean enrichRegisterDocumentSet;
+    private final boolean registryCacheEnabled;
+    private final boolean sendParseOrchestration;
+
+
+    MediatorSettings(Properties props, Properties origin) throws ValidationException {
+        this.origin = origin;
+
+        registry = readEndpoint(props, "xds.registry", "xds.registry.path");
+        String updatePath = props.getProperty("xds.registry.updatePath");
+        registryUpdatePath = StringUtils.isNotBlank(updatePath) ? updatePath : props.getProperty("xds.registry.path");
+        repository = readEndpoint(props, "xds.repository", "xds.repository.path");
+        pixManager = readEndpoint(props, "pix.manager", null, "pix.secure");
+        pixm = readEndpoint(props, "pixm", "pixm.path");
+        ilr = readEndpoint(props, "ilr", "ilr.csr.path", null);
+
+        atnaUseTcp = readBoolean(props, "atna.useTcp", false);
+        atna = readEndpoint(
+                props.getProperty("atna.host"), props, atnaUseTcp ? "atna.tcpPort" : "atna.udpPort", readBoolean(props, "atna.secure", false), null
+        );
+
+        pixSendingApplication = props.getProperty("pix.sendingApplication");
+        pixSendingFacility = props.getProperty("pix.sendingFacility");
+        pixReceivingApplication = props.getProperty("pix.receivingApplication");
+        pixReceivingFacility = props.getProperty("pix.receivingFacility");
+        ilrProviderExpression = props.getProperty("ilr.query.expression.provider");
+        ilrFacilityExpression = props.getProperty("ilr.query.expression.facility");
+
+        clientAuthority = props.getProperty("client.requestedAssigningAuthority");
+        clientAuthorityId = props.getProperty("client.requestedAssigningAuthorityId");
+        providerAuthority = props.getProperty("provider.requestedAssigningAuthority");
+        providerAuthorityId = props.getProperty("provider.requestedAssigningAuthorityId");
+        facilityAuthority = props.getProperty("facility.requestedAssigningAuthority");
+        facilityAuthorityId = props.getProperty("facility.requestedAssigningAuthorityId");
+
+        autoRegisterPatients = readBoolean(props, "pnr.patients.autoRegister", false);
+        enrichProviders = readBoolean(props, "pnr.providers.enrich", true);
+        enrichFacilities = readBoolean(props, "pnr.facilities.enrich", true);
+        //the deferred enrichment and registry cache actors are only started if enabled, so these need a restart
+        deferEnrichment = readBoolean(origin, "pnr.enrichment.deferred", false);
+        enrichmentBudgetMillis = readLong(props, "pnr.enrichment.budgetMs", 1000);
+        enrichRegisterDocumentSet = readBoolean(props, "registry.registerDocumentSet.enrich", false);
+        registryCacheEnabled = readBoolean(origin, "registry.cache.enabled", false);
+        sendParseOrchestration = props.getProperty("pnr.sendParseOrchestration") == null
+                || "true".equalsIgnoreCase(props.getProperty("pnr.sendOrchestration"));
+
+        validateAtnaPayload(props);
+    }
+
+    /**
+     * The ATNA payload policy is read by the auditing actor, but a typo in it should stop the mediator from starting
+     */
+    private static void validateAtnaPayload(Properties props) throws ValidationException {
+        for (String key : props.stringPropertyNames()) {
+            if (!key.startsWith("atna.payload.")) {
+                continue;
+            }
+            String name = key.substring("atna.payload.".length());
+            if ("truncateBytes".equals(name)) {
+                if (readLong(props, key, 1) < 1) {
+                    throw new ValidationException(key + " must be at least 1, got '" + props.getProperty(key) + "'");
+                }
+                continue;
+            }
+            if (!"default".equals(name) && !isAuditType(name)) {
+                throw new ValidationException(key + " doesn't name an audit type, expected one of " + Arrays.toString(ATNAAudit.TYPE.values()));
+            }
+            String value = props.getProperty(key);
+            try {
+                ATNAPayloadPolicy.parseMode(value, ATNAPayloadPolicy.Mode.FULL);
+            } catch (IllegalArgumentException ex) {
+                throw new ValidationException(key + " must be one of full, metadata, truncated or digest, got '" + value + "'", ex);
+            }
+        }
+    }
+
+    private static boolean isAuditType(String name) {
+        for (ATNAAudit.TYPE type : ATNAAudit.TYPE.values()) {
+            if (type.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Endpoint readEndpoint(Properties props, String prefix, String pathKey) throws ValidationException {
+        return readEndpoint(props, prefix, pathKey, prefix + ".secure");
+    }
+
+    private static Endpoint readEndpoint(Properties props, String prefix, String pathKey, String secureKey) throws ValidationException {
+        boolean secure = secureKey != null && readBoolean(props, secureKey, false);
+        return readEndpoint(
+                props.getProperty(prefix + ".host"), props, prefix + (secure ? ".securePort" : ".port"), secure,
+                pathKey != null ? props.getProperty(pathKey) : null
+        );
+    }
+
+    /**
+     * @return the endpoint, or null if no host is configured
+     */
+    private static Endpoint readEndpoint(String host, Properties props, String portKey, boolean secure, String path) throws ValidationException {
+        if (StringUtils.isBlank(host)) {
+            return null;
+        }
+        String port = props.getProperty(portKey);
+        if (StringUtils.isBlank(port)) {
+            throw new ValidationException(portKey + " is required");
+        }
+        try {
+            int value = Integer.parseInt(port.trim());
+            if (value < 1 || value > 65535) {
+                throw new ValidationException(portKey + " must be between 1 and 65535, got " + value);
+            }
+            return new Endpoint(host.trim(), value, secure, path);
+        } catch (NumberFormatException ex) {
+            throw new ValidationException(portKey + " must be a port number, got '" + port + "'", ex);
+        }
+    }
+
+    private static boolean readBoolean(Properties props, String key, boolean valueIfNotExist) throws ValidationException {
+        String value = props.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return valueIfNotExist;
+        }
+        if ("true".equalsIgnoreCase(value.trim())) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value.trim())) {
+            return false;
+        }
+        throw new ValidationException(key + " must be true or false, got '" + value + "'");
+    }
+
+    private static long readLong(Properties props, String key, long valueIfNotExist) throws ValidationException {
+        String value = props.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return valueIfNotExist;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new ValidationException(key + " must be a number, got '" + value + "'", ex);
+        }
+    }
+
+    private static String keyFor(MediatorConfig config) {
+        return String.valueOf(config.getName());
+    }
+
+    /**
+     * @return the current settings of a mediator
+     * @throws IllegalStateException if the settings haven't been loaded yet and the properties are invalid
+     */
+    public static MediatorSettings get(MediatorConfig config) {
+        MediatorSettings settings = snapshots.get(keyFor(config));
+        //a different properties instance means the config was replaced (e.g. by a test); compile it afresh
+        if (settings == null || settings.origin != config.getProperties()) {
+            try {
+                settings = load(config);
+            } catch (ValidationException ex) {
+                throw new IllegalStateException("Invalid mediator configuration: " + ex.getMessage(), ex);
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Compile and validate the properties of a mediator and make them its current settings
+     */
+    public static MediatorSettings load(MediatorConfig config) throws ValidationException {
+        MediatorSettings settings = new MediatorSettings(config.getProperties(), config.getProperties());
+        snapshots.put(keyFor(config), settings);
+        return settings;
+    }
+
+    /**
+     * Replace the settings of a mediator with ones compiled from updated properties. If the properties are invalid
+     * the current settings are kept.
+     *
+     * @return the new settings
+     */
+    public static MediatorSettings reload(MediatorConfig config, Properties props) throws ValidationException {
+        MediatorSettings settings = new MediatorSettings(props, config.getProperties());
+        snapshots.put(keyFor(config), settings);
+        return settings;
+    }
+
+    /**
+     * @return the XDS.b registry, or null if not configured
+     */
+    public Endpoint getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return the registry path for metadata updates (ITI-57), xds.registry.path if not set separately
+     */
+    public String getRegistryUpdatePath() {
+        return registryUpdatePath;
+    }
+
+    /**
+     * @return the XDS.b repository, or null if not configured
+     */
+    public Endpoint getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return the PIX manager (an MLLP endpoint, so it has no path), or null if not configured
+     */
+    public Endpoint getPixManager() {
+        return pixManager;
+    }
+
+    /**
+     * @return the FHIR base of the PIXm (ITI-83) patient identifier cross-reference manager, or null if not configured
+     */
+    public Endpoint getPixm() {
+        return pixm;
+    }
+
+    /**
+     * @return the CSD care services request endpoint of the ILR, or null if not configured
+     */
+    public Endpoint getIlr() {
+        return ilr;
+    }
+
+    /**
+     * @return the ATNA audit repository (its TCP or UDP port depending on {@link #isAtnaUseTcp()}), or null if not configured
+     */
+    public Endpoint getAtna() {
+        return atna;
+    }
+
+    public boolean isAtnaUseTcp() {
+        return atnaUseTcp;
+    }
+
+    public String getPixSendingApplication() {
+        return pixSendingApplication;
+    }
+
+    public String getPixSendingFacility() {
+        return pixSendingFacility;
+    }
+
+    public String getPixReceivingApplication() {
+        return pixReceivingApplication;
+    }
+
+    public String getPixReceivingFacility() {
+        return pixReceivingFacility;
+    }
+
+    public String getIlrProviderExpression() {
+        return ilrProviderExpression;
+    }
+
+    public String getIlrFacilityExpression() {
+        return ilrFacilityExpression;
+    }
+
+    /**
+     * @return the assigning authority to resolve patient identifiers to (a new instance that may be modified)
+     */
+    public AssigningAuthority getClientAuthority() {
+        return new AssigningAuthority(clientAuthority, clientAuthorityId);
+    }
+
+    /**
+     * @return the assigning authority to resolve healthcare worker identifiers to (a new instance that may be modified)
+     */
+    public AssigningAuthority getProviderAuthority() {
+        return new AssigningAuthority(providerAuthority, providerAuthorityId);
+    }
+
+    /**
+     * @return the assigning authority to resolve facility identifiers to (a new instance that may be modified)
+     */
+    public AssigningAuthority getFacilityAuthority() {
+        return new AssigningAuthority(facilityAuthority, facilityAuthorityId);
+    }
+
+    public boolean isAutoRegisterPatients() {
+        return autoRegisterPatients;
+    }
+
+    public boolean isEnrichProviders() {
+        return enrichProviders;
+    }
+
+    public boolean isEnrichFacilities() {
+        return enrichFacilities;
+    }
+
+    /**
+     * Read from the properties the mediator was started with, as it decides whether the deferred enrichment actor is
+     * started. Changing it needs a restart.
+     */
+    public boolean isDeferEnrichment() {
+        return deferEnrichment;
+    }
+
+    /**
+     * @return how long to wait for healthcare worker and facility identifiers before responding, if enrichment is deferred
+     */
+    public long getEnrichmentBudgetMillis() {
+        return enrichmentBudgetMillis;
+    }
+
+    public boolean isEnrichRegisterDocumentSet() {
+        return enrichRegisterDocumentSet;
+    }
+
+    /**
+     * Read from the properties the mediator was started with, as it decides whether the registry query cache actor is
+     * started. Changing it needs a restart.
+     */
+    public boolean isRegistryCacheEnabled() {
+        return registryCacheEnabled;
+    }
+
+    public boolean isSendParseOrchestration() {
+        return sendParseOrchestration;
+    }
+}
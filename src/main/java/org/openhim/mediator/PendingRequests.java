@@ -0,0 +1,172 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorContext;
+import akka.actor.Cancellable;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The requests an actor is waiting on an upstream dependency (e.g. the PIX manager) for, keyed by correlation ID.
+ * <br/><br/>
+ * Every request has a deadline of <code>&lt;dependency&gt;.pending.timeoutMs</code>, scheduled on the Akka scheduler
+ * (a hashed wheel timer). If the request is still pending when its deadline passes, the actor is sent an
+ * {@link Expired} message and should answer the request with a failure. This covers the whole time a request is
+ * pending, including any time it waits for the dependency's {@link AdaptiveLimiter}, so unlike the breaker's call
+ * timeout it also applies when the breaker is switched off. A request added with the {@link Deadline} of its
+ * transaction expires at that deadline instead if it comes first.
+ * <br/><br/>
+ * Not thread-safe: an instance belongs to a single actor. The number of pending requests across all the actors of
+ * a dependency and the number of expired requests are available as metrics.
+ */
+public class PendingRequests<T> {
+
+    public static class Expired {
+        final String correlationId;
+
+        Expired(String correlationId) {
+            this.correlationId = correlationId;
+        }
+
+        public String getCorrelationId() {
+            return correlationId;
+        }
+    }
+
+    private static class Entry<T> {
+        final T request;
+        final Cancellable deadline;
+
+        Entry(T request, Cancellable deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ActorContext context;
+    private final String dependency;
+    private final long timeoutMillis;
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+    private final AtomicInteger size;
+    private final MetricsRegistry.Counter expiries;
+
+
+    public PendingRequests(ActorContext context, MediatorConfig config, String dependency) {
+        this.context = context;
+        this.dependency = dependency;
+        this.timeoutMillis = Util.getLongProperty(config, dependency + ".pending.timeoutMs", 60000);
+        this.size = sizeFor(SharedResources.get(context.system()), config, dependency);
+        this.expiries = MetricsRegistry.getInstance().counter(
+                "mediator_pending_request_expiries_total", "Requests that expired while waiting for an upstream dependency",
+                MetricsRegistry.labels("dependency", dependency)
+        );
+    }
+
+    private static AtomicInteger sizeFor(SharedResources resources, MediatorConfig config, final String dependency) {
+        return resources.getOrCreate(SharedResources.key("pending", config, dependency), new SharedResources.Factory<AtomicInteger, RuntimeException>() {
+            @Override
+            public AtomicInteger create() {
+                final AtomicInteger size = new AtomicInteger();
+                MetricsRegistry.getInstance().gauge(
+                        "mediator_pending_requests", "Requests waiting for an upstream dependency",
+                        MetricsRegistry.labels("dependency", dependency), new MetricsRegistry.Gauge() {
+                            @Override
+                            public double getValue() {
+                                return size.get();
+                            }
+                        }
+                );
+                return size;
+            }
+        });
+    }
+
+    public void put(String correlationId, T request) {
+        put(correlationId, request, Deadline.NONE);
+    }
+
+    /**
+     * Add a request that expires at the deadline of its transaction, if that comes before the pending timeout
+     */
+    public void put(String correlationId, T request, Deadline transactionDeadline) {
+        long expiresIn = Math.max(0, Math.min(timeoutMillis, transactionDeadline.remainingMillis()));
+        Cancellable deadline = context.system().scheduler().scheduleOnce(
+                Duration.create(expiresIn, TimeUnit.MILLISECONDS), context.self(), new Expired(correlationId), context.dispatcher(), context.self()
+        );
+        Entry<T> previous = entries.put(correlationId, new Entry<>(request, deadline));
+        if (previous != null) {
+            previous.deadline.cancel();
+        } else {
+            size.incrementAndGet();
+        }
+    }
+
+    public T get(String correlationId) {
+        Entry<T> entry = entries.get(correlationId);
+        return entry != null ? entry.request : null;
+    }
+
+    /**
+     * Remove a request that has been answered
+     *
+     * @return the request, or null if it wasn't pending (e.g. because it expired)
+     */
+    public T remove(String correlationId) {
+        Entry<T> entry = entries.remove(correlationId);
+        if (entry == null) {
+            return null;
+        }
+        entry.deadline.cancel();
+        size.decrementAndGet();
+        return entry.request;
+    }
+
+    /**
+     * Remove a request whose deadline has passed
+     *
+     * @return the request, or null if it was answered before its deadline
+     */
+    public T expire(Expired msg) {
+        Entry<T> entry = entries.remove(msg.correlationId);
+        if (entry == null) {
+            return null;
+        }
+        size.decrementAndGet();
+        expiries.increment();
+        return entry.request;
+    }
+
+    /**
+     * Drop all the pending requests, e.g. when the actor stops
+     */
+    public void clear() {
+        for (Entry<T> entry : entries.values()) {
+            entry.deadline.cancel();
+        }
+        size.addAndGet(-entries.size());
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public String getDependency() {
+        return dependency;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+/**
+ * The priority class of a transaction, used to serve clinician-facing work (e.g. registry stored queries) ahead of
+ * bulk submissions where they share an actor or an upstream dependency.
+ * <br/><br/>
+ * Route actors classify each transaction with the {@link PriorityPolicy} and pass the class along with the messages
+ * they send for it. Classes are listed from the most to the least urgent.
+ *
+ * @see WeightedFairQueue
+ * @see PriorityMailbox
+ */
+public enum Priority {
+    INTERACTIVE, NORMAL, BULK;
+
+    /**
+     * A message that carries the priority of the transaction it was sent for
+     */
+    public interface Carrier {
+        Priority getPriority();
+    }
+
+    /**
+     * @return the priority of a message, or NORMAL if it doesn't carry one
+     */
+    public static Priority of(Object msg) {
+        if (msg instanceof Carrier && ((Carrier) msg).getPriority() != null) {
+            return ((Carrier) msg).getPriority();
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @return the priority named by a configuration value (e.g. <code>interactive</code>), or defaultPriority if it's blank
+     */
+    public static Priority parse(String value, Priority defaultPriority) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultPriority;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * An unbounded mailbox for actors shared between transactions of different priorities (the PIX and ILR resolvers and
+ * the ATNA audit sender). Messages that carry a {@link Priority} are queued in a {@link WeightedFairQueue}, so a
+ * backlog of bulk requests doesn't hold up interactive ones. All other messages (e.g. upstream responses, timeouts
+ * and limiter permits) finish work that has already started and are always processed first. Messages of the same
+ * class are processed in the order they were received.
+ * <br/><br/>
+ * Configured as <code>mediator-mailboxes.priority</code> in application.conf, where <code>weights</code> sets the
+ * weights of the INTERACTIVE, NORMAL and BULK classes (e.g. <code>"8,4,1"</code>). XDSMediatorMain sets them from the
+ * mediator's <code>priority.weights</code> property when there is one, so they match the upstream limiters' weights.
+ */
+public class PriorityMailbox implements MailboxType, ProducesMessageQueue<PriorityMailbox.PriorityMessageQueue> {
+
+    public static class PriorityMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final Deque<Envelope> control = new ArrayDeque<>();
+        private final WeightedFairQueue<Envelope> prioritised;
+
+        PriorityMessageQueue(int[] weights) {
+            prioritised = new WeightedFairQueue<>(weights);
+        }
+
+        @Override
+        public synchronized void enqueue(ActorRef receiver, Envelope handle) {
+            if (handle.message() instanceof Priority.Carrier) {
+                prioritised.add(Priority.of(handle.message()), handle);
+            } else {
+                control.add(handle);
+            }
+        }
+
+        @Override
+        public synchronized Envelope dequeue() {
+            Envelope next = control.poll();
+            return next != null ? next : prioritised.poll();
+        }
+
+        @Override
+        public synchronized int numberOfMessages() {
+            return control.size() + prioritised.size();
+        }
+
+        @Override
+        public synchronized boolean hasMessages() {
+            return !control.isEmpty() || !prioritised.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+    }
+
+    private final int[] weights;
+
+
+    public PriorityMailbox(ActorSystem.Settings settings, Config config) {
+        weights = WeightedFairQueue.parseWeights(config.hasPath("weights") ? config.getString("weights") : null);
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new PriorityMessageQueue(weights);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Classifies transactions into {@link Priority} classes by client, SOAP action and route.
+ * <br/><br/>
+ * Each class lists the clients (the first X-Forwarded-For address), SOAP actions and routes that belong to it as
+ * comma-separated values, e.g.
+ * <pre>
+ * priority.routes.interactive=/xdsregistry
+ * priority.actions.bulk=urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b
+ * priority.clients.bulk=10.0.0.12
+ * </pre>
+ * A client match takes precedence over an action match, which takes precedence over a route match. Transactions that
+ * don't match anything have the <code>priority.default</code> class (NORMAL if not set).
+ */
+public class PriorityPolicy {
+
+    private final Priority defaultPriority;
+    private final Map<String, Priority> clients = new HashMap<>();
+    private final Map<String, Priority> actions = new HashMap<>();
+    private final Map<String, Priority> routes = new HashMap<>();
+
+
+    PriorityPolicy(MediatorConfig config) {
+        defaultPriority = Priority.parse(config.getProperty("priority.default"), Priority.NORMAL);
+        //most urgent class last, so that it wins if a value is listed for several classes
+        for (int i=Priority.values().length-1; i>=0; i--) {
+            Priority priority = Priority.values()[i];
+            String name = priority.name().toLowerCase();
+            readValues(config.getProperty("priority.clients." + name), priority, clients);
+            readValues(config.getProperty("priority.actions." + name), priority, actions);
+            readValues(config.getProperty("priority.routes." + name), priority, routes);
+        }
+    }
+
+    private static void readValues(String values, Priority priority, Map<String, Priority> target) {
+        if (values == null) {
+            return;
+        }
+        for (String value : values.split(",")) {
+            if (!value.trim().isEmpty()) {
+                target.put(value.trim(), priority);
+            }
+        }
+    }
+
+    /**
+     * @return the policy of a mediator, shared by all its actors
+     */
+    public static PriorityPolicy forConfig(SharedResources resources, final MediatorConfig config) {
+        return resources.getOrCreate(SharedResources.key("priority", config, "policy"), new SharedResources.Factory<PriorityPolicy, RuntimeException>() {
+            @Override
+            public PriorityPolicy create() {
+                return new PriorityPolicy(config);
+            }
+        });
+    }
+
+    /**
+     * @param route the route the transaction was received on, e.g. /xdsregistry
+     * @param action the SOAP action of the transaction, or null if it isn't known
+     * @param client the client the transaction was received from, or null if it isn't known
+     */
+    public Priority classify(String route, String action, String client) {
+        Priority priority = client != null ? clients.get(client) : null;
+        if (priority == null && action != null) {
+            priority = actions.get(action);
+        }
+        if (priority == null && route != null) {
+            priority = routes.get(route);
+        }
+        return priority != null ? priority : defaultPriority;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.routing.RoundRobinPool;
+import org.apache.commons.lang3.StringUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * A long-lived startup actor that shares a service between all transactions by spreading
+ * requests over a pool of routees.
+ * <br/><br/>
+ * Requests are forwarded, so the routees see the original sender. Routees reply directly
+ * (with themselves as sender), which means that follow-up messages for the same transaction
+ * can be sent to the sender of the reply rather than through the pool again.
+ */
+public abstract class RouterPoolActor extends UntypedActor {
+
+    protected final MediatorConfig config;
+    private ActorRef pool;
+
+
+    protected RouterPoolActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return the props used to create each routee
+     */
+    protected abstract Props routeeProps();
+
+    /**
+     * @return the name of the mediator property holding the pool size
+     */
+    protected abstract String poolSizeProperty();
+
+    /**
+     * @return the dispatcher to run the routees on, or null for the default dispatcher
+     */
+    protected String dispatcher() {
+        return null;
+    }
+
+    /**
+     * @return the mailbox of the routees, or null for the default mailbox
+     */
+    protected String mailbox() {
+        return null;
+    }
+
+    protected int poolSize() {
+        String size = config!=null ? config.getProperty(poolSizeProperty()) : null;
+        if (StringUtils.isNotBlank(size)) {
+            return Integer.parseInt(size.trim());
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        Props props = routeeProps();
+        if (dispatcher() != null) {
+            props = MediatorDispatchers.withDispatcher(getContext().system(), props, dispatcher());
+        }
+        if (mailbox() != null) {
+            props = MediatorDispatchers.withMailbox(getContext().system(), props, mailbox());
+        }
+        pool = getContext().actorOf(new RoundRobinPool(poolSize()).props(props), "pool");
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        pool.forward(msg, getContext());
+    }
+}
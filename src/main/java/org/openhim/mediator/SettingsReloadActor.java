@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.exceptions.ValidationException;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the mediator properties file and reloads the {@link MediatorSettings} when it changes.
+ * <br/><br/>
+ * The file is checked every <code>mediator.settings.reloadIntervalMs</code>. If the updated properties can't be read
+ * or are invalid, the error is logged and the current settings are kept until the file changes again.
+ */
+public class SettingsReloadActor extends UntypedActor {
+
+    private static class Check {}
+
+    private final LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final File file;
+    private final long intervalMillis;
+    private long lastModified;
+    private Cancellable checks;
+
+
+    public SettingsReloadActor(MediatorConfig config, File file) {
+        this.config = config;
+        this.file = file;
+        this.intervalMillis = Math.max(1000, Util.getLongProperty(config, "mediator.settings.reloadIntervalMs", 10000));
+        this.lastModified = file.lastModified();
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        checks = getContext().system().scheduler().schedule(
+                Duration.create(intervalMillis, TimeUnit.MILLISECONDS), Duration.create(intervalMillis, TimeUnit.MILLISECONDS),
+                getSelf(), new Check(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (checks != null) {
+            checks.cancel();
+        }
+    }
+
+    private void checkForChanges() {
+        long modified = file.lastModified();
+        if (modified == 0 || modified == lastModified) {
+            return;
+        }
+        lastModified = modified;
+
+        try {
+            Properties props = new Properties();
+            InputStream in = FileUtils.openInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+
+            MediatorSettings.reload(config, props);
+            log.info("Reloaded the mediator settings from '" + file + "'");
+            countReload("success");
+        } catch (IOException | ValidationException ex) {
+            log.error("Could not reload the mediator settings from '" + file + "', keeping the current settings: " + ex.getMessage());
+            countReload("failure");
+        }
+    }
+
+    private static void countReload(String outcome) {
+        MetricsRegistry.getInstance().counter(
+                "mediator_settings_reloads_total", "Reloads of the mediator settings", MetricsRegistry.labels("outcome", outcome)
+        ).increment();
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Check) {
+            checkForChanges();
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The state that the actors of a mediator share: circuit breakers, admission controllers, limiters, TLS contexts,
+ * connection pools and the patient cross-reference index.
+ * <br/><br/>
+ * An Akka extension, so there is one instance per actor system, looked up with {@link #get(ActorSystem)}.
+ * XDSMediatorMain creates it before the server starts, and resources that are {@link Closeable} are closed when the
+ * actor system terminates. Each resource is created once, on first use, by the class it belongs to (e.g.
+ * {@link CircuitBreaker#forDependency(SharedResources, MediatorConfig, String)}). Keys include the mediator's name,
+ * so that several configs can share an actor system.
+ */
+public final class SharedResources implements Extension {
+
+    public interface Factory<T, E extends Exception> {
+        T create() throws E;
+    }
+
+    private static final AbstractExtensionId<SharedResources> ID = new AbstractExtensionId<SharedResources>() {
+        @Override
+        public SharedResources createExtension(ExtendedActorSystem system) {
+            final SharedResources resources = new SharedResources();
+            system.registerOnTermination(new Runnable() {
+                @Override
+                public void run() {
+                    resources.close();
+                }
+            });
+            return resources;
+        }
+    };
+
+    private final ConcurrentMap<String, Object> resources = new ConcurrentHashMap<>();
+
+
+    /**
+     * Use {@link #get(ActorSystem)}. Public for tests that don't need an actor system.
+     */
+    public SharedResources() {
+    }
+
+    public static SharedResources get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    public static String key(String type, MediatorConfig config, String name) {
+        return type + ":" + config.getName() + ":" + name;
+    }
+
+    /**
+     * @return the resource with the key, created with the factory if there isn't one yet
+     */
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T getOrCreate(String key, Factory<T, E> factory) throws E {
+        Object resource = resources.get(key);
+        if (resource == null) {
+            //resources are created rarely, but some of them (e.g. a journal or connection pool) must not be created twice
+            synchronized (this) {
+                resource = resources.get(key);
+                if (resource == null) {
+                    resource = factory.create();
+                    resources.put(key, resource);
+                }
+            }
+        }
+        return (T) resource;
+    }
+
+    /**
+     * @return the resource with the key, or null if it hasn't been created
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getIfPresent(String key) {
+        return (T) resources.get(key);
+    }
+
+    /**
+     * Replace a resource, closing the previous one
+     */
+    public synchronized void put(String key, Object resource) {
+        Object previous = resources.put(key, resource);
+        if (previous != resource && previous instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) previous);
+        }
+    }
+
+    /**
+     * Close the resources that need closing and forget all of them
+     */
+    public synchronized void close() {
+        List<Object> closing = new ArrayList<>(resources.values());
+        resources.clear();
+        for (Object resource : closing) {
+            if (resource instanceof Closeable) {
+                IOUtils.closeQuietly((Closeable) resource);
+            }
+        }
+    }
+}
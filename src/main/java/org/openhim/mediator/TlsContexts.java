@@ -0,0 +1,676 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.metrics.Histogram;
+import org.openhim.mediator.metrics.MetricsRegistry;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SSLContexts used for the IHE secure connections, built once per endpoint from the IHE keystore so that the
+ * connections to an endpoint share a session cache and resume sessions instead of doing a full handshake each time.
+ * <br/><br/>
+ * Each endpoint (<code>atna</code>, <code>pix</code>, <code>dsub</code>, <code>pixm</code>) uses the <code>ihe.keystore</code>,
+ * <code>ihe.keypassword</code> and <code>ihe.storepassword</code> settings, which can be overridden with
+ * <code>&lt;endpoint&gt;.tls.keystore</code>, <code>&lt;endpoint&gt;.tls.keypassword</code>,
+ * <code>&lt;endpoint&gt;.tls.truststore</code> and <code>&lt;endpoint&gt;.tls.storepassword</code>. Sessions are cached
+ * for up to <code>tls.sessionTimeoutSeconds</code>, at most <code>tls.sessionCacheSize</code> per endpoint.
+ * <br/><br/>
+ * Handshakes are counted on /metrics as <code>mediator_tls_handshakes_total</code> and timed as
+ * <code>mediator_tls_handshake_seconds</code>, by endpoint, from when the handshake begins. Whether a session was resumed isn't reported, as under
+ * TLS 1.3 a resumption creates a new session; resumed handshakes show up as the faster ones.
+ */
+public final class TlsContexts {
+
+    public static final String ATNA = "atna";
+    public static final String PIX = "pix";
+    public static final String DSUB = "dsub";
+    public static final String PIXM = "pixm";
+
+
+    private TlsContexts() {}
+
+    /**
+     * @return the context of an endpoint, built on first use
+     * @throws IOException if the keystore can't be read
+     */
+    public static SSLContext forEndpoint(SharedResources resources, final MediatorConfig config, final String endpoint) throws IOException {
+        return resources.getOrCreate(SharedResources.key("tls", config, endpoint), new SharedResources.Factory<SSLContext, IOException>() {
+            @Override
+            public SSLContext create() throws IOException {
+                return build(config, endpoint);
+            }
+        });
+    }
+
+    /**
+     * @return true if a keystore is configured for the endpoint
+     */
+    public static boolean isConfigured(MediatorConfig config, String endpoint) {
+        return setting(config, endpoint, "keystore", "ihe.keystore") != null;
+    }
+
+    public static SSLSocketFactory socketFactory(SharedResources resources, MediatorConfig config, String endpoint) throws IOException {
+        return forEndpoint(resources, config, endpoint).getSocketFactory();
+    }
+
+    /**
+     * Open a secure connection to an endpoint and complete the handshake
+     */
+    public static SSLSocket connect(SharedResources resources, MediatorConfig config, String endpoint, String host, int port, int timeoutMillis) throws IOException {
+        Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(host, port), timeoutMillis);
+            //layered over the connected socket, so that only the handshake is timed
+            SSLSocket socket = (SSLSocket) socketFactory(resources, config, endpoint).createSocket(plain, host, port, true);
+            socket.startHandshake();
+            return socket;
+        } catch (IOException | RuntimeException ex) {
+            IOUtils.closeQuietly(plain);
+            throw ex;
+        }
+    }
+
+    /**
+     * Make the PIX endpoint's context the JVM default, so that the engine's connectors (e.g. the MLLP connector used
+     * for PIX requests) share its session cache and are included in the handshake metrics.
+     * <br/><br/>
+     * The default context is used by every TLS client in the JVM, so it's only replaced if the PIX endpoint uses the
+     * <code>ihe.*</code> settings. With a <code>pix.tls.*</code> override the default is left as it is, and the MLLP
+     * connector uses the <code>ihe.*</code> keystore.
+     *
+     * @return true if the default was replaced
+     */
+    public static boolean installDefault(SharedResources resources, MediatorConfig config) throws IOException {
+        if (hasOverrides(config, PIX)) {
+            return false;
+        }
+        SSLContext.setDefault(forEndpoint(resources, config, PIX));
+        return true;
+    }
+
+    private static boolean hasOverrides(MediatorConfig config, String endpoint) {
+        for (String name : new String[]{"keystore", "keypassword", "truststore", "storepassword"}) {
+            if (StringUtils.isNotBlank(config.getProperty(endpoint + ".tls." + name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SSLContext build(MediatorConfig config, String endpoint) throws IOException {
+        String keystore = setting(config, endpoint, "keystore", "ihe.keystore");
+        String keyPassword = setting(config, endpoint, "keypassword", "ihe.keypassword");
+        String truststore = setting(config, endpoint, "truststore", null);
+        String storePassword = setting(config, endpoint, "storepassword", "ihe.storepassword");
+        if (truststore == null) {
+            truststore = keystore;
+        }
+        if (keystore == null) {
+            throw new IOException("No keystore is configured for the " + endpoint + " endpoint (set ihe.keystore)");
+        }
+
+        try {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(loadKeyStore(keystore, storePassword), keyPassword != null ? keyPassword.toCharArray() : null);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(loadKeyStore(truststore, storePassword));
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize((int) Util.getLongProperty(config, "tls.sessionCacheSize", 256));
+            sessions.setSessionTimeout((int) Util.getLongProperty(config, "tls.sessionTimeoutSeconds", 3600));
+
+            return new InstrumentedSSLContext(context, endpoint);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Could not set up TLS for the " + endpoint + " endpoint: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static String setting(MediatorConfig config, String endpoint, String name, String fallbackKey) {
+        String value = config.getProperty(endpoint + ".tls." + name);
+        if (StringUtils.isBlank(value) && fallbackKey != null) {
+            value = config.getProperty(fallbackKey);
+        }
+        return StringUtils.isBlank(value) ? null : value.trim();
+    }
+
+    private static KeyStore loadKeyStore(String path, String password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        InputStream in = FileUtils.openInputStream(new File(path));
+        try {
+            keyStore.load(in, password != null ? password.toCharArray() : null);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return keyStore;
+    }
+
+    static void recordHandshake(String endpoint, long nanos) {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.counter(
+                "mediator_tls_handshakes_total", "TLS handshakes with upstream services",
+                MetricsRegistry.labels("endpoint", endpoint)
+        ).increment();
+        metrics.histogram(
+                "mediator_tls_handshake_seconds", "Latency of the TLS handshakes with upstream services",
+                MetricsRegistry.labels("endpoint", endpoint), Histogram.LATENCY_BUCKETS
+        ).observe(nanos / 1e9);
+    }
+
+    /**
+     * A context whose sockets report their handshakes to the metrics
+     */
+    private static class InstrumentedSSLContext extends SSLContext {
+        InstrumentedSSLContext(final SSLContext delegate, final String endpoint) {
+            super(new SSLContextSpi() {
+                private final SSLSocketFactory socketFactory = new InstrumentedSocketFactory(delegate.getSocketFactory(), endpoint);
+
+                @Override
+                protected void engineInit(javax.net.ssl.KeyManager[] km, javax.net.ssl.TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+                    throw new KeyManagementException("Already initialized");
+                }
+
+                @Override
+                protected SSLSocketFactory engineGetSocketFactory() {
+                    return socketFactory;
+                }
+
+                @Override
+                protected SSLServerSocketFactory engineGetServerSocketFactory() {
+                    return delegate.getServerSocketFactory();
+                }
+
+                @Override
+                protected SSLEngine engineCreateSSLEngine() {
+                    return delegate.createSSLEngine();
+                }
+
+                @Override
+                protected SSLEngine engineCreateSSLEngine(String host, int port) {
+                    return delegate.createSSLEngine(host, port);
+                }
+
+                @Override
+                protected SSLSessionContext engineGetServerSessionContext() {
+                    return delegate.getServerSessionContext();
+                }
+
+                @Override
+                protected SSLSessionContext engineGetClientSessionContext() {
+                    return delegate.getClientSessionContext();
+                }
+            }, delegate.getProvider(), delegate.getProtocol());
+        }
+    }
+
+    private static class InstrumentedSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final String endpoint;
+
+        InstrumentedSocketFactory(SSLSocketFactory delegate, String endpoint) {
+            this.delegate = delegate;
+            this.endpoint = endpoint;
+        }
+
+        private Socket instrument(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                return new TimedSSLSocket((SSLSocket) socket, endpoint);
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return instrument(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return instrument(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return instrument(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return instrument(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return instrument(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return instrument(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+    /**
+     * An SSLSocket that times its handshakes from when they begin rather than from when the socket was created, so
+     * that neither the TCP connect of an unconnected socket nor the time before the first request is counted. A
+     * handshake begins with {@link #startHandshake()}, {@link #getSession()} or, without either of them, the first
+     * read or write.
+     */
+    static class TimedSSLSocket extends SSLSocket {
+        private final SSLSocket delegate;
+        private final String endpoint;
+        //when the current handshake began, 0 if none has
+        private volatile long handshakeStarted;
+        private volatile boolean handshaken;
+
+        TimedSSLSocket(SSLSocket delegate, final String endpoint) {
+            this.delegate = delegate;
+            this.endpoint = endpoint;
+            delegate.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    long started = handshakeStarted;
+                    handshaken = true;
+                    handshakeStarted = 0;
+                    if (started != 0) {
+                        recordHandshake(endpoint, System.nanoTime() - started);
+                    }
+                }
+            });
+        }
+
+        private void handshakeBeginning() {
+            if (!handshaken && handshakeStarted == 0) {
+                handshakeStarted = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void startHandshake() throws IOException {
+            //also a renegotiation once the first handshake is done
+            handshakeStarted = System.nanoTime();
+            delegate.startHandshake();
+        }
+
+        @Override
+        public SSLSession getSession() {
+            handshakeBeginning();
+            return delegate.getSession();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(delegate.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    handshakeBeginning();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    handshakeBeginning();
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(delegate.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                    handshakeBeginning();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    handshakeBeginning();
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            delegate.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            delegate.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return delegate.getHandshakeSession();
+        }
+
+        @Override
+        public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            delegate.addHandshakeCompletedListener(listener);
+        }
+
+        @Override
+        public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            delegate.removeHandshakeCompletedListener(listener);
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            delegate.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return delegate.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            delegate.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return delegate.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            delegate.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return delegate.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            delegate.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return delegate.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return delegate.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            delegate.setSSLParameters(params);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            delegate.connect(endpoint);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            delegate.connect(endpoint, timeout);
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            delegate.bind(bindpoint);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return delegate.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return delegate.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return delegate.getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return delegate.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return delegate.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return delegate.getLocalSocketAddress();
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return delegate.getChannel();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            delegate.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return delegate.getTcpNoDelay();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            delegate.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return delegate.getSoLinger();
+        }
+
+        @Override
+        public void sendUrgentData(int data) throws IOException {
+            delegate.sendUrgentData(data);
+        }
+
+        @Override
+        public void setOOBInline(boolean on) throws SocketException {
+            delegate.setOOBInline(on);
+        }
+
+        @Override
+        public boolean getOOBInline() throws SocketException {
+            return delegate.getOOBInline();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            delegate.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return delegate.getSoTimeout();
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            delegate.setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return delegate.getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            delegate.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return delegate.getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            delegate.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return delegate.getKeepAlive();
+        }
+
+        @Override
+        public void setTrafficClass(int tc) throws SocketException {
+            delegate.setTrafficClass(tc);
+        }
+
+        @Override
+        public int getTrafficClass() throws SocketException {
+            return delegate.getTrafficClass();
+        }
+
+        @Override
+        public void setReuseAddress(boolean on) throws SocketException {
+            delegate.setReuseAddress(on);
+        }
+
+        @Override
+        public boolean getReuseAddress() throws SocketException {
+            return delegate.getReuseAddress();
+        }
+
+        @Override
+        public void setPerformancePreferences(int connectionTime, int latency, int bandwidth) {
+            delegate.setPerformancePreferences(connectionTime, latency, bandwidth);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            delegate.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            delegate.shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return delegate.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return delegate.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return delegate.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return delegate.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return delegate.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+}
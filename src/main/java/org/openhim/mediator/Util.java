@@ -6,6 +6,7 @@
 
 package org.openhim.mediator;
 
+import org.apache.commons.lang3.StringUtils;
 import org.openhim.mediator.engine.MediatorConfig;
 
 import java.io.BufferedReader;
@@ -13,8 +14,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -22,8 +23,8 @@ import javax.xml.bind.Marshaller;
 
 public class Util {
 	
-	//creating a new JAXB context is expensive, so keep static instances
-	private static Map<String, JAXBContext> JAXBContextInstances = new HashMap<String, JAXBContext>();
+	//creating a new JAXB context is expensive, so keep static instances (JAXB contexts are thread-safe)
+	private static ConcurrentMap<String, JAXBContext> JAXBContextInstances = new ConcurrentHashMap<String, JAXBContext>();
 	
 	/**
 	 * Split an id string into the id type and the id number
@@ -60,9 +61,15 @@ public class Util {
 	}
 	
 	public static JAXBContext getJAXBContext(String namespace) throws JAXBException {
-		if (!JAXBContextInstances.containsKey(namespace))
-			JAXBContextInstances.put(namespace, JAXBContext.newInstance(namespace));
-		return JAXBContextInstances.get(namespace);
+		JAXBContext jc = JAXBContextInstances.get(namespace);
+		if (jc == null) {
+			JAXBContext newContext = JAXBContext.newInstance(namespace);
+			jc = JAXBContextInstances.putIfAbsent(namespace, newContext);
+			if (jc == null) {
+				jc = newContext;
+			}
+		}
+		return jc;
 	}
 
     public static String getResourceAsString(String resource) throws IOException {
@@ -90,4 +97,11 @@ public class Util {
         }
         return config.getProperty(key).equalsIgnoreCase("true");
     }
+
+    public static long getLongProperty(MediatorConfig config, String key, long valueIfNotExist) {
+        if (config==null || StringUtils.isBlank(config.getProperty(key))) {
+            return valueIfNotExist;
+        }
+        return Long.parseLong(config.getProperty(key).trim());
+    }
 }
@@ -0,0 +1,308 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.event.LoggingAdapter;
+import ca.uhn.hl7v2.model.v25.message.ADT_A01;
+import ca.uhn.hl7v2.model.v25.message.QBP_Q21;
+import ca.uhn.hl7v2.parser.GenericParser;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import ihe.iti.atna.AuditMessage;
+import ihe.iti.atna.EventIdentificationType;
+import ihe.iti.xds_b._2007.ObjectFactory;
+import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import org.apache.commons.io.IOUtils;
+import org.bson.Document;
+import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.denormalization.StoredQueryEnricher;
+import org.openhim.mediator.dsub.DsubActor;
+import org.openhim.mediator.dsub.DsubUtil;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Does the one-off work that would otherwise slow down the first transactions after a restart: building the JAXB
+ * contexts, loading the HAPI model classes and the XML factories, running the bundled fixtures (in
+ * <code>warmup/</code>) through the parsers and marshallers, and connecting (and handshaking, for TLS) to the PIX
+ * manager, the ATNA audit repository and Mongo. Secure connections are made with the endpoint's {@link TlsContexts}
+ * context, so the TLS session can be resumed by the first transaction.
+ * <br/><br/>
+ * The steps run in parallel and are given <code>mediator.warmup.timeoutMs</code> in total. A step that fails or
+ * doesn't complete in time is logged and doesn't stop the mediator from starting, e.g. if an upstream service is down.
+ */
+public class WarmUp {
+
+    static final String[] JAXB_PACKAGES = {
+            ParseProvideAndRegisterRequestActor.XDS_B_PACKAGE,
+            ParseProvideAndRegisterRequestActor.LCM_PACKAGE,
+            "oasis.names.tc.ebxml_regrep.xsd.rim._3",
+            "oasis.names.tc.ebxml_regrep.xsd.query._3",
+            "ihe.iti.atna",
+            DsubUtil.WSN_PACKAGE
+    };
+
+    private final SharedResources resources;
+    private final MediatorConfig config;
+    private final LoggingAdapter log;
+    private final long timeoutMillis;
+    private final int connectTimeoutMillis;
+
+
+    public WarmUp(SharedResources resources, MediatorConfig config, LoggingAdapter log) {
+        this.resources = resources;
+        this.config = config;
+        this.log = log;
+        this.timeoutMillis = Util.getLongProperty(config, "mediator.warmup.timeoutMs", 30000);
+        this.connectTimeoutMillis = (int) Util.getLongProperty(config, "mediator.warmup.connectTimeoutMs", 5000);
+    }
+
+    /**
+     * Run the warm-up steps and wait for them to complete (or for the timeout)
+     *
+     * @return the time each step took in milliseconds, or -1 for the steps that failed or timed out
+     */
+    public Map<String, Long> run() throws InterruptedException {
+        Map<String, Callable<Long>> steps = steps();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(steps.size(), Runtime.getRuntime().availableProcessors() + 2), new WarmUpThreadFactory()
+        );
+
+        long start = System.nanoTime();
+        Map<String, Long> timings = new LinkedHashMap<>();
+        try {
+            List<Future<Long>> futures = executor.invokeAll(new ArrayList<>(steps.values()), timeoutMillis, TimeUnit.MILLISECONDS);
+            int i = 0;
+            for (String step : steps.keySet()) {
+                timings.put(step, outcome(step, futures.get(i++)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info(String.format("Warm-up completed in %dms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return timings;
+    }
+
+    private long outcome(String step, Future<Long> future) throws InterruptedException {
+        try {
+            long millis = future.get();
+            log.info(String.format("Warm-up step '%s' took %dms", step, millis));
+            return millis;
+        } catch (CancellationException ex) {
+            log.warning(String.format("Warm-up step '%s' didn't complete within %dms", step, timeoutMillis));
+        } catch (ExecutionException ex) {
+            log.warning(String.format("Warm-up step '%s' failed: %s", step, ex.getCause()));
+        }
+        return -1;
+    }
+
+    Map<String, Callable<Long>> steps() {
+        Map<String, Callable<Long>> steps = new LinkedHashMap<>();
+        for (final String jaxbPackage : JAXB_PACKAGES) {
+            steps.put("jaxb:" + jaxbPackage, new Step() {
+                @Override
+                void warmUp() throws Exception {
+                    Util.getJAXBContext(jaxbPackage);
+                }
+            });
+        }
+        steps.put("jaxb:infoset", new Step() {
+            @Override
+            void warmUp() throws Exception {
+                InfosetUtil.jaxbCtx();
+            }
+        });
+        steps.put("xml-factories", new Step() {
+            @Override
+            void warmUp() throws Exception {
+                XMLInputFactory.newInstance();
+                XMLOutputFactory.newInstance();
+                DocumentBuilderFactory.newInstance().newDocumentBuilder();
+                XPathFactory.newInstance().newXPath();
+                TransformerFactory.newInstance().newTransformer();
+            }
+        });
+        steps.put("hl7v2", new Step() {
+            @Override
+            void warmUp() throws Exception {
+                warmUpHL7v2();
+            }
+        });
+        steps.put("provide-and-register", new Step() {
+            @Override
+            void warmUp() throws Exception {
+                ProvideAndRegisterDocumentSetRequestType pnr = ParseProvideAndRegisterRequestActor.parseRequest(fixture("pnr.xml"));
+                Util.marshallJAXBObject(ParseProvideAndRegisterRequestActor.XDS_B_PACKAGE, new ObjectFactory().createProvideAndRegisterDocumentSetRequest(pnr), false);
+                Util.marshallJAXBObject(ParseProvideAndRegisterRequestActor.LCM_PACKAGE, pnr.getSubmitObjectsRequest(), false);
+            }
+        });
+        steps.put("stored-query", new Step() {
+            @Override
+            void warmUp() throws Exception {
+                byte[] query = fixture("adhocQueryRequest.xml").getBytes("UTF-8");
+                org.w3c.dom.Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(query));
+                XPathFactory.newInstance().newXPath().compile("//AdhocQueryRequest[1]/AdhocQuery/Slot/ValueList/Value").evaluate(doc, XPathConstants.NODESET);
+                StoredQueryEnricher.enrich(
+                        new ByteArrayInputStream(query), new ByteArrayOutputStream(), new Identifier("warmup", new AssigningAuthority("ECID", "ECID", "ISO"))
+                );
+            }
+        });
+        steps.put("atna", new Step() {
+            @Override
+            void warmUp() throws Exception {
+                AuditMessage audit = new AuditMessage();
+                EventIdentificationType eid = new EventIdentificationType();
+                eid.setEventID(ATNAUtil.buildCodedValueType("DCM", "110112", "Query"));
+                eid.setEventDateTime(ATNAUtil.newXMLGregorianCalendar());
+                audit.setEventIdentification(eid);
+                audit.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+                ATNAUtil.marshallATNAObject(audit);
+            }
+        });
+
+        MediatorSettings settings = MediatorSettings.get(config);
+        final MediatorSettings.Endpoint pixManager = settings.getPixManager();
+        if (pixManager != null) {
+            steps.put("connect:pix", new Step() {
+                @Override
+                void warmUp() throws Exception {
+                    connect(TlsContexts.PIX, pixManager);
+                }
+            });
+        }
+        final MediatorSettings.Endpoint atna = settings.getAtna();
+        if (atna != null && settings.isAtnaUseTcp()) {
+            steps.put("connect:atna", new Step() {
+                @Override
+                void warmUp() throws Exception {
+                    connect(TlsContexts.ATNA, atna);
+                }
+            });
+        }
+        final String mongoHost = config.getProperty("mediator.mongo.host");
+        if (mongoHost != null) {
+            steps.put("connect:mongo", new Step() {
+                @Override
+                void warmUp() throws Exception {
+                    DsubActor.mongoClient(resources, config).getDatabase("dsub").runCommand(new Document("ping", 1));
+                }
+            });
+        }
+        return steps;
+    }
+
+    private static void warmUpHL7v2() throws Exception {
+        Parser parser = new GenericParser();
+        parser.parse(fixture("pixResponse.er7"));
+
+        QBP_Q21 qbp = new QBP_Q21();
+        Terser t = new Terser(qbp);
+        t.set("MSH-1", "|");
+        t.set("MSH-2", "^~\\&");
+        t.set("MSH-9-1", "QBP");
+        t.set("MSH-9-2", "Q23");
+        t.set("MSH-12-1-1", "2.5");
+        t.set("QPD-3-1", "warmup");
+        parser.encode(qbp);
+
+        ADT_A01 adt = new ADT_A01();
+        t = new Terser(adt);
+        t.set("MSH-1", "|");
+        t.set("MSH-2", "^~\\&");
+        t.set("MSH-9-1", "ADT");
+        t.set("MSH-9-2", "A04");
+        t.set("MSH-12-1-1", "2.5");
+        t.set("PID-3-1", "warmup");
+        parser.encode(adt);
+    }
+
+    /**
+     * Open (and for secure endpoints, handshake) a connection, so that name resolution, the TLS classes and the TLS
+     * session are set up before the first transaction needs them
+     */
+    private void connect(String name, MediatorSettings.Endpoint endpoint) throws IOException {
+        Socket socket = null;
+        try {
+            if (endpoint.isSecure()) {
+                //a session in the endpoint's TLS context, to be resumed by the first transaction
+                socket = TlsContexts.connect(resources, config, name, endpoint.getHost(), endpoint.getPort(), connectTimeoutMillis);
+            } else {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()), connectTimeoutMillis);
+            }
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    private static String fixture(String name) throws IOException {
+        InputStream in = WarmUp.class.getClassLoader().getResourceAsStream("warmup/" + name);
+        if (in == null) {
+            throw new IOException("Missing warm-up fixture " + name);
+        }
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * A warm-up step, returning the time it took in milliseconds
+     */
+    private static abstract class Step implements Callable<Long> {
+        abstract void warmUp() throws Exception;
+
+        @Override
+        public Long call() throws Exception {
+            long start = System.nanoTime();
+            warmUp();
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    private static class WarmUpThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "warmup-" + count.incrementAndGet());
+            //don't hold up shutdown if a step is stuck, e.g. on a connection
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A queue with a FIFO lane per {@link Priority}, served in weighted rounds: in every round each lane is polled up to
+ * its weight in times (most urgent lane first), so e.g. with weights 8, 4 and 1 at least one bulk item is served for
+ * every 12 more urgent ones and bulk work can't be starved. Lanes that are empty don't hold up a round.
+ * <br/><br/>
+ * Not thread-safe.
+ */
+public class WeightedFairQueue<T> {
+
+    /** The default weights of the INTERACTIVE, NORMAL and BULK lanes */
+    public static final int[] DEFAULT_WEIGHTS = {8, 4, 1};
+
+    private final Deque<T>[] lanes;
+    private final int[] weights;
+    //the items each lane may still be polled for in the current round
+    private final int[] credits;
+    private int size;
+
+
+    public WeightedFairQueue() {
+        this(DEFAULT_WEIGHTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public WeightedFairQueue(int[] weights) {
+        int lanes = Priority.values().length;
+        if (weights.length != lanes) {
+            throw new IllegalArgumentException("Expected " + lanes + " weights, got " + weights.length);
+        }
+        this.lanes = new Deque[lanes];
+        this.weights = new int[lanes];
+        for (int i=0; i<lanes; i++) {
+            this.lanes[i] = new ArrayDeque<>();
+            this.weights[i] = Math.max(1, weights[i]);
+        }
+        this.credits = Arrays.copyOf(this.weights, lanes);
+    }
+
+    /**
+     * Parse weights configured as a comma-separated list, e.g. <code>8,4,1</code>
+     *
+     * @return the weights, or the default weights if value is blank
+     */
+    public static int[] parseWeights(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_WEIGHTS;
+        }
+        String[] parts = value.split(",");
+        int[] weights = new int[parts.length];
+        for (int i=0; i<parts.length; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+        }
+        return weights;
+    }
+
+    public void add(Priority priority, T item) {
+        lanes[priority.ordinal()].add(item);
+        size++;
+    }
+
+    /**
+     * @return the next item, or null if the queue is empty
+     */
+    public T poll() {
+        if (size == 0) {
+            return null;
+        }
+        T item = pollWithCredit();
+        if (item == null) {
+            //every lane with items has used up its share of the round
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+            item = pollWithCredit();
+        }
+        size--;
+        return item;
+    }
+
+    private T pollWithCredit() {
+        for (int i=0; i<lanes.length; i++) {
+            if (credits[i] > 0 && !lanes[i].isEmpty()) {
+                credits[i]--;
+                return lanes[i].poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove an item (compared with equals)
+     *
+     * @return false if it wasn't queued
+     */
+    public boolean remove(T item) {
+        for (Deque<T> lane : lanes) {
+            if (lane.remove(item)) {
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int size(Priority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+}
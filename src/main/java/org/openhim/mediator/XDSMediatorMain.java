@@ -9,39 +9,81 @@ package org.openhim.mediator;
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
 import akka.actor.ActorSystem;
+import akka.actor.Props;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.openhim.mediator.denormalization.ATNAAuditingActor;
+import org.openhim.mediator.denormalization.CSDRequestActor;
 import org.openhim.mediator.denormalization.EnrichRegistryStoredQueryActor;
+import org.openhim.mediator.denormalization.PIXRequestActor;
+import org.openhim.mediator.denormalization.PatientResolutionBackend;
+import org.openhim.mediator.denormalization.PatientXrefFeedActor;
+import org.openhim.mediator.denormalization.PatientXrefIndex;
 import org.openhim.mediator.dsub.DsubActor;
 import org.openhim.mediator.engine.*;
 import org.openhim.mediator.engine.messages.SetupHTTPSCertificate;
+import org.openhim.mediator.metrics.MetricsActor;
+import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
 import org.openhim.mediator.normalization.ParseRegistryStoredQueryActor;
+import org.openhim.mediator.normalization.XDSbMimeProcessorActor;
+import org.openhim.mediator.orchestration.BulkIngestionActor;
+import org.openhim.mediator.orchestration.DeferredEnrichmentActor;
 import org.openhim.mediator.orchestration.RegistryActor;
+import org.openhim.mediator.orchestration.RegistryQueryCacheActor;
 import org.openhim.mediator.orchestration.RepositoryActor;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Properties;
 
 public class XDSMediatorMain {
 
-    private static RoutingTable buildRoutingTable() throws RoutingTable.RouteAlreadyMappedException {
+    /**
+     * Also used by the load test, so that it runs the same routes and startup actors as the mediator
+     */
+    public static RoutingTable buildRoutingTable() throws RoutingTable.RouteAlreadyMappedException {
         RoutingTable routingTable = new RoutingTable();
         routingTable.addRoute("/xdsregistry", RegistryActor.class);
         routingTable.addRoute("/xdsrepository", RepositoryActor.class);
         routingTable.addRoute("/dsub", DsubActor.class);
+        routingTable.addRoute("/metrics", MetricsActor.class);
+        routingTable.addRoute("/bulk", BulkIngestionActor.class);
         return routingTable;
     }
 
-    private static StartupActorsConfig buildStartupActorsConfig() {
+    public static StartupActorsConfig buildStartupActorsConfig(MediatorConfig config) {
         StartupActorsConfig startupActors = new StartupActorsConfig();
         startupActors.addActor("parse-registry-stored-query", ParseRegistryStoredQueryActor.class);
         startupActors.addActor("enrich-registry-stored-query", EnrichRegistryStoredQueryActor.class);
         startupActors.addActor("atna-auditing", ATNAAuditingActor.class);
+        //shared services, reused by all transactions rather than being created per request
+        PatientResolutionBackend pixBackend = PatientResolutionBackend.forConfig(config);
+        startupActors.addActor("pix-denormalization", pixBackend.getPool());
+        if (pixBackend != PatientResolutionBackend.V2) {
+            startupActors.addActor(PatientResolutionBackend.V2_REGISTRATION, PIXRequestActor.Pool.class);
+        }
+        startupActors.addActor("csd-denormalization", CSDRequestActor.Pool.class);
+        startupActors.addActor("xds-multipart-normalization", XDSbMimeProcessorActor.Pool.class);
+        startupActors.addActor("xds-pnr-document-normalization", ParseProvideAndRegisterRequestActor.Pool.class);
+        MediatorSettings settings = MediatorSettings.get(config);
+        if (settings.isRegistryCacheEnabled()) {
+            startupActors.addActor("registry-query-cache", RegistryQueryCacheActor.class);
+        }
+        if (settings.isDeferEnrichment()) {
+            startupActors.addActor("pnr-deferred-enrichment", DeferredEnrichmentActor.class);
+        }
+        if (Util.isPropertyTrue(config, "pix.xref.enabled")) {
+            startupActors.addActor("pix-xref-feed", PatientXrefFeedActor.class);
+        }
+        if (config.getProperty("mediator.mongo.host") != null) {
+            startupActors.addActor("xds-dsub", DsubActor.class);
+        }
         return startupActors;
     }
 
@@ -73,7 +115,7 @@ public class XDSMediatorMain {
         }
 
         config.setRoutingTable(buildRoutingTable());
-        config.setStartupActors(buildStartupActorsConfig());
+        config.setStartupActors(buildStartupActorsConfig(config));
 
         InputStream regInfo = XDSMediatorMain.class.getClassLoader().getResourceAsStream("mediator-registration-info.json");
         RegistrationConfig regConfig = new RegistrationConfig(regInfo);
@@ -82,11 +124,16 @@ public class XDSMediatorMain {
         return config;
     }
 
-    private static void loadSSLConfig(MediatorConfig config) {
+    private static void loadSSLConfig(SharedResources resources, MediatorConfig config, LoggingAdapter log) throws IOException {
         System.setProperty("javax.net.ssl.keyStore", config.getProperty("ihe.keystore"));
         System.setProperty("javax.net.ssl.keyStorePassword", config.getProperty("ihe.keypassword"));
         System.setProperty("javax.net.ssl.trustStore", config.getProperty("ihe.keystore"));
         System.setProperty("javax.net.ssl.trustStorePassword", config.getProperty("ihe.storepassword"));
+        //the engine's MLLP connector uses the default context; share the PIX context's session cache with it
+        if (!TlsContexts.installDefault(resources, config)) {
+            log.warning("pix.tls.* is set, so the PIX context isn't installed as the JVM default. "
+                    + "PIX requests through the MLLP connector use the ihe.* keystore.");
+        }
     }
 
     private static boolean isSecure(MediatorConfig config) {
@@ -96,32 +143,60 @@ public class XDSMediatorMain {
                 || config.getProperty("atna.secure").equalsIgnoreCase("true"));
     }
 
+    /**
+     * The actor system's config, with the weights of the priority mailbox taken from <code>priority.weights</code>, so
+     * that the shared actors and the upstream limiters serve the priority classes in the same proportions
+     */
+    static Config buildActorSystemConfig(MediatorConfig config) {
+        Config defaults = ConfigFactory.load();
+        String weights = config.getProperty("priority.weights");
+        if (weights == null || weights.trim().isEmpty()) {
+            return defaults;
+        }
+        //fail on startup rather than when the first shared actor is created
+        new WeightedFairQueue<>(WeightedFairQueue.parseWeights(weights));
+        return ConfigFactory.parseMap(Collections.singletonMap("mediator-mailboxes.priority.weights", weights.trim()))
+                .withFallback(defaults);
+    }
+
     public static void main(String... args) throws Exception {
 
+        String configPath = null;
+        //for now only --conf param is supported... poorly
+        //TODO support custom config for mediator registration info json
+        //TODO better parameter handling
+        if (args.length==2 && args[0].equals("--conf")) {
+            configPath = args[1];
+        }
+
+        //the config is loaded first, as it configures the actor system's priority mailbox
+        MediatorConfig config = loadConfig(configPath);
+
         //setup actor system
-        final ActorSystem system = ActorSystem.create("mediator");
+        final ActorSystem system = ActorSystem.create("mediator", buildActorSystemConfig(config));
         //setup logger for main
         final LoggingAdapter log = Logging.getLogger(system, "main");
 
         //setup server
         log.info("Initializing mediator server...");
 
-        String configPath = null;
-        //for now only --conf param is supported... poorly
-        //TODO support custom config for mediator registration info json
-        //TODO better parameter handling
-        if (args.length==2 && args[0].equals("--conf")) {
-            configPath = args[1];
-            log.info("Loading mediator configuration from '" + configPath + "'...");
+        if (configPath!=null) {
+            log.info("Loaded mediator configuration from '" + configPath + "'");
         } else {
             log.info("No configuration specified. Using default properties...");
         }
 
-        MediatorConfig config = loadConfig(configPath);
+        //fail fast on invalid endpoints and switches
+        MediatorSettings.load(config);
+        SharedResources resources = SharedResources.get(system);
+        if (Util.isPropertyTrue(config, "pix.xref.enabled")) {
+            PatientXrefIndex xref = PatientXrefIndex.open(resources, config);
+            log.info(String.format("Loaded %d patients into the local cross-reference index (%d lines skipped)", xref.size(), xref.getSkipped()));
+        }
         final MediatorServer server = new MediatorServer(system, config);
 
         if (isSecure(config)) {
-            loadSSLConfig(config);
+            loadSSLConfig(resources, config, log);
         }
 
         //setup shutdown hook
@@ -134,9 +209,19 @@ public class XDSMediatorMain {
             }
         });
 
+        //warm up before the server starts and registers with the core, so that it only receives transactions once ready
+        if (Util.isPropertyTrue(config, "mediator.warmup.enabled", true)) {
+            log.info("Warming up...");
+            new WarmUp(resources, config, log).run();
+        }
+
         log.info("Starting HTTP server...");
         server.start();
 
+        if (configPath!=null && Util.getLongProperty(config, "mediator.settings.reloadIntervalMs", 10000) > 0) {
+            system.actorOf(Props.create(SettingsReloadActor.class, config, new File(configPath)), "settings-reload");
+        }
+
 
         //notify http-connector about the ihe cert
         if (isSecure(config)) {
@@ -6,10 +6,17 @@
 
 package org.openhim.mediator.datatypes;
 
+/**
+ * An HL7 assigning authority (HD). Equality is based on the HL7 encoding, which is computed once and cached.
+ * <br/><br/>
+ * Authorities parsed by {@link HL7Codec} are shared and can't be modified.
+ */
 public class AssigningAuthority {
     private String assigningAuthority;
     private String assigningAuthorityId;
     private String assigningAuthorityIdType;
+    private boolean unmodifiable;
+    private String hl7;
 
     public AssigningAuthority() {
     }
@@ -34,7 +41,9 @@ public class AssigningAuthority {
     }
 
     public void setAssigningAuthority(String assigningAuthority) {
+        checkModifiable();
         this.assigningAuthority = assigningAuthority;
+        hl7 = null;
     }
 
     public String getAssigningAuthorityId() {
@@ -42,7 +51,9 @@ public class AssigningAuthority {
     }
 
     public void setAssigningAuthorityId(String assigningAuthorityId) {
+        checkModifiable();
         this.assigningAuthorityId = assigningAuthorityId;
+        hl7 = null;
     }
 
     public String getAssigningAuthorityIdType() {
@@ -50,7 +61,19 @@ public class AssigningAuthority {
     }
 
     public void setAssigningAuthorityIdType(String assigningAuthorityIdType) {
+        checkModifiable();
         this.assigningAuthorityIdType = assigningAuthorityIdType;
+        hl7 = null;
+    }
+
+    void makeUnmodifiable() {
+        unmodifiable = true;
+    }
+
+    private void checkModifiable() {
+        if (unmodifiable) {
+            throw new UnsupportedOperationException("Shared assigning authorities can't be modified");
+        }
     }
 
     @Override
@@ -59,18 +82,26 @@ public class AssigningAuthority {
         if (o == null || getClass() != o.getClass()) return false;
 
         AssigningAuthority authority = (AssigningAuthority) o;
-        return toHL7().equals(authority.toHL7());
+        String hl7 = toHL7();
+        String otherHl7 = authority.toHL7();
+        return hl7.hashCode() == otherHl7.hashCode() && hl7.equals(otherHl7);
     }
 
     @Override
     public int hashCode() {
-        int result = assigningAuthority != null ? assigningAuthority.hashCode() : 0;
-        result = 31 * result + (assigningAuthorityId != null ? assigningAuthorityId.hashCode() : 0);
-        result = 31 * result + (assigningAuthorityIdType != null ? assigningAuthorityIdType.hashCode() : 0);
-        return result;
+        return toHL7().hashCode();
     }
 
     public String toHL7() {
+        String res = hl7;
+        if (res == null) {
+            res = encodeHL7();
+            hl7 = res;
+        }
+        return res;
+    }
+
+    private String encodeHL7() {
         String res = "";
         if (assigningAuthority!=null && !assigningAuthority.trim().isEmpty()) {
             res += assigningAuthority;
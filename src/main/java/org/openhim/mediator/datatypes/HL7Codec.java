@@ -0,0 +1,181 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.datatypes;
+
+import org.openhim.mediator.exceptions.CXParseException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parses the HL7 v2 identifier types used in XDS metadata (CX, XCN and XON) by scanning for the component
+ * delimiters, without regular expressions or intermediate arrays.
+ * <br/><br/>
+ * Assigning authorities are interned: identifiers from the same authority share one (unmodifiable)
+ * AssigningAuthority instance, so only the identifier itself is allocated for each value parsed.
+ */
+public final class HL7Codec {
+
+    static final char COMPONENT = '^';
+    static final char SUBCOMPONENT = '&';
+
+    /** Stops a stream of distinct authorities from growing the interned instances without bound */
+    static final int MAX_INTERNED = 10000;
+
+    private static final ConcurrentMap<String, AssigningAuthority> authorities = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AssigningAuthority> universalIdAuthorities = new ConcurrentHashMap<>();
+
+    private HL7Codec() {}
+
+
+    /**
+     * Decode a CX value into an identifier, e.g. <code>1234^^^&amp;1.2.3&amp;ISO^PI</code>
+     */
+    public static Identifier parseCX(String cx) throws CXParseException {
+        Identifier id = new Identifier(null, null);
+        decodeCX(cx, id);
+        return id;
+    }
+
+    static void decodeCX(String cx, Identifier target) throws CXParseException {
+        if (cx.trim().isEmpty()) {
+            throw new CXParseException("Empty CX string");
+        }
+
+        int start = 0;
+        for (int component=0; component<=4 && start<=cx.length(); component++) {
+            int end = next(cx, COMPONENT, start);
+            if (end > start) {
+                if (component == 0) {
+                    target.setIdentifier(cx.substring(start, end));
+                } else if (component == 3) {
+                    target.setAssigningAuthority(internHD(cx.substring(start, end)));
+                } else if (component == 4) {
+                    target.setTypeCode(cx.substring(start, end));
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Decode the identifier of an XCN value (the first and ninth components), e.g. the authorPerson
+     * <code>1234^Smith^John^^^^^^&amp;1.2.3&amp;ISO</code>
+     *
+     * @return the identifier with the universal ID of its assigning authority, or null if the value doesn't have both
+     */
+    public static Identifier parseXCN(String xcn) {
+        return identifierWithAuthority(xcn, 0, 8);
+    }
+
+    /**
+     * Decode the identifier of an XON value (the tenth and sixth components), e.g. the authorInstitution
+     * <code>Some Hospital^^^^^&amp;1.2.3&amp;ISO^^^^45</code>
+     *
+     * @return the identifier with the universal ID of its assigning authority, or null if the value doesn't have both
+     */
+    public static Identifier parseXON(String xon) {
+        return identifierWithAuthority(xon, 9, 5);
+    }
+
+    /**
+     * @return the organisation name of an XON value (the first component), or an empty string if it has none
+     */
+    public static String xonOrganisationName(String xon) {
+        return xon.substring(0, next(xon, COMPONENT, 0));
+    }
+
+    private static Identifier identifierWithAuthority(String value, int idComponent, int authorityComponent) {
+        int idStart = componentStart(value, idComponent);
+        int authorityStart = componentStart(value, authorityComponent);
+        if (idStart < 0 || authorityStart < 0) {
+            return null;
+        }
+        int idEnd = next(value, COMPONENT, idStart);
+        int authorityEnd = next(value, COMPONENT, authorityStart);
+        if (idEnd == idStart || authorityEnd == authorityStart) {
+            return null;
+        }
+
+        //the universal ID is the second subcomponent of the assigning authority
+        String universalId = "";
+        int universalIdStart = next(value, SUBCOMPONENT, authorityStart) + 1;
+        if (universalIdStart < authorityEnd) {
+            int universalIdEnd = Math.min(next(value, SUBCOMPONENT, universalIdStart), authorityEnd);
+            universalId = value.substring(universalIdStart, universalIdEnd);
+        }
+
+        AssigningAuthority authority = internUniversalId(universalId);
+        return new Identifier(value.substring(idStart, idEnd), authority);
+    }
+
+    /**
+     * @return the shared assigning authority for an HD value (namespace&amp;universalId&amp;universalIdType)
+     */
+    static AssigningAuthority internHD(String hd) {
+        AssigningAuthority authority = authorities.get(hd);
+        if (authority == null) {
+            authority = new AssigningAuthority();
+            int start = 0;
+            for (int subcomponent=0; subcomponent<=2 && start<=hd.length(); subcomponent++) {
+                int end = next(hd, SUBCOMPONENT, start);
+                if (end > start) {
+                    if (subcomponent == 0) {
+                        authority.setAssigningAuthority(hd.substring(start, end));
+                    } else if (subcomponent == 1) {
+                        authority.setAssigningAuthorityId(hd.substring(start, end));
+                    } else {
+                        authority.setAssigningAuthorityIdType(hd.substring(start, end));
+                    }
+                }
+                start = end + 1;
+            }
+            authority = intern(authorities, hd, authority);
+        }
+        return authority;
+    }
+
+    private static AssigningAuthority internUniversalId(String universalId) {
+        AssigningAuthority authority = universalIdAuthorities.get(universalId);
+        if (authority == null) {
+            authority = intern(universalIdAuthorities, universalId, new AssigningAuthority("", universalId));
+        }
+        return authority;
+    }
+
+    private static AssigningAuthority intern(ConcurrentMap<String, AssigningAuthority> interned, String key, AssigningAuthority authority) {
+        authority.makeUnmodifiable();
+        if (interned.size() >= MAX_INTERNED) {
+            return authority;
+        }
+        AssigningAuthority existing = interned.putIfAbsent(key, authority);
+        return existing != null ? existing : authority;
+    }
+
+    /**
+     * @return the index of the first delimiter at or after from, or the length of the value if there is none
+     */
+    private static int next(String value, char delimiter, int from) {
+        int index = value.indexOf(delimiter, from);
+        return index < 0 ? value.length() : index;
+    }
+
+    /**
+     * @return the start of a component, or -1 if the value has fewer components
+     */
+    private static int componentStart(String value, int component) {
+        int start = 0;
+        for (int i=0; i<component; i++) {
+            int index = value.indexOf(COMPONENT, start);
+            if (index < 0) {
+                return -1;
+            }
+            start = index + 1;
+        }
+        return start;
+    }
+}
@@ -8,10 +8,28 @@ package org.openhim.mediator.datatypes;
 
 import org.openhim.mediator.exceptions.CXParseException;
 
+/**
+ * An HL7 CX identifier. Equality is based on the CX encoding, which is computed once and cached.
+ */
 public class Identifier {
     private String identifier;
     private AssigningAuthority assigningAuthority;
     private String typeCode;
+    private CanonicalCX cx;
+
+    /**
+     * The CX encoding along with the encoding of the assigning authority it was built from,
+     * so that changes to the assigning authority are picked up.
+     */
+    private static class CanonicalCX {
+        final String authority;
+        final String cx;
+
+        CanonicalCX(String authority, String cx) {
+            this.authority = authority;
+            this.cx = cx;
+        }
+    }
 
     public Identifier(String identifier, AssigningAuthority assigningAuthority) {
         this.assigningAuthority = assigningAuthority;
@@ -25,36 +43,7 @@ public class Identifier {
     }
 
     public Identifier(String CX) throws CXParseException {
-        if (CX.trim().isEmpty()) {
-            throw new CXParseException("Empty CX string");
-        }
-
-        String[] tokens = CX.split("\\^");
-
-        if (tokens.length>0 && !tokens[0].isEmpty()) {
-            identifier = tokens[0];
-        }
-
-        if (tokens.length>3 && !tokens[3].isEmpty()) {
-            String[] authTokens = tokens[3].split("&");
-            AssigningAuthority auth = new AssigningAuthority();
-
-            if (authTokens.length>0 && !authTokens[0].isEmpty()) {
-                auth.setAssigningAuthority(authTokens[0]);
-            }
-            if (authTokens.length>1 && !authTokens[1].isEmpty()) {
-                auth.setAssigningAuthorityId(authTokens[1]);
-            }
-            if (authTokens.length>2 && !authTokens[2].isEmpty()) {
-                auth.setAssigningAuthorityIdType(authTokens[2]);
-            }
-
-            assigningAuthority = auth;
-        }
-
-        if (tokens.length>4 && !tokens[4].isEmpty()) {
-            typeCode = tokens[4];
-        }
+        HL7Codec.decodeCX(CX, this);
     }
 
     public AssigningAuthority getAssigningAuthority() {
@@ -63,6 +52,7 @@ public class Identifier {
 
     public void setAssigningAuthority(AssigningAuthority assigningAuthority) {
         this.assigningAuthority = assigningAuthority;
+        cx = null;
     }
 
     public String getIdentifier() {
@@ -71,6 +61,7 @@ public class Identifier {
 
     public void setIdentifier(String identifier) {
         this.identifier = identifier;
+        cx = null;
     }
 
     public String getTypeCode() {
@@ -79,6 +70,7 @@ public class Identifier {
 
     public void setTypeCode(String typeCode) {
         this.typeCode = typeCode;
+        cx = null;
     }
 
     public String toString() {
@@ -86,6 +78,16 @@ public class Identifier {
     }
 
     public String toCX() {
+        String authority = assigningAuthority != null ? assigningAuthority.toHL7() : null;
+        CanonicalCX canonical = cx;
+        if (canonical == null || canonical.authority != authority) {
+            canonical = new CanonicalCX(authority, encodeCX());
+            cx = canonical;
+        }
+        return canonical.cx;
+    }
+
+    private String encodeCX() {
         String res = identifier;
         if (assigningAuthority!=null) {
             res += "^^^" + assigningAuthority.toHL7();
@@ -120,14 +122,13 @@ public class Identifier {
         if (o == null || getClass() != o.getClass()) return false;
 
         Identifier that = (Identifier) o;
-        return toCX().equals(that.toCX());
+        String cx = toCX();
+        String otherCx = that.toCX();
+        return cx.hashCode() == otherCx.hashCode() && cx.equals(otherCx);
     }
 
     @Override
     public int hashCode() {
-        int result = identifier != null ? identifier.hashCode() : 0;
-        result = 31 * result + (assigningAuthority != null ? assigningAuthority.hashCode() : 0);
-        result = 31 * result + (typeCode != null ? typeCode.hashCode() : 0);
-        return result;
+        return toCX().hashCode();
     }
 }
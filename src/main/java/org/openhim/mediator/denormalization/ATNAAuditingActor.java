@@ -15,15 +15,21 @@ import akka.event.LoggingAdapter;
 import ihe.iti.atna.AuditMessage;
 import ihe.iti.atna.EventIdentificationType;
 import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.ATNAPayloadPolicy;
 import org.openhim.mediator.ATNAUtil;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.TlsContexts;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
 import org.openhim.mediator.messages.ATNAAudit;
+import org.openhim.mediator.metrics.Histogram;
+import org.openhim.mediator.metrics.MetricsRegistry;
 import scala.concurrent.ExecutionContext;
 import scala.concurrent.Future;
 
-import javax.net.ssl.SSLSocketFactory;
 import javax.xml.bind.JAXBException;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -49,10 +55,14 @@ public class ATNAAuditingActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     private MediatorConfig config;
+    private final SharedResources resources;
+    private final ATNAPayloadPolicy payloadPolicy;
 
 
     public ATNAAuditingActor(MediatorConfig config) {
         this.config = config;
+        this.resources = SharedResources.get(getContext().system());
+        this.payloadPolicy = new ATNAPayloadPolicy(config);
     }
 
     protected String generateForPIXRequest(ATNAAudit audit) throws JAXBException {
@@ -66,12 +76,13 @@ public class ATNAAuditingActor extends UntypedActor {
         eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
         res.setEventIdentification(eid);
 
+        MediatorSettings settings = MediatorSettings.get(config);
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.sendingFacility") + "|" + config.getProperty("pix.sendingApplication"),
+                settings.getPixSendingFacility() + "|" + settings.getPixSendingApplication(),
                 ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.receivingFacility") + "|" + config.getProperty("pix.receivingApplication"),
-                "2100", false, config.getProperty("pix.manager.host"), (short)1, "DCM", "110152", "Destination"));
+                settings.getPixReceivingFacility() + "|" + settings.getPixReceivingApplication(),
+                "2100", false, hostOf(settings.getPixManager()), (short)1, "DCM", "110152", "Destination"));
 
         res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
 
@@ -86,7 +97,46 @@ public class ATNAAuditingActor extends UntypedActor {
         res.getParticipantObjectIdentification().add(
                 ATNAUtil.buildParticipantObjectIdentificationType(
                         UUID.randomUUID().toString(), (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
-                        audit.getMessage(), new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes())
+                        payloadPolicy.payloadFor(audit), new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes())
+                )
+        );
+
+        return ATNAUtil.marshallATNAObject(res);
+    }
+
+    protected String generateForPIXmQuery(ATNAAudit audit) throws JAXBException {
+        AuditMessage res = new AuditMessage();
+
+        EventIdentificationType eid = new EventIdentificationType();
+        eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110112", "Query") );
+        eid.setEventActionCode("E");
+        eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
+        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-83", "Mobile Patient Identifier Cross-reference Query") );
+        eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
+        res.setEventIdentification(eid);
+
+        MediatorSettings settings = MediatorSettings.get(config);
+        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
+                settings.getPixSendingFacility() + "|" + settings.getPixSendingApplication(),
+                ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
+        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
+                String.valueOf(settings.getPixm()),
+                "2100", false, hostOf(settings.getPixm()), (short)1, "DCM", "110152", "Destination"));
+
+        res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
+
+        // Max of 1 patient is allowed
+        Identifier id = audit.getParticipantIdentifiers().get(0);
+        if (id!=null) {
+            res.getParticipantObjectIdentification().add(
+                    ATNAUtil.buildParticipantObjectIdentificationType(id.toCX(), (short) 1, (short) 1, "RFC-3881", "2", "PatientNumber", null)
+            );
+        }
+
+        res.getParticipantObjectIdentification().add(
+                ATNAUtil.buildParticipantObjectIdentificationType(
+                        UUID.randomUUID().toString(), (short)2, (short)24, "IHE Transactions", "ITI-83", "Mobile Patient Identifier Cross-reference Query",
+                        payloadPolicy.payloadFor(audit), new ATNAUtil.ParticipantObjectDetail("Bundle.id", audit.getUniqueId().getBytes())
                 )
         );
 
@@ -104,12 +154,13 @@ public class ATNAAuditingActor extends UntypedActor {
         eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
         res.setEventIdentification(eid);
 
+        MediatorSettings settings = MediatorSettings.get(config);
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.sendingFacility") + "|" + config.getProperty("pix.sendingApplication"),
+                settings.getPixSendingFacility() + "|" + settings.getPixSendingApplication(),
                 ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(
-                config.getProperty("pix.receivingFacility") + "|" + config.getProperty("pix.receivingApplication"),
-                "2100", false, config.getProperty("pix.manager.host"), (short)1, "DCM", "110152", "Destination"));
+                settings.getPixReceivingFacility() + "|" + settings.getPixReceivingApplication(),
+                "2100", false, hostOf(settings.getPixManager()), (short)1, "DCM", "110152", "Destination"));
 
         res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
 
@@ -124,7 +175,7 @@ public class ATNAAuditingActor extends UntypedActor {
         res.getParticipantObjectIdentification().add(
                 ATNAUtil.buildParticipantObjectIdentificationType(
                         UUID.randomUUID().toString(), (short)2, (short)24, "IHE Transactions", "ITI-9", "PIX Query",
-                        audit.getMessage(), new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes())
+                        payloadPolicy.payloadFor(audit), new ATNAUtil.ParticipantObjectDetail("MSH-10", audit.getUniqueId().getBytes())
                 )
         );
 
@@ -161,7 +212,7 @@ public class ATNAAuditingActor extends UntypedActor {
 
         res.getParticipantObjectIdentification().add(
                 ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", audit.getMessage(), pod
+                        audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", payloadPolicy.payloadFor(audit), pod
                 )
         );
 
@@ -179,7 +230,7 @@ public class ATNAAuditingActor extends UntypedActor {
         eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
         res.setEventIdentification(eid);
 
-        String xdsRegistryHost = config.getProperty("xds.registry.host");
+        String xdsRegistryHost = hostOf(MediatorSettings.get(config).getRegistry());
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(buildRegistryPath(), xdsRegistryHost, false, xdsRegistryHost, (short)1, "DCM", "110152", "Destination"));
 
@@ -199,7 +250,7 @@ public class ATNAAuditingActor extends UntypedActor {
 
         res.getParticipantObjectIdentification().add(
                 ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", audit.getMessage(), pod
+                        audit.getUniqueId(), (short)2, (short)24, "IHE Transactions", "ITI-18", "Registry Stored Query", payloadPolicy.payloadFor(audit), pod
                 )
         );
 
@@ -207,22 +258,33 @@ public class ATNAAuditingActor extends UntypedActor {
     }
 
     private String buildRegistryPath() {
-        return String.format(
-                "%s:%s/%s", config.getProperty("xds.registry.host"),
-                ((config.getProperty("xds.registry.secure").equalsIgnoreCase("true")) ?
-                        config.getProperty("xds.registry.securePort") : config.getProperty("xds.registry.port")),
-                config.getProperty("xds.registry.path")
-        );
+        MediatorSettings.Endpoint registry = MediatorSettings.get(config).getRegistry();
+        if (registry == null) {
+            return null;
+        }
+        return String.format("%s:%s/%s", registry.getHost(), registry.getPort(), registry.getPath());
+    }
+
+    private static String hostOf(MediatorSettings.Endpoint endpoint) {
+        return endpoint != null ? endpoint.getHost() : null;
     }
 
     protected String generateForPNRReceived(ATNAAudit audit) throws JAXBException {
+        return generateForSubmissionReceived(audit, "ITI-41", "Provide and Register Document Set-b");
+    }
+
+    protected String generateForRegisterDocumentSetReceived(ATNAAudit audit) throws JAXBException {
+        return generateForSubmissionReceived(audit, "ITI-42", "Register Document Set-b");
+    }
+
+    private String generateForSubmissionReceived(ATNAAudit audit, String transaction, String transactionName) throws JAXBException {
         AuditMessage res = new AuditMessage();
 
         EventIdentificationType eid = new EventIdentificationType();
         eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110107", "Import") );
         eid.setEventActionCode("C");
         eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-41", "Provide and Register Document Set-b") );
+        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", transaction, transactionName) );
         eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
         res.setEventIdentification(eid);
 
@@ -245,7 +307,7 @@ public class ATNAAuditingActor extends UntypedActor {
 
         res.getParticipantObjectIdentification().add(
                 ATNAUtil.buildParticipantObjectIdentificationType(
-                        audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata", "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode", audit.getMessage(), pod
+                        audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata", "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode", payloadPolicy.payloadFor(audit), pod
                 )
         );
 
@@ -253,19 +315,26 @@ public class ATNAAuditingActor extends UntypedActor {
     }
 
     protected String generateForPNRResponse(ATNAAudit audit) throws JAXBException {
+        return generateForSubmissionResponse(audit, "ITI-41", "Provide and Register Document Set-b", hostOf(MediatorSettings.get(config).getRepository()));
+    }
+
+    protected String generateForRegisterDocumentSetResponse(ATNAAudit audit) throws JAXBException {
+        return generateForSubmissionResponse(audit, "ITI-42", "Register Document Set-b", hostOf(MediatorSettings.get(config).getRegistry()));
+    }
+
+    private String generateForSubmissionResponse(ATNAAudit audit, String transaction, String transactionName, String destinationHost) throws JAXBException {
         AuditMessage res = new AuditMessage();
 
         EventIdentificationType eid = new EventIdentificationType();
         eid.setEventID( ATNAUtil.buildCodedValueType("DCM", "110106", "Export") );
         eid.setEventActionCode("R");
         eid.setEventDateTime( ATNAUtil.newXMLGregorianCalendar() );
-        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", "ITI-41", "Provide and Register Document Set-b") );
+        eid.getEventTypeCode().add( ATNAUtil.buildCodedValueType("IHE Transactions", transaction, transactionName) );
         eid.setEventOutcomeIndicator(audit.getOutcome() ? BigInteger.ZERO : new BigInteger("4"));
         res.setEventIdentification(eid);
 
-        String xdsRepositoryHost = config.getProperty("xds.repository.host");
         res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(ATNAUtil.WSA_REPLYTO_ANON, ATNAUtil.getProcessID(), true, ATNAUtil.getHostIP(), (short)2, "DCM", "110153", "Source"));
-        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(xdsRepositoryHost, false, xdsRepositoryHost, (short)1, "DCM", "110152", "Destination"));
+        res.getActiveParticipant().add( ATNAUtil.buildActiveParticipant(destinationHost, false, destinationHost, (short)1, "DCM", "110152", "Destination"));
 
         res.getAuditSourceIdentification().add(ATNAUtil.buildAuditSource("openhim"));
 
@@ -281,7 +350,7 @@ public class ATNAAuditingActor extends UntypedActor {
                 ATNAUtil.buildParticipantObjectIdentificationType(
                         audit.getUniqueId(), (short)2, (short)20, "IHE XDS Metadata",
                         "urn:uuid:a54d6aa5-d40d-43f9-88c5-b4633d873bdd", "submission set classificationNode",
-                        audit.getMessage()
+                        payloadPolicy.payloadFor(audit)
                 )
         );
 
@@ -296,29 +365,31 @@ public class ATNAAuditingActor extends UntypedActor {
 
     private Socket getSocket(final MediatorSocketRequest req) throws IOException {
         if (req.isSecure()) {
-            SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            return factory.createSocket(req.getHost(), req.getPort());
+            //sessions are resumed from the ATNA context's cache, so only the first audit does a full handshake
+            return TlsContexts.connect(resources, config, TlsContexts.ATNA, req.getHost(), req.getPort(), 0);
         } else {
             return new Socket(req.getHost(), req.getPort());
         }
     }
 
-    private void sendUsingTCP(final MediatorSocketRequest request) throws IOException {
-        final Socket socket = getSocket(request);
-
-        ExecutionContext ec = getContext().dispatcher();
+    private void sendUsingTCP(final MediatorSocketRequest request) {
+        // connecting and writing both block, so keep them on the audit I/O pool
+        ExecutionContext ec = MediatorDispatchers.lookup(getContext().system(), MediatorDispatchers.AUDIT_IO);
         Future<Boolean> f = future(new Callable<Boolean>() {
             public Boolean call() throws IOException {
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                out.writeBytes(request.getBody());
-                return Boolean.TRUE;
+                Socket socket = getSocket(request);
+                try {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeBytes(request.getBody());
+                    return Boolean.TRUE;
+                } finally {
+                    IOUtils.closeQuietly(socket);
+                }
             }
         }, ec);
         f.onComplete(new OnComplete<Boolean>() {
             @Override
             public void onComplete(Throwable ex, Boolean result) throws Throwable {
-                IOUtils.closeQuietly(socket);
-
                 if (ex!=null) {
                     log.error(ex, "Exception during TCP send");
                 }
@@ -330,6 +401,8 @@ public class ATNAAuditingActor extends UntypedActor {
         switch (audit.getType()) {
             case PIX_REQUEST:
                 return generateForPIXRequest(audit);
+            case PIXM_QUERY:
+                return generateForPIXmQuery(audit);
             case PIX_IDENTITY_FEED:
                 return generateForPIXIdentityFeed(audit);
             case REGISTRY_QUERY_RECEIVED:
@@ -340,28 +413,57 @@ public class ATNAAuditingActor extends UntypedActor {
                 return generateForPNRReceived(audit);
             case PROVIDE_AND_REGISTER_ENRICHED:
                 return generateForPNRResponse(audit);
+            case REGISTER_DOCUMENT_SET_RECEIVED:
+                return generateForRegisterDocumentSetReceived(audit);
+            case REGISTER_DOCUMENT_SET_ENRICHED:
+                return generateForRegisterDocumentSetResponse(audit);
         }
 
         //shouldn't happen as we cover all the enum cases
         return "";
     }
 
+    /**
+     * @return the size of a message encoded as UTF-8, without encoding it. Embedded payloads can have non-ASCII
+     * content, so the character count understates the size of the audit.
+     */
+    static long utf8Length(String message) {
+        long length = 0;
+        for (int i=0; i<message.length(); i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i+1 < message.length() && Character.isLowSurrogate(message.charAt(i+1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                //unpaired, encoded as '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     private void sendAuditMessage(ATNAAudit audit)
             throws Exception { //Just die if something goes wrong, akka will restart
 
         String message = generateMesage(audit);
+        MetricsRegistry.getInstance().histogram(
+                "mediator_atna_audit_bytes", "Size of the ATNA audit messages sent, encoded as UTF-8", MetricsRegistry.labels("type", audit.getType().name()), Histogram.SIZE_BUCKETS
+        ).observe(utf8Length(message));
 
         message = ATNAUtil.build_TCP_Msg_header() + message;
-        boolean useTCP;
-        int port;
+        MediatorSettings settings = MediatorSettings.get(config);
+        MediatorSettings.Endpoint atna = settings.getAtna();
+        boolean useTCP = settings.isAtnaUseTcp();
 
-        if (config.getProperty("atna.useTcp").equalsIgnoreCase("true")) {
-            port = Integer.parseInt(config.getProperty("atna.tcpPort"));
-            useTCP = true;
+        if (useTCP) {
             message = message.length() + " " + message; // Required by RFC5425
         } else {
-            port = Integer.parseInt(config.getProperty("atna.udpPort"));
-            useTCP = false;
             message = message + "\r\n"; // to make OpenATNA happy
         }
 
@@ -370,10 +472,10 @@ public class ATNAAuditingActor extends UntypedActor {
                 getSelf(),
                 "ATNA Audit",
                 null,
-                config.getProperty("atna.host"),
-                port,
+                atna.getHost(),
+                atna.getPort(),
                 message,
-                config.getProperty("atna.secure").equalsIgnoreCase("true")
+                atna.isSecure()
         );
 
         if (useTCP) {
@@ -7,12 +7,23 @@
 package org.openhim.mediator.denormalization;
 
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.AdaptiveLimiter;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.PendingRequests;
+import org.openhim.mediator.Priority;
+import org.openhim.mediator.RouterPoolActor;
+import org.openhim.mediator.SharedResources;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.MediatorConfig;
@@ -22,6 +33,7 @@ import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
 import org.openhim.mediator.exceptions.ValidationException;
 import org.openhim.mediator.messages.*;
+import org.openhim.mediator.metrics.StageTimer;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
@@ -42,45 +54,196 @@ import java.util.UUID;
  *     <li>ResolveHealthcareWorkerIdentifier - responds with ResolveHealthcareWorkerIdentifierResponse</li>
  *     <li>ResolveFacilityIdentifier - responds with ResolveFacilityIdentifierResponse</li>
  * </ul>
+ * <br/>
+ * A shared pool of these actors is launched at startup as <code>csd-denormalization</code> (see {@link Pool}).
+ * Requests that fail, e.g. because the ILR is unavailable, are answered with an error response.
  */
 public class CSDRequestActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     public static final String UUID_OID_AUTHORITY = "2.25";
 
+    private static class CallTimeout {
+        final String correlationId;
+
+        CallTimeout(String correlationId) {
+            this.correlationId = correlationId;
+        }
+    }
+
     private MediatorConfig config;
-    private Map<String, BaseResolveIdentifier> originalRequests = new HashMap<>();
+    //fails requests fast while the ILR is down, doesn't respond within the call timeout or responds with a server error
+    private final CircuitBreaker breaker;
+    //limits the requests in flight; requests over the limit wait for a Permit, queued by their Priority
+    private final AdaptiveLimiter limiter;
+    //answered with a failed response after ilr.pending.timeoutMs, or at the request's Deadline if it comes first
+    private final PendingRequests<BaseResolveIdentifier> originalRequests;
+    private Map<String, Long> requestStartTimes = new HashMap<>();
+    private Map<String, Cancellable> callTimeouts = new HashMap<>();
+    //requests waiting for a permit from the limiter
+    private Map<String, MediatorHTTPRequest> queuedRequests = new HashMap<>();
 
 
     public CSDRequestActor(MediatorConfig config) {
         this.config = config;
+        SharedResources resources = SharedResources.get(getContext().system());
+        this.breaker = CircuitBreaker.forDependency(resources, config, "ilr");
+        this.limiter = AdaptiveLimiter.forDependency(resources, config, "ilr");
+        this.originalRequests = new PendingRequests<>(getContext(), config, "ilr");
     }
 
-    private void sendCSDRequest(String request, BaseResolveIdentifier originalRequest) {
-        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+    @Override
+    public void postStop() throws Exception {
+        originalRequests.clear();
+        //calls still in flight won't be reported, so count them as failures
+        for (Cancellable timeout : callTimeouts.values()) {
+            timeout.cancel();
+            breaker.onFailure();
+        }
+        for (int i=0; i<requestStartTimes.size(); i++) {
+            limiter.release();
+        }
+        for (String correlationId : queuedRequests.keySet()) {
+            if (!limiter.cancel(getSelf(), correlationId)) {
+                //a permit was already sent
+                limiter.release();
+            }
+        }
+    }
 
+    private void sendCSDRequest(String request, BaseResolveIdentifier originalRequest) {
+        if (!hasTimeFor(originalRequest)) {
+            log.warning("Not enough time left to query the ILR. Failing request fast.");
+            respondUnavailable(originalRequest, "Not enough time left to query the ILR");
+            return;
+        }
         String correlationId = UUID.randomUUID().toString();
-        originalRequests.put(correlationId, originalRequest);
+        originalRequests.put(correlationId, originalRequest, originalRequest.getDeadline());
 
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", "application/xml");
 
+        MediatorSettings.Endpoint ilr = MediatorSettings.get(config).getIlr();
         MediatorHTTPRequest httpRequest = new MediatorHTTPRequest(
                 originalRequest.getRequestHandler(),
                 getSelf(),
                 determineOrchestration(originalRequest),
                 "POST",
-                "http",
-                config.getProperty("ilr.host"),
-                Integer.parseInt(config.getProperty("ilr.port")),
-                config.getProperty("ilr.csr.path"),
+                ilr.getScheme(),
+                ilr.getHost(),
+                ilr.getPort(),
+                ilr.getPath(),
                 request,
                 headers,
                 null,
                 correlationId
         );
 
+        switch (limiter.acquire(getSelf(), correlationId, originalRequest.getPriority())) {
+            case ACQUIRED:
+                sendCSDRequest(httpRequest);
+                break;
+            case QUEUED:
+                queuedRequests.put(correlationId, httpRequest);
+                break;
+            default:
+                log.warning("Too many requests waiting for the ILR. Failing request fast.");
+                respondUnavailable(originalRequests.remove(correlationId), "Too many requests are waiting for the ILR");
+        }
+    }
+
+    private void processPermit(AdaptiveLimiter.Permit permit) {
+        MediatorHTTPRequest request = queuedRequests.remove(permit.getKey());
+        if (request == null) {
+            limiter.release();
+            return;
+        }
+        if (!hasTimeFor(originalRequests.get(request.getCorrelationId()))) {
+            log.warning("Not enough time left to query the ILR. Failing request fast.");
+            limiter.release();
+            respondUnavailable(originalRequests.remove(request.getCorrelationId()), "Not enough time left to query the ILR");
+            return;
+        }
+        sendCSDRequest(request);
+    }
+
+    /**
+     * @return false if a call to the ILR can't be expected to complete before the request's deadline, in which case
+     * the request isn't sent to it
+     */
+    private boolean hasTimeFor(BaseResolveIdentifier request) {
+        return Deadline.of(request).allows(limiter.getBaselineLatencyMillis());
+    }
+
+    private void sendCSDRequest(MediatorHTTPRequest httpRequest) {
+        String correlationId = httpRequest.getCorrelationId();
+        if (!breaker.tryAcquire()) {
+            log.warning("ILR circuit breaker is open. Failing request fast.");
+            limiter.release();
+            respondUnavailable(originalRequests.remove(correlationId), "The ILR is unavailable");
+            return;
+        }
+
+        ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        requestStartTimes.put(correlationId, System.nanoTime());
+        StageTimer.recordPayload(stageFor(originalRequests.get(correlationId)), "request", httpRequest.getBody());
         httpConnector.tell(httpRequest, getSelf());
+
+        Cancellable timeout = breaker.scheduleCallTimeout(getContext(), new CallTimeout(correlationId));
+        if (timeout != null) {
+            callTimeouts.put(correlationId, timeout);
+        }
+    }
+
+    private void respondUnavailable(BaseResolveIdentifier originalRequest, String err) {
+        BaseResolveIdentifierResponse response;
+        if (originalRequest instanceof ResolveFacilityIdentifier) {
+            response = new ResolveFacilityIdentifierResponse(originalRequest, null, err);
+        } else {
+            response = new ResolveHealthcareWorkerIdentifierResponse(originalRequest, null, err);
+        }
+        originalRequest.getRespondTo().tell(response, getSelf());
+    }
+
+    private void processCallTimeout(CallTimeout msg) {
+        callTimeouts.remove(msg.correlationId);
+        if (requestStartTimes.remove(msg.correlationId) != null) {
+            limiter.onDropped();
+        }
+        BaseResolveIdentifier originalRequest = originalRequests.remove(msg.correlationId);
+        if (originalRequest != null) {
+            log.warning("ILR did not respond within " + breaker.getCallTimeoutMillis() + "ms");
+            breaker.onFailure();
+            respondUnavailable(originalRequest, "The ILR did not respond in time");
+        }
+    }
+
+    private void processExpired(PendingRequests.Expired msg) {
+        BaseResolveIdentifier originalRequest = originalRequests.expire(msg);
+        if (originalRequest == null) {
+            //already answered
+            return;
+        }
+        String correlationId = msg.getCorrelationId();
+        log.warning("ILR request " + correlationId + " expired before the ILR responded");
+
+        if (queuedRequests.remove(correlationId) != null) {
+            //if a permit was already sent, processPermit gives it back
+            limiter.cancel(getSelf(), correlationId);
+        }
+        Cancellable timeout = callTimeouts.remove(correlationId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (requestStartTimes.remove(correlationId) != null) {
+            limiter.onDropped();
+            breaker.onFailure();
+        }
+        respondUnavailable(originalRequest, "The ILR did not respond in time");
+    }
+
+    private static String stageFor(BaseResolveIdentifier request) {
+        return request instanceof ResolveFacilityIdentifier ? "csd.facility" : "csd.provider";
     }
 
     private String determineOrchestration(BaseResolveIdentifier originalRequest) {
@@ -126,7 +289,7 @@ public class CSDRequestActor extends UntypedActor {
     }
 
     private String getXPathExpressionForProvider() {
-        String expression = config.getProperty("ilr.query.expression.provider");
+        String expression = MediatorSettings.get(config).getIlrProviderExpression();
         if (StringUtils.isBlank(expression)) {
             expression = "//CSD/providerDirectory/provider/otherID[@code='id']";
         }
@@ -134,7 +297,7 @@ public class CSDRequestActor extends UntypedActor {
     }
 
     private String getXPathExpressionForFacility() {
-        String expression = config.getProperty("ilr.query.expression.facility");
+        String expression = MediatorSettings.get(config).getIlrFacilityExpression();
         if (StringUtils.isBlank(expression)) {
             expression = "//CSD/facilityDirectory/facility/otherID[@code='code']";
         }
@@ -178,6 +341,34 @@ public class CSDRequestActor extends UntypedActor {
         BaseResolveIdentifier originalRequest = originalRequests.remove(response.getOriginalRequest().getCorrelationId());
         String csdResponse = response.getBody();
 
+        Cancellable timeout = callTimeouts.remove(response.getOriginalRequest().getCorrelationId());
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (originalRequest == null) {
+            //already answered, e.g. after the call timed out
+            requestStartTimes.remove(response.getOriginalRequest().getCorrelationId());
+            return;
+        }
+        if (response.getStatusCode() >= 500) {
+            breaker.onFailure();
+            if (requestStartTimes.remove(response.getOriginalRequest().getCorrelationId()) != null) {
+                limiter.onDropped();
+            }
+            respondUnavailable(originalRequest, "The ILR responded with status " + response.getStatusCode());
+            return;
+        }
+        breaker.onSuccess();
+
+        Long start = requestStartTimes.remove(response.getOriginalRequest().getCorrelationId());
+        if (start != null) {
+            limiter.onSuccess(System.nanoTime() - start);
+        }
+        if (originalRequest != null && start != null) {
+            StageTimer.record(stageFor(originalRequest), start);
+            StageTimer.recordPayload(stageFor(originalRequest), "response", csdResponse);
+        }
+
         try {
             DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
             Document doc = builder.parse(IOUtils.toInputStream(csdResponse));
@@ -214,8 +405,40 @@ public class CSDRequestActor extends UntypedActor {
 
         } else if (msg instanceof MediatorHTTPResponse) {
             processHTTPResponse((MediatorHTTPResponse) msg);
+        } else if (msg instanceof CallTimeout) {
+            processCallTimeout((CallTimeout) msg);
+        } else if (msg instanceof PendingRequests.Expired) {
+            processExpired((PendingRequests.Expired) msg);
+        } else if (msg instanceof AdaptiveLimiter.Permit) {
+            processPermit((AdaptiveLimiter.Permit) msg);
         } else {
             unhandled(msg);
         }
     }
+
+    /**
+     * Startup actor that shares a pool of CSDRequestActors between all transactions.
+     * The pool size is configured with the <code>ilr.poolSize</code> property. The routees use the
+     * {@link org.openhim.mediator.PriorityMailbox}, so interactive lookups are served ahead of bulk submissions.
+     */
+    public static class Pool extends RouterPoolActor {
+        public Pool(MediatorConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected Props routeeProps() {
+            return Props.create(CSDRequestActor.class, config);
+        }
+
+        @Override
+        protected String poolSizeProperty() {
+            return "ilr.poolSize";
+        }
+
+        @Override
+        protected String mailbox() {
+            return MediatorDispatchers.PRIORITY_MAILBOX;
+        }
+    }
 }
@@ -8,6 +8,8 @@ package org.openhim.mediator.denormalization;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
+import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
@@ -20,11 +22,21 @@ import ca.uhn.hl7v2.model.v25.segment.MSH;
 import ca.uhn.hl7v2.parser.GenericParser;
 import ca.uhn.hl7v2.parser.Parser;
 import ca.uhn.hl7v2.util.Terser;
+import org.openhim.mediator.AdaptiveLimiter;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.PendingRequests;
+import org.openhim.mediator.Priority;
+import org.openhim.mediator.RouterPoolActor;
+import org.openhim.mediator.SharedResources;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.*;
 import org.openhim.mediator.messages.*;
+import org.openhim.mediator.metrics.StageTimer;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -37,22 +49,70 @@ import java.util.*;
  * Messages supported:
  * <ul>
  * <li>ResolvePatientIdentifier - responds with ResolvePatientIdentifierResponse. The identifier returned will be null if the id could not be resolved.</li>
+ * <li>ResolvePatientIdentifiers - responds with a ResolvePatientIdentifierResponse for each of its requests, which are queried separately</li>
  * <li>RegisterNewPatient - responds with RegisterNewPatientResponse</li>
  * </ul>
+ * <br/>
+ * A shared pool of these actors is launched at startup as <code>pix-denormalization</code> (see {@link Pool}), unless
+ * <code>pix.backend</code> selects another patient resolution backend (see {@link PatientResolutionBackend}).
+ * Requests that fail, e.g. because the PIX manager is unavailable, are answered with a ResolvePatientIdentifierResponse
+ * with an error or an unsuccessful RegisterNewPatientResponse.
  */
 public class PIXRequestActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
+    private static class CallTimeout {
+        final String correlationId;
+
+        CallTimeout(String correlationId) {
+            this.correlationId = correlationId;
+        }
+    }
+
     private MediatorConfig config;
+    //fails requests fast while the PIX manager is down, or doesn't respond within the call timeout
+    private final CircuitBreaker breaker;
+    //limits the requests in flight; requests over the limit wait for a Permit, queued by their Priority
+    private final AdaptiveLimiter limiter;
+    private final SharedResources resources;
 
-    private Map<String, MediatorRequestMessage> originalRequests = new HashMap<>();
+    //answered with a failed response after pix.pending.timeoutMs, or at the request's Deadline if it comes first
+    private final PendingRequests<MediatorRequestMessage> originalRequests;
+    private Map<String, Long> requestStartTimes = new HashMap<>();
+    private Map<String, Cancellable> callTimeouts = new HashMap<>();
+    //requests waiting for a permit from the limiter
+    private Map<String, MediatorSocketRequest> queuedRequests = new HashMap<>();
 
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
-    private static final SimpleDateFormat dateFormatDay = new SimpleDateFormat("yyyyMMdd");
+    //SimpleDateFormat isn't thread-safe, so each routee keeps its own
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
+    private final SimpleDateFormat dateFormatDay = new SimpleDateFormat("yyyyMMdd");
 
 
     public PIXRequestActor(MediatorConfig config) {
         this.config = config;
+        this.resources = SharedResources.get(getContext().system());
+        this.breaker = CircuitBreaker.forDependency(resources, config, "pix");
+        this.limiter = AdaptiveLimiter.forDependency(resources, config, "pix");
+        this.originalRequests = new PendingRequests<>(getContext(), config, "pix");
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        originalRequests.clear();
+        //calls still in flight won't be reported, so count them as failures
+        for (Cancellable timeout : callTimeouts.values()) {
+            timeout.cancel();
+            breaker.onFailure();
+        }
+        for (int i=0; i<requestStartTimes.size(); i++) {
+            limiter.release();
+        }
+        for (String correlationId : queuedRequests.keySet()) {
+            if (!limiter.cancel(getSelf(), correlationId)) {
+                //a permit was already sent
+                limiter.release();
+            }
+        }
     }
 
 
@@ -60,10 +120,11 @@ public class PIXRequestActor extends UntypedActor {
         MSH msh = (MSH) t.getSegment("MSH");
         t.set("MSH-1", "|");
         t.set("MSH-2", "^~\\&");
-        t.set("MSH-3-1", config.getProperty("pix.sendingApplication"));
-        t.set("MSH-4-1", config.getProperty("pix.sendingFacility"));
-        t.set("MSH-5-1", config.getProperty("pix.receivingApplication"));
-        t.set("MSH-6-1", config.getProperty("pix.receivingFacility"));
+        MediatorSettings settings = MediatorSettings.get(config);
+        t.set("MSH-3-1", settings.getPixSendingApplication());
+        t.set("MSH-4-1", settings.getPixSendingFacility());
+        t.set("MSH-5-1", settings.getPixReceivingApplication());
+        t.set("MSH-6-1", settings.getPixReceivingFacility());
         msh.getDateTimeOfMessage().getTime().setValue(dateFormat.format(new Date()));
         t.set("MSH-10", correlationId);
         t.set("MSH-11-1", "P");
@@ -125,29 +186,140 @@ public class PIXRequestActor extends UntypedActor {
         return p.encode(adt_a04);
     }
 
+    private static String stageFor(MediatorRequestMessage request) {
+        return request instanceof RegisterNewPatient ? "pix.register" : "pix.query";
+    }
+
     private void sendPIXRequest(ActorRef requestHandler, String orchestration, String correlationId, String pixRequest) {
-        boolean secure = config.getProperty("pix.secure").equalsIgnoreCase("true");
+        MediatorSettings.Endpoint pixManager = MediatorSettings.get(config).getPixManager();
+        MediatorSocketRequest request = new MediatorSocketRequest(
+                requestHandler, getSelf(), orchestration, correlationId,
+                pixManager.getHost(), pixManager.getPort(), pixRequest, pixManager.isSecure()
+        );
 
-        int port;
-        if (secure) {
-            port = Integer.parseInt(config.getProperty("pix.manager.securePort"));
-        } else {
-            port = Integer.parseInt(config.getProperty("pix.manager.port"));
+        switch (limiter.acquire(getSelf(), correlationId, Priority.of(originalRequests.get(correlationId)))) {
+            case ACQUIRED:
+                sendPIXRequest(request);
+                break;
+            case QUEUED:
+                queuedRequests.put(correlationId, request);
+                break;
+            default:
+                log.warning("Too many requests waiting for the PIX manager. Failing request fast.");
+                respondUnavailable(originalRequests.remove(correlationId), "Too many requests are waiting for the PIX manager");
+        }
+    }
+
+    private void processPermit(AdaptiveLimiter.Permit permit) {
+        MediatorSocketRequest request = queuedRequests.remove(permit.getKey());
+        if (request == null) {
+            limiter.release();
+            return;
+        }
+        if (!hasTimeFor(originalRequests.get(request.getCorrelationId()))) {
+            log.warning("Not enough time left to query the PIX manager. Failing request fast.");
+            limiter.release();
+            respondUnavailable(originalRequests.remove(request.getCorrelationId()), "Not enough time left to query the PIX manager");
+            return;
+        }
+        sendPIXRequest(request);
+    }
+
+    /**
+     * @return false if a call to the PIX manager can't be expected to complete before the request's deadline, in which
+     * case the request is failed without calling it
+     */
+    private boolean hasTimeFor(MediatorRequestMessage request) {
+        return Deadline.of(request).allows(limiter.getBaselineLatencyMillis());
+    }
+
+    private void sendPIXRequest(MediatorSocketRequest request) {
+        String correlationId = request.getCorrelationId();
+        if (!breaker.tryAcquire()) {
+            log.warning("PIX manager circuit breaker is open. Failing request fast.");
+            limiter.release();
+            respondUnavailable(originalRequests.remove(correlationId), "The PIX manager is unavailable");
+            return;
         }
 
         ActorSelection connector = getContext().actorSelection(config.userPathFor("mllp-connector"));
-        MediatorSocketRequest request = new MediatorSocketRequest(
-                requestHandler, getSelf(), orchestration, correlationId,
-                config.getProperty("pix.manager.host"), port, pixRequest, secure
-        );
+        requestStartTimes.put(correlationId, System.nanoTime());
+        StageTimer.recordPayload(stageFor(originalRequests.get(correlationId)), "request", request.getBody());
         connector.tell(request, getSelf());
+
+        Cancellable timeout = breaker.scheduleCallTimeout(getContext(), new CallTimeout(correlationId));
+        if (timeout != null) {
+            callTimeouts.put(correlationId, timeout);
+        }
     }
 
+    private void respondUnavailable(MediatorRequestMessage originalRequest, String err) {
+        if (originalRequest instanceof ResolvePatientIdentifier) {
+            originalRequest.getRespondTo().tell(new ResolvePatientIdentifierResponse(originalRequest, null, err), getSelf());
+        } else if (originalRequest instanceof RegisterNewPatient) {
+            originalRequest.getRespondTo().tell(new RegisterNewPatientResponse(originalRequest, false, err), getSelf());
+        }
+    }
+
+    private void processCallTimeout(CallTimeout msg) {
+        callTimeouts.remove(msg.correlationId);
+        if (requestStartTimes.remove(msg.correlationId) != null) {
+            limiter.onDropped();
+        }
+        MediatorRequestMessage originalRequest = originalRequests.remove(msg.correlationId);
+        if (originalRequest != null) {
+            log.warning("PIX manager did not respond within " + breaker.getCallTimeoutMillis() + "ms");
+            breaker.onFailure();
+            respondUnavailable(originalRequest, "The PIX manager did not respond in time");
+        }
+    }
+
+    private void processExpired(PendingRequests.Expired msg) {
+        MediatorRequestMessage originalRequest = originalRequests.expire(msg);
+        if (originalRequest == null) {
+            //already answered
+            return;
+        }
+        String correlationId = msg.getCorrelationId();
+        log.warning("PIX request " + correlationId + " expired before the PIX manager responded");
+
+        if (queuedRequests.remove(correlationId) != null) {
+            //if a permit was already sent, processPermit gives it back
+            limiter.cancel(getSelf(), correlationId);
+        }
+        Cancellable timeout = callTimeouts.remove(correlationId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (requestStartTimes.remove(correlationId) != null) {
+            limiter.onDropped();
+            breaker.onFailure();
+        }
+        respondUnavailable(originalRequest, "The PIX manager did not respond in time");
+    }
+
+    /**
+     * Resolve the identifier from the local {@link PatientXrefIndex} if it's enabled, and otherwise query the PIX manager
+     */
     private void sendPIXRequest(ResolvePatientIdentifier msg) {
+        PatientXrefIndex xref = PatientXrefIndex.get(resources, config);
+        if (xref != null) {
+            Identifier resolved = xref.resolve(msg.getIdentifier(), msg.getTargetAssigningAuthority());
+            if (resolved != null) {
+                msg.getRespondTo().tell(new ResolvePatientIdentifierResponse(msg, resolved), getSelf());
+                return;
+            }
+        }
+
+        if (!hasTimeFor(msg)) {
+            log.warning("Not enough time left to query the PIX manager. Failing request fast.");
+            respondUnavailable(msg, "Not enough time left to query the PIX manager");
+            return;
+        }
         try {
             String correlationId = UUID.randomUUID().toString();
             String pixQuery = constructQBP_Q21(correlationId, msg);
-            originalRequests.put(correlationId, msg);
+            originalRequests.put(correlationId, msg, Deadline.of(msg));
             sendPIXRequest(msg.getRequestHandler(), "PIX Resolve Enterprise Identifier", correlationId, pixQuery);
         } catch (HL7Exception ex) {
             msg.getRequestHandler().tell(new ExceptError(ex), getSelf());
@@ -155,17 +327,22 @@ public class PIXRequestActor extends UntypedActor {
     }
 
     private void sendPIXRequest(RegisterNewPatient msg) {
+        if (!hasTimeFor(msg)) {
+            log.warning("Not enough time left to query the PIX manager. Failing request fast.");
+            respondUnavailable(msg, "Not enough time left to query the PIX manager");
+            return;
+        }
         try {
             String correlationId = UUID.randomUUID().toString();
             String pixRequest = constructADT_A04(correlationId, msg);
-            originalRequests.put(correlationId, msg);
+            originalRequests.put(correlationId, msg, Deadline.of(msg));
             sendPIXRequest(msg.getRequestHandler(), "PIX Create Patient Demographic Record", correlationId, pixRequest);
         } catch (HL7Exception ex) {
             msg.getRequestHandler().tell(new ExceptError(ex), getSelf());
         }
     }
 
-    private Identifier parseRSP_K23(String response) throws HL7Exception {
+    protected Identifier parseRSP_K23(String response) throws HL7Exception {
         Parser parser = new GenericParser();
         Object parsedMsg = parser.parse(response);
         if (!(parsedMsg instanceof RSP_K23)) {
@@ -207,7 +384,7 @@ public class PIXRequestActor extends UntypedActor {
         } catch (HL7Exception ex) {
             msg.getOriginalRequest().getRequestHandler().tell(new ExceptError(ex), getSelf());
         } finally {
-            sendAuditMessage(ATNAAudit.TYPE.PIX_REQUEST, result, msg, result!=null);
+            sendAuditMessage(ATNAAudit.TYPE.PIX_REQUEST, result, msg, result!=null, originalRequest.getPriority());
         }
     }
 
@@ -247,12 +424,27 @@ public class PIXRequestActor extends UntypedActor {
             msg.getOriginalRequest().getRequestHandler().tell(new ExceptError(ex), getSelf());
         } finally {
             Identifier pid = originalRequest.getPatientIdentifiers().get(0);
-            sendAuditMessage(ATNAAudit.TYPE.PIX_IDENTITY_FEED, pid, msg, err==null);
+            sendAuditMessage(ATNAAudit.TYPE.PIX_IDENTITY_FEED, pid, msg, err==null, originalRequest.getPriority());
         }
     }
 
     private void processResponse(MediatorSocketResponse msg) {
         MediatorRequestMessage originalRequest = originalRequests.remove(msg.getOriginalRequest().getCorrelationId());
+        Long start = requestStartTimes.remove(msg.getOriginalRequest().getCorrelationId());
+        Cancellable timeout = callTimeouts.remove(msg.getOriginalRequest().getCorrelationId());
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (originalRequest == null) {
+            //already answered, e.g. after the call timed out
+            return;
+        }
+        breaker.onSuccess();
+        if (start != null) {
+            limiter.onSuccess(System.nanoTime() - start);
+            StageTimer.record(stageFor(originalRequest), start);
+            StageTimer.recordPayload(stageFor(originalRequest), "response", msg.getBody());
+        }
 
         if (originalRequest instanceof ResolvePatientIdentifier) {
             processQBP_Q21Response(msg, (ResolvePatientIdentifier) originalRequest);
@@ -261,13 +453,14 @@ public class PIXRequestActor extends UntypedActor {
         }
     }
 
-    private void sendAuditMessage(ATNAAudit.TYPE type, Identifier patientID, MediatorSocketResponse msg, boolean outcome) {
+    private void sendAuditMessage(ATNAAudit.TYPE type, Identifier patientID, MediatorSocketResponse msg, boolean outcome, Priority priority) {
         try {
             ATNAAudit audit = new ATNAAudit(type);
             audit.setMessage(((MediatorSocketRequest) msg.getOriginalRequest()).getBody());
             audit.setParticipantIdentifiers(Collections.singletonList(patientID));
             audit.setUniqueId(msg.getOriginalRequest().getCorrelationId());
             audit.setOutcome(outcome);
+            audit.setPriority(priority);
 
             getContext().actorSelection(config.userPathFor("atna-auditing")).tell(audit, getSelf());
         } catch (Exception ex) {
@@ -283,13 +476,50 @@ public class PIXRequestActor extends UntypedActor {
                 log.debug("Patient ID: " + ((ResolvePatientIdentifier) msg).getIdentifier());
             }
             sendPIXRequest((ResolvePatientIdentifier) msg);
+        } else if (msg instanceof ResolvePatientIdentifiers) {
+            //PIX v2 queries are for a single identifier
+            for (ResolvePatientIdentifier request : ((ResolvePatientIdentifiers) msg).getRequests()) {
+                onReceive(request);
+            }
         } else if (msg instanceof RegisterNewPatient) {
             log.info("Received request to register new patient demographic record");
             sendPIXRequest((RegisterNewPatient) msg);
         } else if (msg instanceof MediatorSocketResponse) {
             processResponse((MediatorSocketResponse) msg);
+        } else if (msg instanceof CallTimeout) {
+            processCallTimeout((CallTimeout) msg);
+        } else if (msg instanceof PendingRequests.Expired) {
+            processExpired((PendingRequests.Expired) msg);
+        } else if (msg instanceof AdaptiveLimiter.Permit) {
+            processPermit((AdaptiveLimiter.Permit) msg);
         } else {
             unhandled(msg);
         }
     }
+
+    /**
+     * Startup actor that shares a pool of PIXRequestActors between all transactions.
+     * The pool size is configured with the <code>pix.poolSize</code> property. The routees use the
+     * {@link org.openhim.mediator.PriorityMailbox}, so interactive lookups are served ahead of bulk submissions.
+     */
+    public static class Pool extends RouterPoolActor {
+        public Pool(MediatorConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected Props routeeProps() {
+            return Props.create(PIXRequestActor.class, config);
+        }
+
+        @Override
+        protected String poolSizeProperty() {
+            return "pix.poolSize";
+        }
+
+        @Override
+        protected String mailbox() {
+            return MediatorDispatchers.PRIORITY_MAILBOX;
+        }
+    }
 }
@@ -0,0 +1,497 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.dispatch.OnComplete;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.RouterPoolActor;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.TlsContexts;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.ATNAAudit;
+import org.openhim.mediator.messages.RegisterNewPatient;
+import org.openhim.mediator.messages.ResolvePatientIdentifier;
+import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
+import org.openhim.mediator.messages.ResolvePatientIdentifiers;
+import org.openhim.mediator.metrics.StageTimer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import static akka.dispatch.Futures.future;
+
+/**
+ * Actor for resolving patient identifiers with a FHIR PIXm manager (IHE ITI-83).
+ * <br/><br/>
+ * The distinct identifiers of a ResolvePatientIdentifiers batch are packed into a single FHIR batch Bundle of
+ * <code>Patient/$ihe-pix</code> queries, which is posted to the <code>pixm</code> endpoint, so a submission costs one
+ * round trip instead of one per identifier. The requests are posted with a shared pool of keep-alive connections
+ * (at most <code>pixm.maxConnections</code>) on the blocking I/O dispatcher.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>ResolvePatientIdentifier - responds with ResolvePatientIdentifierResponse. The identifier returned will be null if the id could not be resolved.</li>
+ * <li>ResolvePatientIdentifiers - responds with a ResolvePatientIdentifierResponse for each of its requests</li>
+ * <li>RegisterNewPatient - PIXm doesn't support patient identity feeds, so these are forwarded to the shared v2 pool
+ * (see {@link PatientResolutionBackend#V2_REGISTRATION})</li>
+ * </ul>
+ * <br/>
+ * Launched at startup as <code>pix-denormalization</code> when <code>pix.backend</code> is <code>pixm</code> (see {@link Pool}).
+ * <br/><br/>
+ * Requests to the PIXm manager go through the <code>pixm</code> {@link CircuitBreaker}, and time out after its call
+ * timeout. If the breaker is open, the batch fails or the request's {@link Deadline} has passed, each request is
+ * answered with a failed ResolvePatientIdentifierResponse. Identifiers in the local {@link PatientXrefIndex} are
+ * resolved from the index and left out of the batch.
+ */
+public class PIXmRequestActor extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    static final String FHIR_NS = "http://hl7.org/fhir";
+    static final String FHIR_XML = "application/fhir+xml";
+
+    /**
+     * The query for one identifier of a batch. Requests for the same identifier and target domain share the query.
+     */
+    static class Query {
+        final Identifier identifier;
+        final AssigningAuthority targetAssigningAuthority;
+        final List<ResolvePatientIdentifier> requests = new ArrayList<>();
+        Identifier result;
+        String error;
+
+        Query(Identifier identifier, AssigningAuthority targetAssigningAuthority) {
+            this.identifier = identifier;
+            this.targetAssigningAuthority = targetAssigningAuthority;
+        }
+
+        String getTargetSystem() {
+            return systemFor(targetAssigningAuthority);
+        }
+
+        String getUrl() {
+            return "Patient/$ihe-pix?sourceIdentifier=" + encode(systemFor(identifier.getAssigningAuthority()) + "|" + identifier.getIdentifier())
+                    + "&targetSystem=" + encode(getTargetSystem());
+        }
+    }
+
+    private static class BatchResponse {
+        final List<Query> queries;
+        final String batchId;
+        final int status;
+        final String body;
+        final Throwable error;
+        final long start;
+
+        BatchResponse(List<Query> queries, String batchId, int status, String body, Throwable error, long start) {
+            this.queries = queries;
+            this.batchId = batchId;
+            this.status = status;
+            this.body = body;
+            this.error = error;
+            this.start = start;
+        }
+    }
+
+    private final MediatorConfig config;
+    private final SharedResources resources;
+    private final CircuitBreaker breaker;
+
+
+    public PIXmRequestActor(MediatorConfig config) {
+        this.config = config;
+        this.resources = SharedResources.get(getContext().system());
+        this.breaker = CircuitBreaker.forDependency(resources, config, "pixm");
+    }
+
+    /**
+     * @return the FHIR identifier system of an assigning authority: an OID as a urn:oid: URI, else its universal ID
+     * or namespace as is
+     */
+    static String systemFor(AssigningAuthority authority) {
+        if (authority == null) {
+            return null;
+        }
+        String id = authority.getAssigningAuthorityId();
+        if (StringUtils.isBlank(id)) {
+            return authority.getAssigningAuthority();
+        }
+        if (!id.startsWith("urn:") && ("ISO".equalsIgnoreCase(authority.getAssigningAuthorityIdType()) || id.matches("[0-2](\\.(0|[1-9][0-9]*))+"))) {
+            return "urn:oid:" + id;
+        }
+        return id;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(StringUtils.defaultString(value), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            //UTF-8 is always supported
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String buildBatchBundle(String batchId, List<Query> queries) {
+        StringBuilder bundle = new StringBuilder();
+        bundle.append("<Bundle xmlns=\"").append(FHIR_NS).append("\">");
+        bundle.append("<id value=\"").append(batchId).append("\"/>");
+        bundle.append("<type value=\"batch\"/>");
+        for (Query query : queries) {
+            bundle.append("<entry><request>");
+            bundle.append("<method value=\"GET\"/>");
+            bundle.append("<url value=\"").append(StringEscapeUtils.escapeXml10(query.getUrl())).append("\"/>");
+            bundle.append("</request></entry>");
+        }
+        bundle.append("</Bundle>");
+        return bundle.toString();
+    }
+
+    /**
+     * Read the results of a batch-response Bundle into the queries, which are in the same order as its entries
+     */
+    static void readBatchResponse(String body, List<Query> queries) throws ParserConfigurationException, SAXException, IOException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document doc = factory.newDocumentBuilder().parse(new InputSource(new StringReader(body)));
+        Element bundle = doc.getDocumentElement();
+        if (!"Bundle".equals(bundle.getLocalName())) {
+            throw new SAXException("Expected a Bundle but received a " + bundle.getLocalName());
+        }
+
+        List<Element> entries = children(bundle, "entry");
+        for (int i=0; i<queries.size(); i++) {
+            Query query = queries.get(i);
+            if (i >= entries.size()) {
+                query.error = "The PIXm manager did not respond to the query";
+                continue;
+            }
+
+            Element response = child(entries.get(i), "response");
+            String status = response != null ? valueOf(child(response, "status")) : null;
+            int code = parseStatus(status);
+            if (code == HttpStatus.SC_NOT_FOUND) {
+                //unknown patient, or no identifier in the target domain
+                continue;
+            }
+            if (code < 200 || code >= 300) {
+                query.error = "The PIXm manager responded with status " + status;
+                continue;
+            }
+
+            String value = readTargetIdentifier(child(entries.get(i), "resource"), query.getTargetSystem());
+            if (value != null) {
+                query.result = new Identifier(value, query.targetAssigningAuthority);
+            }
+        }
+    }
+
+    private static int parseStatus(String status) {
+        String code = StringUtils.substringBefore(StringUtils.trimToEmpty(status), " ");
+        return StringUtils.isNumeric(code) ? Integer.parseInt(code) : -1;
+    }
+
+    /**
+     * @return the value of the targetIdentifier in the target system, or null if there isn't one. Identifiers in
+     * other systems can't be labelled with the target domain, so they leave the identifier unresolved.
+     */
+    private static String readTargetIdentifier(Element resource, String targetSystem) {
+        Element parameters = resource != null ? child(resource, "Parameters") : null;
+        if (parameters == null) {
+            return null;
+        }
+        for (Element parameter : children(parameters, "parameter")) {
+            Element identifier = child(parameter, "valueIdentifier");
+            if (identifier == null || !"targetIdentifier".equals(valueOf(child(parameter, "name")))) {
+                continue;
+            }
+            String value = valueOf(child(identifier, "value"));
+            if (value == null) {
+                continue;
+            }
+            if (StringUtils.equals(targetSystem, valueOf(child(identifier, "system")))) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> result = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && FHIR_NS.equals(node.getNamespaceURI()) && name.equals(node.getLocalName())) {
+                result.add((Element) node);
+            }
+        }
+        return result;
+    }
+
+    private static Element child(Element parent, String name) {
+        List<Element> children = children(parent, name);
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static String valueOf(Element element) {
+        return element != null && element.hasAttribute("value") ? element.getAttribute("value") : null;
+    }
+
+    /**
+     * @return the client for the PIXm manager, built on first use. Its connection pool is shared by all the routees
+     * and closed with the actor system.
+     */
+    private static CloseableHttpClient clientFor(final SharedResources resources, final MediatorConfig config, final MediatorSettings.Endpoint pixm, final long timeoutMillis) throws IOException {
+        return resources.getOrCreate(SharedResources.key("http", config, "pixm"), new SharedResources.Factory<CloseableHttpClient, IOException>() {
+            @Override
+            public CloseableHttpClient create() throws IOException {
+                int maxConnections = (int) Util.getLongProperty(config, "pixm.maxConnections", 20);
+                RequestConfig requestConfig = RequestConfig.custom()
+                        .setConnectTimeout((int) timeoutMillis)
+                        .setConnectionRequestTimeout((int) timeoutMillis)
+                        .setSocketTimeout((int) timeoutMillis)
+                        .build();
+                HttpClientBuilder builder = HttpClientBuilder.create()
+                        .setMaxConnTotal(maxConnections)
+                        .setMaxConnPerRoute(maxConnections)
+                        .setDefaultRequestConfig(requestConfig);
+                if (pixm.isSecure() && TlsContexts.isConfigured(config, TlsContexts.PIXM)) {
+                    builder.setSSLSocketFactory(new SSLConnectionSocketFactory(TlsContexts.forEndpoint(resources, config, TlsContexts.PIXM)));
+                }
+                return builder.build();
+            }
+        });
+    }
+
+    private void resolve(List<ResolvePatientIdentifier> requests) {
+        PatientXrefIndex xref = PatientXrefIndex.get(resources, config);
+        Map<String, Query> queries = new LinkedHashMap<>();
+        for (ResolvePatientIdentifier request : requests) {
+            if (xref != null) {
+                Identifier resolved = xref.resolve(request.getIdentifier(), request.getTargetAssigningAuthority());
+                if (resolved != null) {
+                    request.getRespondTo().tell(new ResolvePatientIdentifierResponse(request, resolved), getSelf());
+                    continue;
+                }
+            }
+
+            String key = request.getIdentifier().toCX() + "|" + systemFor(request.getTargetAssigningAuthority());
+            Query query = queries.get(key);
+            if (query == null) {
+                query = new Query(request.getIdentifier(), request.getTargetAssigningAuthority());
+                queries.put(key, query);
+            }
+            query.requests.add(request);
+        }
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        List<Query> batch = new ArrayList<>(queries.values());
+        if (MediatorSettings.get(config).getPixm() == null) {
+            log.error("No PIXm manager is configured (set pixm.host)");
+            respondUnavailable(batch, "No PIXm manager is configured");
+            return;
+        }
+        if (Deadline.of(requests.get(0)).hasPassed()) {
+            log.warning("No time left to query the PIXm manager. Failing request fast.");
+            respondUnavailable(batch, "Not enough time left to query the PIXm manager");
+            return;
+        }
+        if (!breaker.tryAcquire()) {
+            log.warning("PIXm manager circuit breaker is open. Failing request fast.");
+            respondUnavailable(batch, "The PIXm manager is unavailable");
+            return;
+        }
+
+        sendBatch(batch);
+    }
+
+    private void sendBatch(final List<Query> queries) {
+        final String batchId = UUID.randomUUID().toString();
+        final String bundle = buildBatchBundle(batchId, queries);
+        final MediatorSettings.Endpoint pixm = MediatorSettings.get(config).getPixm();
+        final long start = System.nanoTime();
+        StageTimer.recordPayload("pix.query", "request", bundle);
+        log.info("Querying the PIXm manager for " + queries.size() + " patient identifier(s)");
+
+        ExecutionContext ec = MediatorDispatchers.lookup(getContext().system(), MediatorDispatchers.BLOCKING_IO);
+        final ActorRef self = getSelf();
+
+        Future<BatchResponse> f = future(new Callable<BatchResponse>() {
+            @Override
+            public BatchResponse call() throws Exception {
+                HttpPost post = new HttpPost(pixm.getURI());
+                post.setHeader("Accept", FHIR_XML);
+                post.setEntity(new StringEntity(bundle, ContentType.create(FHIR_XML, StandardCharsets.UTF_8)));
+
+                try (CloseableHttpResponse response = clientFor(resources, config, pixm, breaker.getCallTimeoutMillis()).execute(post)) {
+                    //reading the whole entity returns the connection to the pool
+                    String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+                    return new BatchResponse(queries, batchId, response.getStatusLine().getStatusCode(), body, null, start);
+                }
+            }
+        }, ec);
+        f.onComplete(new OnComplete<BatchResponse>() {
+            @Override
+            public void onComplete(Throwable ex, BatchResponse response) throws Throwable {
+                if (ex != null) {
+                    response = new BatchResponse(queries, batchId, -1, null, ex, start);
+                }
+                self.tell(response, ActorRef.noSender());
+            }
+        }, ec);
+    }
+
+    private void processBatchResponse(BatchResponse msg) {
+        if (msg.error != null || msg.status != HttpStatus.SC_OK) {
+            if (msg.error != null) {
+                log.error(msg.error, "PIXm request failed");
+            } else {
+                log.warning("PIXm manager responded with status " + msg.status);
+            }
+            breaker.onFailure();
+            respondUnavailable(msg.queries, "The PIXm manager is unavailable");
+            sendAuditMessages(msg);
+            return;
+        }
+
+        StageTimer.record("pix.query", msg.start);
+        StageTimer.recordPayload("pix.query", "response", msg.body);
+
+        try {
+            readBatchResponse(msg.body, msg.queries);
+        } catch (ParserConfigurationException | SAXException | IOException ex) {
+            //a 200 that isn't a batch response is no more use than an error status
+            log.error(ex, "Could not read the PIXm batch response");
+            breaker.onFailure();
+            for (Query query : msg.queries) {
+                query.result = null;
+            }
+            respondUnavailable(msg.queries, "The PIXm manager responded with an invalid batch response");
+            sendAuditMessages(msg);
+            return;
+        }
+
+        breaker.onSuccess();
+        for (Query query : msg.queries) {
+            for (ResolvePatientIdentifier request : query.requests) {
+                request.getRespondTo().tell(new ResolvePatientIdentifierResponse(request, query.result, query.error), getSelf());
+            }
+        }
+        sendAuditMessages(msg);
+    }
+
+    private void respondUnavailable(List<Query> queries, String err) {
+        for (Query query : queries) {
+            for (ResolvePatientIdentifier request : query.requests) {
+                request.getRespondTo().tell(new ResolvePatientIdentifierResponse(request, null, err), getSelf());
+            }
+        }
+    }
+
+    private void sendAuditMessages(BatchResponse msg) {
+        for (Query query : msg.queries) {
+            try {
+                ATNAAudit audit = new ATNAAudit(ATNAAudit.TYPE.PIXM_QUERY);
+                audit.setMessage(query.getUrl());
+                audit.setParticipantIdentifiers(Collections.singletonList(query.identifier));
+                audit.setUniqueId(msg.batchId);
+                audit.setOutcome(query.result != null);
+                audit.setPriority(query.requests.get(0).getPriority());
+
+                getContext().actorSelection(config.userPathFor("atna-auditing")).tell(audit, getSelf());
+            } catch (Exception ex) {
+                //quiet you!
+            }
+        }
+    }
+
+    private void forwardToPIXManager(RegisterNewPatient msg) {
+        getContext().actorSelection(config.userPathFor(PatientResolutionBackend.V2_REGISTRATION)).forward(msg, getContext());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ResolvePatientIdentifier) {
+            log.info("Received request to resolve patient identifier in the '" + ((ResolvePatientIdentifier) msg).getTargetAssigningAuthority() + "' domain");
+            resolve(Collections.singletonList((ResolvePatientIdentifier) msg));
+        } else if (msg instanceof ResolvePatientIdentifiers) {
+            log.info("Received request to resolve " + ((ResolvePatientIdentifiers) msg).getRequests().size() + " patient identifier(s)");
+            resolve(((ResolvePatientIdentifiers) msg).getRequests());
+        } else if (msg instanceof RegisterNewPatient) {
+            forwardToPIXManager((RegisterNewPatient) msg);
+        } else if (msg instanceof BatchResponse) {
+            processBatchResponse((BatchResponse) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+
+    /**
+     * Startup actor that shares a pool of PIXmRequestActors between all transactions.
+     * The pool size is configured with the <code>pix.poolSize</code> property.
+     */
+    public static class Pool extends RouterPoolActor {
+        public Pool(MediatorConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected Props routeeProps() {
+            return Props.create(PIXmRequestActor.class, config);
+        }
+
+        @Override
+        protected String poolSizeProperty() {
+            return "pix.poolSize";
+        }
+
+        @Override
+        protected String mailbox() {
+            return MediatorDispatchers.PRIORITY_MAILBOX;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.RouterPoolActor;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * The backends that can be launched as <code>pix-denormalization</code>, selected with the <code>pix.backend</code>
+ * property.
+ * <br/><br/>
+ * Every backend answers the same messages, so the orchestrators don't need to know which one is in use:
+ * <ul>
+ * <li>ResolvePatientIdentifier - responds with ResolvePatientIdentifierResponse</li>
+ * <li>ResolvePatientIdentifiers - responds with a ResolvePatientIdentifierResponse for each of its requests</li>
+ * <li>RegisterNewPatient - responds with RegisterNewPatientResponse</li>
+ * </ul>
+ * Backends other than {@link #V2} can't register patients, so a v2 pool is also launched for them as
+ * {@link #V2_REGISTRATION}.
+ */
+public enum PatientResolutionBackend {
+    /** HL7v2 PIX queries over MLLP (see {@link PIXRequestActor}) */
+    V2(PIXRequestActor.Pool.class),
+    /** FHIR PIXm queries, batched per submission (see {@link PIXmRequestActor}) */
+    PIXM(PIXmRequestActor.Pool.class);
+
+    /** The startup actor that registers new patients with the v2 PIX manager for the other backends */
+    public static final String V2_REGISTRATION = "pix-registration";
+
+    private final Class<? extends RouterPoolActor> pool;
+
+    PatientResolutionBackend(Class<? extends RouterPoolActor> pool) {
+        this.pool = pool;
+    }
+
+    public Class<? extends RouterPoolActor> getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the backend configured with <code>pix.backend</code>, {@link #V2} if it isn't set
+     * @throws IllegalArgumentException if the property doesn't name a backend
+     */
+    public static PatientResolutionBackend forConfig(MediatorConfig config) {
+        String value = config.getProperty("pix.backend");
+        if (value == null || value.trim().isEmpty()) {
+            return V2;
+        }
+        for (PatientResolutionBackend backend : values()) {
+            if (backend.name().equalsIgnoreCase(value.trim())) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown patient resolution backend pix.backend=" + value);
+    }
+}
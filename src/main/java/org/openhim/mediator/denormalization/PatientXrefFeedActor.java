@@ -0,0 +1,344 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.v25.message.ACK;
+import ca.uhn.hl7v2.parser.GenericParser;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.TlsContexts;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.metrics.MetricsRegistry;
+
+import javax.net.ssl.SSLServerSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link PatientXrefIndex} up to date with the client registry's patient identity feeds.
+ * <br/><br/>
+ * Listens for MLLP connections on <code>pix.xref.feed.host</code> (loopback by default) and
+ * <code>pix.xref.feed.port</code>, and accepts ADT^A01, ADT^A04 and ADT^A08 feeds (linking the identifiers in PID-3)
+ * and ADT^A40 merges (merging the patients in MRG-1 into the patient in PID-3). Each message is acknowledged once it's
+ * been synced to the index's journal, with an AE acknowledgement if it's not supported, not from an allowed sender or
+ * couldn't be processed. Feeds are counted on /metrics as <code>mediator_pix_xref_feed_messages_total</code>.
+ * <br/><br/>
+ * Feeds change how patients are resolved, so senders can be restricted by address
+ * (<code>pix.xref.feed.allowedAddresses</code>) and by MSH-3^MSH-4 (<code>pix.xref.feed.allowedSenders</code>), and
+ * with <code>pix.xref.feed.secure</code> the listener uses TLS with the <code>pix</code> context and requires a
+ * trusted client certificate. At most <code>pix.xref.feed.maxConnections</code> connections are served at a time, and
+ * a connection is dropped if it's idle for <code>pix.xref.feed.readTimeoutMs</code> or sends a frame larger than
+ * <code>pix.xref.feed.maxMessageBytes</code>.
+ * <br/><br/>
+ * Launched at startup as <code>pix-xref-feed</code> when <code>pix.xref.enabled</code> is true.
+ */
+public class PatientXrefFeedActor extends UntypedActor {
+
+    private static final int MLLP_HEADER_VT = 0x0b;
+
+    private final LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private ServerSocket socket;
+    private ExecutorService connections;
+    private Set<String> allowedAddresses;
+    private Set<String> allowedSenders;
+    private int readTimeoutMillis;
+    private int maxMessageBytes;
+
+
+    public PatientXrefFeedActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        final PatientXrefIndex xref = PatientXrefIndex.get(SharedResources.get(getContext().system()), config);
+        if (xref == null) {
+            throw new IllegalStateException("The patient cross-reference index hasn't been opened");
+        }
+
+        allowedAddresses = readList(config.getProperty("pix.xref.feed.allowedAddresses"));
+        allowedSenders = readList(config.getProperty("pix.xref.feed.allowedSenders"));
+        readTimeoutMillis = (int) Math.max(0, Util.getLongProperty(config, "pix.xref.feed.readTimeoutMs", 60000));
+        maxMessageBytes = (int) Math.max(1, Util.getLongProperty(config, "pix.xref.feed.maxMessageBytes", 1024 * 1024));
+
+        String host = StringUtils.defaultIfBlank(config.getProperty("pix.xref.feed.host"), "127.0.0.1").trim();
+        int port = (int) Util.getLongProperty(config, "pix.xref.feed.port", 3600);
+        final int maxConnections = (int) Math.max(1, Util.getLongProperty(config, "pix.xref.feed.maxConnections", 8));
+        if (Util.isPropertyTrue(config, "pix.xref.feed.secure")) {
+            SSLServerSocket secure = (SSLServerSocket) TlsContexts.forEndpoint(SharedResources.get(getContext().system()), config, TlsContexts.PIX)
+                    .getServerSocketFactory().createServerSocket();
+            secure.setNeedClientAuth(true);
+            socket = secure;
+        } else {
+            socket = new ServerSocket();
+        }
+        socket.bind(new InetSocketAddress(host, port));
+        //connections over the limit are refused rather than queued
+        connections = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        log.info("Listening for patient identity feeds on " + host + ":" + socket.getLocalPort());
+
+        Thread acceptor = new Thread("pix-xref-feed") {
+            @Override
+            public void run() {
+                try {
+                    while (!socket.isClosed()) {
+                        final Socket conn = socket.accept();
+                        String address = conn.getInetAddress().getHostAddress();
+                        if (!allowedAddresses.isEmpty() && !allowedAddresses.contains(address)) {
+                            log.warning("Refused a patient identity feed connection from " + address);
+                            IOUtils.closeQuietly(conn);
+                            continue;
+                        }
+                        try {
+                            connections.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    handle(xref, conn);
+                                }
+                            });
+                        } catch (RejectedExecutionException ex) {
+                            log.warning("Refused a patient identity feed connection from " + address + ", "
+                                    + maxConnections + " connections are already open");
+                            IOUtils.closeQuietly(conn);
+                        }
+                    }
+                } catch (IOException ex) {
+                    if (!socket.isClosed()) {
+                        log.error(ex, "Stopped listening for patient identity feeds");
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        IOUtils.closeQuietly(socket);
+        if (connections != null) {
+            connections.shutdownNow();
+        }
+    }
+
+    int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    private static Set<String> readList(String value) {
+        Set<String> values = new HashSet<>();
+        if (value != null) {
+            for (String v : value.split(",")) {
+                if (StringUtils.isNotBlank(v)) {
+                    values.add(v.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    private boolean isAllowedSender(Terser original) throws HL7Exception {
+        if (allowedSenders.isEmpty()) {
+            return true;
+        }
+        String application = StringUtils.defaultString(original.get("/MSH-3-1"));
+        String facility = StringUtils.defaultString(original.get("/MSH-4-1"));
+        //an application can be allowed from any facility
+        return allowedSenders.contains(application + "^" + facility) || allowedSenders.contains(application);
+    }
+
+    private void handle(PatientXrefIndex xref, Socket conn) {
+        try {
+            //also bounds the TLS handshake, which happens on the first read
+            conn.setSoTimeout(readTimeoutMillis);
+            InputStream in = conn.getInputStream();
+            OutputStream out = conn.getOutputStream();
+            Parser parser = new GenericParser();
+            String message;
+            while ((message = readMessage(in, maxMessageBytes)) != null) {
+                String ack = process(xref, parser, message);
+                out.write(MLLPConnector.wrapMLLP(ack).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (SocketTimeoutException ex) {
+            log.warning("Closed a patient identity feed connection that was idle for " + readTimeoutMillis + "ms");
+        } catch (IOException ex) {
+            log.warning("Patient identity feed connection failed: " + ex.getMessage());
+        } finally {
+            IOUtils.closeQuietly(conn);
+        }
+    }
+
+    /**
+     * @return the next MLLP framed message, or null if the connection was closed
+     * @throws IOException if the frame is larger than maxBytes, so that the connection can be dropped without
+     * buffering the rest of it
+     */
+    static String readMessage(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        int previous = -1;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (previous == MLLPConnector.MLLP_FOOTER_FS && b == MLLPConnector.MLLP_FOOTER_CR) {
+                return buffer.toString("UTF-8");
+            }
+            if (previous != -1 && previous != MLLP_HEADER_VT) {
+                if (buffer.size() >= maxBytes) {
+                    throw new IOException("Message is larger than " + maxBytes + " bytes");
+                }
+                buffer.write(previous);
+            }
+            previous = b;
+        }
+        return null;
+    }
+
+    /**
+     * Apply a feed to the index
+     *
+     * @return the acknowledgement
+     */
+    String process(PatientXrefIndex xref, Parser parser, String message) {
+        String event = null;
+        Terser original = null;
+        try {
+            original = new Terser(parser.parse(message));
+            String type = original.get("/MSH-9-1");
+            event = original.get("/MSH-9-2");
+
+            if (!isAllowedSender(original)) {
+                log.warning("Rejected a patient identity feed from " + original.get("/MSH-3-1") + "^" + original.get("/MSH-4-1"));
+                return reject(original, event, "The sender isn't allowed to send patient identity feeds");
+            }
+            if ("ADT".equals(type) && ("A01".equals(event) || "A04".equals(event) || "A08".equals(event))) {
+                List<Identifier> identifiers = readIdentifiers(original.getSegment("/.PID"), 3);
+                if (identifiers.isEmpty()) {
+                    return reject(original, event, "No patient identifiers in PID-3");
+                }
+                xref.link(identifiers);
+            } else if ("ADT".equals(type) && "A40".equals(event)) {
+                List<Identifier> surviving = readIdentifiers(original.getSegment("/.PID"), 3);
+                List<Identifier> prior = readIdentifiers(original.getSegment("/.MRG"), 1);
+                if (surviving.isEmpty() || prior.isEmpty()) {
+                    return reject(original, event, "No patient identifiers in PID-3 or MRG-1");
+                }
+                xref.merge(surviving, prior);
+            } else {
+                return reject(original, event, "Unsupported message type " + type + "^" + event);
+            }
+
+            countFeed(event, "success");
+            return ack(original, event, "AA", null);
+        } catch (HL7Exception | IOException ex) {
+            log.error(ex, "Could not process patient identity feed");
+            return reject(original, event, ex.getMessage());
+        }
+    }
+
+    private static List<Identifier> readIdentifiers(Segment segment, int field) throws HL7Exception {
+        List<Identifier> identifiers = new ArrayList<>();
+        int reps = segment.getField(field).length;
+        for (int i=0; i<reps; i++) {
+            String id = Terser.get(segment, field, i, 1, 1);
+            if (StringUtils.isBlank(id)) {
+                continue;
+            }
+            identifiers.add(new Identifier(id, new AssigningAuthority(
+                    Terser.get(segment, field, i, 4, 1), Terser.get(segment, field, i, 4, 2), Terser.get(segment, field, i, 4, 3)
+            ), Terser.get(segment, field, i, 5, 1)));
+        }
+        return identifiers;
+    }
+
+    private String reject(Terser original, String event, String err) {
+        countFeed(event, "failure");
+        try {
+            return ack(original, event, "AE", err);
+        } catch (HL7Exception ex) {
+            //the ack only uses fields that are valid in v2.5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String ack(Terser original, String event, String code, String err) throws HL7Exception {
+        ACK ack = new ACK();
+        Terser t = new Terser(ack);
+        MediatorSettings settings = MediatorSettings.get(config);
+
+        t.set("MSH-1", "|");
+        t.set("MSH-2", "^~\\&");
+        t.set("MSH-3-1", settings.getPixSendingApplication());
+        t.set("MSH-4-1", settings.getPixSendingFacility());
+        ack.getMSH().getDateTimeOfMessage().getTime().setValue(new SimpleDateFormat("yyyyMMddHHmmssZ").format(new Date()));
+        t.set("MSH-9-1", "ACK");
+        if (StringUtils.isNotBlank(event)) {
+            //an empty trigger event fails the encoding's validation
+            t.set("MSH-9-2", event);
+        }
+        t.set("MSH-9-3", "ACK");
+        t.set("MSH-10", UUID.randomUUID().toString());
+        t.set("MSH-11-1", "P");
+        t.set("MSH-12-1-1", "2.5");
+        if (original != null) {
+            t.set("MSH-5-1", original.get("/MSH-3-1"));
+            t.set("MSH-6-1", original.get("/MSH-4-1"));
+            t.set("MSA-2", original.get("/MSH-10"));
+        }
+
+        t.set("MSA-1", code);
+        if (err != null) {
+            t.set("MSA-3", err);
+        }
+        return new GenericParser().encode(ack);
+    }
+
+    private static void countFeed(String event, String outcome) {
+        MetricsRegistry.getInstance().counter(
+                "mediator_pix_xref_feed_messages_total", "Patient identity feeds received for the local cross-reference index",
+                MetricsRegistry.labels("event", StringUtils.defaultString(event, "unknown"), "outcome", outcome)
+        ).increment();
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        unhandled(msg);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.HL7Codec;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.exceptions.CXParseException;
+import org.openhim.mediator.metrics.MetricsRegistry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A local replica of the client registry's patient cross-references, so that patient identifiers can be resolved
+ * without a PIX query.
+ * <br/><br/>
+ * Each patient is the list of identifiers that the client registry has linked, and every identifier is indexed in
+ * memory by its value and assigning authority (universal ID, or namespace if there isn't one). Identity feeds
+ * ({@link #link(List)}) and merges ({@link #merge(List, List)}) are appended to a journal, <code>pix.xref.file</code>,
+ * and synced to disk before they're applied, and the journal is replayed when the index is opened. The journal is compacted to one
+ * line per patient when it's opened, and again when it grows to twice the number of patients.
+ * <br/><br/>
+ * If the journal doesn't exist yet, the index is bootstrapped from <code>pix.xref.bootstrapFile</code>: an export of
+ * the client registry with one patient per line, as the PID-3 field (CX identifiers separated by <code>~</code>).
+ * <br/><br/>
+ * Lookups are counted on /metrics as <code>mediator_pix_xref_lookups_total</code> and the number of patients is
+ * available as <code>mediator_pix_xref_patients</code>.
+ */
+public class PatientXrefIndex implements Closeable {
+
+    static final String LINK = "P";
+    static final String MERGE = "M";
+
+    /** The journal isn't compacted while it has fewer records than this */
+    static final int COMPACT_MIN_RECORDS = 10000;
+
+    private static final class Patient {
+        final List<Identifier> identifiers;
+
+        Patient(List<Identifier> identifiers) {
+            this.identifiers = identifiers;
+        }
+    }
+
+    private final File file;
+    private final ConcurrentMap<String, Patient> index = new ConcurrentHashMap<>();
+    private final Set<Patient> patients = Collections.newSetFromMap(new ConcurrentHashMap<Patient, Boolean>());
+
+    //guarded by this
+    private Writer journal;
+    private FileOutputStream journalFile;
+    private int records;
+    private int skipped;
+
+    private final MetricsRegistry.Counter hits;
+    private final MetricsRegistry.Counter misses;
+
+
+    PatientXrefIndex(File file) {
+        this.file = file;
+        hits = MetricsRegistry.getInstance().counter(
+                "mediator_pix_xref_lookups_total", "Patient identifier lookups in the local cross-reference index", MetricsRegistry.labels("outcome", "hit")
+        );
+        misses = MetricsRegistry.getInstance().counter(
+                "mediator_pix_xref_lookups_total", "Patient identifier lookups in the local cross-reference index", MetricsRegistry.labels("outcome", "miss")
+        );
+    }
+
+    /**
+     * Open the index configured by <code>pix.xref.file</code>, replaying its journal or bootstrapping it, and make
+     * it available to {@link #get(SharedResources, MediatorConfig)}. An index previously opened for the mediator is closed.
+     */
+    public static PatientXrefIndex open(SharedResources resources, MediatorConfig config) throws IOException {
+        File file = new File(StringUtils.defaultIfBlank(config.getProperty("pix.xref.file"), "pix-xref.log"));
+        final PatientXrefIndex xref = new PatientXrefIndex(file);
+
+        if (file.exists()) {
+            xref.replay();
+        } else if (StringUtils.isNotBlank(config.getProperty("pix.xref.bootstrapFile"))) {
+            xref.bootstrap(new File(config.getProperty("pix.xref.bootstrapFile").trim()));
+        }
+        synchronized (xref) {
+            xref.compact();
+        }
+
+        resources.put(SharedResources.key("xref", config, "index"), xref);
+
+        MetricsRegistry.getInstance().gauge("mediator_pix_xref_patients", "Patients in the local cross-reference index", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return xref.size();
+            }
+        });
+        return xref;
+    }
+
+    /**
+     * @return the index opened for the mediator, or null if the local cross-reference index isn't enabled
+     */
+    public static PatientXrefIndex get(SharedResources resources, MediatorConfig config) {
+        return resources.getIfPresent(SharedResources.key("xref", config, "index"));
+    }
+
+    /**
+     * Resolve an identifier in a target domain
+     *
+     * @return a copy of the identifier linked to <code>identifier</code> in the target domain, or null if there isn't one
+     */
+    public Identifier resolve(Identifier identifier, AssigningAuthority targetDomain) {
+        Patient patient = index.get(key(identifier));
+        if (patient != null) {
+            for (Identifier candidate : patient.identifiers) {
+                if (inDomain(candidate, targetDomain)) {
+                    hits.increment();
+                    return copy(candidate);
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Link identifiers of the same patient, e.g. from an A01, A04 or A08 identity feed. The patients that already have
+     * any of the identifiers are linked as well, and when resolving, the new identifiers are preferred.
+     */
+    public synchronized void link(List<Identifier> identifiers) throws IOException {
+        if (identifiers.isEmpty()) {
+            return;
+        }
+        append(LINK + "\t" + encode(identifiers));
+        apply(identifiers, Collections.<Identifier>emptyList());
+    }
+
+    /**
+     * Merge patients, e.g. from an A40 feed. The prior identifiers are kept (so that they can still be resolved) but
+     * the surviving identifiers are preferred.
+     */
+    public synchronized void merge(List<Identifier> surviving, List<Identifier> prior) throws IOException {
+        if (surviving.isEmpty()) {
+            return;
+        }
+        append(MERGE + "\t" + encode(surviving) + "\t" + encode(prior));
+        apply(surviving, prior);
+    }
+
+    public int size() {
+        return patients.size();
+    }
+
+    /**
+     * @return the number of journal or bootstrap lines that couldn't be read when the index was opened
+     */
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public synchronized void close() {
+        IOUtils.closeQuietly(journal);
+        journal = null;
+        journalFile = null;
+    }
+
+    private void apply(List<Identifier> first, List<Identifier> last) {
+        Map<String, Identifier> linked = new LinkedHashMap<>();
+        Set<Patient> absorbed = new HashSet<>();
+        for (Identifier id : first) {
+            addLinked(linked, absorbed, id);
+        }
+        Set<String> lastKeys = new HashSet<>();
+        for (Identifier id : last) {
+            lastKeys.add(key(id));
+        }
+
+        //the other identifiers of the patients that are being linked, then the prior identifiers of a merge
+        for (Identifier id : last) {
+            Patient patient = index.get(key(id));
+            if (patient != null) {
+                absorbed.add(patient);
+            }
+        }
+        for (Patient patient : absorbed) {
+            for (Identifier id : patient.identifiers) {
+                String key = key(id);
+                if (!lastKeys.contains(key) && !linked.containsKey(key)) {
+                    linked.put(key, id);
+                }
+            }
+        }
+        for (Identifier id : last) {
+            String key = key(id);
+            if (!linked.containsKey(key)) {
+                linked.put(key, id);
+            }
+        }
+
+        Patient patient = new Patient(Collections.unmodifiableList(new ArrayList<>(linked.values())));
+        for (String key : linked.keySet()) {
+            index.put(key, patient);
+        }
+        patients.add(patient);
+        patients.removeAll(absorbed);
+    }
+
+    private void addLinked(Map<String, Identifier> linked, Set<Patient> absorbed, Identifier id) {
+        String key = key(id);
+        if (!linked.containsKey(key)) {
+            linked.put(key, id);
+        }
+        Patient patient = index.get(key);
+        if (patient != null) {
+            absorbed.add(patient);
+        }
+    }
+
+    private void replay() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                records++;
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (LINK.equals(fields[0]) && fields.length == 2) {
+                        apply(decode(fields[1]), Collections.<Identifier>emptyList());
+                    } else if (MERGE.equals(fields[0]) && fields.length == 3) {
+                        apply(decode(fields[1]), decode(fields[2]));
+                    } else {
+                        //e.g. a record that was only partly written
+                        skipped++;
+                    }
+                } catch (CXParseException ex) {
+                    skipped++;
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void bootstrap(File export) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(export), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    apply(decode(line), Collections.<Identifier>emptyList());
+                } catch (CXParseException ex) {
+                    skipped++;
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void append(String record) throws IOException {
+        if (records > Math.max(COMPACT_MIN_RECORDS, 2 * patients.size())) {
+            compact();
+        }
+        if (journal == null) {
+            journalFile = new FileOutputStream(file, true);
+            journal = new BufferedWriter(new OutputStreamWriter(journalFile, StandardCharsets.UTF_8));
+        }
+        journal.write(record);
+        journal.write('\n');
+        journal.flush();
+        //feeds are acknowledged once they're journaled, so the record must survive a crash
+        journalFile.getFD().sync();
+        records++;
+    }
+
+    /**
+     * Rewrite the journal with a line per patient
+     */
+    private void compact() throws IOException {
+        close();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        File compacted = new File(parent, file.getName() + ".compact");
+        FileOutputStream compactedFile = new FileOutputStream(compacted);
+        Writer out = new BufferedWriter(new OutputStreamWriter(compactedFile, StandardCharsets.UTF_8));
+        try {
+            for (Patient patient : patients) {
+                out.write(LINK + "\t" + encode(patient.identifiers) + "\n");
+            }
+            out.flush();
+            compactedFile.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = patients.size();
+    }
+
+    static String key(Identifier identifier) {
+        AssigningAuthority authority = identifier.getAssigningAuthority();
+        if (authority == null) {
+            return identifier.getIdentifier();
+        }
+        String domain = StringUtils.isNotBlank(authority.getAssigningAuthorityId()) ?
+                authority.getAssigningAuthorityId() : authority.getAssigningAuthority();
+        return identifier.getIdentifier() + "^" + StringUtils.defaultString(domain);
+    }
+
+    private static boolean inDomain(Identifier identifier, AssigningAuthority domain) {
+        AssigningAuthority authority = identifier.getAssigningAuthority();
+        if (authority == null || domain == null) {
+            return false;
+        }
+        if (StringUtils.isNotBlank(authority.getAssigningAuthorityId()) && StringUtils.isNotBlank(domain.getAssigningAuthorityId())) {
+            return authority.getAssigningAuthorityId().equals(domain.getAssigningAuthorityId());
+        }
+        return StringUtils.isNotBlank(authority.getAssigningAuthority()) && authority.getAssigningAuthority().equals(domain.getAssigningAuthority());
+    }
+
+    private static Identifier copy(Identifier identifier) {
+        AssigningAuthority authority = identifier.getAssigningAuthority();
+        return new Identifier(identifier.getIdentifier(), new AssigningAuthority(
+                authority.getAssigningAuthority(), authority.getAssigningAuthorityId(), authority.getAssigningAuthorityIdType()
+        ), identifier.getTypeCode());
+    }
+
+    private static String encode(List<Identifier> identifiers) {
+        StringBuilder sb = new StringBuilder();
+        for (Identifier id : identifiers) {
+            if (sb.length() > 0) {
+                sb.append('~');
+            }
+            sb.append(id.toCX());
+        }
+        return sb.toString();
+    }
+
+    private static List<Identifier> decode(String field) throws CXParseException {
+        List<Identifier> identifiers = new ArrayList<>();
+        for (String cx : StringUtils.split(field, '~')) {
+            identifiers.add(HL7Codec.parseCX(cx));
+        }
+        return identifiers;
+    }
+}
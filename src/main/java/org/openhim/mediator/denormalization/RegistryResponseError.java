@@ -17,10 +17,14 @@ import java.util.UUID;
 public class RegistryResponseError {
     public static final String PNR_RESPONSE_ACTION = "urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-bResponse";
     public static final String STORED_QUERY_RESPONSE_ACTION = "urn:ihe:iti:2007:RegistryStoredQueryResponse";
+    public static final String RDS_RESPONSE_ACTION = "urn:ihe:iti:2007:RegisterDocumentSet-bResponse";
 
     public static final String XDS_REPOSITORY_ERROR = "XDSRepositoryError";
     public static final String XDS_UNKNOWN_PATIENTID = "XDSUnknownPatientId";
     public static final String XDS_REPOSITORY_METADATA_ERROR = "XDSRepositoryMetadataError";
+    public static final String XDS_REGISTRY_ERROR = "XDSRegistryError";
+    public static final String XDS_REGISTRY_METADATA_ERROR = "XDSRegistryMetadataError";
+    public static final String XDS_REGISTRY_NOT_AVAILABLE = "XDSRegistryNotAvailable";
 
     // @see https://www.w3.org/Protocols/rfc1341/7_2_Multipart.html
     private static final String TEMPLATE =
@@ -111,9 +115,16 @@ public class RegistryResponseError {
     }
 
     public FinishRequest toFinishRequest() {
+        return toFinishRequest(HttpStatus.SC_OK);
+    }
+
+    /**
+     * @param status the HTTP status, e.g. 503 if the request failed because a service the mediator depends on is unavailable
+     */
+    public FinishRequest toFinishRequest(int status) {
         String contentType = "Multipart/Related; start-info=\"application/soap+xml\"; " +
                 "type=\"application/xop+xml\"; boundary=\"----OPENHIM\";charset=UTF-8";
         String xml = toXML();
-        return new FinishRequest(xml, contentType, HttpStatus.SC_OK);
+        return new FinishRequest(xml, contentType, status);
     }
 }
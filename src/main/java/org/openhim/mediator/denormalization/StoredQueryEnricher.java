@@ -0,0 +1,213 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.exceptions.CXParseException;
+import org.openhim.mediator.normalization.ParseRegistryStoredQueryActor;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Substitutes the patient identifiers in a registry stored query (ITI-18) with enterprise identifiers.
+ * <br/><br/>
+ * The query is copied from input to output with a StAX cursor in a single pass. Everything other than the values
+ * of patient ID slots is copied as-is, including namespace declarations and prefixes.
+ * The StAX factories are created once and shared, since looking them up is expensive and creating
+ * readers and writers from them is thread-safe.
+ */
+public class StoredQueryEnricher {
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+
+    private StoredQueryEnricher() {}
+
+    /**
+     * Enrich a query, replacing every patient ID value with the same identifier
+     */
+    public static void enrich(InputStream in, OutputStream out, Identifier patientID) throws XMLStreamException {
+        enrich(in, out, Collections.<Identifier, Identifier>emptyMap(), patientID);
+    }
+
+    /**
+     * Enrich a query
+     *
+     * @param in the UTF-8 encoded query
+     * @param out the enriched query is written here, UTF-8 encoded
+     * @param patientIDs enterprise identifiers keyed by the original identifier
+     * @param defaultPatientID used for identifiers that aren't in patientIDs. If null, such identifiers are left unchanged.
+     */
+    public static void enrich(InputStream in, OutputStream out, Map<Identifier, Identifier> patientIDs, Identifier defaultPatientID)
+            throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(in, ENCODING);
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out, ENCODING);
+
+        try {
+            writer.writeStartDocument(ENCODING, reader.getVersion() != null ? reader.getVersion() : "1.0");
+
+            boolean inPatientIDSlot = false;
+            //collects the original value while inside a patient ID slot value
+            StringBuilder value = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String localName = reader.getLocalName();
+                        if ("Slot".equals(localName)) {
+                            inPatientIDSlot = ParseRegistryStoredQueryActor.PATIENT_ID_SLOT_TYPES.contains(reader.getAttributeValue(null, "name"));
+                        } else if (inPatientIDSlot && "Value".equals(localName)) {
+                            value = new StringBuilder();
+                        }
+                        copyStartElement(reader, writer);
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (value != null) {
+                            writer.writeCharacters(replacement(value.toString(), patientIDs, defaultPatientID));
+                            value = null;
+                        } else if ("Slot".equals(reader.getLocalName())) {
+                            inPatientIDSlot = false;
+                        }
+                        writer.writeEndElement();
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        if (value != null) {
+                            value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        } else {
+                            writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+
+                    case XMLStreamConstants.CDATA:
+                        if (value != null) {
+                            value.append(reader.getText());
+                        } else {
+                            writer.writeCData(reader.getText());
+                        }
+                        break;
+
+                    case XMLStreamConstants.COMMENT:
+                        writer.writeComment(reader.getText());
+                        break;
+
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        writer.writeEntityRef(reader.getLocalName());
+                        break;
+
+                    case XMLStreamConstants.DTD:
+                        writer.writeDTD(reader.getText());
+                        break;
+
+                    case XMLStreamConstants.END_DOCUMENT:
+                        writer.writeEndDocument();
+                        break;
+                }
+            }
+
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    private static void copyStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = reader.getPrefix();
+        String namespace = reader.getNamespaceURI();
+        if (namespace == null) {
+            writer.writeStartElement(reader.getLocalName());
+        } else {
+            writer.writeStartElement(prefix != null ? prefix : "", reader.getLocalName(), namespace);
+        }
+
+        for (int i=0; i<reader.getNamespaceCount(); i++) {
+            String nsPrefix = reader.getNamespacePrefix(i);
+            String nsURI = reader.getNamespaceURI(i) != null ? reader.getNamespaceURI(i) : "";
+            if (nsPrefix == null || nsPrefix.isEmpty()) {
+                writer.writeDefaultNamespace(nsURI);
+            } else {
+                writer.writeNamespace(nsPrefix, nsURI);
+            }
+        }
+
+        for (int i=0; i<reader.getAttributeCount(); i++) {
+            String attrNamespace = reader.getAttributeNamespace(i);
+            if (attrNamespace == null || attrNamespace.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(reader.getAttributePrefix(i), attrNamespace, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    /**
+     * Replaces each identifier in a slot value, which is either a single quoted identifier or a list, e.g. <code>('a','b')</code>
+     */
+    private static String replacement(String original, Map<Identifier, Identifier> patientIDs, Identifier defaultPatientID) {
+        List<String> values = ParseRegistryStoredQueryActor.splitSlotValue(original);
+        if (values.isEmpty()) {
+            return defaultPatientID != null ? "'" + defaultPatientID.toString() + "'" : original;
+        }
+
+        boolean isList = original.trim().startsWith("(");
+        boolean replaced = false;
+        StringBuilder res = new StringBuilder();
+        if (isList) {
+            res.append('(');
+        }
+        for (int i=0; i<values.size(); i++) {
+            Identifier id = lookup(values.get(i), patientIDs, defaultPatientID);
+            if (i > 0) {
+                res.append(',');
+            }
+            res.append('\'').append(id != null ? id.toString() : values.get(i)).append('\'');
+            replaced |= id != null;
+        }
+        if (isList) {
+            res.append(')');
+        }
+        return replaced ? res.toString() : original;
+    }
+
+    private static Identifier lookup(String value, Map<Identifier, Identifier> patientIDs, Identifier defaultPatientID) {
+        Identifier id = null;
+        if (!patientIDs.isEmpty()) {
+            try {
+                id = patientIDs.get(new Identifier(value));
+            } catch (CXParseException ex) {
+                //not an identifier that was resolved
+            }
+        }
+        return id != null ? id : defaultPatientID;
+    }
+}
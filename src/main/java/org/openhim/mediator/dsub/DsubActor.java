@@ -1,7 +1,9 @@
 package org.openhim.mediator.dsub;
 
 import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
 import akka.actor.UntypedActor;
+import akka.dispatch.OnComplete;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import com.mongodb.MongoClient;
@@ -19,7 +21,13 @@ import org.oasis_open.docs.wsn.b_2.Renew;
 import org.oasis_open.docs.wsn.b_2.ResumeSubscription;
 import org.oasis_open.docs.wsn.b_2.Subscribe;
 import org.oasis_open.docs.wsn.b_2.Unsubscribe;
+import org.openhim.mediator.AdmissionController;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.dsub.pull.PullPointEntry;
 import org.openhim.mediator.dsub.pull.PullPointFactory;
+import org.openhim.mediator.dsub.pull.PullPointResponses;
 import org.openhim.mediator.dsub.service.DsubService;
 import org.openhim.mediator.dsub.service.DsubServiceImpl;
 import org.openhim.mediator.dsub.subscription.MongoSubscriptionRepository;
@@ -27,10 +35,13 @@ import org.openhim.mediator.dsub.subscription.SoapSubscriptionNotifier;
 import org.openhim.mediator.dsub.subscription.SubscriptionNotifier;
 import org.openhim.mediator.dsub.subscription.SubscriptionRepository;
 import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
 import org.openhim.mediator.messages.NotifyNewDocument;
 import org.xml.sax.SAXException;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.Future;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
@@ -39,63 +50,177 @@ import javax.xml.transform.TransformerException;
 import javax.xml.ws.wsaddressing.W3CEndpointReference;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.math.BigInteger;
 import java.net.URL;
 import java.net.URI;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static akka.dispatch.Futures.future;
 
 public class DsubActor extends UntypedActor {
 
+    /**
+     * What the actors share: the service (whose pull point factory ensures the indexes) and the route's admission
+     * controller. DsubActor is created for every request, so these are created once per actor system.
+     */
+    private static final class Components {
+        private final DsubService dsubService;
+        private final AdmissionController admission;
+
+        private Components(DsubService dsubService, AdmissionController admission) {
+            this.dsubService = dsubService;
+            this.admission = admission;
+        }
+    }
+
     private final MediatorConfig config;
     private final LoggingAdapter log = Logging.getLogger(getContext().system(), this);
-    private final MongoDatabase mongoDb;
 
-    private DsubService dsubService;
+    private final DsubService dsubService;
     private ActorRef requestHandler;
 
+    private final AdmissionController admission;
+    private AdmissionController.Ticket admissionTicket;
+    //the request, while it waits to be admitted
+    private MediatorHTTPRequest queuedRequest;
+
     public DsubActor(MediatorConfig config) {
         this.config = config;
-        String host = config.getProperty("mediator.mongo.host");
+        Components components = components(getContext().system(), config);
+        dsubService = components.dsubService;
+        admission = components.admission;
+    }
+
+    private static Components components(final ActorSystem system, final MediatorConfig config) {
+        final SharedResources resources = SharedResources.get(system);
+        return resources.getOrCreate(SharedResources.key("dsub", config, "components"), new SharedResources.Factory<Components, RuntimeException>() {
+            @Override
+            public Components create() {
+                LoggingAdapter log = Logging.getLogger(system, DsubService.class);
+                MongoDatabase mongoDb = mongoClient(resources, config).getDatabase("dsub");
+
+                PullPointFactory pullPointFactory = new PullPointFactory(mongoDb,
+                        Util.getLongProperty(config, "dsub.pull.ttlSeconds", PullPointFactory.DEFAULT_TTL_SECONDS));
+                SubscriptionRepository subRepo = new MongoSubscriptionRepository(mongoDb, log);
+                SubscriptionNotifier subNotifier = new SoapSubscriptionNotifier(resources, config, log);
+
+                DsubService dsubService = new DsubServiceImpl(pullPointFactory, subRepo,
+                        subNotifier, log);
+                return new Components(dsubService, AdmissionController.forRoute(resources, config, "/dsub"));
+            }
+        });
+    }
+
+    @Override
+    public void postStop() {
+        admission.release(admissionTicket);
+    }
+
+    /**
+     * MongoClient maintains its own connection pool and is meant to be shared, so a single client is kept per actor
+     * system, host and port rather than one per actor. It is closed when the actor system terminates.
+     */
+    public static MongoClient mongoClient(SharedResources resources, MediatorConfig config) {
+        final String host = config.getProperty("mediator.mongo.host");
         if (host == null) {
             throw new RuntimeException("The property mediator.mongo.host is not set!");
         }
-        Integer port = Integer.parseInt(config.getProperty
-                ("mediator.mongo.port"));
-        MongoClient mongoClient = new MongoClient(host, port);
-        mongoDb = mongoClient.getDatabase("dsub");
-
-        PullPointFactory pullPointFactory = new PullPointFactory(mongoDb);
-        SubscriptionRepository subRepo = new MongoSubscriptionRepository(mongoDb, log);
-        SubscriptionNotifier subNotifier = new SoapSubscriptionNotifier(config, log);
-
-        dsubService = new DsubServiceImpl(pullPointFactory, subRepo,
-                subNotifier, log);
+        final int port = Integer.parseInt(config.getProperty("mediator.mongo.port"));
+        return resources.getOrCreate(SharedResources.key("mongo", config, host + ":" + port), new SharedResources.Factory<MongoClient, RuntimeException>() {
+            @Override
+            public MongoClient create() {
+                return new MongoClient(host, port);
+            }
+        });
     }
 
     @Override
     public void onReceive(Object msg) {
         if (msg instanceof MediatorHTTPRequest) {
-            handleMessage((MediatorHTTPRequest) msg);
+            admitRequest((MediatorHTTPRequest) msg);
+        } else if (msg instanceof AdmissionController.Admitted) {
+            MediatorHTTPRequest request = queuedRequest;
+            queuedRequest = null;
+            handleMessage(request);
+        } else if (msg instanceof AdmissionController.QueueDeadline) {
+            if (admission.expire(admissionTicket)) {
+                log.warning("Rejecting dsub request: not admitted in time");
+                queuedRequest.getRequestHandler().tell(admission.rejection(), getSelf());
+                queuedRequest = null;
+            }
         } else if (msg instanceof NotifyNewDocument) {
-            NotifyNewDocument notifyNewDocument = (NotifyNewDocument) msg;
-            dsubService.notifyNewDocument(notifyNewDocument.getLabOrderDocumentId(), null);
+            final NotifyNewDocument notifyNewDocument = (NotifyNewDocument) msg;
+            runBlocking(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    dsubService.notifyNewDocument(notifyNewDocument.getLabOrderDocumentId(), null);
+                    return Boolean.TRUE;
+                }
+            }, null, null);
         }
     }
 
+    private void admitRequest(MediatorHTTPRequest request) {
+        admissionTicket = admission.admit(getContext(), request);
+        if (admissionTicket == null) {
+            log.warning("Rejecting dsub request: admission limits reached");
+            request.getRequestHandler().tell(admission.rejection(), getSelf());
+        } else if (admissionTicket.isQueued()) {
+            queuedRequest = request;
+        } else {
+            handleMessage(request);
+        }
+    }
+
+    /**
+     * Mongo access and subscriber notifications block, so they're run on the blocking I/O
+     * dispatcher rather than on the thread processing this actor's mailbox.
+     *
+     * @param onSuccess the message to send to the request handler once the work has completed, or null
+     */
+    private void runBlocking(Callable<Boolean> work, final ActorRef requestHandler, final Object onSuccess) {
+        ExecutionContext ec = MediatorDispatchers.lookup(getContext().system(), MediatorDispatchers.BLOCKING_IO);
+        final ActorRef self = getSelf();
+
+        Future<Boolean> f = future(work, ec);
+        f.onComplete(new OnComplete<Boolean>() {
+            @Override
+            public void onComplete(Throwable ex, Boolean result) throws Throwable {
+                if (ex != null) {
+                    log.error(ex, "Dsub request failure");
+                    if (requestHandler != null) {
+                        requestHandler.tell(new ExceptError(ex), self);
+                    }
+                } else if (requestHandler != null && onSuccess != null) {
+                    requestHandler.tell(onSuccess, self);
+                }
+            }
+        }, ec);
+    }
+
     private void handleMessage(MediatorHTTPRequest request) {
         requestHandler = request.getRequestHandler();
 
         Object result = parseMessage(request);
 
         if (result instanceof Subscribe) {
-            Subscribe subscribeRequest = (Subscribe) result;
-            handleSubscriptionMessage(subscribeRequest);
+            final Subscribe subscribeRequest = (Subscribe) result;
             MediatorHTTPResponse creationSuccess = new MediatorHTTPResponse(request,
                     "Subscription created with success",
                     HttpStatus.SC_CREATED,
                     null);
-            requestHandler.tell(creationSuccess.toFinishRequest(), getSelf());
+            runBlocking(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    handleSubscriptionMessage(subscribeRequest);
+                    return Boolean.TRUE;
+                }
+            }, requestHandler, creationSuccess.toFinishRequest());
         } else if (result instanceof Unsubscribe) {
             Unsubscribe unsubscribeRequest = (Unsubscribe) result;
             //unsubscribe request handling
@@ -103,14 +228,11 @@ public class DsubActor extends UntypedActor {
             GetCurrentMessage getCurrentMessageRequest = (GetCurrentMessage) result;
             //get current message request handling
         } else if (result instanceof GetMessages) {
-            GetMessages getMessagesRequest = (GetMessages) result;
-            //get messages request handling
+            handleGetMessages(request, (GetMessages) result);
         } else if (result instanceof DestroyPullPoint) {
-            DestroyPullPoint destroyPullPointRequest = (DestroyPullPoint) result;
-            //destroy pull point request handling
+            handleDestroyPullPoint(request, (DestroyPullPoint) result);
         } else if (result instanceof CreatePullPoint) {
-            CreatePullPoint createPullPointRequest = (CreatePullPoint) result;
-            //create pull point request handling
+            handleCreatePullPoint(request, (CreatePullPoint) result);
         } else if (result instanceof Renew) {
             Renew renew = (Renew) result;
             //renew request handling
@@ -133,6 +255,133 @@ public class DsubActor extends UntypedActor {
         }
     }
 
+    /**
+     * Like runBlocking, but the work builds the response to the request
+     */
+    private void respondBlocking(Callable<MediatorHTTPResponse> work, final ActorRef requestHandler) {
+        ExecutionContext ec = MediatorDispatchers.lookup(getContext().system(), MediatorDispatchers.BLOCKING_IO);
+        final ActorRef self = getSelf();
+
+        Future<MediatorHTTPResponse> f = future(work, ec);
+        f.onComplete(new OnComplete<MediatorHTTPResponse>() {
+            @Override
+            public void onComplete(Throwable ex, MediatorHTTPResponse response) throws Throwable {
+                if (ex != null) {
+                    log.error(ex, "Dsub request failure");
+                    requestHandler.tell(new ExceptError(ex), self);
+                } else {
+                    requestHandler.tell(response.toFinishRequest(), self);
+                }
+            }
+        }, ec);
+    }
+
+    private MediatorHTTPResponse soapResponse(MediatorHTTPRequest request, String body) {
+        return new MediatorHTTPResponse(request, body, HttpStatus.SC_OK,
+                Collections.singletonMap("Content-Type", "application/soap+xml"));
+    }
+
+    private MediatorHTTPResponse faultResponse(MediatorHTTPRequest request, String reason) {
+        return new MediatorHTTPResponse(request, PullPointResponses.senderFault(reason), HttpStatus.SC_BAD_REQUEST,
+                Collections.singletonMap("Content-Type", "application/soap+xml"));
+    }
+
+    private void respondWithFault(MediatorHTTPRequest request, String reason) {
+        log.warning(reason);
+        request.getRequestHandler().tell(faultResponse(request, reason).toFinishRequest(), getSelf());
+    }
+
+    private void respondWithError(MediatorHTTPRequest request, int status, String error) {
+        log.warning(error);
+        MediatorHTTPResponse response = new MediatorHTTPResponse(request, error, status, null);
+        request.getRequestHandler().tell(response.toFinishRequest(), getSelf());
+    }
+
+    private void handleCreatePullPoint(final MediatorHTTPRequest request, CreatePullPoint createPullPointRequest) {
+        final String locationId = createPullPointRequest.getOtherAttributes().get(PullPointResponses.LOCATION_ID);
+        if (StringUtils.isBlank(locationId)) {
+            respondWithError(request, HttpStatus.SC_BAD_REQUEST, "CreatePullPoint requires a locationId attribute");
+            return;
+        }
+
+        respondBlocking(new Callable<MediatorHTTPResponse>() {
+            @Override
+            public MediatorHTTPResponse call() {
+                dsubService.createPullPoint(locationId);
+                return soapResponse(request, PullPointResponses.createPullPointResponse(
+                        config.getProperty("core.host"), locationId));
+            }
+        }, request.getRequestHandler());
+    }
+
+    private void handleGetMessages(final MediatorHTTPRequest request, GetMessages getMessagesRequest) {
+        final String locationId = getMessagesRequest.getOtherAttributes().get(PullPointResponses.LOCATION_ID);
+        String cursorValue = getMessagesRequest.getOtherAttributes().get(PullPointResponses.CURSOR);
+        if (StringUtils.isBlank(locationId)) {
+            respondWithError(request, HttpStatus.SC_BAD_REQUEST, "GetMessages requires a locationId attribute");
+            return;
+        }
+        final Long cursor;
+        try {
+            if (StringUtils.isNotBlank(cursorValue) && !StringUtils.isNumeric(cursorValue.trim())) {
+                throw new NumberFormatException();
+            }
+            cursor = StringUtils.isNotBlank(cursorValue) ? Long.valueOf(cursorValue.trim()) : null;
+        } catch (NumberFormatException ex) {
+            //not a number, or too large for a sequence number
+            respondWithFault(request, "Invalid GetMessages cursor: " + cursorValue);
+            return;
+        }
+        final int maxMessages = maxMessages(getMessagesRequest.getMaximumNumber());
+
+        respondBlocking(new Callable<MediatorHTTPResponse>() {
+            @Override
+            public MediatorHTTPResponse call() {
+                List<PullPointEntry> messages;
+                try {
+                    messages = dsubService.getMessagesForPullPoint(locationId, cursor, maxMessages);
+                } catch (IllegalArgumentException ex) {
+                    log.warning(ex.getMessage());
+                    return faultResponse(request, ex.getMessage());
+                }
+                if (messages == null) {
+                    return new MediatorHTTPResponse(request, "Unknown pull point: " + locationId, HttpStatus.SC_NOT_FOUND, null);
+                }
+                return soapResponse(request, PullPointResponses.getMessagesResponse(
+                        config.getProperty("core.host"), messages, cursor != null ? cursor : 0));
+            }
+        }, request.getRequestHandler());
+    }
+
+    /**
+     * @return the number of messages requested, at most <code>dsub.pull.maxMessages</code>
+     */
+    private int maxMessages(BigInteger requested) {
+        long limit = Util.getLongProperty(config, "dsub.pull.maxMessages", 100);
+        if (requested == null || requested.signum() <= 0 || requested.compareTo(BigInteger.valueOf(limit)) > 0) {
+            return (int) limit;
+        }
+        return requested.intValue();
+    }
+
+    private void handleDestroyPullPoint(final MediatorHTTPRequest request, DestroyPullPoint destroyPullPointRequest) {
+        final String locationId = destroyPullPointRequest.getOtherAttributes().get(PullPointResponses.LOCATION_ID);
+        if (StringUtils.isBlank(locationId)) {
+            respondWithError(request, HttpStatus.SC_BAD_REQUEST, "DestroyPullPoint requires a locationId attribute");
+            return;
+        }
+
+        respondBlocking(new Callable<MediatorHTTPResponse>() {
+            @Override
+            public MediatorHTTPResponse call() {
+                if (!dsubService.destroyPullPoint(locationId)) {
+                    return new MediatorHTTPResponse(request, "Unknown pull point: " + locationId, HttpStatus.SC_NOT_FOUND, null);
+                }
+                return soapResponse(request, PullPointResponses.destroyPullPointResponse());
+            }
+        }, request.getRequestHandler());
+    }
+
     private void handleSubscriptionMessage(Subscribe subscribeRequest) {
         W3CEndpointReference consumerRef = subscribeRequest.getConsumerReference();
         Object address = getProperty(consumerRef, "address");
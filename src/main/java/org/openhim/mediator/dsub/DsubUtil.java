@@ -1,6 +1,7 @@
 package org.openhim.mediator.dsub;
 
 import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.Util;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -8,7 +9,6 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.parsers.DocumentBuilder;
@@ -28,11 +28,11 @@ public final class DsubUtil {
     private static final int BODY_NODE = 3;
     private static final int MESSAGE_NODE = 1;
     private static final String YES_PROPERTY = "yes";
+    public static final String WSN_PACKAGE = "org.oasis_open.docs.wsn.b_2";
 
     public static Object extractRequestMessage(String parsedRequest) throws JAXBException {
         Object result;
-        JAXBContext jaxbContext = JAXBContext.newInstance("org.oasis_open.docs.wsn.b_2");
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        Unmarshaller unmarshaller = Util.getJAXBContext(WSN_PACKAGE).createUnmarshaller();
         result = unmarshaller.unmarshal(IOUtils.toInputStream(parsedRequest));
         return result;
     }
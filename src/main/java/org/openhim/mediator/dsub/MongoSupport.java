@@ -19,4 +19,8 @@ public abstract class MongoSupport {
     protected MongoCollection<Document> getCollection() {
         return mongoDb.getCollection(collectionName);
     }
+
+    protected MongoCollection<Document> getCollection(String name) {
+        return mongoDb.getCollection(name);
+    }
 }
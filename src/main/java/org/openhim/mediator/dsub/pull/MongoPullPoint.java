@@ -1,30 +1,193 @@
 package org.openhim.mediator.dsub.pull;
 
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
 import org.bson.Document;
 import org.openhim.mediator.dsub.MongoSupport;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Pull point entries are kept in one collection, indexed by location and sequence number, with a TTL index that
+ * expires entries that were never acknowledged. Sequence numbers are reserved in blocks with an atomic $inc on a
+ * counter, so a bulk insert costs one round trip for the counter and one for the entries, and any number of mediator
+ * instances can share the database.
+ * <br/><br/>
+ * Concurrent writers can make entries visible out of sequence order, so an entry may land behind a consumer's cursor.
+ * Entries are therefore marked when they're delivered, and a cursor only acknowledges the delivered entries up to it.
+ * An entry that lands late is delivered with the next batch. Each pull point records the highest sequence number it
+ * has delivered, and cursors past it are rejected.
+ * <br/><br/>
+ * Entries from the legacy <code>pull_point_documents</code> collection, which had no sequence numbers, are moved into
+ * their pull points the first time the database is used.
+ */
 public class MongoPullPoint extends MongoSupport implements PullPoint {
 
+    static final String ENTRIES = "pull_point_entries";
+    static final String PULL_POINTS = "pull_points";
+    static final String LEGACY_ENTRIES = "pull_point_documents";
+    private static final String COUNTERS = "counters";
+
     private final static String DOC_ID = "documentId";
     private final static String LOCATION_ID = "locationId";
+    private final static String SEQUENCE = "sequence";
+    private final static String CREATED_AT = "createdAt";
+    //on a pull point, the highest sequence number delivered; on an entry, whether it has been delivered
+    private final static String DELIVERED = "delivered";
+
+    private static final Set<String> indexedDatabases = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+    private final MongoDatabase mongoDb;
     private final String locationId;
 
     MongoPullPoint(MongoDatabase mongoDb, String locationId) {
-        super(mongoDb, "pull_point_documents");
+        super(mongoDb, ENTRIES);
+        this.mongoDb = mongoDb;
         this.locationId = locationId;
     }
 
+    /**
+     * Create the indexes of the entries collection and move any legacy entries, once per database
+     */
+    static void ensureIndexes(MongoDatabase mongoDb, long ttlSeconds) {
+        String key = mongoDb.getName() + ":" + ttlSeconds;
+        if (indexedDatabases.contains(key)) {
+            return;
+        }
+
+        MongoCollection<Document> entries = mongoDb.getCollection(ENTRIES);
+        entries.createIndex(Indexes.ascending(LOCATION_ID, SEQUENCE), new IndexOptions().unique(true));
+        IndexOptions ttl = new IndexOptions().expireAfter(ttlSeconds, TimeUnit.SECONDS);
+        try {
+            entries.createIndex(Indexes.ascending(CREATED_AT), ttl);
+        } catch (MongoCommandException ex) {
+            //the TTL was changed, so the index has to be rebuilt
+            entries.dropIndex(Indexes.ascending(CREATED_AT));
+            entries.createIndex(Indexes.ascending(CREATED_AT), ttl);
+        }
+        migrateLegacyEntries(mongoDb);
+        indexedDatabases.add(key);
+    }
+
+    /**
+     * Move the entries of the legacy collection into the pull points of their locations, and drop it.
+     * <br/><br/>
+     * Each entry is claimed by deleting it before it's registered, so instances migrating at the same time don't
+     * register an entry twice. An entry is lost if the instance stops between the two steps.
+     *
+     * @return the number of entries moved
+     */
+    static int migrateLegacyEntries(MongoDatabase mongoDb) {
+        MongoCollection<Document> legacy = mongoDb.getCollection(LEGACY_ENTRIES);
+        int migrated = 0;
+        Document entry;
+        while ((entry = legacy.findOneAndDelete(new Document())) != null) {
+            String locationId = entry.getString(LOCATION_ID);
+            new MongoPullPoint(mongoDb, locationId).create();
+            insert(mongoDb, Collections.singletonList(newEntry(locationId, entry.getString(DOC_ID))));
+            migrated++;
+        }
+        if (migrated > 0) {
+            legacy.drop();
+        }
+        return migrated;
+    }
+
+    static Document newEntry(String locationId, String documentId) {
+        return new Document(LOCATION_ID, locationId).append(DOC_ID, documentId);
+    }
+
+    /**
+     * Assign sequence numbers to new entries and insert them with a single bulk write
+     */
+    static void insert(MongoDatabase mongoDb, List<Document> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        insert(mongoDb, entries, reserveSequences(mongoDb, entries.size()));
+    }
+
+    /**
+     * Reserve a block of sequence numbers. The $inc is atomic, so each writer gets its own block.
+     *
+     * @return the first sequence number of the block
+     */
+    static long reserveSequences(MongoDatabase mongoDb, int count) {
+        Document counter = mongoDb.getCollection(COUNTERS).findOneAndUpdate(
+                Filters.eq(ID, ENTRIES),
+                Updates.inc(SEQUENCE, (long) count),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+        );
+        return ((Number) counter.get(SEQUENCE)).longValue() - count + 1;
+    }
+
+    static void insert(MongoDatabase mongoDb, List<Document> entries, long firstSequence) {
+        long sequence = firstSequence;
+        Date now = new Date();
+        for (Document entry : entries) {
+            entry.append(SEQUENCE, sequence++).append(CREATED_AT, now).append(DELIVERED, false);
+        }
+        mongoDb.getCollection(ENTRIES).insertMany(entries, new InsertManyOptions().ordered(true));
+    }
+
+    /**
+     * @return the IDs of the pull points that have been created
+     */
+    static List<String> findLocationIds(MongoDatabase mongoDb) {
+        List<String> ids = new ArrayList<>();
+        for (Document doc : mongoDb.getCollection(PULL_POINTS).find().projection(new Document(ID, 1))) {
+            ids.add(doc.getString(ID));
+        }
+        return ids;
+    }
+
+    @Override
+    public String getLocationId() {
+        return locationId;
+    }
+
+    @Override
+    public boolean exists() {
+        return getCollection(PULL_POINTS).find(Filters.eq(ID, locationId)).first() != null;
+    }
+
+    @Override
+    public void create() {
+        getCollection(PULL_POINTS).updateOne(
+                Filters.eq(ID, locationId),
+                Updates.combine(
+                        Updates.setOnInsert(CREATED_AT, new Date()), Updates.setOnInsert(DELIVERED, 0L)
+                ),
+                new UpdateOptions().upsert(true)
+        );
+    }
+
+    @Override
+    public void destroy() {
+        getCollection(PULL_POINTS).deleteOne(Filters.eq(ID, locationId));
+        getCollection().deleteMany(Filters.eq(LOCATION_ID, locationId));
+    }
+
     @Override
     public List<String> getDocumentIds() {
         List<String> ids = new ArrayList<>();
-        for (Document doc : getCollection().find(Filters.eq(LOCATION_ID, locationId))) {
+        for (Document doc : getCollection().find(Filters.eq(LOCATION_ID, locationId)).sort(Sorts.ascending(SEQUENCE))) {
             ids.add(doc.getString(DOC_ID));
         }
         return ids;
@@ -32,8 +195,57 @@ public class MongoPullPoint extends MongoSupport implements PullPoint {
 
     @Override
     public void registerDocument(String documentId) {
-        getCollection().insertOne(new Document("_id", UUID.randomUUID())
-            .append(DOC_ID, documentId)
-            .append(LOCATION_ID, locationId));
+        registerDocuments(Collections.singletonList(documentId));
+    }
+
+    @Override
+    public void registerDocuments(List<String> documentIds) {
+        List<Document> entries = new ArrayList<>();
+        for (String documentId : documentIds) {
+            entries.add(newEntry(locationId, documentId));
+        }
+        insert(mongoDb, entries);
+    }
+
+    @Override
+    public List<PullPointEntry> getMessages(Long cursor, int maxMessages) {
+        if (cursor != null) {
+            acknowledge(cursor);
+        }
+
+        //every entry left is unacknowledged, including any that landed behind the cursor
+        List<PullPointEntry> messages = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>();
+        for (Document doc : getCollection().find(Filters.eq(LOCATION_ID, locationId)).sort(Sorts.ascending(SEQUENCE)).limit(maxMessages)) {
+            long sequence = ((Number) doc.get(SEQUENCE)).longValue();
+            messages.add(new PullPointEntry(sequence, doc.getString(DOC_ID)));
+            sequences.add(sequence);
+        }
+        if (!messages.isEmpty()) {
+            //only the entries read are marked, as an entry that landed since may be between them (the range just
+            //bounds the index scan)
+            long last = sequences.get(sequences.size() - 1);
+            getCollection().updateMany(Filters.and(
+                    Filters.eq(LOCATION_ID, locationId), Filters.gte(SEQUENCE, sequences.get(0)), Filters.lte(SEQUENCE, last),
+                    Filters.in(SEQUENCE, sequences)
+            ), Updates.set(DELIVERED, true));
+            getCollection(PULL_POINTS).updateOne(Filters.eq(ID, locationId), Updates.max(DELIVERED, last));
+        }
+        return messages;
+    }
+
+    @Override
+    public void acknowledge(long sequence) {
+        Document pullPoint = getCollection(PULL_POINTS).find(
+                Filters.and(Filters.eq(ID, locationId), Filters.gte(DELIVERED, sequence))
+        ).first();
+        if (pullPoint == null) {
+            throw new IllegalArgumentException("Cursor " + sequence + " is past the last message delivered by pull point " + locationId);
+        }
+        //only entries that have been delivered are acknowledged, so neither a bad cursor nor an entry that landed
+        //behind the cursor drops unread entries
+        getCollection().deleteMany(Filters.and(
+                Filters.eq(LOCATION_ID, locationId), Filters.lte(SEQUENCE, sequence), Filters.eq(DELIVERED, true)
+        ));
     }
 }
@@ -2,9 +2,55 @@ package org.openhim.mediator.dsub.pull;
 
 import java.util.List;
 
+/**
+ * The documents registered for a location, kept until the location's consumer acknowledges them or they expire.
+ * Each entry has a sequence number, which grows with each document registered, and is used as the consumer's cursor.
+ */
 public interface PullPoint {
 
+    String getLocationId();
+
+    /**
+     * @return true if the pull point has been created (and not destroyed)
+     */
+    boolean exists();
+
+    /**
+     * Create the pull point, so that new documents are registered for it. Creating an existing pull point keeps its
+     * entries.
+     */
+    void create();
+
+    /**
+     * Remove the pull point and its entries
+     */
+    void destroy();
+
+    /**
+     * @return the IDs of the unacknowledged documents, oldest first
+     */
     List<String> getDocumentIds();
 
     void registerDocument(String documentId);
+
+    /**
+     * Register several documents with a single bulk insert
+     */
+    void registerDocuments(List<String> documentIds);
+
+    /**
+     * @param cursor the sequence number of the last entry the consumer processed, or null to resume from the last
+     *               acknowledged entry. The delivered entries up to the cursor are acknowledged.
+     * @return at most maxMessages unacknowledged entries, oldest first. That includes any entry that was stored after
+     *         the cursor was delivered, but has a lower sequence number.
+     * @throws IllegalArgumentException if the cursor is past the last entry delivered
+     */
+    List<PullPointEntry> getMessages(Long cursor, int maxMessages);
+
+    /**
+     * Acknowledge the entries up to and including a sequence number, removing them from the pull point
+     *
+     * @throws IllegalArgumentException if the sequence number is past the last entry delivered
+     */
+    void acknowledge(long sequence);
 }
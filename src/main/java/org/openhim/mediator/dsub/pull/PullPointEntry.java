@@ -0,0 +1,20 @@
+package org.openhim.mediator.dsub.pull;
+
+public class PullPointEntry {
+
+    private final long sequence;
+    private final String documentId;
+
+    public PullPointEntry(long sequence, String documentId) {
+        this.sequence = sequence;
+        this.documentId = documentId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+}
@@ -1,16 +1,51 @@
 package org.openhim.mediator.dsub.pull;
 
 import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class PullPointFactory {
 
+    public static final long DEFAULT_TTL_SECONDS = 7 * 24 * 60 * 60;
+
     private final MongoDatabase mongoDb;
 
     public PullPointFactory(MongoDatabase mongoDb) {
+        this(mongoDb, DEFAULT_TTL_SECONDS);
+    }
+
+    /**
+     * @param ttlSeconds how long entries are kept if they aren't acknowledged
+     */
+    public PullPointFactory(MongoDatabase mongoDb, long ttlSeconds) {
         this.mongoDb = mongoDb;
+        MongoPullPoint.ensureIndexes(mongoDb, ttlSeconds);
     }
 
     public PullPoint get(String locationId) {
         return new MongoPullPoint(mongoDb, locationId);
     }
+
+    /**
+     * Register a document for a location's pull point, or for every pull point if the location is null, with a
+     * single bulk insert
+     *
+     * @return the number of pull points the document was registered for
+     */
+    public int registerDocument(String documentId, String locationId) {
+        List<Document> entries = new ArrayList<>();
+        if (locationId != null) {
+            if (get(locationId).exists()) {
+                entries.add(MongoPullPoint.newEntry(locationId, documentId));
+            }
+        } else {
+            for (String pullPoint : MongoPullPoint.findLocationIds(mongoDb)) {
+                entries.add(MongoPullPoint.newEntry(pullPoint, documentId));
+            }
+        }
+        MongoPullPoint.insert(mongoDb, entries);
+        return entries.size();
+    }
 }
@@ -0,0 +1,103 @@
+package org.openhim.mediator.dsub.pull;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import javax.xml.namespace.QName;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The SOAP responses to the pull point requests.
+ * <br/><br/>
+ * The pull point of a request is given by its <code>dsub:locationId</code> attribute, and the resume cursor of a
+ * GetMessages request by its <code>dsub:cursor</code> attribute (with the <code>dsub</code> prefix bound to
+ * {@link #NS}). A GetMessagesResponse has the cursor to send with the next request.
+ */
+public final class PullPointResponses {
+
+    public static final String NS = "urn:openhim:mediator:xds:dsub";
+    public static final QName LOCATION_ID = new QName(NS, "locationId");
+    public static final QName CURSOR = new QName(NS, "cursor");
+
+    private static final String ENVELOPE =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" " +
+            "xmlns:a=\"http://www.w3.org/2005/08/addressing\" " +
+            "xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\" " +
+            "xmlns:dsub=\"" + NS + "\" " +
+            "xmlns:lcm=\"urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0\" " +
+            "xmlns:rim=\"urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0\">" +
+            "<s:Header>" +
+            "<a:Action>%s</a:Action>" +
+            "<a:MessageID>urn:uuid:%s</a:MessageID>" +
+            "</s:Header>" +
+            "<s:Body>%s</s:Body>" +
+            "</s:Envelope>";
+
+    private static final String NOTIFICATION_MESSAGE =
+            "<wsnt:NotificationMessage>" +
+            "<wsnt:Topic Dialect=\"http://docs.oasis-open.org/wsn/t1/TopicExpression/Simple\">" +
+            "ihe:MinimalDocumentEntry" +
+            "</wsnt:Topic>" +
+            "<wsnt:ProducerReference>" +
+            "<a:Address>%s</a:Address>" +
+            "</wsnt:ProducerReference>" +
+            "<wsnt:Message>" +
+            "<lcm:SubmitObjectsRequest>" +
+            "<rim:RegistryObjectList>" +
+            "<rim:ObjectRef id=\"%s\"/>" +
+            "</rim:RegistryObjectList>" +
+            "</lcm:SubmitObjectsRequest>" +
+            "</wsnt:Message>" +
+            "</wsnt:NotificationMessage>";
+
+    public static String createPullPointResponse(String brokerAddress, String locationId) {
+        String body = "<wsnt:CreatePullPointResponse dsub:locationId=\"" + escape(locationId) + "\">" +
+                "<wsnt:PullPoint>" +
+                "<a:Address>" + escape(brokerAddress) + "</a:Address>" +
+                "</wsnt:PullPoint>" +
+                "</wsnt:CreatePullPointResponse>";
+        return envelope("http://docs.oasis-open.org/wsn/bw-2/CreatePullPoint/CreatePullPointResponse", body);
+    }
+
+    /**
+     * @param cursor the cursor the request resumed from. The response's cursor is the highest of it and the messages'
+     *               sequence numbers, as a message that landed behind the cursor can be delivered after it.
+     */
+    public static String getMessagesResponse(String brokerAddress, List<PullPointEntry> messages, long cursor) {
+        StringBuilder body = new StringBuilder();
+        for (PullPointEntry message : messages) {
+            body.append(String.format(NOTIFICATION_MESSAGE, escape(brokerAddress), escape(message.getDocumentId())));
+            cursor = Math.max(cursor, message.getSequence());
+        }
+        body.insert(0, "<wsnt:GetMessagesResponse dsub:cursor=\"" + cursor + "\">");
+        body.append("</wsnt:GetMessagesResponse>");
+        return envelope("http://docs.oasis-open.org/wsn/bw-2/PullPoint/GetMessagesResponse", body.toString());
+    }
+
+    public static String destroyPullPointResponse() {
+        return envelope("http://docs.oasis-open.org/wsn/bw-2/PullPoint/DestroyPullPointResponse", "<wsnt:DestroyPullPointResponse/>");
+    }
+
+    /**
+     * A SOAP 1.2 fault for a request the client has to correct before sending again
+     */
+    public static String senderFault(String reason) {
+        String body = "<s:Fault>" +
+                "<s:Code><s:Value>s:Sender</s:Value></s:Code>" +
+                "<s:Reason><s:Text xml:lang=\"en\">" + escape(reason) + "</s:Text></s:Reason>" +
+                "</s:Fault>";
+        return envelope("http://www.w3.org/2005/08/addressing/soap/fault", body);
+    }
+
+    private static String envelope(String action, String body) {
+        return String.format(ENVELOPE, action, UUID.randomUUID().toString(), body);
+    }
+
+    private static String escape(String value) {
+        return StringEscapeUtils.escapeXml10(value);
+    }
+
+    private PullPointResponses() {
+    }
+}
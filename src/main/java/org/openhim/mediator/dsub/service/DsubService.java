@@ -1,5 +1,7 @@
 package org.openhim.mediator.dsub.service;
 
+import org.openhim.mediator.dsub.pull.PullPointEntry;
+
 import java.util.Date;
 import java.util.List;
 
@@ -15,5 +17,18 @@ public interface DsubService {
 
     List<String> getDocumentsForPullPoint(String facilityId);
 
+    void createPullPoint(String locationId);
+
+    /**
+     * @return false if the pull point doesn't exist
+     */
+    boolean destroyPullPoint(String locationId);
+
+    /**
+     * @return the next messages after the cursor, or null if the pull point doesn't exist
+     * @throws IllegalArgumentException if the cursor is past the last message delivered
+     */
+    List<PullPointEntry> getMessagesForPullPoint(String locationId, Long cursor, int maxMessages);
+
     Boolean subscriptionExists(String url, String facility);
 }
@@ -2,6 +2,7 @@ package org.openhim.mediator.dsub.service;
 
 import akka.event.LoggingAdapter;
 import org.openhim.mediator.dsub.pull.PullPoint;
+import org.openhim.mediator.dsub.pull.PullPointEntry;
 import org.openhim.mediator.dsub.pull.PullPointFactory;
 import org.openhim.mediator.dsub.subscription.Subscription;
 import org.openhim.mediator.dsub.subscription.SubscriptionNotifier;
@@ -58,6 +59,9 @@ public class DsubServiceImpl implements DsubService {
             log.info("URL: {}", sub.getUrl());
             subscriptionNotifier.notifySubscription(sub, docId);
         }
+
+        int pullPoints = pullPointFactory.registerDocument(docId, facilityId);
+        log.info("Registered document for {} pull points", pullPoints);
     }
 
     @Override
@@ -72,6 +76,32 @@ public class DsubServiceImpl implements DsubService {
         return pullPoint.getDocumentIds();
     }
 
+    @Override
+    public void createPullPoint(String locationId) {
+        log.info("Request to create pull point for: " + locationId);
+        pullPointFactory.get(locationId).create();
+    }
+
+    @Override
+    public boolean destroyPullPoint(String locationId) {
+        log.info("Request to destroy pull point for: " + locationId);
+        PullPoint pullPoint = pullPointFactory.get(locationId);
+        if (!pullPoint.exists()) {
+            return false;
+        }
+        pullPoint.destroy();
+        return true;
+    }
+
+    @Override
+    public List<PullPointEntry> getMessagesForPullPoint(String locationId, Long cursor, int maxMessages) {
+        PullPoint pullPoint = pullPointFactory.get(locationId);
+        if (!pullPoint.exists()) {
+            return null;
+        }
+        return pullPoint.getMessages(cursor, maxMessages);
+    }
+
     @Override
     public Boolean subscriptionExists(String url, String facility) {
         Boolean subcriptionFound = false;
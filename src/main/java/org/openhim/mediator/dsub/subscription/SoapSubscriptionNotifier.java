@@ -1,5 +1,7 @@
 package org.openhim.mediator.dsub.subscription;
 
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.TlsContexts;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.messages.ITI53NotifyMessage;
 import org.slf4j.Logger;
@@ -15,13 +17,18 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 
+import javax.net.ssl.HttpsURLConnection;
+
 public class SoapSubscriptionNotifier implements SubscriptionNotifier {
 
+    private final SharedResources resources;
+
     private MediatorConfig config;
 
     private final LoggingAdapter logA;
 
-    public SoapSubscriptionNotifier(MediatorConfig config, LoggingAdapter logA) {
+    public SoapSubscriptionNotifier(SharedResources resources, MediatorConfig config, LoggingAdapter logA) {
+        this.resources = resources;
         this.config = config;
         this.logA = logA;
     }
@@ -43,6 +50,10 @@ public class SoapSubscriptionNotifier implements SubscriptionNotifier {
             URL myurl = new URL(url);
 
             con = (HttpURLConnection) myurl.openConnection();
+            if (con instanceof HttpsURLConnection && TlsContexts.isConfigured(config, TlsContexts.DSUB)) {
+                //notifications to a subscriber resume the TLS session of the previous one
+                ((HttpsURLConnection) con).setSSLSocketFactory(TlsContexts.socketFactory(resources, config, TlsContexts.DSUB));
+            }
 
             con.setDoOutput(true);
             con.setRequestMethod("POST");
@@ -70,7 +81,9 @@ public class SoapSubscriptionNotifier implements SubscriptionNotifier {
         } catch (IOException exception) {
             logA.error(exception, exception.getMessage());
         } finally {
-            con.disconnect();
+            if (con != null) {
+                con.disconnect();
+            }
         }
     }
 }
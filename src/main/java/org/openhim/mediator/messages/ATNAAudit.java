@@ -6,22 +6,26 @@
 
 package org.openhim.mediator.messages;
 
+import org.openhim.mediator.Priority;
 import org.openhim.mediator.datatypes.Identifier;
 
 import java.util.List;
 
-public class ATNAAudit {
+public class ATNAAudit implements Priority.Carrier {
     public enum TYPE {
-        PIX_REQUEST, PIX_IDENTITY_FEED, REGISTRY_QUERY_RECEIVED, REGISTRY_QUERY_ENRICHED, PROVIDE_AND_REGISTER_RECEIVED, PROVIDE_AND_REGISTER_ENRICHED
+        PIX_REQUEST, PIXM_QUERY, PIX_IDENTITY_FEED, REGISTRY_QUERY_RECEIVED, REGISTRY_QUERY_ENRICHED, PROVIDE_AND_REGISTER_RECEIVED, PROVIDE_AND_REGISTER_ENRICHED,
+        REGISTER_DOCUMENT_SET_RECEIVED, REGISTER_DOCUMENT_SET_ENRICHED
     }
 
     private final TYPE type;
     private String message;
     private List<Identifier> participantIdentifiers;
     private String uniqueId;
+    private List<String> documentUniqueIds;
     private boolean outcome;
     private String homeCommunityId;
     private String sourceIP;
+    private Priority priority = Priority.NORMAL;
 
 
     public ATNAAudit(TYPE type) {
@@ -57,6 +61,17 @@ public class ATNAAudit {
         this.uniqueId = uniqueId;
     }
 
+    /**
+     * @return the unique IDs of the document entries in a submission, if they are known
+     */
+    public List<String> getDocumentUniqueIds() {
+        return documentUniqueIds;
+    }
+
+    public void setDocumentUniqueIds(List<String> documentUniqueIds) {
+        this.documentUniqueIds = documentUniqueIds;
+    }
+
     public boolean getOutcome() {
         return outcome;
     }
@@ -80,4 +95,13 @@ public class ATNAAudit {
     public void setSourceIP(String sourceIP) {
         this.sourceIP = sourceIP;
     }
+
+    @Override
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
 }
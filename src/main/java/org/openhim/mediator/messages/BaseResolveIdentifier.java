@@ -7,18 +7,27 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.Priority;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 
-public abstract class BaseResolveIdentifier extends MediatorRequestMessage {
+public abstract class BaseResolveIdentifier extends MediatorRequestMessage implements Deadline.Carrier, Priority.Carrier {
     private final Identifier identifier;
     private final AssigningAuthority targetAssigningAuthority;
+    private final Deadline deadline;
+    private Priority priority = Priority.NORMAL;
 
     public BaseResolveIdentifier(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority) {
+        this(requestHandler, respondTo, orchestration, correlationId, identifier, targetAssigningAuthority, Deadline.NONE);
+    }
+
+    public BaseResolveIdentifier(ActorRef requestHandler, ActorRef respondTo, String orchestration, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority, Deadline deadline) {
         super(requestHandler, respondTo, orchestration, correlationId);
         this.identifier = identifier;
         this.targetAssigningAuthority = targetAssigningAuthority;
+        this.deadline = deadline;
     }
 
     public Identifier getIdentifier() {
@@ -29,6 +38,20 @@ public abstract class BaseResolveIdentifier extends MediatorRequestMessage {
         return targetAssigningAuthority;
     }
 
+    @Override
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
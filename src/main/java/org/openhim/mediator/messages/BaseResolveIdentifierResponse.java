@@ -12,13 +12,29 @@ import org.openhim.mediator.engine.messages.MediatorResponseMessage;
 
 public class BaseResolveIdentifierResponse extends MediatorResponseMessage {
     private final Identifier identifier;
+    private final String error;
 
     public BaseResolveIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier) {
+        this(originalRequest, identifier, null);
+    }
+
+    /**
+     * @param error set if the identifier couldn't be looked up, e.g. because the service is unavailable
+     */
+    public BaseResolveIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier, String error) {
         super(originalRequest);
         this.identifier = identifier;
+        this.error = error;
     }
 
     public Identifier getIdentifier() {
         return identifier;
     }
+
+    /**
+     * @return the reason the lookup failed, or null if the lookup was made (whether or not the identifier was found)
+     */
+    public String getError() {
+        return error;
+    }
 }
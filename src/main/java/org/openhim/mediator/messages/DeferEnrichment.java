@@ -0,0 +1,89 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import org.openhim.mediator.datatypes.Identifier;
+
+import java.util.List;
+
+/**
+ * Healthcare worker and facility identifiers that couldn't be resolved while a Provide and Register request
+ * was being processed, to be resolved and applied to the registered metadata later.
+ */
+public class DeferEnrichment {
+
+    public static class PendingIdentifier {
+        private final String documentEntryId;
+        private final String documentUniqueId;
+        private final int authorIndex;
+        private final boolean facility;
+        private final Identifier localId;
+        private final String localLocationName;
+
+        public PendingIdentifier(String documentEntryId, String documentUniqueId, int authorIndex, boolean facility,
+                                 Identifier localId, String localLocationName) {
+            this.documentEntryId = documentEntryId;
+            this.documentUniqueId = documentUniqueId;
+            this.authorIndex = authorIndex;
+            this.facility = facility;
+            this.localId = localId;
+            this.localLocationName = localLocationName;
+        }
+
+        /**
+         * @return the id of the document entry in the request, which may be a symbolic id
+         */
+        public String getDocumentEntryId() {
+            return documentEntryId;
+        }
+
+        public String getDocumentUniqueId() {
+            return documentUniqueId;
+        }
+
+        /**
+         * @return the position of the author classification on the document entry
+         */
+        public int getAuthorIndex() {
+            return authorIndex;
+        }
+
+        /**
+         * @return true if this is an authorInstitution identifier, false if it is an authorPerson identifier
+         */
+        public boolean isFacility() {
+            return facility;
+        }
+
+        public Identifier getLocalId() {
+            return localId;
+        }
+
+        public String getLocalLocationName() {
+            return localLocationName;
+        }
+    }
+
+    private final String metadataXML;
+    private final List<PendingIdentifier> pending;
+
+    public DeferEnrichment(String metadataXML, List<PendingIdentifier> pending) {
+        this.metadataXML = metadataXML;
+        this.pending = pending;
+    }
+
+    /**
+     * @return a SubmitObjectsRequest containing the submission set and the affected document entries, as registered
+     */
+    public String getMetadataXML() {
+        return metadataXML;
+    }
+
+    public List<PendingIdentifier> getPending() {
+        return pending;
+    }
+}
@@ -10,21 +10,49 @@ import akka.actor.ActorRef;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 
+import java.util.Collections;
+import java.util.Map;
+
 public class EnrichRegistryStoredQuery extends MediatorRequestMessage {
     private final String originalRequest;
     private final Identifier patientID;
+    private final Map<Identifier, Identifier> patientIDs;
 
+    /**
+     * Replace every patient identifier in the query with patientID
+     */
     public EnrichRegistryStoredQuery(ActorRef requestHandler, ActorRef respondTo, String originalRequest, Identifier patientID) {
         super(requestHandler, respondTo, "enrich-registry-stored-query", null);
         this.originalRequest = originalRequest;
         this.patientID = patientID;
+        this.patientIDs = Collections.emptyMap();
+    }
+
+    /**
+     * Replace each patient identifier in the query with its entry in patientIDs
+     */
+    public EnrichRegistryStoredQuery(ActorRef requestHandler, ActorRef respondTo, String originalRequest, Map<Identifier, Identifier> patientIDs) {
+        super(requestHandler, respondTo, "enrich-registry-stored-query", null);
+        this.originalRequest = originalRequest;
+        this.patientID = null;
+        this.patientIDs = patientIDs;
     }
 
     public String getOriginalRequest() {
         return originalRequest;
     }
 
+    /**
+     * @return the identifier to use for all patient identifiers, or null if patientIDs should be used
+     */
     public Identifier getPatientID() {
         return patientID;
     }
+
+    /**
+     * @return enterprise identifiers keyed by the identifiers in the query
+     */
+    public Map<Identifier, Identifier> getPatientIDs() {
+        return patientIDs;
+    }
 }
@@ -7,12 +7,14 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.Priority;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 
 /**
  * Orchestrate an XDS.b Provider and Register request
  */
-public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<String> {
+public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<String> implements Deadline.Carrier, Priority.Carrier {
     private final String xForwardedFor; //needed for auditing
     private final String messageID; //message id from the SOAP header
 
@@ -20,12 +22,19 @@ public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<
     //the mime handler will place it here, however if not available
     //it will likely need to be retrieved from the XDS.b contents (document element)
     private final String document;
+    private final Deadline deadline;
+    private Priority priority = Priority.NORMAL;
 
     public OrchestrateProvideAndRegisterRequest(ActorRef requestHandler, ActorRef respondTo, String requestObject, String xForwardedFor, String document, String messageID) {
+        this(requestHandler, respondTo, requestObject, xForwardedFor, document, messageID, Deadline.NONE);
+    }
+
+    public OrchestrateProvideAndRegisterRequest(ActorRef requestHandler, ActorRef respondTo, String requestObject, String xForwardedFor, String document, String messageID, Deadline deadline) {
         super(requestHandler, respondTo, requestObject);
         this.xForwardedFor = xForwardedFor;
         this.document = document;
         this.messageID = messageID;
+        this.deadline = deadline;
     }
 
     public String getXForwardedFor() {
@@ -39,4 +48,18 @@ public class OrchestrateProvideAndRegisterRequest extends SimpleMediatorRequest<
     public String getMessageID() {
         return messageID;
     }
+
+    @Override
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
 }
@@ -6,20 +6,54 @@
 
 package org.openhim.mediator.messages;
 
+import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
 
+import java.util.Collections;
+import java.util.List;
+
 public class OrchestrateProvideAndRegisterRequestResponse extends SimpleMediatorResponse<String> {
 
     private String labOrderDocumentId;
+    private List<Identifier> enterprisePatientIds;
+    private DeferEnrichment deferredEnrichment;
 
     public OrchestrateProvideAndRegisterRequestResponse(MediatorRequestMessage originalRequest, String responseObject,
                                                         String labOrderDocumentId) {
+        this(originalRequest, responseObject, labOrderDocumentId, Collections.<Identifier>emptyList());
+    }
+
+    public OrchestrateProvideAndRegisterRequestResponse(MediatorRequestMessage originalRequest, String responseObject,
+                                                        String labOrderDocumentId, List<Identifier> enterprisePatientIds) {
+        this(originalRequest, responseObject, labOrderDocumentId, enterprisePatientIds, null);
+    }
+
+    public OrchestrateProvideAndRegisterRequestResponse(MediatorRequestMessage originalRequest, String responseObject,
+                                                        String labOrderDocumentId, List<Identifier> enterprisePatientIds,
+                                                        DeferEnrichment deferredEnrichment) {
         super(originalRequest, responseObject);
         this.labOrderDocumentId = labOrderDocumentId;
+        this.enterprisePatientIds = enterprisePatientIds;
+        this.deferredEnrichment = deferredEnrichment;
     }
 
     public String getLabOrderDocumentId() {
         return labOrderDocumentId;
     }
+
+    /**
+     * @return the enterprise identifiers of the patients that the documents were enriched with
+     */
+    public List<Identifier> getEnterprisePatientIds() {
+        return enterprisePatientIds;
+    }
+
+    /**
+     * @return the healthcare worker and facility identifiers that still need to be enriched once the documents
+     * have been registered, or null if there are none
+     */
+    public DeferEnrichment getDeferredEnrichment() {
+        return deferredEnrichment;
+    }
 }
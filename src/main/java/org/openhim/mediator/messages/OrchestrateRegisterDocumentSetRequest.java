@@ -0,0 +1,27 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
+
+/**
+ * Orchestrate an XDS.b Register Document Set request (ITI-42).
+ * <br/><br/>
+ * The request object is the SubmitObjectsRequest from the SOAP body. Only the metadata is enriched,
+ * as there is no document payload. The orchestrator responds with an OrchestrateProvideAndRegisterRequestResponse
+ * containing the enriched SubmitObjectsRequest.
+ */
+public class OrchestrateRegisterDocumentSetRequest extends OrchestrateProvideAndRegisterRequest {
+    public OrchestrateRegisterDocumentSetRequest(ActorRef requestHandler, ActorRef respondTo, String requestObject, String xForwardedFor, String messageID) {
+        super(requestHandler, respondTo, requestObject, xForwardedFor, null, messageID);
+    }
+
+    public OrchestrateRegisterDocumentSetRequest(ActorRef requestHandler, ActorRef respondTo, String requestObject, String xForwardedFor, String messageID, Deadline deadline) {
+        super(requestHandler, respondTo, requestObject, xForwardedFor, null, messageID, deadline);
+    }
+}
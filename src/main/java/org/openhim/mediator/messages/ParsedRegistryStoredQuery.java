@@ -8,17 +8,34 @@ package org.openhim.mediator.messages;
 
 import org.openhim.mediator.datatypes.Identifier;
 
+import java.util.Collections;
+import java.util.List;
+
 public class ParsedRegistryStoredQuery {
-    private Identifier patientId;
+    private List<Identifier> patientIds;
     private String messageId;
 
     public ParsedRegistryStoredQuery(Identifier patientId, String messageId) {
-        this.patientId = patientId;
+        this(Collections.singletonList(patientId), messageId);
+    }
+
+    public ParsedRegistryStoredQuery(List<Identifier> patientIds, String messageId) {
+        this.patientIds = patientIds;
         this.messageId = messageId;
     }
 
+    /**
+     * @return the first patient identifier in the query
+     */
     public Identifier getPatientId() {
-        return patientId;
+        return patientIds.get(0);
+    }
+
+    /**
+     * @return the distinct patient identifiers in the query
+     */
+    public List<Identifier> getPatientIds() {
+        return patientIds;
     }
 
     public String getMessageId() {
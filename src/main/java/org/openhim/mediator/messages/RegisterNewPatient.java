@@ -7,6 +7,8 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.Priority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 
@@ -15,7 +17,7 @@ import java.util.List;
 /**
  * Create a new patient demographic record.
  */
-public class RegisterNewPatient extends MediatorRequestMessage {
+public class RegisterNewPatient extends MediatorRequestMessage implements Deadline.Carrier, Priority.Carrier {
     private final List<Identifier> patientIdentifiers;
     private final String givenName;
     private final String familyName;
@@ -23,8 +25,14 @@ public class RegisterNewPatient extends MediatorRequestMessage {
     private final String birthDate;
     private final String telecom;
     private final String languageCommunicationCode;
+    private final Deadline deadline;
+    private Priority priority = Priority.NORMAL;
 
     public RegisterNewPatient(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers, String givenName, String familyName, String gender, String birthDate, String telecom, String languageCommunicationCode) {
+        this(requestHandler, respondTo, patientIdentifiers, givenName, familyName, gender, birthDate, telecom, languageCommunicationCode, Deadline.NONE);
+    }
+
+    public RegisterNewPatient(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers, String givenName, String familyName, String gender, String birthDate, String telecom, String languageCommunicationCode, Deadline deadline) {
         super(requestHandler, respondTo);
         this.patientIdentifiers = patientIdentifiers;
         this.givenName = givenName;
@@ -33,6 +41,7 @@ public class RegisterNewPatient extends MediatorRequestMessage {
         this.birthDate = birthDate;
         this.telecom = telecom;
         this.languageCommunicationCode = languageCommunicationCode;
+        this.deadline = deadline;
     }
 
     public List<Identifier> getPatientIdentifiers() {
@@ -62,4 +71,18 @@ public class RegisterNewPatient extends MediatorRequestMessage {
     public String getLanguageCommunicationCode() {
         return languageCommunicationCode;
     }
+
+    @Override
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
 }
@@ -7,6 +7,7 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 
@@ -21,4 +22,8 @@ public class ResolveFacilityIdentifier extends BaseResolveIdentifier {
     public ResolveFacilityIdentifier(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority) {
         super(requestHandler, respondTo, "resolve-facility-identifier", correlationId, identifier, targetAssigningAuthority);
     }
+
+    public ResolveFacilityIdentifier(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority, Deadline deadline) {
+        super(requestHandler, respondTo, "resolve-facility-identifier", correlationId, identifier, targetAssigningAuthority, deadline);
+    }
 }
@@ -13,4 +13,8 @@ public class ResolveFacilityIdentifierResponse extends BaseResolveIdentifierResp
     public ResolveFacilityIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier) {
         super(originalRequest, identifier);
     }
+
+    public ResolveFacilityIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier, String error) {
+        super(originalRequest, identifier, error);
+    }
 }
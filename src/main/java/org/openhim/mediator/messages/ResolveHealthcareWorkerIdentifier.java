@@ -7,6 +7,7 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
@@ -23,4 +24,8 @@ public class ResolveHealthcareWorkerIdentifier extends BaseResolveIdentifier {
     public ResolveHealthcareWorkerIdentifier(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority) {
         super(requestHandler, respondTo, "resolve-healthcare-worker-identifier", correlationId, identifier, targetAssigningAuthority);
     }
+
+    public ResolveHealthcareWorkerIdentifier(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority, Deadline deadline) {
+        super(requestHandler, respondTo, "resolve-healthcare-worker-identifier", correlationId, identifier, targetAssigningAuthority, deadline);
+    }
 }
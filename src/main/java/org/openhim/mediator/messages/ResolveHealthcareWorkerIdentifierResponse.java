@@ -13,4 +13,8 @@ public class ResolveHealthcareWorkerIdentifierResponse extends BaseResolveIdenti
     public ResolveHealthcareWorkerIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier) {
         super(originalRequest, identifier);
     }
+
+    public ResolveHealthcareWorkerIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier, String error) {
+        super(originalRequest, identifier, error);
+    }
 }
@@ -7,6 +7,7 @@
 package org.openhim.mediator.messages;
 
 import akka.actor.ActorRef;
+import org.openhim.mediator.Deadline;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
@@ -22,4 +23,8 @@ public class ResolvePatientIdentifier extends BaseResolveIdentifier {
     public ResolvePatientIdentifier(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority) {
         super(requestHandler, respondTo, "resolve-patient-identifier", correlationId, identifier, targetAssigningAuthority);
     }
+
+    public ResolvePatientIdentifier(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier, AssigningAuthority targetAssigningAuthority, Deadline deadline) {
+        super(requestHandler, respondTo, "resolve-patient-identifier", correlationId, identifier, targetAssigningAuthority, deadline);
+    }
 }
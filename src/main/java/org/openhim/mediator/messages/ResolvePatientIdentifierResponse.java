@@ -13,4 +13,8 @@ public class ResolvePatientIdentifierResponse extends BaseResolveIdentifierRespo
     public ResolvePatientIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier) {
         super(originalRequest, identifier);
     }
+
+    public ResolvePatientIdentifierResponse(MediatorRequestMessage originalRequest, Identifier identifier, String error) {
+        super(originalRequest, identifier, error);
+    }
 }
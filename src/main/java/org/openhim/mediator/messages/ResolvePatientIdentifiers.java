@@ -0,0 +1,47 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.Priority;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lookup several patient identifiers at once, e.g. all the distinct patient identifiers of a submission, so that
+ * backends that support batches can resolve them with a single request.
+ * <br/><br/>
+ * Each of the requests is answered with its own ResolvePatientIdentifierResponse.
+ */
+public class ResolvePatientIdentifiers implements Deadline.Carrier, Priority.Carrier {
+    private final List<ResolvePatientIdentifier> requests;
+
+    public ResolvePatientIdentifiers(List<ResolvePatientIdentifier> requests) {
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("At least one request is required");
+        }
+        this.requests = Collections.unmodifiableList(requests);
+    }
+
+    public List<ResolvePatientIdentifier> getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the deadline of the first request (the requests of a batch belong to the same transaction)
+     */
+    @Override
+    public Deadline getDeadline() {
+        return requests.get(0).getDeadline();
+    }
+
+    @Override
+    public Priority getPriority() {
+        return requests.get(0).getPriority();
+    }
+}
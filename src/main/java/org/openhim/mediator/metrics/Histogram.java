@@ -0,0 +1,112 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram with fixed, log-linear bucket boundaries.
+ * <br/><br/>
+ * Like HdrHistogram, the buckets get wider as values grow (1-2-5 steps per decade), so the relative error
+ * of a percentile is bounded without keeping every sample. Observations are a binary search and an atomic
+ * increment, so the histogram can be shared between actors.
+ * It is rendered as a Prometheus histogram (<code>_bucket</code>, <code>_sum</code> and <code>_count</code> series).
+ */
+public class Histogram implements MetricsRegistry.Sample {
+
+    /**
+     * Latency buckets in seconds, from 1ms to 60s
+     */
+    public static final double[] LATENCY_BUCKETS = {
+            0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1, 2, 5, 10, 20, 60
+    };
+
+    /**
+     * Payload size buckets in bytes, from 1KiB to 64MiB
+     */
+    public static final double[] SIZE_BUCKETS = {
+            1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864
+    };
+
+    private final double[] bounds;
+    //the last bucket is +Inf
+    private final AtomicLongArray counts;
+    private final AtomicLong sumBits = new AtomicLong(Double.doubleToLongBits(0.0));
+
+
+    public Histogram(double[] bounds) {
+        this.bounds = Arrays.copyOf(bounds, bounds.length);
+        Arrays.sort(this.bounds);
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void observe(double value) {
+        int i = Arrays.binarySearch(bounds, value);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        counts.incrementAndGet(i);
+
+        while (true) {
+            long current = sumBits.get();
+            long next = Double.doubleToLongBits(Double.longBitsToDouble(current) + value);
+            if (sumBits.compareAndSet(current, next)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i=0; i<counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double getSum() {
+        return Double.longBitsToDouble(sumBits.get());
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket containing the percentile,
+     * or {@link Double#POSITIVE_INFINITY} if it falls above the largest bucket
+     */
+    public double getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        long seen = 0;
+        for (int i=0; i<bounds.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return bounds[i];
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        String prefix = labels == null || labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i=0; i<bounds.length; i++) {
+            cumulative += counts.get(i);
+            MetricsRegistry.writeLine(out, name + "_bucket", prefix + "le=\"" + bounds[i] + "\"", cumulative);
+        }
+        cumulative += counts.get(bounds.length);
+        MetricsRegistry.writeLine(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        MetricsRegistry.writeLine(out, name + "_sum", labels, getSum());
+        MetricsRegistry.writeLine(out, name + "_count", labels, cumulative);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import akka.dispatch.ThreadPoolExecutorConfigurator;
+import com.typesafe.config.Config;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * A thread-pool-executor for Akka dispatchers that publishes pool saturation metrics.
+ * <br/><br/>
+ * Configure a dispatcher with <code>executor = "org.openhim.mediator.metrics.InstrumentedThreadPoolConfigurator"</code>;
+ * the pool itself is configured with the usual <code>thread-pool-executor</code> section.
+ */
+public class InstrumentedThreadPoolConfigurator extends ExecutorServiceConfigurator {
+
+    private final ThreadPoolExecutorConfigurator delegate;
+
+    public InstrumentedThreadPoolConfigurator(Config config, DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+        delegate = new ThreadPoolExecutorConfigurator(config.getConfig("thread-pool-executor"), prerequisites);
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(final String id, ThreadFactory threadFactory) {
+        final ExecutorServiceFactory factory = delegate.createExecutorServiceFactory(id, threadFactory);
+
+        return new ExecutorServiceFactory() {
+            @Override
+            public ExecutorService createExecutorService() {
+                ExecutorService executor = factory.createExecutorService();
+                if (executor instanceof ThreadPoolExecutor) {
+                    registerMetrics(id, (ThreadPoolExecutor) executor);
+                }
+                return executor;
+            }
+        };
+    }
+
+    /**
+     * Akka recreates the executor when a dispatcher is restarted after being idle,
+     * so the gauges are simply replaced for the new pool.
+     */
+    protected static void registerMetrics(String dispatcher, final ThreadPoolExecutor executor) {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        String labels = MetricsRegistry.labels("dispatcher", dispatcher);
+
+        metrics.gauge("mediator_dispatcher_threads", "Current number of threads in the dispatcher pool", labels,
+                new MetricsRegistry.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return executor.getPoolSize();
+                    }
+                });
+        metrics.gauge("mediator_dispatcher_threads_max", "Core size of the dispatcher pool", labels,
+                new MetricsRegistry.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return executor.getCorePoolSize();
+                    }
+                });
+        metrics.gauge("mediator_dispatcher_active_threads", "Number of threads actively running tasks", labels,
+                new MetricsRegistry.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return executor.getActiveCount();
+                    }
+                });
+        metrics.gauge("mediator_dispatcher_queue_size", "Number of tasks waiting for a thread", labels,
+                new MetricsRegistry.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return executor.getQueue().size();
+                    }
+                });
+        metrics.gauge("mediator_dispatcher_saturation", "Ratio of active threads to the core pool size", labels,
+                new MetricsRegistry.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return (double) executor.getActiveCount() / Math.max(1, executor.getCorePoolSize());
+                    }
+                });
+        metrics.gauge("mediator_dispatcher_completed_tasks", "Number of tasks completed by the dispatcher pool", labels,
+                new MetricsRegistry.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return executor.getCompletedTaskCount();
+                    }
+                });
+    }
+}
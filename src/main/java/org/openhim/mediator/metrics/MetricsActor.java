@@ -0,0 +1,38 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import akka.actor.UntypedActor;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+/**
+ * Serves the mediator's runtime metrics in the Prometheus text format.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>MediatorHTTPRequest - responds with FinishRequest</li>
+ * </ul>
+ */
+public class MetricsActor extends UntypedActor {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    public MetricsActor(MediatorConfig config) {
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            FinishRequest fr = new FinishRequest(MetricsRegistry.getInstance().scrape(), CONTENT_TYPE, HttpStatus.SC_OK);
+            ((MediatorHTTPRequest) msg).getRequestHandler().tell(fr, getSelf());
+        } else {
+            unhandled(msg);
+        }
+    }
+}
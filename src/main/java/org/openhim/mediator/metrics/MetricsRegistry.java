@@ -0,0 +1,211 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide registry of the mediator's runtime metrics.
+ * <br/><br/>
+ * Metrics are grouped into families by name and each series in a family is identified by its labels,
+ * e.g. <code>mediator_dispatcher_queue_size{dispatcher="mediator-dispatchers.xml"}</code>.
+ * The registry renders itself in the Prometheus text exposition format.
+ */
+public class MetricsRegistry {
+
+    public interface Gauge {
+        double getValue();
+    }
+
+    /**
+     * A single series that knows how to write its sample line(s).
+     */
+    public interface Sample {
+        void writeTo(StringBuilder out, String name, String labels);
+    }
+
+    public static class Counter implements Sample {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void increment(long n) {
+            value.addAndGet(n);
+        }
+
+        public long getValue() {
+            return value.get();
+        }
+
+        @Override
+        public void writeTo(StringBuilder out, String name, String labels) {
+            writeLine(out, name, labels, value.get());
+        }
+    }
+
+    private static class GaugeSample implements Sample {
+        private final Gauge gauge;
+
+        GaugeSample(Gauge gauge) {
+            this.gauge = gauge;
+        }
+
+        @Override
+        public void writeTo(StringBuilder out, String name, String labels) {
+            writeLine(out, name, labels, gauge.getValue());
+        }
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentMap<String, Sample> series = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null) {
+            Family newFamily = new Family(name, help, type);
+            family = families.putIfAbsent(name, newFamily);
+            if (family == null) {
+                family = newFamily;
+            }
+        }
+        return family;
+    }
+
+    /**
+     * Get or create a counter
+     */
+    public Counter counter(String name, String help, String labels) {
+        Family family = family(name, help, "counter");
+        Sample sample = family.series.get(labels);
+        if (sample == null) {
+            Counter counter = new Counter();
+            sample = family.series.putIfAbsent(labels, counter);
+            if (sample == null) {
+                return counter;
+            }
+        }
+        return (Counter) sample;
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * Register a gauge. An existing gauge with the same name and labels will be replaced.
+     */
+    public void gauge(String name, String help, String labels, Gauge gauge) {
+        family(name, help, "gauge").series.put(labels, new GaugeSample(gauge));
+    }
+
+    public void gauge(String name, String help, Gauge gauge) {
+        gauge(name, help, "", gauge);
+    }
+
+    /**
+     * Get or create a histogram
+     *
+     * @param buckets the bucket upper bounds, used if the histogram doesn't exist yet
+     */
+    public Histogram histogram(String name, String help, String labels, double[] buckets) {
+        Sample sample = family(name, help, "histogram").series.get(labels);
+        if (sample == null) {
+            sample = register(name, help, "histogram", labels, new Histogram(buckets));
+        }
+        return (Histogram) sample;
+    }
+
+    /**
+     * Register a custom sample type (e.g. a histogram) under a family
+     */
+    public Sample register(String name, String help, String type, String labels, Sample sample) {
+        Family family = family(name, help, type);
+        Sample existing = family.series.putIfAbsent(labels, sample);
+        return existing != null ? existing : sample;
+    }
+
+    /**
+     * @return all registered metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Sample> series : family.series.entrySet()) {
+                series.getValue().writeTo(out, family.name, series.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Count the start of an actor, so that the actor creation rate can be tracked per class
+     */
+    public static void countActorStart(Class<?> actorClass) {
+        instance.counter("mediator_actors_started_total", "Number of actors started", labels("actor", actorClass.getSimpleName())).increment();
+    }
+
+    /**
+     * Build a label string from key/value pairs, e.g. <code>labels("route", "/xdsregistry")</code>
+     */
+    public static String labels(String... keyValues) {
+        StringBuilder res = new StringBuilder();
+        for (int i=0; i+1<keyValues.length; i+=2) {
+            if (res.length() > 0) {
+                res.append(',');
+            }
+            res.append(keyValues[i]).append("=\"").append(escape(keyValues[i+1])).append('"');
+        }
+        return res.toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public static void writeLine(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null && !labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
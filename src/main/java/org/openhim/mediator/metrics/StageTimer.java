@@ -0,0 +1,93 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the latency of the stages of a transaction, e.g. <code>pnr.unmarshal</code> or <code>registry.pix</code>,
+ * into the <code>mediator_stage_duration_seconds</code> histogram, as well as the size of the payloads handled
+ * by each stage into <code>mediator_stage_payload_bytes</code>.
+ * <br/><br/>
+ * An instance tracks the stages of a single transaction and, like the actor that owns it, isn't thread-safe.
+ * The static methods can be used from anywhere.
+ */
+public class StageTimer {
+    public static final String DURATION_METRIC = "mediator_stage_duration_seconds";
+    public static final String PAYLOAD_METRIC = "mediator_stage_payload_bytes";
+
+    private final String prefix;
+    private final long created = System.nanoTime();
+    private final Map<String, Long> started = new HashMap<>();
+
+
+    /**
+     * @param prefix prepended to all stage names, e.g. "registry"
+     */
+    public StageTimer(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public void start(String stage) {
+        started.put(stage, System.nanoTime());
+    }
+
+    /**
+     * Stop and record a stage
+     *
+     * @return the stage duration in milliseconds or -1 if the stage wasn't started
+     */
+    public long stop(String stage) {
+        Long start = started.remove(stage);
+        if (start == null) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(record(prefix + "." + stage, start));
+    }
+
+    /**
+     * Record the time since this timer was created as the <code>total</code> stage
+     */
+    public void stopTotal() {
+        record(prefix + ".total", created);
+    }
+
+    public void payload(String stage, String kind, String payload) {
+        recordPayload(prefix + "." + stage, kind, payload);
+    }
+
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    public static long record(String stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        histogram(DURATION_METRIC, "Latency of each stage of a transaction", Histogram.LATENCY_BUCKETS,
+                MetricsRegistry.labels("stage", stage)).observe(elapsed / 1e9);
+        return elapsed;
+    }
+
+    /**
+     * The size is approximated by the payload's character count, which is exact for the ASCII encoded XML and HL7
+     * that makes up most payloads, and avoids encoding the payload just to measure it.
+     *
+     * @param kind "request" or "response"
+     */
+    public static void recordPayload(String stage, String kind, String payload) {
+        if (payload == null) {
+            return;
+        }
+        histogram(PAYLOAD_METRIC, "Size of the payloads handled by each stage of a transaction", Histogram.SIZE_BUCKETS,
+                MetricsRegistry.labels("stage", stage, "kind", kind)).observe(payload.length());
+    }
+
+    private static Histogram histogram(String name, String help, double[] buckets, String labels) {
+        return MetricsRegistry.getInstance().histogram(name, help, labels, buckets);
+    }
+}
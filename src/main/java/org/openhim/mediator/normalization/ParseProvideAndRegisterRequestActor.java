@@ -7,32 +7,59 @@
 package org.openhim.mediator.normalization;
 
 import akka.actor.ActorRef;
+import akka.actor.Props;
 import akka.actor.UntypedActor;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.RouterPoolActor;
+import org.openhim.mediator.Util;
 import org.openhim.mediator.engine.CoreResponse;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+import org.openhim.mediator.metrics.StageTimer;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Parses XDS.b Provide and Register Document Set transactions.
+ * Parses XDS.b Provide and Register Document Set transactions, as well as the metadata of
+ * Register Document Set transactions (ITI-42).
  * <br/><br/>
  * Messages supported:
  * <ul>
  *     <li>SimpleMediatorRequest<String> - responds with SimpleMediatorResponse<ProvideAndRegisterDocumentSetRequestType></li>
+ *     <li>ParseRegisterDocumentSet - responds with SimpleMediatorResponse<SubmitObjectsRequest></li>
  * </ul>
  */
 public class ParseProvideAndRegisterRequestActor extends UntypedActor {
 
+    /**
+     * Parse the SubmitObjectsRequest of a Register Document Set request
+     */
+    public static class ParseRegisterDocumentSet extends SimpleMediatorRequest<String> {
+        public ParseRegisterDocumentSet(ActorRef requestHandler, ActorRef respondTo, String requestObject) {
+            super(requestHandler, respondTo, requestObject);
+        }
+    }
+
+    /**
+     * Header on the parse orchestration's response holding the time spent unmarshalling the request, in milliseconds
+     */
+    public static final String STAGE_DURATION_HEADER = "X-Mediator-Stage-Duration-Ms";
+    public static final String LCM_PACKAGE = "oasis.names.tc.ebxml_regrep.xsd.lcm._3";
+    public static final String XDS_B_PACKAGE = "ihe.iti.xds_b._2007";
+
     private MediatorConfig config;
 
     public ParseProvideAndRegisterRequestActor() {
@@ -44,32 +71,45 @@ public class ParseProvideAndRegisterRequestActor extends UntypedActor {
 
 
     public static ProvideAndRegisterDocumentSetRequestType parseRequest(String document) throws JAXBException {
-        JAXBContext jaxbContext = JAXBContext.newInstance("ihe.iti.xds_b._2007");
-        Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+        Unmarshaller unmarshaller = Util.getJAXBContext(XDS_B_PACKAGE).createUnmarshaller();
         JAXBElement result = (JAXBElement)(unmarshaller.unmarshal(IOUtils.toInputStream(document)));
         return (ProvideAndRegisterDocumentSetRequestType) result.getValue();
     }
 
+    public static SubmitObjectsRequest parseRegisterRequest(String document) throws JAXBException {
+        Unmarshaller unmarshaller = Util.getJAXBContext(LCM_PACKAGE).createUnmarshaller();
+        Object result = unmarshaller.unmarshal(IOUtils.toInputStream(document));
+        if (result instanceof JAXBElement) {
+            result = ((JAXBElement) result).getValue();
+        }
+        return (SubmitObjectsRequest) result;
+    }
+
 
     private void processMsg(SimpleMediatorRequest<String> msg) {
         ActorRef requestHandler = msg.getRequestHandler();
         
         CoreResponse.Orchestration orch = null;
-        boolean sendParseOrchestration = (config==null || config.getProperty("pnr.sendParseOrchestration")==null ||
-                "true".equalsIgnoreCase(config.getProperty("pnr.sendOrchestration")));
+        boolean sendParseOrchestration = config==null || MediatorSettings.get(config).isSendParseOrchestration();
 
         try {
             if (sendParseOrchestration) {
                 orch = new CoreResponse.Orchestration();
                 orch.setName("Parse Provider and Register Document Set.b contents");
                 orch.setRequest(new CoreResponse.Request());
+                orch.getRequest().setTimestamp(new Date());
             }
 
+            long start = System.nanoTime();
             ProvideAndRegisterDocumentSetRequestType result = parseRequest(msg.getRequestObject());
+            long duration = TimeUnit.NANOSECONDS.toMillis(StageTimer.record("pnr.unmarshal", start));
+            StageTimer.recordPayload("pnr.unmarshal", "request", msg.getRequestObject());
             msg.getRespondTo().tell(new SimpleMediatorResponse<>(msg, result), getSelf());
 
             if (sendParseOrchestration) {
                 orch.setResponse(new CoreResponse.Response());
+                orch.getResponse().setTimestamp(new Date());
+                orch.getResponse().setHeaders(Collections.singletonMap(STAGE_DURATION_HEADER, Long.toString(duration)));
                 requestHandler.tell(new AddOrchestrationToCoreResponse(orch), getSelf());
             }
 
@@ -79,12 +119,53 @@ public class ParseProvideAndRegisterRequestActor extends UntypedActor {
         }
     }
 
+    private void processRegisterDocumentSet(ParseRegisterDocumentSet msg) {
+        try {
+            long start = System.nanoTime();
+            SubmitObjectsRequest result = parseRegisterRequest(msg.getRequestObject());
+            StageTimer.record("rds.unmarshal", start);
+            StageTimer.recordPayload("rds.unmarshal", "request", msg.getRequestObject());
+            msg.getRespondTo().tell(new SimpleMediatorResponse<>(msg, result), getSelf());
+        } catch (JAXBException | ClassCastException ex) {
+            FinishRequest fr = new FinishRequest("Failed to parse XDS.b Register Document Set request: " + ex.getMessage(), "text/plain", HttpStatus.SC_BAD_REQUEST);
+            msg.getRequestHandler().tell(fr, getSelf());
+        }
+    }
+
     @Override
     public void onReceive(Object msg) throws Exception {
-        if (SimpleMediatorRequest.isInstanceOf(String.class, msg)) {
+        if (msg instanceof ParseRegisterDocumentSet) {
+            processRegisterDocumentSet((ParseRegisterDocumentSet) msg);
+        } else if (SimpleMediatorRequest.isInstanceOf(String.class, msg)) {
             processMsg((SimpleMediatorRequest<String>) msg);
         } else {
             unhandled(msg);
         }
     }
+
+
+    /**
+     * Startup actor that shares a pool of parsers between all transactions.
+     * The pool size is configured with the <code>pnr.parserPoolSize</code> property.
+     */
+    public static class Pool extends RouterPoolActor {
+        public Pool(MediatorConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected Props routeeProps() {
+            return Props.create(ParseProvideAndRegisterRequestActor.class, config);
+        }
+
+        @Override
+        protected String poolSizeProperty() {
+            return "pnr.parserPoolSize";
+        }
+
+        @Override
+        protected String dispatcher() {
+            return MediatorDispatchers.XML;
+        }
+    }
 }
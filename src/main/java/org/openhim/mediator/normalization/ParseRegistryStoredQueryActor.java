@@ -11,7 +11,6 @@ import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
-import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.FinishRequest;
@@ -19,19 +18,25 @@ import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 import org.openhim.mediator.exceptions.CXParseException;
 import org.openhim.mediator.messages.ParsedRegistryStoredQuery;
 import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
+import java.util.*;
 
 /**
  * Parses registry stored query messages.
  * <br/><br/>
+ * The distinct patient identifiers from all the patient ID slots are collected (see {@link #PATIENT_ID_SLOT_TYPES}),
+ * including those in list values and multiple value lists.
+ * <br/><br/>
  * Messages supported:
  * <ul>
  * <li>SimpleMediatorRequest<String> - responds with ParsedRegistryStoredQuery</li>
@@ -42,34 +47,68 @@ public class ParseRegistryStoredQueryActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
     public static final String PATIENT_ID_SLOT_TYPE = "$XDSDocumentEntryPatientId";
-    private static final String BASE_XPATH_EXPRESSION = "//AdhocQueryRequest[1]/AdhocQuery/Slot[@name='%s']/ValueList[1]/Value";
+    /**
+     * The stored query parameters that contain patient identifiers
+     */
+    public static final Set<String> PATIENT_ID_SLOT_TYPES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            PATIENT_ID_SLOT_TYPE,
+            "$XDSSubmissionSetPatientId",
+            "$XDSFolderPatientId",
+            "$patientId"
+    )));
+    private static final String BASE_XPATH_EXPRESSION = "//AdhocQueryRequest[1]/AdhocQuery/Slot[@name='%s']/ValueList/Value";
     private static final String MESSAGEID_XPATH_EXPRESSION = "Envelope/Header/MessageID";
 
 
-    private String readPatientID(String msg) throws ParserConfigurationException, IOException, SAXException, XPathExpressionException {
-        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        Document doc = builder.parse(IOUtils.toInputStream(msg));
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        return xpath.compile(String.format(BASE_XPATH_EXPRESSION, PATIENT_ID_SLOT_TYPE)).evaluate(doc);
+    /**
+     * Splits a slot value into its identifiers. The value is either a single (optionally quoted) identifier
+     * or a list of quoted identifiers, e.g. <code>('a','b')</code>
+     */
+    public static List<String> splitSlotValue(String value) {
+        String v = value.trim();
+        if (v.startsWith("(") && v.endsWith(")")) {
+            v = v.substring(1, v.length()-1);
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String part : v.split(",")) {
+            String id = part.replace("'", "").trim();
+            if (!id.isEmpty()) {
+                result.add(id);
+            }
+        }
+        return result;
     }
 
-    private String readSOAPMessageID(String msg) throws ParserConfigurationException, IOException, SAXException, XPathExpressionException {
-        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        Document doc = builder.parse(IOUtils.toInputStream(msg));
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        return xpath.compile(MESSAGEID_XPATH_EXPRESSION).evaluate(doc);
+    private List<Identifier> readPatientIDs(Document doc, XPath xpath) throws XPathExpressionException, CXParseException {
+        Set<Identifier> result = new LinkedHashSet<>();
+
+        for (String slot : PATIENT_ID_SLOT_TYPES) {
+            NodeList values = (NodeList) xpath.compile(String.format(BASE_XPATH_EXPRESSION, slot)).evaluate(doc, XPathConstants.NODESET);
+            for (int i=0; i<values.getLength(); i++) {
+                for (String cx : splitSlotValue(values.item(i).getTextContent())) {
+                    result.add(new Identifier(cx));
+                }
+            }
+        }
+
+        if (result.isEmpty()) {
+            throw new CXParseException("No patient identifier found in the stored query");
+        }
+        return new ArrayList<>(result);
     }
 
 
     private void processMsg(SimpleMediatorRequest<String> msg) {
         try {
-            String patientID_CX = readPatientID(msg.getRequestObject());
-            patientID_CX = patientID_CX.replace("'", "");
-            Identifier patientID = new Identifier(patientID_CX);
+            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            Document doc = builder.parse(IOUtils.toInputStream(msg.getRequestObject()));
+            XPath xpath = XPathFactory.newInstance().newXPath();
 
-            String messageID = readSOAPMessageID(msg.getRequestObject());
+            List<Identifier> patientIDs = readPatientIDs(doc, xpath);
+            String messageID = xpath.compile(MESSAGEID_XPATH_EXPRESSION).evaluate(doc);
 
-            msg.getRespondTo().tell(new ParsedRegistryStoredQuery(patientID, messageID), getSelf());
+            msg.getRespondTo().tell(new ParsedRegistryStoredQuery(patientIDs, messageID), getSelf());
         } catch (SAXException | CXParseException ex) {
             FinishRequest fr = new FinishRequest(ex.getMessage(), "text/plain", HttpStatus.SC_BAD_REQUEST);
             msg.getRequestHandler().tell(fr, getSelf());
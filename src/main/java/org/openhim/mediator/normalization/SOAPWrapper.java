@@ -6,13 +6,23 @@
 
 package org.openhim.mediator.normalization;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SOAPWrapper {
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
     protected String soapBegin;
     protected String soapBody;
     protected String soapEnd;
+    private boolean headerRead;
+    private String action;
+    private String messageID;
 
     public SOAPWrapper(String soapMessage) throws SOAPParseException {
         Pattern beginPattern = Pattern.compile("<(\\w+:)?Body>");
@@ -48,6 +58,55 @@ public class SOAPWrapper {
         this.soapBody = soapBody;
     }
 
+    /**
+     * @return the WS-Addressing Action of the message, or null if the header doesn't have one
+     */
+    public String getAction() {
+        readHeader();
+        return action;
+    }
+
+    /**
+     * @return the WS-Addressing MessageID of the message, or null if the header doesn't have one
+     */
+    public String getMessageID() {
+        readHeader();
+        return messageID;
+    }
+
+    /**
+     * Reads the header fields from the part of the message before the body, so that the body isn't parsed
+     */
+    private void readHeader() {
+        if (headerRead) {
+            return;
+        }
+        headerRead = true;
+
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(soapBegin));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String localName = reader.getLocalName();
+                    if ("Body".equals(localName)) {
+                        break;
+                    } else if ("Action".equals(localName) && action == null) {
+                        action = reader.getElementText().trim();
+                    } else if ("MessageID".equals(localName) && messageID == null) {
+                        messageID = reader.getElementText().trim();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            //not well-formed, so treated as not having the fields
+        }
+    }
+
     public String getFullDocument() {
         return soapBegin + soapBody + soapEnd;
     }
@@ -8,15 +8,18 @@ package org.openhim.mediator.normalization;
 
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.actor.UntypedActor;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.openhim.mediator.dsub.DsubActor;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.RouterPoolActor;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.engine.messages.SimpleMediatorRequest;
 import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
+import org.openhim.mediator.metrics.StageTimer;
 
 import javax.mail.BodyPart;
 import javax.mail.Header;
@@ -33,6 +36,7 @@ import java.util.*;
  * <br/><br/>
  * The actor just parses out the SOAP message, but keeps the request in state
  * so that the complete MTOM request can be sent again with the enriched message.
+ * State is kept per transaction (request handler), so a single actor can serve many transactions.
  * <br/><br/>
  * Messages supported:
  * <ul>
@@ -88,29 +92,68 @@ public class XDSbMimeProcessorActor extends UntypedActor {
         }
     }
 
-    MimeMultipart mimeMessage;
+    /**
+     * The parsed request for a transaction, kept until the enriched SOAP part is received
+     */
+    protected static class ParsedMimeMessage {
+        final MimeMultipart mimeMessage;
+        final String soapPart;
+        final List<String> documents;
 
-    private String _soapPart;
-    private List<String> _documents = new ArrayList<>(1);
+        ParsedMimeMessage(MimeMultipart mimeMessage, String soapPart, List<String> documents) {
+            this.mimeMessage = mimeMessage;
+            this.soapPart = soapPart;
+            this.documents = documents;
+        }
+    }
+
+    /**
+     * Keyed by request handler, since the handler is unique for each transaction
+     */
+    private final Map<ActorRef, ParsedMimeMessage> pending = new HashMap<>();
+
+
+    public XDSbMimeProcessorActor() {
+    }
+
+    protected static ParsedMimeMessage parseMimeMessage(String msg, String contentType) throws IOException, MessagingException, SOAPPartNotFound, UnprocessableContentFound {
+        MimeMultipart mimeMessage = new MimeMultipart(new ByteArrayDataSource(msg, contentType));
+        String soapPart = null;
+        List<String> documents = new ArrayList<>(1);
 
-    private void parseMimeMessage(String msg, String contentType) throws IOException, MessagingException, SOAPPartNotFound, UnprocessableContentFound {
-        mimeMessage = new MimeMultipart(new ByteArrayDataSource(msg, contentType));
         for (int i=0; i<mimeMessage.getCount(); i++) {
             BodyPart part = mimeMessage.getBodyPart(i);
 
             if (part.getContentType().contains("application/soap+xml")) {
-                _soapPart = getValue(part);
+                soapPart = getValue(part);
             } else {
-                _documents.add(getValue(part));
+                documents.add(getValue(part));
             }
         }
 
-        if (_soapPart==null) {
+        if (soapPart==null) {
             throw new SOAPPartNotFound();
         }
+
+        return new ParsedMimeMessage(mimeMessage, soapPart, documents);
+    }
+
+    private void addPending(ActorRef requestHandler, ParsedMimeMessage msg) {
+        if (pending.put(requestHandler, msg) == null) {
+            //if the transaction fails before the enriched message is sent, the state is cleared when the handler stops
+            getContext().watch(requestHandler);
+        }
     }
 
-    private String getValue(BodyPart part) throws IOException, MessagingException, UnprocessableContentFound {
+    private ParsedMimeMessage removePending(ActorRef requestHandler) {
+        ParsedMimeMessage msg = pending.remove(requestHandler);
+        if (msg != null) {
+            getContext().unwatch(requestHandler);
+        }
+        return msg;
+    }
+
+    private static String getValue(BodyPart part) throws IOException, MessagingException, UnprocessableContentFound {
         Object value = part.getContent();
         if (value instanceof String) {
             return (String) value;
@@ -120,7 +163,7 @@ public class XDSbMimeProcessorActor extends UntypedActor {
         throw new UnprocessableContentFound();
     }
 
-    private String buildEnrichedMimeMessage(String enrichedSOAPMessage) throws MessagingException, IOException {
+    protected static String buildEnrichedMimeMessage(MimeMultipart mimeMessage, String enrichedSOAPMessage) throws MessagingException, IOException {
         for (int i=0; i<mimeMessage.getCount(); i++) {
             BodyPart part = mimeMessage.getBodyPart(i);
             if (part.getContentType().contains("application/soap+xml")) {
@@ -133,11 +176,10 @@ public class XDSbMimeProcessorActor extends UntypedActor {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         mimeMessage.writeTo(out);
-        mimeMessage = null;
         return out.toString();
     }
 
-    private Enumeration createCopyOfHeaders(BodyPart part) throws MessagingException {
+    private static Enumeration createCopyOfHeaders(BodyPart part) throws MessagingException {
         Enumeration headers = part.getAllHeaders();
         InternetHeaders internetHeaders = new InternetHeaders();
         while (headers.hasMoreElements()) {
@@ -147,7 +189,7 @@ public class XDSbMimeProcessorActor extends UntypedActor {
         return internetHeaders.getAllHeaders();
     }
 
-    private void copyHeadersToPart(Enumeration headers, BodyPart part) throws MessagingException {
+    private static void copyHeadersToPart(Enumeration headers, BodyPart part) throws MessagingException {
         while (headers.hasMoreElements()) {
             Header header = (Header) headers.nextElement();
             part.setHeader(header.getName(), header.getValue());
@@ -158,24 +200,63 @@ public class XDSbMimeProcessorActor extends UntypedActor {
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof MimeMessage) {
             try {
-                parseMimeMessage(((MimeMessage) msg).getRequestObject(), ((MimeMessage) msg).contentType);
-                ((MimeMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, _soapPart, _documents), getSelf());
+                long start = System.nanoTime();
+                ParsedMimeMessage parsed = parseMimeMessage(((MimeMessage) msg).getRequestObject(), ((MimeMessage) msg).contentType);
+                StageTimer.record("mime.parse", start);
+                StageTimer.recordPayload("mime.parse", "request", ((MimeMessage) msg).getRequestObject());
+                addPending(((MimeMessage) msg).getRequestHandler(), parsed);
+                ((MimeMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, parsed.soapPart, parsed.documents), getSelf());
             } catch (IOException | MessagingException | SOAPPartNotFound | UnprocessableContentFound ex) {
                 ((MimeMessage) msg).getRequestHandler().tell(new ExceptError(ex), getSelf());
             }
         } else if (msg instanceof EnrichedMessage) {
-            if (mimeMessage==null) {
+            ParsedMimeMessage previous = removePending(((EnrichedMessage) msg).getRequestHandler());
+            if (previous==null) {
                 ((EnrichedMessage) msg).getRequestHandler().tell(new ExceptError(new NoPreviousMimeMessage()), getSelf());
             } else {
                 try {
-                    String mime = buildEnrichedMimeMessage(((EnrichedMessage) msg).getRequestObject());
-                    ((EnrichedMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, mime, _documents), getSelf());
+                    long start = System.nanoTime();
+                    String mime = buildEnrichedMimeMessage(previous.mimeMessage, ((EnrichedMessage) msg).getRequestObject());
+                    StageTimer.record("mime.rebuild", start);
+                    StageTimer.recordPayload("mime.rebuild", "response", mime);
+                    ((EnrichedMessage) msg).getRespondTo().tell(new XDSbMimeProcessorResponse((MediatorRequestMessage) msg, mime, previous.documents), getSelf());
                 } catch (MessagingException | IOException ex) {
                     ((EnrichedMessage) msg).getRequestHandler().tell(new ExceptError(ex), getSelf());
                 }
             }
+        } else if (msg instanceof Terminated) {
+            pending.remove(((Terminated) msg).getActor());
         } else {
             unhandled(msg);
         }
     }
+
+
+    /**
+     * Startup actor that shares a pool of XDSbMimeProcessorActors between all transactions.
+     * <br/><br/>
+     * An EnrichedMessage must be sent to the routee that parsed the original MimeMessage,
+     * i.e. the sender of the XDSbMimeProcessorResponse, since that's where the request is kept.
+     * The pool size is configured with the <code>mediator.mimePoolSize</code> property.
+     */
+    public static class Pool extends RouterPoolActor {
+        public Pool(MediatorConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected Props routeeProps() {
+            return Props.create(XDSbMimeProcessorActor.class);
+        }
+
+        @Override
+        protected String poolSizeProperty() {
+            return "mediator.mimePoolSize";
+        }
+
+        @Override
+        protected String dispatcher() {
+            return MediatorDispatchers.XML;
+        }
+    }
 }
@@ -0,0 +1,373 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.InvalidActorNameException;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk ingestion of Provide and Register requests, e.g. for replaying the historic documents of a new facility.
+ * <br/><br/>
+ * A POST starts a run. The body is either a multipart archive of requests (one per part) or NDJSON with a line
+ * per request, referencing a file in <code>bulk.sourceDir</code>:
+ * <code>{"id": "doc-1", "file": "doc-1.xml", "contentType": "..."}</code>.
+ * The run is identified by the <code>X-Bulk-Run-Id</code> header (a new ID is generated if it isn't set) and the
+ * response is sent as soon as the run has started. The items are processed by a {@link BulkRunActor}, which records
+ * the result of each item as it completes. A GET with the run's ID returns these results as NDJSON, followed by a
+ * summary line once the run is complete. Posting the same items with the same run ID resumes an interrupted run.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>MediatorHTTPRequest - responds with FinishRequest</li>
+ *     <li>BulkRunActor.RunStarted - responds with FinishRequest</li>
+ * </ul>
+ */
+public class BulkIngestionActor extends UntypedActor {
+
+    public static final String RUN_ID_HEADER = "X-Bulk-Run-Id";
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    private static final Pattern RUN_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,100}");
+
+    private final MediatorConfig config;
+    private MediatorHTTPRequest originalRequest;
+
+
+    public BulkIngestionActor(MediatorConfig config) {
+        this.config = config;
+    }
+
+    private void respond(String body, String contentType, int status) {
+        originalRequest.getRequestHandler().tell(new FinishRequest(body, contentType, status), getSelf());
+    }
+
+    private String header(String name) {
+        for (Map.Entry<String, String> header : originalRequest.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void startRun() {
+        String runID = header(RUN_ID_HEADER);
+        if (runID == null || runID.trim().isEmpty()) {
+            runID = UUID.randomUUID().toString();
+        } else if (!RUN_ID_PATTERN.matcher(runID.trim()).matches()) {
+            respond("Invalid run ID. Use letters, digits, '-' and '_' only", "text/plain", HttpStatus.SC_BAD_REQUEST);
+            return;
+        }
+        runID = runID.trim();
+
+        List<BulkRunActor.Item> items;
+        String contentType = header("Content-Type");
+        try {
+            if (StringUtils.startsWithIgnoreCase(contentType, "multipart/")) {
+                items = parseArchive(originalRequest.getBody(), contentType);
+            } else {
+                items = parseManifest(originalRequest.getBody(), config);
+            }
+        } catch (IllegalArgumentException | MessagingException | IOException ex) {
+            respond("Invalid bulk request: " + ex.getMessage(), "text/plain", HttpStatus.SC_BAD_REQUEST);
+            return;
+        }
+
+        ActorRef run;
+        try {
+            run = getContext().system().actorOf(
+                    Props.create(BulkRunActor.class, config, runID, items, header("X-Forwarded-For")), "bulk-run-" + runID
+            );
+        } catch (InvalidActorNameException ex) {
+            respond("Bulk run " + runID + " is already in progress", "text/plain", HttpStatus.SC_CONFLICT);
+            return;
+        }
+        run.tell(new BulkRunActor.Start(), getSelf());
+    }
+
+    private void processRunStarted(BulkRunActor.RunStarted msg) {
+        String body = "{\"run\":" + jsonString(msg.getRunID()) + ",\"items\":" + msg.getTotal() + ",\"skipped\":" + msg.getSkipped() + "}";
+        respond(body, "application/json", HttpStatus.SC_ACCEPTED);
+    }
+
+    private void readProgress() {
+        String runID = header(RUN_ID_HEADER);
+        if (runID == null || !RUN_ID_PATTERN.matcher(runID.trim()).matches()) {
+            respond("The " + RUN_ID_HEADER + " header is required", "text/plain", HttpStatus.SC_BAD_REQUEST);
+            return;
+        }
+
+        File progressFile = BulkRunActor.progressFile(config, runID.trim());
+        if (!progressFile.exists()) {
+            respond("Unknown bulk run " + runID, "text/plain", HttpStatus.SC_NOT_FOUND);
+            return;
+        }
+        try {
+            respond(FileUtils.readFileToString(progressFile, "UTF-8"), NDJSON_CONTENT_TYPE, HttpStatus.SC_OK);
+        } catch (IOException ex) {
+            originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
+        }
+    }
+
+    /**
+     * Parses an NDJSON manifest of file references, one item per line
+     *
+     * @throws IllegalArgumentException if a line is invalid or references a file outside of <code>bulk.sourceDir</code>
+     * (see {@link BulkRunActor#sourceFile(MediatorConfig, String)})
+     */
+    public static List<BulkRunActor.Item> parseManifest(String manifest, MediatorConfig config) {
+        List<BulkRunActor.Item> items = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        String[] lines = manifest != null ? manifest.split("\r?\n") : new String[0];
+
+        for (int i=0; i<lines.length; i++) {
+            if (lines[i].trim().isEmpty()) {
+                continue;
+            }
+            Map<String, String> line;
+            try {
+                line = parseJSONObject(lines[i]);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("line " + (i+1) + ": " + ex.getMessage());
+            }
+
+            String file = line.get("file");
+            if (file == null || file.isEmpty()) {
+                throw new IllegalArgumentException("line " + (i+1) + " has no file");
+            }
+            try {
+                BulkRunActor.sourceFile(config, file);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("line " + (i+1) + ": " + ex.getMessage());
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("line " + (i+1) + ": file can't be resolved");
+            }
+            String id = line.get("id") != null ? line.get("id") : file;
+            if (!ids.add(id)) {
+                throw new IllegalArgumentException("duplicate item " + id);
+            }
+            items.add(new BulkRunActor.Item(id, file, null, line.get("contentType")));
+        }
+
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("no items");
+        }
+        return items;
+    }
+
+    /**
+     * Parses a multipart archive, one item per part. Items are identified by the part's Content-ID or file name.
+     */
+    public static List<BulkRunActor.Item> parseArchive(String archive, String contentType) throws MessagingException, IOException {
+        MimeMultipart multipart = new MimeMultipart(new ByteArrayDataSource(archive.getBytes(StandardCharsets.UTF_8), contentType));
+        List<BulkRunActor.Item> items = new ArrayList<>(multipart.getCount());
+        Set<String> ids = new HashSet<>();
+
+        for (int i=0; i<multipart.getCount(); i++) {
+            BodyPart part = multipart.getBodyPart(i);
+            String[] contentID = part.getHeader("Content-ID");
+            String id;
+            if (contentID != null && contentID.length > 0) {
+                id = StringUtils.strip(contentID[0].trim(), "<>");
+            } else if (part.getFileName() != null) {
+                id = part.getFileName();
+            } else {
+                id = "part-" + (i+1);
+            }
+            if (!ids.add(id)) {
+                throw new IllegalArgumentException("duplicate item " + id);
+            }
+
+            String[] partContentType = part.getHeader("Content-Type");
+            String body = IOUtils.toString(part.getInputStream(), "UTF-8");
+            items.add(new BulkRunActor.Item(id, null, body, partContentType != null ? partContentType[0] : null));
+        }
+
+        if (items.isEmpty()) {
+            throw new IllegalArgumentException("no items");
+        }
+        return items;
+    }
+
+    /**
+     * Parses a flat JSON object. Values are returned as strings, numbers and booleans as written.
+     *
+     * @throws IllegalArgumentException if the object isn't flat or isn't valid JSON
+     */
+    public static Map<String, String> parseJSONObject(String json) {
+        Map<String, String> result = new LinkedHashMap<>();
+        int[] pos = {skipWhitespace(json, 0)};
+        expect(json, pos, '{');
+
+        if (peek(json, pos) == '}') {
+            pos[0]++;
+        } else {
+            while (true) {
+                String key = readString(json, pos);
+                expect(json, pos, ':');
+                String value;
+                char c = peek(json, pos);
+                if (c == '"') {
+                    value = readString(json, pos);
+                } else {
+                    int start = pos[0];
+                    while (pos[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(pos[0])) < 0) {
+                        pos[0]++;
+                    }
+                    value = json.substring(start, pos[0]);
+                    if (value.isEmpty() || value.startsWith("{") || value.startsWith("[")) {
+                        throw new IllegalArgumentException("unsupported value for " + key);
+                    }
+                    if ("null".equals(value)) {
+                        value = null;
+                    }
+                }
+                result.put(key, value);
+
+                if (peek(json, pos) == ',') {
+                    pos[0]++;
+                } else {
+                    expect(json, pos, '}');
+                    break;
+                }
+            }
+        }
+
+        if (skipWhitespace(json, pos[0]) != json.length()) {
+            throw new IllegalArgumentException("unexpected content after the object");
+        }
+        return result;
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static char peek(String json, int[] pos) {
+        pos[0] = skipWhitespace(json, pos[0]);
+        if (pos[0] >= json.length()) {
+            throw new IllegalArgumentException("unexpected end of the object");
+        }
+        return json.charAt(pos[0]);
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if (peek(json, pos) != c) {
+            throw new IllegalArgumentException("expected '" + c + "' at position " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static String readString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder res = new StringBuilder();
+        while (pos[0] < json.length()) {
+            char c = json.charAt(pos[0]++);
+            if (c == '"') {
+                return res.toString();
+            } else if (c == '\\') {
+                if (pos[0] >= json.length()) {
+                    break;
+                }
+                char e = json.charAt(pos[0]++);
+                switch (e) {
+                    case 'n': res.append('\n'); break;
+                    case 'r': res.append('\r'); break;
+                    case 't': res.append('\t'); break;
+                    case 'b': res.append('\b'); break;
+                    case 'f': res.append('\f'); break;
+                    case 'u':
+                        if (pos[0] + 4 > json.length()) {
+                            throw new IllegalArgumentException("invalid unicode escape");
+                        }
+                        try {
+                            res.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("invalid unicode escape");
+                        }
+                        pos[0] += 4;
+                        break;
+                    default: res.append(e);
+                }
+            } else {
+                res.append(c);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    /**
+     * @return the value as a quoted JSON string
+     */
+    public static String jsonString(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder res = new StringBuilder(value.length() + 2);
+        res.append('"');
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': res.append("\\\""); break;
+                case '\\': res.append("\\\\"); break;
+                case '\n': res.append("\\n"); break;
+                case '\r': res.append("\\r"); break;
+                case '\t': res.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        res.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        res.append(c);
+                    }
+            }
+        }
+        return res.append('"').toString();
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            originalRequest = (MediatorHTTPRequest) msg;
+            if ("GET".equalsIgnoreCase(originalRequest.getMethod())) {
+                readProgress();
+            } else if ("POST".equalsIgnoreCase(originalRequest.getMethod())) {
+                startRun();
+            } else {
+                respond("Method not allowed", "text/plain", HttpStatus.SC_METHOD_NOT_ALLOWED);
+            }
+        } else if (msg instanceof BulkRunActor.RunStarted) {
+            processRunStarted((BulkRunActor.RunStarted) msg);
+        } else if (msg instanceof ExceptError) {
+            originalRequest.getRequestHandler().tell(msg, getSelf());
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Processes the items of a bulk ingestion run (see {@link BulkIngestionActor}) through the repository route,
+ * with at most <code>bulk.parallelism</code> items in flight at a time.
+ * <br/><br/>
+ * Each item is handled by a child that sends it to a {@link RepositoryActor} exactly like a request on
+ * /xdsrepository, so items share the mediator's PIX, CSD and parser pools. The result of every item is appended
+ * to the run's progress file (<code>&lt;bulk.progressDir&gt;/&lt;run&gt;.ndjson</code>) as it completes. An item is
+ * only successful if the repository registered it (see {@link DeferredEnrichmentActor#isSuccessfulResponse(int, String)}),
+ * since registry failures are responded to with a 200. When a run is started again with the same ID, the items that
+ * were already successfully processed are skipped.
+ * The actor stops once all items are done.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>Start: loads the progress, responds with RunStarted (or ExceptError) and starts processing the items</li>
+ *     <li>ItemResult: records the result of an item</li>
+ * </ul>
+ */
+public class BulkRunActor extends UntypedActor {
+
+    public static class Item {
+        final String id;
+        final String file;
+        final String body;
+        final String contentType;
+
+        /**
+         * @param file a file containing the request, relative to <code>bulk.sourceDir</code>. Only read when the item
+         *             is processed.
+         * @param body the request, if it isn't read from a file
+         */
+        public Item(String id, String file, String body, String contentType) {
+            this.id = id;
+            this.file = file;
+            this.body = body;
+            this.contentType = contentType;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    public static class Start {}
+
+    public static class RunStarted {
+        final String runID;
+        final int total;
+        final int skipped;
+
+        public RunStarted(String runID, int total, int skipped) {
+            this.runID = runID;
+            this.total = total;
+            this.skipped = skipped;
+        }
+
+        public String getRunID() {
+            return runID;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+    }
+
+    public static class ItemResult {
+        final String id;
+        final int status;
+        final boolean successful;
+        final String error;
+
+        public ItemResult(String id, int status, boolean successful, String error) {
+            this.id = id;
+            this.status = status;
+            this.successful = successful;
+            this.error = error;
+        }
+
+        public boolean isSuccessful() {
+            return successful;
+        }
+    }
+
+    public static final String DEFAULT_CONTENT_TYPE = "application/soap+xml; charset=UTF-8";
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final String runID;
+    private final List<Item> items;
+    private final String xForwardedFor;
+    private final int parallelism;
+
+    //the actor that the items are sent to, as if they were received on /xdsrepository
+    Class<? extends UntypedActor> itemHandler = RepositoryActor.class;
+
+    private Writer progress;
+    private int next;
+    private int inFlight;
+    private int processed;
+    private int failed;
+    private int skipped;
+
+
+    public BulkRunActor(MediatorConfig config, String runID, List<Item> items, String xForwardedFor) {
+        this.config = config;
+        this.runID = runID;
+        this.items = new ArrayList<>(items);
+        this.xForwardedFor = xForwardedFor;
+        String p = config.getProperty("bulk.parallelism");
+        this.parallelism = p != null ? Math.max(1, Integer.parseInt(p.trim())) : 4;
+    }
+
+    public static File progressFile(MediatorConfig config, String runID) {
+        String dir = config.getProperty("bulk.progressDir");
+        return new File(dir != null ? dir : "bulk-progress", runID + ".ndjson");
+    }
+
+    /**
+     * Resolves a file referenced by a bulk manifest. Files can only be read from <code>bulk.sourceDir</code>.
+     *
+     * @throws IllegalArgumentException if <code>bulk.sourceDir</code> isn't set, or the name is absolute, has a '..'
+     * segment or resolves outside of the directory (e.g. through a symbolic link). The message doesn't include the
+     * name, so it can be returned to the client.
+     */
+    public static File sourceFile(MediatorConfig config, String name) throws IOException {
+        String dir = config.getProperty("bulk.sourceDir");
+        if (dir == null || dir.trim().isEmpty()) {
+            throw new IllegalArgumentException("file items are disabled because bulk.sourceDir isn't set");
+        }
+        if (name.startsWith("/") || name.startsWith("\\") || new File(name).isAbsolute()) {
+            throw new IllegalArgumentException("file must be relative to bulk.sourceDir");
+        }
+        for (String segment : name.split("[/\\\\]")) {
+            if ("..".equals(segment)) {
+                throw new IllegalArgumentException("file must not have '..' segments");
+            }
+        }
+
+        File root = new File(dir.trim()).getCanonicalFile();
+        File file = new File(root, name).getCanonicalFile();
+        if (!file.toPath().startsWith(root.toPath())) {
+            throw new IllegalArgumentException("file is outside of bulk.sourceDir");
+        }
+        return file;
+    }
+
+    private static void countItem(String result) {
+        MetricsRegistry.getInstance().counter(
+                "mediator_bulk_items_total", "Items processed by bulk ingestion runs", MetricsRegistry.labels("result", result)
+        ).increment();
+    }
+
+    /**
+     * @return the IDs of the items that were successfully processed by previous attempts of a run. Lines written
+     * before the outcome was recorded as <code>ok</code> are judged by their status.
+     */
+    static Set<String> readCompletedItems(File progressFile) throws IOException {
+        Set<String> completed = new HashSet<>();
+        if (!progressFile.exists()) {
+            return completed;
+        }
+        for (String line : FileUtils.readLines(progressFile, "UTF-8")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                Map<String, String> result = BulkIngestionActor.parseJSONObject(line);
+                String ok = result.get("ok");
+                String status = result.get("status");
+                boolean successful = result.containsKey("ok") ? "true".equals(ok) : status != null && status.startsWith("2");
+                if (result.get("id") != null && successful) {
+                    completed.add(result.get("id"));
+                }
+            } catch (IllegalArgumentException ex) {
+                //a partially written line from an interrupted run
+            }
+        }
+        return completed;
+    }
+
+    private static boolean endsWithPartialLine(File progressFile) throws IOException {
+        if (!progressFile.exists() || progressFile.length() == 0) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(progressFile, "r")) {
+            in.seek(progressFile.length() - 1);
+            return in.read() != '\n';
+        }
+    }
+
+    private void start() {
+        File progressFile = progressFile(config, runID);
+        try {
+            Set<String> completed = readCompletedItems(progressFile);
+            List<Item> remaining = new ArrayList<>(items.size());
+            for (Item item : items) {
+                if (completed.contains(item.id)) {
+                    skipped++;
+                    countItem("skipped");
+                } else {
+                    remaining.add(item);
+                }
+            }
+            items.clear();
+            items.addAll(remaining);
+
+            FileUtils.forceMkdir(progressFile.getParentFile());
+            boolean partialLine = endsWithPartialLine(progressFile);
+            progress = new OutputStreamWriter(new FileOutputStream(progressFile, true), StandardCharsets.UTF_8);
+            if (partialLine) {
+                progress.write('\n');
+            }
+        } catch (IOException ex) {
+            getSender().tell(new ExceptError(ex), getSelf());
+            getContext().stop(getSelf());
+            return;
+        }
+
+        log.info("Starting bulk run " + runID + ": " + items.size() + " items to process, " + skipped + " already processed");
+        getSender().tell(new RunStarted(runID, items.size() + skipped, skipped), getSelf());
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (inFlight < parallelism && next < items.size()) {
+            Item item = items.get(next);
+            //release the item, so that large runs don't keep every request in memory
+            items.set(next, null);
+            next++;
+            inFlight++;
+            getContext().actorOf(Props.create(ItemActor.class, config, itemHandler, item, xForwardedFor));
+        }
+
+        if (inFlight == 0) {
+            finish();
+        }
+    }
+
+    private void processItemResult(ItemResult result) throws IOException {
+        inFlight--;
+        processed++;
+        if (result.isSuccessful()) {
+            countItem("ok");
+        } else {
+            failed++;
+            countItem("failed");
+            log.warning("Bulk run " + runID + ": item " + result.id + " failed with status " + result.status + ": " + result.error);
+        }
+
+        StringBuilder line = new StringBuilder();
+        line.append("{\"id\":").append(BulkIngestionActor.jsonString(result.id))
+                .append(",\"status\":").append(result.status)
+                .append(",\"ok\":").append(result.successful);
+        if (result.error != null) {
+            line.append(",\"error\":").append(BulkIngestionActor.jsonString(result.error));
+        }
+        line.append("}\n");
+        progress.write(line.toString());
+        progress.flush();
+
+        getContext().stop(getSender());
+        dispatch();
+    }
+
+    private void finish() {
+        try {
+            progress.write("{\"run\":" + BulkIngestionActor.jsonString(runID) + ",\"complete\":true,\"processed\":" + processed
+                    + ",\"failed\":" + failed + ",\"skipped\":" + skipped + "}\n");
+            progress.flush();
+        } catch (IOException ex) {
+            log.error(ex, "Could not record the completion of bulk run " + runID);
+        }
+        log.info("Finished bulk run " + runID + ": " + processed + " processed, " + failed + " failed, " + skipped + " skipped");
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        IOUtils.closeQuietly(progress);
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Start) {
+            start();
+        } else if (msg instanceof ItemResult) {
+            processItemResult((ItemResult) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+
+
+    private static final Pattern REGISTRY_ERROR = Pattern.compile("<(?:\\w+:)?RegistryError\\s[^>]*>");
+    private static final Pattern ERROR_CODE = Pattern.compile("\\berrorCode=\"([^\"]*)\"");
+    private static final Pattern CODE_CONTEXT = Pattern.compile("\\bcodeContext=\"([^\"]*)\"");
+
+    /**
+     * @return the code and context of the first RegistryError in a response, e.g.
+     * <code>XDSRegistryError: Patient not found</code>, or the whole response if it doesn't have one
+     */
+    static String readRegistryError(String response) {
+        if (response == null) {
+            return null;
+        }
+        Matcher error = REGISTRY_ERROR.matcher(response);
+        if (!error.find()) {
+            return response;
+        }
+        Matcher code = ERROR_CODE.matcher(error.group());
+        Matcher context = CODE_CONTEXT.matcher(error.group());
+        String result = code.find() ? StringEscapeUtils.unescapeXml(code.group(1)) : "RegistryError";
+        if (context.find()) {
+            result += ": " + StringEscapeUtils.unescapeXml(context.group(1));
+        }
+        return result;
+    }
+
+
+    /**
+     * Sends a single item to the item handler, acting as both its request handler and the actor it responds to,
+     * and reports the outcome to the run as an ItemResult.
+     */
+    public static class ItemActor extends UntypedActor {
+        LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+        private final MediatorConfig config;
+        private final Class<? extends UntypedActor> itemHandler;
+        private final Item item;
+        private final String xForwardedFor;
+
+        public ItemActor(MediatorConfig config, Class<? extends UntypedActor> itemHandler, Item item, String xForwardedFor) {
+            this.config = config;
+            this.itemHandler = itemHandler;
+            this.item = item;
+            this.xForwardedFor = xForwardedFor;
+        }
+
+        @Override
+        public void preStart() throws Exception {
+            String body = item.body;
+            if (body == null) {
+                try {
+                    //resolved again, in case the file was replaced by a link after the manifest was checked
+                    body = FileUtils.readFileToString(sourceFile(config, item.file), "UTF-8");
+                } catch (IllegalArgumentException ex) {
+                    report(HttpStatus.SC_BAD_REQUEST, "Could not read the item's file: " + ex.getMessage());
+                    return;
+                } catch (IOException ex) {
+                    log.warning("Could not read bulk item file " + item.file + ": " + ex.getMessage());
+                    report(HttpStatus.SC_BAD_REQUEST, "Could not read the item's file");
+                    return;
+                }
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", item.contentType != null ? item.contentType : DEFAULT_CONTENT_TYPE);
+            if (xForwardedFor != null) {
+                headers.put("X-Forwarded-For", xForwardedFor);
+            }
+
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getSelf(), getSelf(), "Bulk ingestion", "POST", "http", null, null, "/xdsrepository", body, headers, null
+            );
+            String timeout = config.getProperty("mediator.timeout");
+            if (timeout != null) {
+                getContext().setReceiveTimeout(Duration.create(Long.parseLong(timeout.trim()), TimeUnit.MILLISECONDS));
+            }
+            getContext().actorOf(Props.create(itemHandler, config)).tell(request, getSelf());
+        }
+
+        private void report(int status, String error) {
+            report(status, false, error);
+        }
+
+        private void report(int status, boolean successful, String error) {
+            getContext().parent().tell(new ItemResult(item.id, status, successful, error), getSelf());
+            getContext().setReceiveTimeout(Duration.Undefined());
+        }
+
+        private void processFinishRequest(FinishRequest fr) {
+            int status = fr.getResponseStatus() != null ? fr.getResponseStatus() : HttpStatus.SC_INTERNAL_SERVER_ERROR;
+            boolean successful = DeferredEnrichmentActor.isSuccessfulResponse(status, fr.getResponse());
+            report(status, successful, successful ? null : readRegistryError(fr.getResponse()));
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof FinishRequest) {
+                processFinishRequest((FinishRequest) msg);
+            } else if (msg instanceof ExceptError) {
+                Throwable t = ((ExceptError) msg).getError();
+                report(HttpStatus.SC_INTERNAL_SERVER_ERROR, t != null ? t.getMessage() : null);
+            } else if (msg instanceof ReceiveTimeout) {
+                report(HttpStatus.SC_GATEWAY_TIMEOUT, "The item wasn't processed within " + config.getProperty("mediator.timeout") + "ms");
+            } else {
+                //e.g. orchestrations, which aren't reported to the core for bulk items
+                unhandled(msg);
+            }
+        }
+    }
+}
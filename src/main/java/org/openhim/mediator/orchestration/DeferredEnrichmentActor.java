@@ -0,0 +1,628 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.*;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.Priority;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.Util;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.*;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
+import scala.concurrent.duration.Duration;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies healthcare worker and facility identifiers that couldn't be resolved while a Provide and Register request
+ * was being processed (see <code>pnr.enrichment.deferred</code>) to the registered documents.
+ * <br/><br/>
+ * The identifiers are looked up through csd-denormalization. Lookups that fail (e.g. because the ILR is unavailable)
+ * are retried every <code>pnr.enrichment.retryDelayMs</code>, up to <code>pnr.enrichment.maxAttempts</code> times.
+ * Identifiers that are unknown to the ILR are left as they are. Once all the lookups of a request are done, the
+ * registered document entries are found with a GetDocuments stored query (by uniqueId, since the request may have
+ * used symbolic ids) and replaced with an Update Document Set (ITI-57) transaction, which adds a new version of each
+ * registered entry with the enterprise identifiers in its author classifications.
+ * <br/><br/>
+ * Calls to the registry go through the <code>xds.registry</code> {@link CircuitBreaker}. While it's open, the call
+ * is retried after <code>pnr.enrichment.retryDelayMs</code>, up to <code>pnr.enrichment.maxAttempts</code> times.
+ * <br/><br/>
+ * Pending requests are only held in memory, so they are lost if the mediator is restarted.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>DeferEnrichment: resolves the identifiers and updates the registry</li>
+ * </ul>
+ */
+public class DeferredEnrichmentActor extends UntypedActor {
+
+    public static final String UPDATE_DOCUMENT_SET_ACTION = "urn:ihe:iti:2010:UpdateDocumentSet";
+    public static final String STORED_QUERY_ACTION = "urn:ihe:iti:2007:RegistryStoredQuery";
+
+    private enum Phase {
+        LOOKUP, QUERY, UPDATE
+    }
+
+    /**
+     * A document entry as it is registered
+     */
+    static class RegisteredEntry {
+        final ExtrinsicObjectType documentEntry;
+        final String id;
+        final String lid;
+        final String version;
+
+        RegisteredEntry(ExtrinsicObjectType documentEntry) {
+            this.documentEntry = documentEntry;
+            this.id = documentEntry.getId();
+            this.lid = documentEntry.getLid() != null ? documentEntry.getLid() : id;
+            this.version = documentEntry.getVersionInfo() != null && documentEntry.getVersionInfo().getVersionName() != null
+                    ? documentEntry.getVersionInfo().getVersionName() : "1";
+        }
+    }
+
+    private static class Job {
+        final long id;
+        final DeferEnrichment request;
+        //indexes of the pending identifiers that still need to be looked up
+        final Set<Integer> remaining = new TreeSet<>();
+        //indexes of the identifiers looked up by the current attempt
+        final Set<Integer> outstanding = new HashSet<>();
+        final Map<Integer, Identifier> resolved = new TreeMap<>();
+        Phase phase = Phase.LOOKUP;
+        int attempt;
+        //calls to the registry that weren't made because its breaker was open
+        int registryRejections;
+        boolean registryCallPending;
+        Cancellable timeout;
+
+        Job(long id, DeferEnrichment request) {
+            this.id = id;
+            this.request = request;
+        }
+    }
+
+    private static class AttemptTimeout {
+        final long jobId;
+        final int attempt;
+
+        AttemptTimeout(long jobId, int attempt) {
+            this.jobId = jobId;
+            this.attempt = attempt;
+        }
+    }
+
+    private static class Retry {
+        final long jobId;
+
+        Retry(long jobId) {
+            this.jobId = jobId;
+        }
+    }
+
+    private static class RegistryRetry {
+        final long jobId;
+        final String action;
+        final String path;
+        final String body;
+
+        RegistryRetry(long jobId, String action, String path, String body) {
+            this.jobId = jobId;
+            this.action = action;
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final CircuitBreaker registryBreaker;
+    private final long retryDelayMillis;
+    private final int maxAttempts;
+    private final Map<Long, Job> jobs = new HashMap<>();
+    private long nextJobId;
+
+
+    public DeferredEnrichmentActor(MediatorConfig config) {
+        this.config = config;
+        this.registryBreaker = CircuitBreaker.forDependency(SharedResources.get(getContext().system()), config, "xds.registry");
+        this.retryDelayMillis = Util.getLongProperty(config, "pnr.enrichment.retryDelayMs", 60000);
+        this.maxAttempts = (int) Math.max(1, Util.getLongProperty(config, "pnr.enrichment.maxAttempts", 5));
+    }
+
+    private static void count(String result, int n) {
+        if (n > 0) {
+            MetricsRegistry.getInstance().counter(
+                    "mediator_pnr_deferred_enrichment_total", "Healthcare worker and facility identifiers enriched after the Provide and Register response",
+                    MetricsRegistry.labels("result", result)
+            ).increment(n);
+        }
+    }
+
+    /**
+     * @return true if a registry or repository response indicates that the submission was registered
+     */
+    public static boolean isSuccessfulResponse(MediatorHTTPResponse response) {
+        return isSuccessfulResponse(response.getStatusCode(), response.getBody());
+    }
+
+    /**
+     * @return true if a registry or repository response with the status and body indicates that the submission was
+     * registered. Registry failures are responded to with a 2xx status, so only the RegistryResponse status counts.
+     */
+    public static boolean isSuccessfulResponse(int status, String body) {
+        return status >= 200 && status <= 299 && body != null && body.contains("ResponseStatusType:Success");
+    }
+
+    private void processDeferEnrichment(DeferEnrichment msg) {
+        Job job = new Job(nextJobId++, msg);
+        for (int i=0; i<msg.getPending().size(); i++) {
+            job.remaining.add(i);
+        }
+        count("deferred", job.remaining.size());
+        if (job.remaining.isEmpty()) {
+            return;
+        }
+
+        jobs.put(job.id, job);
+        attempt(job);
+    }
+
+    private void attempt(Job job) {
+        job.attempt++;
+        for (Integer index : job.remaining) {
+            DeferEnrichment.PendingIdentifier pending = job.request.getPending().get(index);
+            String correlationId = job.id + ":" + index;
+            BaseResolveIdentifier msg;
+            if (pending.isFacility()) {
+                msg = new ResolveFacilityIdentifier(getSelf(), getSelf(), correlationId, pending.getLocalId(), MediatorSettings.get(config).getFacilityAuthority());
+            } else {
+                msg = new ResolveHealthcareWorkerIdentifier(getSelf(), getSelf(), correlationId, pending.getLocalId(), MediatorSettings.get(config).getProviderAuthority());
+            }
+            //background work, so it shouldn't hold up transactions that clients are waiting for
+            msg.setPriority(Priority.BULK);
+            getContext().actorSelection(config.userPathFor("csd-denormalization")).tell(msg, getSelf());
+            job.outstanding.add(index);
+        }
+        scheduleTimeout(job);
+    }
+
+    private void scheduleTimeout(Job job) {
+        job.timeout = getContext().system().scheduler().scheduleOnce(
+                Duration.create(retryDelayMillis, TimeUnit.MILLISECONDS), getSelf(), new AttemptTimeout(job.id, job.attempt),
+                getContext().dispatcher(), getSelf()
+        );
+    }
+
+    private Job jobFor(String correlationId) {
+        if (correlationId == null || !correlationId.contains(":")) {
+            return null;
+        }
+        try {
+            return jobs.get(Long.parseLong(correlationId.substring(0, correlationId.indexOf(':'))));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private void finish(Job job, String result) {
+        count(result, job.resolved.size());
+        jobs.remove(job.id);
+    }
+
+    private void processResolveResponse(BaseResolveIdentifierResponse msg) {
+        String correlationId = msg.getOriginalRequest().getCorrelationId();
+        Job job = jobFor(correlationId);
+        if (job == null || job.phase != Phase.LOOKUP) {
+            return;
+        }
+        Integer index = Integer.valueOf(correlationId.substring(correlationId.indexOf(':') + 1));
+        if (!job.outstanding.remove(index)) {
+            //a late response to a previous attempt
+            return;
+        }
+
+        if (msg.getIdentifier() != null) {
+            job.resolved.put(index, msg.getIdentifier());
+            job.remaining.remove(index);
+        } else if (msg.getError() == null) {
+            log.info("Deferred identifier " + job.request.getPending().get(index).getLocalId() + " is unknown to the ILR");
+            job.remaining.remove(index);
+            count("unresolved", 1);
+        }
+
+        if (job.outstanding.isEmpty()) {
+            lookupsComplete(job);
+        }
+    }
+
+    private void processAttemptTimeout(AttemptTimeout msg) {
+        Job job = jobs.get(msg.jobId);
+        if (job == null || job.attempt != msg.attempt) {
+            return;
+        }
+        if (job.phase != Phase.LOOKUP) {
+            log.warning("The registry did not respond to the deferred enrichment " + phaseName(job) + " in time");
+            job.registryCallPending = false;
+            registryBreaker.onFailure();
+            finish(job, "failed");
+            return;
+        }
+        job.outstanding.clear();
+        lookupsComplete(job);
+    }
+
+    private void lookupsComplete(Job job) {
+        job.timeout.cancel();
+        if (!job.remaining.isEmpty() && job.attempt < maxAttempts) {
+            log.info("Retrying " + job.remaining.size() + " deferred identifier lookup(s) in " + retryDelayMillis + "ms");
+            job.timeout = getContext().system().scheduler().scheduleOnce(
+                    Duration.create(retryDelayMillis, TimeUnit.MILLISECONDS), getSelf(), new Retry(job.id), getContext().dispatcher(), getSelf()
+            );
+            return;
+        }
+
+        if (!job.remaining.isEmpty()) {
+            log.warning("Giving up on " + job.remaining.size() + " deferred identifier lookup(s) after " + job.attempt + " attempts");
+            count("unresolved", job.remaining.size());
+        }
+        if (job.resolved.isEmpty()) {
+            jobs.remove(job.id);
+            return;
+        }
+
+        Set<String> uniqueIds = new LinkedHashSet<>();
+        for (Integer index : job.resolved.keySet()) {
+            uniqueIds.add(job.request.getPending().get(index).getDocumentUniqueId());
+        }
+        job.phase = Phase.QUERY;
+        sendToRegistry(job, STORED_QUERY_ACTION, MediatorSettings.get(config).getRegistry().getPath(), buildStoredQueryEnvelope(uniqueIds));
+    }
+
+    private void processRetry(Retry msg) {
+        Job job = jobs.get(msg.jobId);
+        if (job != null) {
+            attempt(job);
+        }
+    }
+
+    private static String phaseName(Job job) {
+        return job.phase == Phase.QUERY ? "query" : "update";
+    }
+
+    private void sendToRegistry(Job job, String action, String path, String body) {
+        if (!registryBreaker.tryAcquire()) {
+            job.registryRejections++;
+            if (job.registryRejections >= maxAttempts) {
+                log.warning("Giving up on the deferred enrichment " + phaseName(job) + ": the XDS.b Registry circuit breaker is open");
+                finish(job, "failed");
+                return;
+            }
+            log.info("XDS.b Registry circuit breaker is open. Retrying the deferred enrichment " + phaseName(job) + " in " + retryDelayMillis + "ms");
+            job.timeout = getContext().system().scheduler().scheduleOnce(
+                    Duration.create(retryDelayMillis, TimeUnit.MILLISECONDS), getSelf(), new RegistryRetry(job.id, action, path, body),
+                    getContext().dispatcher(), getSelf()
+            );
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/soap+xml; charset=UTF-8; action=\"" + action + "\"");
+
+        MediatorSettings.Endpoint registry = MediatorSettings.get(config).getRegistry();
+        job.attempt++;
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                getSelf(), getSelf(), "XDS.b Registry", "POST", registry.getScheme(),
+                registry.getHost(), registry.getPort(), path, body, headers, Collections.<String, String>emptyMap(),
+                job.id + ":" + job.phase
+        );
+        getContext().actorSelection(config.userPathFor("http-connector")).tell(request, getSelf());
+        job.registryCallPending = true;
+        scheduleTimeout(job);
+    }
+
+    private void processRegistryRetry(RegistryRetry msg) {
+        Job job = jobs.get(msg.jobId);
+        if (job != null) {
+            sendToRegistry(job, msg.action, msg.path, msg.body);
+        }
+    }
+
+    private void processRegistryResponse(MediatorHTTPResponse response) {
+        Job job = jobFor(response.getOriginalRequest().getCorrelationId());
+        if (job == null || !job.registryCallPending) {
+            return;
+        }
+        job.timeout.cancel();
+        job.registryCallPending = false;
+        if (response.getStatusCode() >= 500) {
+            registryBreaker.onFailure();
+        } else {
+            registryBreaker.onSuccess();
+        }
+
+        if (job.phase == Phase.QUERY) {
+            processStoredQueryResponse(job, response);
+        } else if (isSuccessfulResponse(response)) {
+            log.info("Applied " + job.resolved.size() + " deferred identifier(s) to the registry");
+            finish(job, "updated");
+        } else {
+            log.warning("The registry rejected the deferred enrichment update with status " + response.getStatusCode() + ": " + response.getBody());
+            finish(job, "failed");
+        }
+    }
+
+    private void processStoredQueryResponse(Job job, MediatorHTTPResponse response) {
+        if (!isSuccessfulResponse(response)) {
+            log.warning("The registry rejected the deferred enrichment query with status " + response.getStatusCode() + ": " + response.getBody());
+            finish(job, "failed");
+            return;
+        }
+
+        try {
+            Map<String, RegisteredEntry> registered = readRegisteredEntries(response.getBody());
+            Iterator<Integer> it = job.resolved.keySet().iterator();
+            while (it.hasNext()) {
+                if (!registered.containsKey(job.request.getPending().get(it.next()).getDocumentUniqueId())) {
+                    it.remove();
+                    count("unsupported", 1);
+                }
+            }
+            if (job.resolved.isEmpty()) {
+                log.warning("None of the deferred enrichment's document entries could be found in the registry");
+                jobs.remove(job.id);
+                return;
+            }
+
+            job.phase = Phase.UPDATE;
+            String path = MediatorSettings.get(config).getRegistryUpdatePath();
+            String update = Util.marshallJAXBObject(ParseProvideAndRegisterRequestActor.LCM_PACKAGE, buildUpdate(job.request, job.resolved, registered), false);
+            sendToRegistry(job, UPDATE_DOCUMENT_SET_ACTION, path, envelope(UPDATE_DOCUMENT_SET_ACTION, update));
+        } catch (XMLStreamException | JAXBException ex) {
+            log.error(ex, "Could not build the deferred enrichment update");
+            finish(job, "failed");
+        }
+    }
+
+    static String buildStoredQueryEnvelope(Collection<String> documentUniqueIds) {
+        StringBuilder values = new StringBuilder("(");
+        for (String uniqueId : documentUniqueIds) {
+            if (values.length() > 1) {
+                values.append(",");
+            }
+            values.append("'").append(StringEscapeUtils.escapeXml10(uniqueId.replace("'", "''"))).append("'");
+        }
+        values.append(")");
+
+        String query = "<query:AdhocQueryRequest xmlns:query=\"urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0\" " +
+                "xmlns:rim=\"urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0\">" +
+                "<query:ResponseOption returnComposedObjects=\"true\" returnType=\"LeafClass\"/>" +
+                "<rim:AdhocQuery id=\"" + XDSConstants.XDS_GetDocuments + "\">" +
+                "<rim:Slot name=\"$XDSDocumentEntryUniqueId\"><rim:ValueList><rim:Value>" + values + "</rim:Value></rim:ValueList></rim:Slot>" +
+                "</rim:AdhocQuery>" +
+                "</query:AdhocQueryRequest>";
+        return envelope(STORED_QUERY_ACTION, query);
+    }
+
+    /**
+     * Reads the approved document entries from a GetDocuments stored query response. Only the ExtrinsicObjects are
+     * unmarshalled, so the rest of the envelope doesn't need to be bound.
+     *
+     * @return the entries, keyed by their uniqueId
+     */
+    static Map<String, RegisteredEntry> readRegisteredEntries(String response) throws XMLStreamException, JAXBException {
+        Map<String, RegisteredEntry> entries = new HashMap<>();
+        Unmarshaller unmarshaller = Util.getJAXBContext(ParseProvideAndRegisterRequestActor.LCM_PACKAGE).createUnmarshaller();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(response));
+        try {
+            while (reader.hasNext()) {
+                if (reader.getEventType() == XMLStreamConstants.START_ELEMENT && "ExtrinsicObject".equals(reader.getLocalName())) {
+                    //leaves the reader after the element's end
+                    ExtrinsicObjectType eo = unmarshaller.unmarshal(reader, ExtrinsicObjectType.class).getValue();
+                    String uniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eo);
+                    if (uniqueId != null && (eo.getStatus() == null || XDSConstants.STATUS_APPROVED.equals(eo.getStatus()))) {
+                        entries.put(uniqueId, new RegisteredEntry(eo));
+                    }
+                    continue;
+                }
+                reader.next();
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Builds an Update Document Set request that replaces the registered document entries with new versions
+     * containing the resolved identifiers. The new versions are copies of the registered entries, so they keep any
+     * changes made when the request was registered (e.g. the enterprise patient identifier). Only the submission set
+     * is taken from the original request.
+     *
+     * @param resolved the resolved identifiers, keyed by their index in the pending identifiers
+     * @param registered the registered document entries, keyed by their uniqueId
+     */
+    static SubmitObjectsRequest buildUpdate(DeferEnrichment request, Map<Integer, Identifier> resolved,
+                                            Map<String, RegisteredEntry> registered) throws JAXBException {
+        SubmitObjectsRequest metadata = ParseProvideAndRegisterRequestActor.parseRegisterRequest(request.getMetadataXML());
+        RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(metadata, XDSConstants.UUID_XDSSubmissionSet);
+
+        Set<RegisteredEntry> updated = new LinkedHashSet<>();
+        for (Map.Entry<Integer, Identifier> entry : resolved.entrySet()) {
+            DeferEnrichment.PendingIdentifier pending = request.getPending().get(entry.getKey());
+            RegisteredEntry registeredEntry = registered.get(pending.getDocumentUniqueId());
+            if (registeredEntry == null) {
+                continue;
+            }
+            ExtrinsicObjectType eo = registeredEntry.documentEntry;
+            List<ClassificationType> authors = new ArrayList<>();
+            for (ClassificationType c : eo.getClassification()) {
+                if (XDSConstants.UUID_XDSDocumentEntry_author.equals(c.getClassificationScheme())) {
+                    authors.add(c);
+                }
+            }
+            if (pending.getAuthorIndex() >= authors.size()) {
+                continue;
+            }
+
+            ClassificationType author = authors.get(pending.getAuthorIndex());
+            if (pending.isFacility()) {
+                InfosetUtil.addOrOverwriteSlot(author, XDSConstants.SLOT_NAME_AUTHOR_INSTITUTION, entry.getValue().toXON(pending.getLocalLocationName()));
+            } else {
+                InfosetUtil.addOrOverwriteSlot(author, XDSConstants.SLOT_NAME_AUTHOR_PERSON, entry.getValue().toXCN());
+            }
+            updated.add(registeredEntry);
+        }
+
+        ObjectFactory rimFactory = new ObjectFactory();
+        SubmitObjectsRequest update = new SubmitObjectsRequest();
+        update.setRegistryObjectList(rimFactory.createRegistryObjectListType());
+        List<JAXBElement<? extends IdentifiableType>> objects = update.getRegistryObjectList().getIdentifiable();
+
+        //a new submission set for the update
+        reidentify(submissionSet, newUUID());
+        InfosetUtil.setExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, newOID(), submissionSet);
+        SimpleDateFormat submissionTime = new SimpleDateFormat("yyyyMMddHHmmss");
+        submissionTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        InfosetUtil.addOrOverwriteSlot(submissionSet, XDSConstants.SLOT_NAME_SUBMISSION_TIME, submissionTime.format(new Date()));
+        objects.add(rimFactory.createRegistryPackage(submissionSet));
+        //the submission set classification may have been a separate object in the original request
+        Iterator<ClassificationType> it = submissionSet.getClassification().iterator();
+        while (it.hasNext()) {
+            if (XDSConstants.UUID_XDSSubmissionSet.equals(it.next().getClassificationNode())) {
+                it.remove();
+            }
+        }
+        ClassificationType submissionSetClassification = new ClassificationType();
+        submissionSetClassification.setId(newUUID());
+        submissionSetClassification.setClassifiedObject(submissionSet.getId());
+        submissionSetClassification.setClassificationNode(XDSConstants.UUID_XDSSubmissionSet);
+        objects.add(rimFactory.createClassification(submissionSetClassification));
+
+        //new versions of the document entries, in the same logical documents
+        for (RegisteredEntry registeredEntry : updated) {
+            ExtrinsicObjectType eo = registeredEntry.documentEntry;
+            eo.setLid(registeredEntry.lid);
+            //assigned by the registry
+            eo.setStatus(null);
+            eo.setVersionInfo(null);
+            reidentify(eo, newUUID());
+            objects.add(rimFactory.createExtrinsicObject(eo));
+
+            AssociationType1 association = new AssociationType1();
+            association.setId(newUUID());
+            association.setAssociationType(XDSConstants.HAS_MEMBER);
+            association.setSourceObject(submissionSet.getId());
+            association.setTargetObject(eo.getId());
+            InfosetUtil.addOrOverwriteSlot(association, XDSConstants.SLOT_NAME_SUBMISSIONSET_STATUS, "Original");
+            InfosetUtil.addOrOverwriteSlot(association, "PreviousVersion", registeredEntry.version);
+            objects.add(rimFactory.createAssociation(association));
+        }
+
+        return update;
+    }
+
+    /**
+     * Give a registry object, and the classifications and external identifiers it contains, new ids
+     */
+    private static void reidentify(RegistryObjectType ro, String id) {
+        ro.setId(id);
+        for (ClassificationType c : ro.getClassification()) {
+            c.setId(newUUID());
+            c.setClassifiedObject(id);
+        }
+        for (ExternalIdentifierType ei : ro.getExternalIdentifier()) {
+            ei.setId(newUUID());
+            ei.setRegistryObject(id);
+        }
+    }
+
+    private static String newUUID() {
+        return "urn:uuid:" + UUID.randomUUID();
+    }
+
+    /**
+     * @return a unique OID, derived from a random UUID (ITU-T X.667)
+     */
+    private static String newOID() {
+        return "2.25." + new BigInteger(UUID.randomUUID().toString().replace("-", ""), 16);
+    }
+
+    private static String envelope(String action, String body) {
+        return "<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\">" +
+                "<env:Header xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">" +
+                "<wsa:Action env:mustUnderstand=\"true\">" + action + "</wsa:Action>" +
+                "<wsa:MessageID>" + newUUID() + "</wsa:MessageID>" +
+                "</env:Header>" +
+                "<env:Body>" + body + "</env:Body>" +
+                "</env:Envelope>";
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        for (Job job : jobs.values()) {
+            if (job.timeout != null) {
+                job.timeout.cancel();
+            }
+            if (job.registryCallPending) {
+                //the registry didn't respond before the actor stopped
+                registryBreaker.onFailure();
+            }
+        }
+        if (!jobs.isEmpty()) {
+            log.warning("Discarding " + jobs.size() + " pending deferred enrichment request(s)");
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof DeferEnrichment) {
+            processDeferEnrichment((DeferEnrichment) msg);
+        } else if (msg instanceof BaseResolveIdentifierResponse) {
+            processResolveResponse((BaseResolveIdentifierResponse) msg);
+        } else if (msg instanceof AttemptTimeout) {
+            processAttemptTimeout((AttemptTimeout) msg);
+        } else if (msg instanceof Retry) {
+            processRetry((Retry) msg);
+        } else if (msg instanceof RegistryRetry) {
+            processRegistryRetry((RegistryRetry) msg);
+        } else if (msg instanceof MediatorHTTPResponse) {
+            processRegistryResponse((MediatorHTTPResponse) msg);
+        } else {
+            //e.g. orchestrations and errors from the services, which are handled by the attempt timeout
+            unhandled(msg);
+        }
+    }
+}
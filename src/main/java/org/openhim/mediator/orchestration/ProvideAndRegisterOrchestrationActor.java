@@ -7,19 +7,27 @@
 package org.openhim.mediator.orchestration;
 
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import ihe.iti.xds_b._2007.ObjectFactory;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.*;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.http.HttpStatus;
 import org.dcm4chee.xds2.common.XDSConstants;
 import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.MediatorDispatchers;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.Priority;
 import org.openhim.mediator.Util;
 import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.HL7Codec;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.denormalization.RegistryResponseError;
 import org.openhim.mediator.engine.MediatorConfig;
@@ -30,9 +38,12 @@ import org.openhim.mediator.engine.messages.SimpleMediatorResponse;
 import org.openhim.mediator.exceptions.CXParseException;
 import org.openhim.mediator.exceptions.ValidationException;
 import org.openhim.mediator.messages.*;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import org.openhim.mediator.metrics.StageTimer;
 import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
+import scala.concurrent.duration.Duration;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.JAXBElement;
@@ -45,14 +56,29 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An orchestrator for enriching XDS.b Provide and Register Document Set requests.
  * <br/><br/>
+ * Register Document Set requests (ITI-42) are enriched in the same way. Since they only contain metadata,
+ * just the SubmitObjectsRequest is parsed and marshalled.
+ * <br/><br/>
  * Messages supported:
  * <ul>
  *     <li>OrchestrateProvideAndRegisterRequest: responds with OrchestrateProvideAndRegisterRequestResponse</li>
+ *     <li>OrchestrateRegisterDocumentSetRequest: responds with OrchestrateProvideAndRegisterRequestResponse</li>
  * </ul>
+ * <br/>
+ * When created with just the mediator config, the orchestrator uses the mediator's shared startup actors
+ * (pix-denormalization, csd-denormalization and xds-pnr-document-normalization), so that only the orchestrator
+ * itself is created per transaction.
+ * <br/><br/>
+ * With <code>pnr.enrichment.deferred=true</code>, only patient identifier resolution is on the critical path. Healthcare
+ * worker and facility identifiers that haven't been resolved within <code>pnr.enrichment.budgetMs</code>, or that
+ * couldn't be resolved, are left as the local identifiers instead of failing the request. They are returned as a
+ * {@link DeferEnrichment} with the response, so that they can be resolved and applied to the registry later
+ * (see {@link DeferredEnrichmentActor}) once the documents have been registered.
  */
 public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
@@ -65,6 +91,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         Identifier fromId;
         String correlationId;
         MediatorRequestMessage resolveRequestMessage;
+        //set if the identifier couldn't be looked up, e.g. because the service is unavailable
+        String error;
 
         abstract void resolve(Identifier resolvedId);
     }
@@ -81,6 +109,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private class PatientIdentifierMapping extends IdentifierMapping {
         List<DocumentNode> nodes = new ArrayList<>();
+        Identifier resolvedId;
 
         public PatientIdentifierMapping(Identifier fromId, DocumentNode node) {
             nodes.add(node);
@@ -90,6 +119,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         @Override
         void resolve(Identifier resolvedId) {
             resolved = true;
+            this.resolvedId = resolvedId;
 
             if (resolvedId!=null) {
                 for (DocumentNode node : nodes) {
@@ -100,7 +130,16 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         }
     }
 
-    private class HealthcareWorkerIdentifierMapping extends IdentifierMapping {
+    /**
+     * A healthcare worker or facility identifier, held in an author classification of a document entry
+     */
+    private abstract class AuthorIdentifierMapping extends IdentifierMapping {
+        ExtrinsicObjectType documentEntry;
+        //the position of the author classification amongst the document entry's author classifications
+        int authorIndex;
+    }
+
+    private class HealthcareWorkerIdentifierMapping extends AuthorIdentifierMapping {
         List<String> slotList;
 
         public HealthcareWorkerIdentifierMapping(Identifier fromId, List<String> slotList) {
@@ -121,7 +160,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         }
     }
 
-    private class FacilityIdentifierMapping extends IdentifierMapping {
+    private class FacilityIdentifierMapping extends AuthorIdentifierMapping {
         String localLocationName;
         List<String> slotList;
 
@@ -145,6 +184,9 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     private final MediatorConfig config;
+    private final MediatorSettings settings;
+    private final boolean useSharedServices;
+    //null handlers are resolved to the shared startup actors
     private final ActorRef resolvePatientIdHandler;
     private final ActorRef resolveHealthcareWorkerIdHandler;
     private final ActorRef resolveFacilityIdHandler;
@@ -152,7 +194,13 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     private String xForwardedFor;
 
     private OrchestrateProvideAndRegisterRequest originalRequest;
+    private Deadline deadline = Deadline.NONE;
+    private Cancellable deadlineTimer;
+    private Priority priority = Priority.NORMAL;
     private ProvideAndRegisterDocumentSetRequestType parsedRequest;
+    //the metadata being enriched; part of parsedRequest for Provide and Register requests
+    private SubmitObjectsRequest submitObjectsRequest;
+    private boolean isRegisterDocumentSet;
     private String messageBuffer;
 
     private List<IdentifierMapping> enterprisePatientIds = new ArrayList<>();
@@ -161,6 +209,16 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private String labOrderDocumentId;
 
+    private static class EnrichmentBudgetExpired {}
+
+    //provider and facility enrichment is off the critical path
+    private final boolean deferEnrichment;
+    private boolean enrichmentBudgetExpired;
+    private Cancellable enrichmentBudget;
+    private boolean responded;
+
+    private StageTimer stageTimer = new StageTimer("pnr");
+
     /* auto-register patient */
 
     //Should only ever attempt a single registration
@@ -168,6 +226,17 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     //Identifiers that couldn't be resolved
     private List<IdentifierMapping> failedPatientIds = new ArrayList<>();
 
+    public ProvideAndRegisterOrchestrationActor(MediatorConfig config) {
+        this.config = config;
+        this.settings = MediatorSettings.get(config);
+        this.deferEnrichment = settings.isDeferEnrichment();
+        this.useSharedServices = true;
+        this.resolvePatientIdHandler = null;
+        this.resolveHealthcareWorkerIdHandler = null;
+        this.resolveFacilityIdHandler = null;
+        this.registerNewPatientHandler = null;
+    }
+
     public ProvideAndRegisterOrchestrationActor(MediatorConfig config, ActorRef resolvePatientIdHandler,
                                                 ActorRef resolveHealthcareWorkerIdHandler, ActorRef resolveFacilityIdHandler) {
         this(config, resolvePatientIdHandler, resolveHealthcareWorkerIdHandler, resolveFacilityIdHandler, resolvePatientIdHandler);
@@ -176,23 +245,67 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     public ProvideAndRegisterOrchestrationActor(MediatorConfig config, ActorRef resolvePatientIdHandler, ActorRef resolveHealthcareWorkerIdHandler,
                                                 ActorRef resolveFacilityIdHandler, ActorRef registerNewPatientHandler) {
         this.config = config;
+        this.settings = MediatorSettings.get(config);
+        this.deferEnrichment = settings.isDeferEnrichment();
+        this.useSharedServices = false;
         this.resolvePatientIdHandler = resolvePatientIdHandler;
         this.resolveHealthcareWorkerIdHandler = resolveHealthcareWorkerIdHandler;
         this.resolveFacilityIdHandler = resolveFacilityIdHandler;
         this.registerNewPatientHandler = registerNewPatientHandler;
     }
 
+    @Override
+    public void preStart() throws Exception {
+        MetricsRegistry.countActorStart(getClass());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (enrichmentBudget != null) {
+            enrichmentBudget.cancel();
+        }
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+        }
+    }
+
 
     private void parseRequest(OrchestrateProvideAndRegisterRequest msg) {
         log.info("Parsing Xds.b Provide and Register request");
         messageBuffer = msg.getRequestObject();
-        ActorRef parseHandler = getContext().actorOf(Props.create(ParseProvideAndRegisterRequestActor.class, config), "xds-pnr-document-normalization");
-        parseHandler.tell(new SimpleMediatorRequest<>(msg.getRequestHandler(), getSelf(), messageBuffer), getSelf());
+        stageTimer.start("parse");
+        ActorRef parseHandler = null;
+        if (!useSharedServices) {
+            parseHandler = getContext().actorOf(
+                    MediatorDispatchers.withDispatcher(getContext().system(), Props.create(ParseProvideAndRegisterRequestActor.class, config), MediatorDispatchers.XML),
+                    "xds-pnr-document-normalization");
+        }
+        SimpleMediatorRequest<String> parseRequest;
+        if (isRegisterDocumentSet) {
+            parseRequest = new ParseProvideAndRegisterRequestActor.ParseRegisterDocumentSet(msg.getRequestHandler(), getSelf(), messageBuffer);
+        } else {
+            parseRequest = new SimpleMediatorRequest<>(msg.getRequestHandler(), getSelf(), messageBuffer);
+        }
+        sendToService(parseHandler, "xds-pnr-document-normalization", parseRequest);
+    }
+
+    private void sendToService(ActorRef handler, String sharedService, Object msg) {
+        if (handler != null) {
+            handler.tell(msg, getSelf());
+        } else {
+            getContext().actorSelection(config.userPathFor(sharedService)).tell(msg, getSelf());
+        }
     }
 
     private void processParsedRequest(ProvideAndRegisterDocumentSetRequestType doc) {
-        log.info("Request parsed. Processing document");
         parsedRequest = doc;
+        processSubmission(doc.getSubmitObjectsRequest());
+    }
+
+    private void processSubmission(SubmitObjectsRequest submission) {
+        log.info("Request parsed. Processing document");
+        stageTimer.stop("parse");
+        submitObjectsRequest = submission;
         boolean outcome = true;
         try {
             extractLabOrderDocumentId();
@@ -204,13 +317,13 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             respondBadRequest(ex);
             outcome = false;
         } finally {
-            sendAuditMessage(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED, outcome);
+            sendAuditMessage(isRegisterDocumentSet ? ATNAAudit.TYPE.REGISTER_DOCUMENT_SET_RECEIVED : ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED, outcome);
         }
     }
 
     private void extractLabOrderDocumentId() {
-        if (parsedRequest != null) {
-            for (ExtrinsicObjectType eot : getExtrinsicObjectTypes(parsedRequest)) {
+        if (submitObjectsRequest != null) {
+            for (ExtrinsicObjectType eot : getExtrinsicObjectTypes(submitObjectsRequest)) {
                 if (isClassifiedAsLabOrder(eot)) {
                     labOrderDocumentId = getDocumentUniqueId(eot);
                 }
@@ -218,9 +331,9 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         }
     }
 
-    private List<ExtrinsicObjectType> getExtrinsicObjectTypes(ProvideAndRegisterDocumentSetRequestType parsedRequest) {
+    private List<ExtrinsicObjectType> getExtrinsicObjectTypes(SubmitObjectsRequest submitObjectsRequest) {
         List<ExtrinsicObjectType> extrinsicObjectTypes = new ArrayList<>();
-        for ( JAXBElement<? extends IdentifiableType> object : parsedRequest.getSubmitObjectsRequest()
+        for ( JAXBElement<? extends IdentifiableType> object : submitObjectsRequest
                 .getRegistryObjectList().getIdentifiable()) {
             IdentifiableType identifiable = (IdentifiableType)((JAXBElement)object).getValue();
             if (identifiable instanceof ExtrinsicObjectType) {
@@ -256,7 +369,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     private void initIdentifiersToBeResolvedMappings() throws ValidationException {
         readPatientIdentifiers();
 
-        if (Util.isPropertyTrue(config, "pnr.providers.enrich", true) || Util.isPropertyTrue(config, "pnr.facilities.enrich", true)) {
+        if (settings.isEnrichProviders() || settings.isEnrichFacilities()) {
             readHealthcareWorkerAndFacilityIdentifiers();
         }
     }
@@ -273,10 +386,10 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     private void readPatientIdentifiers() throws CXParseException {
-        RegistryPackageType regPac = InfosetUtil.getRegistryPackage(parsedRequest.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+        RegistryPackageType regPac = InfosetUtil.getRegistryPackage(submitObjectsRequest, XDSConstants.UUID_XDSSubmissionSet);
         if (regPac==null) {
             String msg = "Unabled to correctly parse XDS.b SubmissionSet Metadata";
-            RegistryResponseError.RegistryError err = new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_METADATA_ERROR, msg);
+            RegistryResponseError.RegistryError err = new RegistryResponseError.RegistryError(metadataErrorCode(), msg);
             respondBadRequest(Collections.singletonList(err));
             return;
         }
@@ -284,7 +397,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         String CX = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac);
         addPatientIdToResolve(new Identifier(CX), new DocumentNode(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
 
-        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(parsedRequest.getSubmitObjectsRequest());
+        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(submitObjectsRequest);
         for (ExtrinsicObjectType eo : eos) {
             String documentPatCX = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eo);
             addPatientIdToResolve(new Identifier(documentPatCX), new DocumentNode(XDSConstants.UUID_XDSDocumentEntry_patientId, eo));
@@ -292,7 +405,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     protected void readHealthcareWorkerAndFacilityIdentifiers() throws ValidationException {
-        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(parsedRequest.getSubmitObjectsRequest());
+        List<ExtrinsicObjectType> eos = InfosetUtil.getExtrinsicObjects(submitObjectsRequest);
         for (ExtrinsicObjectType eo : eos) {
             List<Map<String, SlotType1>> authorClassSlots = null;
             try {
@@ -301,12 +414,11 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
                 throw new ValidationException(e);
             }
 
-            for (Map<String, SlotType1> slotMap : authorClassSlots) {
+            for (int authorIndex=0; authorIndex<authorClassSlots.size(); authorIndex++) {
+                Map<String, SlotType1> slotMap = authorClassSlots.get(authorIndex);
 
-                String localProviderID = null;
-                String localProviderIDAssigningAuthority = null;
-                String localLocationID = null;
-                String localLocationIDAssigningAuthority = null;
+                Identifier localProviderID = null;
+                Identifier localLocationID = null;
                 String localLocationName = null;
                 List<String> personSlotValList = null;
                 List<String> institutionSlotValList = null;
@@ -317,12 +429,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
                     // loop through all values and find the first one with an ID and assigning authority
                     for (String val : personSlotValList) {
-                        String[] xcnComponents = val.split("\\^", -1);
-
-                        // if the identifier component exists
-                        if (!xcnComponents[0].isEmpty() && !xcnComponents[8].isEmpty()) {
-                            localProviderID = xcnComponents[0];
-                            localProviderIDAssigningAuthority = xcnComponents[8].substring(xcnComponents[8].indexOf('&') + 1, xcnComponents[8].lastIndexOf('&'));
+                        localProviderID = HL7Codec.parseXCN(val);
+                        if (localProviderID != null) {
                             break;
                         }
                     }
@@ -334,13 +442,10 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
                     // loop through all values and find the first one with an ID
                     for (String val : institutionSlotValList) {
-                        String[] xonComponents = val.split("\\^", -1);
-
-                        // if the identifier component exists
-                        if (xonComponents.length >= 10 && !xonComponents[5].isEmpty() && !xonComponents[9].isEmpty()) {
-                            localLocationID = xonComponents[9];
-                            localLocationName = xonComponents[0];
-                            localLocationIDAssigningAuthority = xonComponents[5].substring(xonComponents[5].indexOf('&') + 1, xonComponents[5].lastIndexOf('&'));
+                        Identifier id = HL7Codec.parseXON(val);
+                        if (id != null) {
+                            localLocationID = id;
+                            localLocationName = HL7Codec.xonOrganisationName(val);
                         }
                     }
 
@@ -350,14 +455,18 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
                     throw new ValidationException("Local provider and facility identifiers could not be extracted from the XDS metadata");
                 }
 
-                if (localProviderID!=null && Util.isPropertyTrue(config, "pnr.providers.enrich", true)) {
-                    Identifier id = new Identifier(localProviderID, new AssigningAuthority("", localProviderIDAssigningAuthority));
-                    enterpriseHealthcareWorkerIds.add(new HealthcareWorkerIdentifierMapping(id, personSlotValList));
+                if (localProviderID!=null && settings.isEnrichProviders()) {
+                    HealthcareWorkerIdentifierMapping mapping = new HealthcareWorkerIdentifierMapping(localProviderID, personSlotValList);
+                    mapping.documentEntry = eo;
+                    mapping.authorIndex = authorIndex;
+                    enterpriseHealthcareWorkerIds.add(mapping);
                 }
 
-                if (localLocationID!=null && Util.isPropertyTrue(config, "pnr.facilities.enrich", true)) {
-                    Identifier id = new Identifier(localLocationID, new AssigningAuthority("", localLocationIDAssigningAuthority));
-                    enterpriseFacilityIds.add(new FacilityIdentifierMapping(id, localLocationName, institutionSlotValList));
+                if (localLocationID!=null && settings.isEnrichFacilities()) {
+                    FacilityIdentifierMapping mapping = new FacilityIdentifierMapping(localLocationID, localLocationName, institutionSlotValList);
+                    mapping.documentEntry = eo;
+                    mapping.authorIndex = authorIndex;
+                    enterpriseFacilityIds.add(mapping);
                 }
             }
         }
@@ -390,60 +499,71 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private void resolveEnterpriseIdentifiers() {
         log.info("Resolving identifiers");
+        stageTimer.start("resolve");
         resolvePatientIdentifiers();
         resolveHealthcareWorkerIdentifiers();
         resolveFacilityIdentifiers();
+
+        if (deferEnrichment && !(enterpriseHealthcareWorkerIds.isEmpty() && enterpriseFacilityIds.isEmpty())) {
+            long budget = settings.getEnrichmentBudgetMillis();
+            enrichmentBudget = getContext().system().scheduler().scheduleOnce(
+                    Duration.create(budget, TimeUnit.MILLISECONDS), getSelf(), new EnrichmentBudgetExpired(), getContext().dispatcher(), getSelf()
+            );
+        }
     }
 
     private void resolvePatientIdentifiers() {
-        AssigningAuthority targetPatientIdAuthority = new AssigningAuthority();
-        targetPatientIdAuthority.setAssigningAuthority(config.getProperty("client.requestedAssigningAuthority"));
-        targetPatientIdAuthority.setAssigningAuthorityId(config.getProperty("client.requestedAssigningAuthorityId"));
+        AssigningAuthority targetPatientIdAuthority = settings.getClientAuthority();
+        List<ResolvePatientIdentifier> requests = new ArrayList<>(enterprisePatientIds.size());
 
         for (IdentifierMapping mapping : enterprisePatientIds) {
             String correlationId = UUID.randomUUID().toString();
             mapping.correlationId = correlationId;
 
             ResolvePatientIdentifier msg = new ResolvePatientIdentifier(
-                    originalRequest.getRequestHandler(), getSelf(), correlationId, mapping.fromId, targetPatientIdAuthority
+                    originalRequest.getRequestHandler(), getSelf(), correlationId, mapping.fromId, targetPatientIdAuthority, deadline
             );
-            resolvePatientIdHandler.tell(msg, getSelf());
+            msg.setPriority(priority);
+            requests.add(msg);
 
             mapping.resolveRequestMessage = msg;
         }
+
+        //sent together, so that a backend that supports batches can resolve them in one request
+        if (!requests.isEmpty()) {
+            sendToService(resolvePatientIdHandler, "pix-denormalization", new ResolvePatientIdentifiers(requests));
+        }
     }
 
     private void resolveHealthcareWorkerIdentifiers() {
-        AssigningAuthority targetHealthcareWorkerIdAuthority = new AssigningAuthority();
-        targetHealthcareWorkerIdAuthority.setAssigningAuthority(config.getProperty("provider.requestedAssigningAuthority"));
-        targetHealthcareWorkerIdAuthority.setAssigningAuthorityId(config.getProperty("provider.requestedAssigningAuthorityId"));
+        AssigningAuthority targetHealthcareWorkerIdAuthority = settings.getProviderAuthority();
 
         for (IdentifierMapping mapping : enterpriseHealthcareWorkerIds) {
             String correlationId = UUID.randomUUID().toString();
             mapping.correlationId = correlationId;
 
             ResolveHealthcareWorkerIdentifier msg = new ResolveHealthcareWorkerIdentifier(
-                    originalRequest.getRequestHandler(), getSelf(), correlationId, mapping.fromId, targetHealthcareWorkerIdAuthority
+                    originalRequest.getRequestHandler(), getSelf(), correlationId, mapping.fromId, targetHealthcareWorkerIdAuthority, deadline
             );
-            resolveHealthcareWorkerIdHandler.tell(msg, getSelf());
+            msg.setPriority(priority);
+            sendToService(resolveHealthcareWorkerIdHandler, "csd-denormalization", msg);
 
             mapping.resolveRequestMessage = msg;
         }
     }
 
     private void resolveFacilityIdentifiers() {
-        AssigningAuthority targetFacilityIdAuthority = new AssigningAuthority();
-        targetFacilityIdAuthority.setAssigningAuthority(config.getProperty("facility.requestedAssigningAuthority"));
-        targetFacilityIdAuthority.setAssigningAuthorityId(config.getProperty("facility.requestedAssigningAuthorityId"));
+        AssigningAuthority targetFacilityIdAuthority = settings.getFacilityAuthority();
 
         for (IdentifierMapping mapping : enterpriseFacilityIds) {
             String correlationId = UUID.randomUUID().toString();
             mapping.correlationId = correlationId;
 
             ResolveFacilityIdentifier msg = new ResolveFacilityIdentifier(
-                    originalRequest.getRequestHandler(), getSelf(), correlationId, mapping.fromId, targetFacilityIdAuthority
+                    originalRequest.getRequestHandler(), getSelf(), correlationId, mapping.fromId, targetFacilityIdAuthority, deadline
             );
-            resolveFacilityIdHandler.tell(msg, getSelf());
+            msg.setPriority(priority);
+            sendToService(resolveFacilityIdHandler, "csd-denormalization", msg);
 
             mapping.resolveRequestMessage = msg;
         }
@@ -463,8 +583,13 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     private void enrichResolvedId(BaseResolveIdentifierResponse response, List<IdentifierMapping> lst) {
+        if (responded) {
+            //e.g. a provider lookup that completed after the enrichment budget
+            return;
+        }
         for (IdentifierMapping mapping : lst) {
             if (mapping.correlationId.equals(response.getOriginalRequest().getCorrelationId())) {
+                mapping.error = response.getError();
                 mapping.resolve(response.getIdentifier());
             }
         }
@@ -485,6 +610,13 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
      * It only attempts to read anything it can and won't fail if the document isn't a CDA.
      */
     private RegisterNewPatient buildRegistrationRequestFromCDA(String document) {
+        if (document == null) {
+            //e.g. Register Document Set requests, which don't contain the document
+            return new RegisterNewPatient(
+                    originalRequest.getRequestHandler(), getSelf(), getAllKnownPatientIdentifiers(), null, null, null, null, null, null, deadline
+            );
+        }
+
         try {
             DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
             Document doc = builder.parse(IOUtils.toInputStream(document));
@@ -498,13 +630,13 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             String languagePreference = xpath.compile("ClinicalDocument/recordTarget/patientRole/patient/languageCommunication/languageCode/@code").evaluate(doc);
 
             return new RegisterNewPatient(
-                    originalRequest.getRequestHandler(), getSelf(), getAllKnownPatientIdentifiers(), givenName, lastName, gender, birthdate, telecom, languagePreference
+                    originalRequest.getRequestHandler(), getSelf(), getAllKnownPatientIdentifiers(), givenName, lastName, gender, birthdate, telecom, languagePreference, deadline
             );
 
         } catch (SAXException ex) {
             //Not a failure if not a valid CDA document
             return new RegisterNewPatient(
-                    originalRequest.getRequestHandler(), getSelf(), getAllKnownPatientIdentifiers(), null, null, null, null, null, null
+                    originalRequest.getRequestHandler(), getSelf(), getAllKnownPatientIdentifiers(), null, null, null, null, null, null, deadline
             );
 
         } catch (XPathExpressionException | ParserConfigurationException | IOException ex) {
@@ -515,7 +647,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private void autoRegisterPatient() {
         String document = originalRequest.getDocument(); //is mime?
-        if (document == null) { //else get from parsed message
+        if (document == null && parsedRequest != null) { //else get from parsed message
             if (parsedRequest.getDocument()!=null && parsedRequest.getDocument().size()>=1) {
                 document = parsedRequest.getDocument().get(0).getContent().get(0).toString();
                 document = new String(DatatypeConverter.parseBase64Binary(document));
@@ -524,7 +656,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
         RegisterNewPatient registerNewPatient = buildRegistrationRequestFromCDA(document);
         if (registerNewPatient!=null) {
-            registerNewPatientHandler.tell(registerNewPatient, getSelf());
+            registerNewPatient.setPriority(priority);
+            sendToService(registerNewPatientHandler, "pix-denormalization", registerNewPatient);
             sentNewRegistrationRequest = true;
         }
     }
@@ -532,7 +665,8 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
 
     private void checkForFailedPatientIdResolutionsAndAutoRegisterIfSo() {
         for (IdentifierMapping mapping : enterprisePatientIds) {
-            if (!mapping.successful) {
+            //identifiers that couldn't be looked up at all aren't unknown to the client registry
+            if (!mapping.successful && mapping.error == null) {
                 mapping.resolved = false;
                 failedPatientIds.add(mapping);
             }
@@ -545,11 +679,21 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
     }
 
     private boolean checkAndRespondIfAllResolved() {
-        if (Util.isPropertyTrue(config, "pnr.patients.autoRegister") && areAllIdentifiersResolvedForList(enterprisePatientIds) && !sentNewRegistrationRequest) {
+        if (responded) {
+            return true;
+        }
+        if (settings.isAutoRegisterPatients() && areAllIdentifiersResolvedForList(enterprisePatientIds) && !sentNewRegistrationRequest) {
             checkForFailedPatientIdResolutionsAndAutoRegisterIfSo();
         }
 
-        if (areAllIdentifiersResolved()) {
+        if (areAllIdentifiersResolved() || (enrichmentBudgetExpired && areAllIdentifiersResolvedForList(enterprisePatientIds))) {
+            responded = true;
+            if (deadline.hasPassed()) {
+                //the client has given up, so don't marshal and forward the enriched request
+                stopAtDeadline();
+                return true;
+            }
+            stageTimer.stop("resolve");
             boolean outcome = false;
             try {
                 List<RegistryResponseError.RegistryError> errors = getResolveIdentifierErrors();
@@ -564,33 +708,111 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             } catch (JAXBException ex) {
                 respondBadRequest(ex);
             } finally {
-                sendAuditMessage(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_ENRICHED, outcome);
+                sendAuditMessage(isRegisterDocumentSet ? ATNAAudit.TYPE.REGISTER_DOCUMENT_SET_ENRICHED : ATNAAudit.TYPE.PROVIDE_AND_REGISTER_ENRICHED, outcome);
                 return true;
             }
         }
         return false;
     }
 
+    private void stopAtDeadline() {
+        log.warning("Transaction deadline passed. Stopping orchestration.");
+        getContext().stop(getSelf());
+    }
+
     private void respondSuccess() throws JAXBException {
         log.info("All identifiers resolved. Responding with enriched document.");
-        messageBuffer = Util.marshallJAXBObject("ihe.iti.xds_b._2007", new ObjectFactory().createProvideAndRegisterDocumentSetRequest(parsedRequest), false);
-        OrchestrateProvideAndRegisterRequestResponse response = new OrchestrateProvideAndRegisterRequestResponse(originalRequest, messageBuffer, labOrderDocumentId);
+        stageTimer.start("marshal");
+        if (isRegisterDocumentSet) {
+            messageBuffer = Util.marshallJAXBObject(ParseProvideAndRegisterRequestActor.LCM_PACKAGE, submitObjectsRequest, false);
+        } else {
+            messageBuffer = Util.marshallJAXBObject("ihe.iti.xds_b._2007", new ObjectFactory().createProvideAndRegisterDocumentSetRequest(parsedRequest), false);
+        }
+        stageTimer.stop("marshal");
+        stageTimer.payload("marshal", "response", messageBuffer);
+        List<Identifier> resolvedPatientIds = new ArrayList<>(enterprisePatientIds.size());
+        for (IdentifierMapping mapping : enterprisePatientIds) {
+            if (((PatientIdentifierMapping) mapping).resolvedId != null) {
+                resolvedPatientIds.add(((PatientIdentifierMapping) mapping).resolvedId);
+            }
+        }
+        OrchestrateProvideAndRegisterRequestResponse response = new OrchestrateProvideAndRegisterRequestResponse(
+                originalRequest, messageBuffer, labOrderDocumentId, resolvedPatientIds, deferEnrichment ? buildDeferredEnrichment() : null
+        );
         originalRequest.getRespondTo().tell(response, getSelf());
+        stageTimer.stopTotal();
+    }
+
+    /**
+     * @return the healthcare worker and facility identifiers that weren't resolved in time, or null if there are none
+     */
+    private DeferEnrichment buildDeferredEnrichment() throws JAXBException {
+        List<AuthorIdentifierMapping> deferred = new ArrayList<>();
+        for (List<IdentifierMapping> lst : Arrays.asList(enterpriseHealthcareWorkerIds, enterpriseFacilityIds)) {
+            for (IdentifierMapping mapping : lst) {
+                //identifiers that the ILR doesn't know aren't retried
+                if (!mapping.resolved || mapping.error != null) {
+                    deferred.add((AuthorIdentifierMapping) mapping);
+                }
+            }
+        }
+        if (deferred.isEmpty()) {
+            return null;
+        }
+
+        //the affected document entries and the submission set, as registered
+        oasis.names.tc.ebxml_regrep.xsd.rim._3.ObjectFactory rimFactory = new oasis.names.tc.ebxml_regrep.xsd.rim._3.ObjectFactory();
+        SubmitObjectsRequest metadata = new SubmitObjectsRequest();
+        metadata.setRegistryObjectList(rimFactory.createRegistryObjectListType());
+        metadata.getRegistryObjectList().getIdentifiable().add(
+                rimFactory.createRegistryPackage(InfosetUtil.getRegistryPackage(submitObjectsRequest, XDSConstants.UUID_XDSSubmissionSet))
+        );
+
+        List<DeferEnrichment.PendingIdentifier> pending = new ArrayList<>(deferred.size());
+        Set<ExtrinsicObjectType> documentEntries = new LinkedHashSet<>();
+        for (AuthorIdentifierMapping mapping : deferred) {
+            String localLocationName = mapping instanceof FacilityIdentifierMapping ? ((FacilityIdentifierMapping) mapping).localLocationName : null;
+            String documentUniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, mapping.documentEntry);
+            pending.add(new DeferEnrichment.PendingIdentifier(
+                    mapping.documentEntry.getId(), documentUniqueId, mapping.authorIndex, mapping instanceof FacilityIdentifierMapping,
+                    mapping.fromId, localLocationName
+            ));
+            documentEntries.add(mapping.documentEntry);
+        }
+        for (ExtrinsicObjectType documentEntry : documentEntries) {
+            metadata.getRegistryObjectList().getIdentifiable().add(rimFactory.createExtrinsicObject(documentEntry));
+        }
+
+        log.info("Deferring the enrichment of " + deferred.size() + " healthcare worker and facility identifier(s)");
+        String metadataXML = Util.marshallJAXBObject(ParseProvideAndRegisterRequestActor.LCM_PACKAGE, metadata, false);
+        return new DeferEnrichment(metadataXML, pending);
+    }
+
+    private String responseAction() {
+        return isRegisterDocumentSet ? RegistryResponseError.RDS_RESPONSE_ACTION : RegistryResponseError.PNR_RESPONSE_ACTION;
+    }
+
+    private String errorCode() {
+        return isRegisterDocumentSet ? RegistryResponseError.XDS_REGISTRY_ERROR : RegistryResponseError.XDS_REPOSITORY_ERROR;
+    }
+
+    private String metadataErrorCode() {
+        return isRegisterDocumentSet ? RegistryResponseError.XDS_REGISTRY_METADATA_ERROR : RegistryResponseError.XDS_REPOSITORY_METADATA_ERROR;
     }
 
     private void respondBadRequest(String error) {
         log.error("An error occurred while orchestrating the message: " + error);
 
-        RegistryResponseError registryResponseError = new RegistryResponseError(RegistryResponseError.PNR_RESPONSE_ACTION, originalRequest.getMessageID());
-        registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_ERROR, error));
+        RegistryResponseError registryResponseError = new RegistryResponseError(responseAction(), originalRequest.getMessageID());
+        registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(errorCode(), error));
         originalRequest.getRequestHandler().tell(registryResponseError.toFinishRequest(), getSelf());
     }
 
     private void respondBadRequest(Throwable error) {
         log.error("An error occurred while orchestrating the message: " + ExceptionUtils.getStackTrace(error));
 
-        RegistryResponseError registryResponseError = new RegistryResponseError(RegistryResponseError.PNR_RESPONSE_ACTION, originalRequest.getMessageID());
-        registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_ERROR, error.getMessage()));
+        RegistryResponseError registryResponseError = new RegistryResponseError(responseAction(), originalRequest.getMessageID());
+        registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(errorCode(), error.getMessage()));
         originalRequest.getRequestHandler().tell(registryResponseError.toFinishRequest(), getSelf());
     }
 
@@ -601,9 +823,27 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         }
         log.error("An error occurred while orchestrating the message:\n" + err.toString());
 
-        RegistryResponseError registryResponseError = new RegistryResponseError(RegistryResponseError.PNR_RESPONSE_ACTION, originalRequest.getMessageID());
+        RegistryResponseError registryResponseError = new RegistryResponseError(responseAction(), originalRequest.getMessageID());
         registryResponseError.addRegistryErrors(errors);
-        originalRequest.getRequestHandler().tell(registryResponseError.toFinishRequest(), getSelf());
+        int status = hasLookupErrors() ? HttpStatus.SC_SERVICE_UNAVAILABLE : HttpStatus.SC_OK;
+        originalRequest.getRequestHandler().tell(registryResponseError.toFinishRequest(status), getSelf());
+    }
+
+    /**
+     * @return true if any identifier couldn't be looked up, e.g. because the PIX manager or ILR is unavailable
+     */
+    private boolean hasLookupErrors() {
+        List<List<IdentifierMapping>> lists = deferEnrichment
+                ? Collections.singletonList(enterprisePatientIds)
+                : Arrays.asList(enterprisePatientIds, enterpriseHealthcareWorkerIds, enterpriseFacilityIds);
+        for (List<IdentifierMapping> lst : lists) {
+            for (IdentifierMapping mapping : lst) {
+                if (mapping.error != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     private boolean areAllIdentifiersResolved() {
@@ -626,8 +866,11 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
      */
     private List<RegistryResponseError.RegistryError> getResolveIdentifierErrors() {
         List<IdentifierMapping> unsuccessfulPatientIDs = getAllUnsuccessfulIdentifiers(enterprisePatientIds);
-        List<IdentifierMapping> unsuccessfulHealthcareWorkerIDs = getAllUnsuccessfulIdentifiers(enterpriseHealthcareWorkerIds);
-        List<IdentifierMapping> unsuccessfulFacilityIDs = getAllUnsuccessfulIdentifiers(enterpriseFacilityIds);
+        //deferred identifiers don't fail the request
+        List<IdentifierMapping> unsuccessfulHealthcareWorkerIDs = deferEnrichment
+                ? Collections.<IdentifierMapping>emptyList() : getAllUnsuccessfulIdentifiers(enterpriseHealthcareWorkerIds);
+        List<IdentifierMapping> unsuccessfulFacilityIDs = deferEnrichment
+                ? Collections.<IdentifierMapping>emptyList() : getAllUnsuccessfulIdentifiers(enterpriseFacilityIds);
 
         //all successful
         if (unsuccessfulPatientIDs.isEmpty() && unsuccessfulHealthcareWorkerIDs.isEmpty() && unsuccessfulFacilityIDs.isEmpty()) {
@@ -639,14 +882,21 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         if (!unsuccessfulPatientIDs.isEmpty()) {
             for (IdentifierMapping id : unsuccessfulPatientIDs) {
                 String msg = "Failed to resolve patient identifier: " + id.fromId.toCX();
-                errors.add(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_UNKNOWN_PATIENTID, msg));
+                if (id.error != null) {
+                    errors.add(new RegistryResponseError.RegistryError(errorCode(), msg + " (" + id.error + ")"));
+                } else {
+                    errors.add(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_UNKNOWN_PATIENTID, msg));
+                }
             }
         }
 
         if (!unsuccessfulHealthcareWorkerIDs.isEmpty()) {
             for (IdentifierMapping id : unsuccessfulHealthcareWorkerIDs) {
                 String msg = "Failed to resolve healthcare worker identifier: " + id.fromId.toXCN();
-                errors.add(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_ERROR, msg));
+                if (id.error != null) {
+                    msg += " (" + id.error + ")";
+                }
+                errors.add(new RegistryResponseError.RegistryError(errorCode(), msg));
             }
         }
 
@@ -654,7 +904,10 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             for (IdentifierMapping id : unsuccessfulFacilityIDs) {
                 FacilityIdentifierMapping fim = ((FacilityIdentifierMapping) id);
                 String msg = "Failed to resolve facility identifier: " + fim.fromId.toXON(fim.localLocationName);
-                errors.add(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_ERROR, msg));
+                if (id.error != null) {
+                    msg += " (" + id.error + ")";
+                }
+                errors.add(new RegistryResponseError.RegistryError(errorCode(), msg));
             }
         }
 
@@ -678,7 +931,7 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             log.info("Patient successfully registered. Resending resolve identifier request(s).");
 
             for (IdentifierMapping mapping : failedPatientIds) {
-                resolvePatientIdHandler.tell(mapping.resolveRequestMessage, getSelf());
+                sendToService(resolvePatientIdHandler, "pix-denormalization", mapping.resolveRequestMessage);
             }
         } else {
             respondBadRequest(response.getErr());
@@ -696,11 +949,18 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             }
             audit.setParticipantIdentifiers(participants);
 
-            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(parsedRequest.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(submitObjectsRequest, XDSConstants.UUID_XDSSubmissionSet);
             String uniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, regPac);
             audit.setUniqueId(uniqueId);
+
+            List<String> documentUniqueIds = new ArrayList<>();
+            for (ExtrinsicObjectType eo : InfosetUtil.getExtrinsicObjects(submitObjectsRequest)) {
+                documentUniqueIds.add(InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eo));
+            }
+            audit.setDocumentUniqueIds(documentUniqueIds);
             audit.setOutcome(outcome);
             audit.setSourceIP(xForwardedFor);
+            audit.setPriority(priority);
 
             getContext().actorSelection(config.userPathFor("atna-auditing")).tell(audit, getSelf());
         } catch (Exception ex) {
@@ -715,12 +975,22 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
             log.info("Orchestrating XDS.b Provide and Register request");
 
             originalRequest = (OrchestrateProvideAndRegisterRequest) msg;
+            deadline = Deadline.of(msg);
+            priority = Priority.of(msg);
+            deadlineTimer = deadline.schedule(getContext());
+            if (msg instanceof OrchestrateRegisterDocumentSetRequest) {
+                isRegisterDocumentSet = true;
+                stageTimer = new StageTimer("rds");
+            }
             xForwardedFor = ((OrchestrateProvideAndRegisterRequest) msg).getXForwardedFor();
             parseRequest((OrchestrateProvideAndRegisterRequest) msg);
 
         } else if (SimpleMediatorResponse.isInstanceOf(ProvideAndRegisterDocumentSetRequestType.class, msg)) { //response from parser
             processParsedRequest(((SimpleMediatorResponse<ProvideAndRegisterDocumentSetRequestType>) msg).getResponseObject());
 
+        } else if (SimpleMediatorResponse.isInstanceOf(SubmitObjectsRequest.class, msg)) { //response from parser (register document set)
+            processSubmission(((SimpleMediatorResponse<SubmitObjectsRequest>) msg).getResponseObject());
+
         } else if (msg instanceof ResolvePatientIdentifierResponse) {
             processResolvedPatientId((ResolvePatientIdentifierResponse) msg);
             checkAndRespondIfAllResolved();
@@ -734,6 +1004,14 @@ public class ProvideAndRegisterOrchestrationActor extends UntypedActor {
         } else if (msg instanceof RegisterNewPatientResponse) {
             processRegisterNewPatientResponse((RegisterNewPatientResponse) msg);
 
+        } else if (msg instanceof EnrichmentBudgetExpired) {
+            log.info("Provider and facility enrichment budget expired");
+            enrichmentBudgetExpired = true;
+            checkAndRespondIfAllResolved();
+
+        } else if (msg instanceof Deadline.Expired) {
+            stopAtDeadline();
+
         } else {
             unhandled(msg);
         }
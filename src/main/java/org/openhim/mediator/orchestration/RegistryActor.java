@@ -8,53 +8,162 @@ package org.openhim.mediator.orchestration;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.AdmissionController;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.Priority;
+import org.openhim.mediator.PriorityPolicy;
+import org.openhim.mediator.SharedResources;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
-import org.openhim.mediator.denormalization.PIXRequestActor;
 import org.openhim.mediator.denormalization.RegistryResponseError;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.*;
 import org.openhim.mediator.messages.*;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import org.openhim.mediator.metrics.StageTimer;
+import org.openhim.mediator.normalization.SOAPWrapper;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 public class RegistryActor extends UntypedActor {
+    public static final String REGISTER_DOCUMENT_SET_ACTION = "urn:ihe:iti:2007:RegisterDocumentSet-b";
+
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
-    private MediatorConfig config;
+    private static class ForwardTimeout {}
 
+    private MediatorConfig config;
+    private final SharedResources resources;
+    private final CircuitBreaker registryBreaker;
+    private final AdmissionController admission;
+    private AdmissionController.Ticket admissionTicket;
+    //the request, while it waits to be admitted
+    private MediatorHTTPRequest queuedRequest;
+
+    //if not set, the shared pix-denormalization startup actor is used
     protected ActorRef resolvePatientIDActor;
 
     private ActorRef requestHandler;
+    private Deadline deadline = Deadline.NONE;
+    private MediatorSettings settings;
+    private Cancellable deadlineTimer;
+    private boolean responded;
+    private String client;
+    private Priority priority = Priority.NORMAL;
     private String xForwardedFor;
     private String messageBuffer;
-    private Identifier patientId;
-    private Identifier resolvedPatientId;
+    private List<Identifier> patientIds;
+    //patient identifiers still being resolved, by correlation id
+    private final Map<String, Identifier> pendingResolutions = new HashMap<>();
+    private final Map<Identifier, Identifier> resolvedPatientIds = new LinkedHashMap<>();
+    private final List<Identifier> unresolvedPatientIds = new ArrayList<>();
+    //patient identifiers that couldn't be looked up, e.g. because the PIX manager is unavailable
+    private final Map<Identifier, String> patientIdLookupErrors = new LinkedHashMap<>();
     private String messageID;
     private boolean isStoredQuery;
+    //set if the stored query response can be cached
+    private String cacheKey;
+    private long cacheGeneration;
+    private SOAPWrapper soapWrapper;
+    //the enterprise identifiers of an enriched register document set request
+    private List<Identifier> enterprisePatientIds;
+    private DeferEnrichment deferredEnrichment;
+    //set while the request is forwarded to the registry
+    private Cancellable forwardTimeout;
+    private boolean forwardPending;
+
+    private final StageTimer stageTimer = new StageTimer("registry");
 
 
     public RegistryActor(MediatorConfig config) {
         this.config = config;
+        this.resources = SharedResources.get(getContext().system());
+        this.registryBreaker = CircuitBreaker.forDependency(resources, config, "xds.registry");
+        this.admission = AdmissionController.forRoute(resources, config, "/xdsregistry");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        MetricsRegistry.countActorStart(getClass());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (forwardPending) {
+            //the transaction ended before the registry responded, e.g. because the connection failed
+            registryBreaker.onFailure();
+        }
+        if (forwardTimeout != null) {
+            forwardTimeout.cancel();
+        }
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+        }
+        admission.release(admissionTicket);
+    }
 
-        resolvePatientIDActor = getContext().actorOf(Props.create(PIXRequestActor.class, config), "pix-denormalization");
+    private void admitRequest(MediatorHTTPRequest request) {
+        requestHandler = request.getRequestHandler();
+        admissionTicket = admission.admit(getContext(), request);
+        if (admissionTicket == null) {
+            log.warning("Rejecting registry request: admission limits reached");
+            respond(admission.rejection());
+        } else if (admissionTicket.isQueued()) {
+            queuedRequest = request;
+        } else {
+            log.info("Parsing registry request...");
+            parseMessage(request);
+        }
+    }
+
+    private void processQueueDeadline() {
+        if (admission.expire(admissionTicket)) {
+            log.warning("Rejecting registry request: not admitted in time");
+            respond(admission.rejection());
+            queuedRequest = null;
+        }
+    }
+
+    private void respond(Object response) {
+        responded = true;
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+            deadlineTimer = null;
+        }
+        requestHandler.tell(response, getSelf());
+    }
+
+    private void processDeadlineExpired() {
+        if (responded) {
+            return;
+        }
+        log.warning("Registry request did not complete before its deadline. Stopping transaction.");
+        MetricsRegistry.getInstance().counter(
+                "mediator_deadline_exceeded_total", "Transactions stopped because they didn't complete before their deadline",
+                MetricsRegistry.labels("route", "/xdsregistry")
+        ).increment();
+        respondRegistryError("The transaction did not complete before its deadline", RegistryResponseError.XDS_REGISTRY_ERROR, HttpStatus.SC_GATEWAY_TIMEOUT);
+        //also stops the orchestrator, releasing the buffered message
+        getContext().stop(getSelf());
     }
 
 
@@ -78,77 +187,310 @@ public class RegistryActor extends UntypedActor {
             //get request body
             messageBuffer = request.getBody();
 
+            client = AdmissionController.clientOf(request);
             isStoredQuery = isAdhocQuery(request.getBody());
             if (isStoredQuery) {
+                classify(DeferredEnrichmentActor.STORED_QUERY_ACTION);
                 log.info("Parsing registry stored query request...");
                 ActorSelection parseActor = getContext().actorSelection(config.userPathFor("parse-registry-stored-query"));
+                stageTimer.start("parse");
                 parseActor.tell(new SimpleMediatorRequest<>(request.getRequestHandler(), getSelf(), messageBuffer), getSelf());
+            } else if (settings.isEnrichRegisterDocumentSet() && isRegisterDocumentSet()) {
+                log.info("Enriching register document set request...");
+                classify(REGISTER_DOCUMENT_SET_ACTION);
+                orchestrateRegisterDocumentSet();
             } else {
                 log.info("Forwarding request to registry...");
                 forwardToRegistry();
             }
         } catch (ParserConfigurationException | IOException | XPathExpressionException ex) {
-            request.getRequestHandler().tell(new ExceptError(ex), getSelf());
+            respond(new ExceptError(ex));
+        }
+    }
+
+    private void classify(String action) {
+        priority = PriorityPolicy.forConfig(resources, config).classify("/xdsregistry", action, client);
+    }
+
+    /**
+     * Reads the SOAP action from the header only, keeping the wrapper for the orchestration
+     */
+    private boolean isRegisterDocumentSet() {
+        try {
+            soapWrapper = new SOAPWrapper(messageBuffer);
+        } catch (SOAPWrapper.SOAPParseException ex) {
+            return false;
         }
+        messageID = soapWrapper.getMessageID();
+        return REGISTER_DOCUMENT_SET_ACTION.equals(soapWrapper.getAction());
+    }
+
+    /**
+     * Enrich the metadata of a register document set request (ITI-42) in the same way as provide and register requests
+     */
+    private void orchestrateRegisterDocumentSet() {
+        ActorRef orchestrator = getContext().actorOf(
+                Props.create(ProvideAndRegisterOrchestrationActor.class, config), "xds-rds-orchestrator"
+        );
+
+        OrchestrateRegisterDocumentSetRequest msg = new OrchestrateRegisterDocumentSetRequest(
+                requestHandler, getSelf(), soapWrapper.getSoapBody(), xForwardedFor, messageID, deadline
+        );
+        msg.setPriority(priority);
+        stageTimer.start("rds_orchestration");
+        orchestrator.tell(msg, getSelf());
     }
 
-    private void lookupEnterpriseIdentifier() {
-        String enterpriseIdentifierAuthority = config.getProperty("client.requestedAssigningAuthority");
-        String enterpriseIdentifierAuthorityId = config.getProperty("client.requestedAssigningAuthorityId");
-        AssigningAuthority authority = new AssigningAuthority(enterpriseIdentifierAuthority, enterpriseIdentifierAuthorityId);
-        ResolvePatientIdentifier msg = new ResolvePatientIdentifier(requestHandler, getSelf(), patientId, authority);
-        resolvePatientIDActor.tell(msg, getSelf());
+    private void processRegisterDocumentSetResponse(OrchestrateProvideAndRegisterRequestResponse msg) {
+        stageTimer.stop("rds_orchestration");
+        soapWrapper.setSoapBody(msg.getResponseObject());
+        messageBuffer = soapWrapper.getFullDocument();
+        enterprisePatientIds = msg.getEnterprisePatientIds();
+        deferredEnrichment = msg.getDeferredEnrichment();
+        log.info("Sending enriched register document set request to XDS.b Registry");
+        forwardToRegistry();
+    }
+
+    /**
+     * Resolves all the patient identifiers in the query concurrently
+     */
+    private void lookupEnterpriseIdentifiers() {
+        AssigningAuthority authority = settings.getClientAuthority();
+        stageTimer.start("pix");
+
+        for (Identifier patientId : patientIds) {
+            String correlationId = UUID.randomUUID().toString();
+            pendingResolutions.put(correlationId, patientId);
+
+            ResolvePatientIdentifier msg = new ResolvePatientIdentifier(requestHandler, getSelf(), correlationId, patientId, authority, deadline);
+            msg.setPriority(priority);
+            if (resolvePatientIDActor != null) {
+                resolvePatientIDActor.tell(msg, getSelf());
+            } else {
+                getContext().actorSelection(config.userPathFor("pix-denormalization")).tell(msg, getSelf());
+            }
+        }
     }
 
-    private void enrichEnterpriseIdentifier(ResolvePatientIdentifierResponse msg) {
-        resolvedPatientId = msg.getIdentifier();
+    private void processResolvedIdentifier(ResolvePatientIdentifierResponse msg) {
+        Identifier patientId = pendingResolutions.remove(msg.getOriginalRequest().getCorrelationId());
+        if (patientId == null) {
+            log.warning("Received a patient identifier response for an unknown request");
+            return;
+        }
+
+        if (msg.getIdentifier() != null) {
+            resolvedPatientIds.put(patientId, msg.getIdentifier());
+        } else if (msg.getError() != null) {
+            patientIdLookupErrors.put(patientId, msg.getError());
+        } else {
+            unresolvedPatientIds.add(patientId);
+        }
+
+        if (pendingResolutions.isEmpty()) {
+            stageTimer.stop("pix");
+            enrichEnterpriseIdentifiers();
+        }
+    }
 
-        if (resolvedPatientId != null) {
-            log.info("Resolved patient enterprise identifier. Enriching message...");
+    private void enrichEnterpriseIdentifiers() {
+        if (unresolvedPatientIds.isEmpty() && patientIdLookupErrors.isEmpty()) {
+            log.info("Resolved patient enterprise identifiers. Enriching message...");
             ActorSelection enrichActor = getContext().actorSelection(config.userPathFor("enrich-registry-stored-query"));
-            EnrichRegistryStoredQuery enrichMsg = new EnrichRegistryStoredQuery(requestHandler, getSelf(), messageBuffer, resolvedPatientId);
+            EnrichRegistryStoredQuery enrichMsg = new EnrichRegistryStoredQuery(requestHandler, getSelf(), messageBuffer, resolvedPatientIds);
+            stageTimer.start("enrich");
             enrichActor.tell(enrichMsg, getSelf());
         } else {
-            String err = "Could not resolve patient identifier " + patientId;
-            log.error(err);
-
             RegistryResponseError registryResponseError = new RegistryResponseError(RegistryResponseError.STORED_QUERY_RESPONSE_ACTION, messageID);
-            registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_UNKNOWN_PATIENTID, err));
-            requestHandler.tell(registryResponseError.toFinishRequest(), getSelf());
+            for (Identifier patientId : unresolvedPatientIds) {
+                String err = "Could not resolve patient identifier " + patientId;
+                log.error(err);
+                registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_UNKNOWN_PATIENTID, err));
+            }
+            for (Map.Entry<Identifier, String> lookupError : patientIdLookupErrors.entrySet()) {
+                String err = "Could not resolve patient identifier " + lookupError.getKey() + ": " + lookupError.getValue();
+                log.error(err);
+                registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REGISTRY_ERROR, err));
+            }
+            int status = patientIdLookupErrors.isEmpty() ? HttpStatus.SC_OK : HttpStatus.SC_SERVICE_UNAVAILABLE;
+            respond(registryResponseError.toFinishRequest(status));
         }
     }
 
-    private boolean isAdhocQuerySuccessful(MediatorHTTPResponse response) {
-        return response.getStatusCode()>200 && response.getStatusCode()<=299 &&
+    /**
+     * A stored query succeeded if the registry responded with any 2xx status, 200 included, and the
+     * AdhocQueryResponse status is Success. The same rule decides the audit outcome and whether the response is cached.
+     */
+    protected boolean isQuerySuccessful(MediatorHTTPResponse response) {
+        return response.getStatusCode()>=200 && response.getStatusCode()<=299 && response.getBody()!=null &&
                 response.getBody().contains("status=\"urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Success\"");
     }
 
     private void forwardToRegistry() {
+        if (deadline.hasPassed()) {
+            //the client has given up on the transaction
+            processDeadlineExpired();
+            return;
+        }
+        if (!registryBreaker.tryAcquire()) {
+            log.warning("XDS.b Registry circuit breaker is open. Failing request fast.");
+            respondRegistryUnavailable("The XDS.b Registry is unavailable");
+            return;
+        }
+
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", "application/soap+xml");
 
-        String scheme;
-        Integer port;
-        if (config.getProperty("xds.registry.secure").equals("true")) {
-            scheme = "https";
-            port = Integer.parseInt(config.getProperty("xds.registry.securePort"));
-        } else {
-            scheme = "http";
-            port = Integer.parseInt(config.getProperty("xds.registry.port"));
-        }
-
+        MediatorSettings.Endpoint registry = settings.getRegistry();
         MediatorHTTPRequest request = new MediatorHTTPRequest(
-                requestHandler, getSelf(), "XDS.b Registry", "POST", scheme,
-                config.getProperty("xds.registry.host"), port, config.getProperty("xds.registry.path"),
+                requestHandler, getSelf(), "XDS.b Registry", "POST", registry.getScheme(),
+                registry.getHost(), registry.getPort(), registry.getPath(),
                 messageBuffer, headers, Collections.<String, String>emptyMap()
         );
 
         ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
+        stageTimer.start("forward");
+        stageTimer.payload("forward", "request", messageBuffer);
         httpConnector.tell(request, getSelf());
+        forwardPending = true;
+        forwardTimeout = registryBreaker.scheduleCallTimeout(getContext(), new ForwardTimeout());
+    }
+
+    /**
+     * Respond to a request that couldn't be sent to the registry. XDSRegistryNotAvailable is only defined for
+     * register requests; stored queries report it as an XDSRegistryError.
+     */
+    private void respondRegistryUnavailable(String err) {
+        String errorCode = isStoredQuery ? RegistryResponseError.XDS_REGISTRY_ERROR : RegistryResponseError.XDS_REGISTRY_NOT_AVAILABLE;
+        respondRegistryError(err, errorCode, HttpStatus.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private void respondRegistryError(String err, String errorCode, int status) {
+        readSOAPHeader();
+        RegistryResponseError registryResponseError = new RegistryResponseError(responseAction(), messageID);
+        registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(errorCode, err));
+        stageTimer.stopTotal();
+        respond(registryResponseError.toFinishRequest(status));
+        if (isStoredQuery) {
+            sendAuditMessage(ATNAAudit.TYPE.REGISTRY_QUERY_ENRICHED, false); //audit
+        }
+    }
+
+    /**
+     * Read the action and MessageID of a request that is forwarded as is, so that an error response can answer it
+     */
+    private void readSOAPHeader() {
+        if (soapWrapper == null && messageBuffer != null) {
+            try {
+                soapWrapper = new SOAPWrapper(messageBuffer);
+            } catch (SOAPWrapper.SOAPParseException ex) {
+                return;
+            }
+        }
+        if (messageID == null && soapWrapper != null) {
+            messageID = soapWrapper.getMessageID();
+        }
+    }
+
+    /**
+     * @return the action of the response to the request, e.g. urn:ihe:iti:2007:RegisterDocumentSet-bResponse for ITI-42
+     */
+    private String responseAction() {
+        if (isStoredQuery) {
+            return RegistryResponseError.STORED_QUERY_RESPONSE_ACTION;
+        }
+        String action = soapWrapper != null ? soapWrapper.getAction() : null;
+        if (action == null || action.trim().isEmpty() || REGISTER_DOCUMENT_SET_ACTION.equals(action.trim())) {
+            return RegistryResponseError.RDS_RESPONSE_ACTION;
+        }
+        return action.trim() + "Response";
+    }
+
+    private void processForwardTimeout() {
+        if (!forwardPending) {
+            return;
+        }
+        log.warning("XDS.b Registry did not respond within " + registryBreaker.getCallTimeoutMillis() + "ms");
+        forwardPending = false;
+        registryBreaker.onFailure();
+        respondRegistryError("The XDS.b Registry did not respond in time", RegistryResponseError.XDS_REGISTRY_ERROR, HttpStatus.SC_SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * @return false if the response arrived after the forward had already timed out
+     */
+    private boolean completeForward(MediatorHTTPResponse response) {
+        if (!forwardPending) {
+            return false;
+        }
+        forwardPending = false;
+        if (forwardTimeout != null) {
+            forwardTimeout.cancel();
+            forwardTimeout = null;
+        }
+        if (response.getStatusCode() >= 500) {
+            registryBreaker.onFailure();
+        } else {
+            registryBreaker.onSuccess();
+        }
+        return true;
     }
 
     private void finalizeResponse(MediatorHTTPResponse response) {
-        requestHandler.tell(response.toFinishRequest(), getSelf());
+        stageTimer.stop("forward");
+        stageTimer.payload("forward", "response", response.getBody());
+        if (enterprisePatientIds != null && !enterprisePatientIds.isEmpty()
+                && response.getStatusCode() >= 200 && response.getStatusCode() <= 299
+                && settings.isRegistryCacheEnabled()) {
+            //the patients have newly registered documents, so their cached stored query responses are stale
+            RegistryQueryCacheActor.InvalidatePatients msg = new RegistryQueryCacheActor.InvalidatePatients(enterprisePatientIds);
+            getContext().actorSelection(config.userPathFor("registry-query-cache")).tell(msg, getSelf());
+        }
+        if (deferredEnrichment != null && DeferredEnrichmentActor.isSuccessfulResponse(response)) {
+            getContext().actorSelection(config.userPathFor("pnr-deferred-enrichment")).tell(deferredEnrichment, getSelf());
+        }
+        stageTimer.stopTotal();
+        respond(response.toFinishRequest());
+    }
+
+    private void lookupCachedResponse() {
+        try {
+            cacheKey = RegistryQueryCacheActor.canonicalQueryKey(messageBuffer);
+        } catch (XMLStreamException ex) {
+            log.warning("Could not build a cache key for the stored query: " + ex.getMessage());
+            forwardToRegistry();
+            return;
+        }
+
+        stageTimer.start("cache");
+        getContext().actorSelection(config.userPathFor("registry-query-cache")).tell(new RegistryQueryCacheActor.Lookup(cacheKey), getSelf());
+    }
+
+    private void processCacheLookup(RegistryQueryCacheActor.LookupResult result) {
+        stageTimer.stop("cache");
+        RegistryQueryCacheActor.CachedResponse cached = result.getResponse();
+
+        if (cached == null) {
+            cacheGeneration = result.getGeneration();
+            forwardToRegistry();
+            return;
+        }
+
+        log.info("Responding with cached XDS.b Registry response");
+        cacheKey = null;
+        stageTimer.stopTotal();
+        respond(new FinishRequest(cached.getBodyFor(messageID), cached.getContentType(), cached.getStatus()));
+        sendAuditMessage(ATNAAudit.TYPE.REGISTRY_QUERY_ENRICHED, true); //audit
+    }
+
+    private void cacheResponse(MediatorHTTPResponse response) {
+        String contentType = response.getHeaders() != null ? response.getHeaders().get("Content-Type") : null;
+        RegistryQueryCacheActor.CachedResponse cached = new RegistryQueryCacheActor.CachedResponse(
+                response.getBody(), contentType != null ? contentType : "application/soap+xml", response.getStatusCode(), messageID
+        );
+        getContext().actorSelection(config.userPathFor("registry-query-cache")).tell(
+                new RegistryQueryCacheActor.Put(cacheKey, new ArrayList<>(resolvedPatientIds.values()), cached, cacheGeneration), getSelf()
+        );
     }
 
     private void sendAuditMessage(ATNAAudit.TYPE type, boolean outcome) {
@@ -156,10 +498,11 @@ public class RegistryActor extends UntypedActor {
             ATNAAudit audit = new ATNAAudit(type);
             audit.setMessage(messageBuffer);
 
-            audit.setParticipantIdentifiers(Collections.singletonList(patientId));
+            audit.setParticipantIdentifiers(patientIds);
             audit.setUniqueId("NotParsed");
             audit.setOutcome(outcome);
             audit.setSourceIP(xForwardedFor);
+            audit.setPriority(priority);
 
             getContext().actorSelection(config.userPathFor("atna-auditing")).tell(audit, getSelf());
         } catch (Exception ex) {
@@ -170,34 +513,70 @@ public class RegistryActor extends UntypedActor {
     @Override
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof MediatorHTTPRequest) { //parse request
+            settings = MediatorSettings.get(config);
+            deadline = Deadline.forRequest(config);
+            deadlineTimer = deadline.schedule(getContext());
+            admitRequest((MediatorHTTPRequest) msg);
+
+        } else if (msg instanceof AdmissionController.Admitted) { //parse queued request
             log.info("Parsing registry request...");
-            parseMessage((MediatorHTTPRequest) msg);
+            MediatorHTTPRequest request = queuedRequest;
+            queuedRequest = null;
+            parseMessage(request);
+
+        } else if (msg instanceof AdmissionController.QueueDeadline) {
+            processQueueDeadline();
 
         } else if (msg instanceof ParsedRegistryStoredQuery) { //resolve patient id
-            log.info("Parsed contents. Resolving patient enterprise identifier...");
+            log.info("Parsed contents. Resolving patient enterprise identifiers...");
+            stageTimer.stop("parse");
 
             messageID = ((ParsedRegistryStoredQuery) msg).getMessageId();
-            patientId = ((ParsedRegistryStoredQuery) msg).getPatientId();
-            lookupEnterpriseIdentifier();
+            patientIds = ((ParsedRegistryStoredQuery) msg).getPatientIds();
+            lookupEnterpriseIdentifiers();
 
             sendAuditMessage(ATNAAudit.TYPE.REGISTRY_QUERY_RECEIVED, true); //audit
 
         } else if (msg instanceof ResolvePatientIdentifierResponse) { //enrich message
-            enrichEnterpriseIdentifier((ResolvePatientIdentifierResponse) msg);
+            processResolvedIdentifier((ResolvePatientIdentifierResponse) msg);
 
         } else if (msg instanceof EnrichRegistryStoredQueryResponse) { //forward to registry
             log.info("Sending enriched request to XDS.b Registry");
+            stageTimer.stop("enrich");
             messageBuffer = ((EnrichRegistryStoredQueryResponse) msg).getEnrichedMessage();
-            forwardToRegistry();
+            if (settings.isRegistryCacheEnabled()) {
+                lookupCachedResponse();
+            } else {
+                forwardToRegistry();
+            }
+
+        } else if (msg instanceof RegistryQueryCacheActor.LookupResult) { //respond from cache or forward to registry
+            processCacheLookup((RegistryQueryCacheActor.LookupResult) msg);
+
+        } else if (msg instanceof OrchestrateProvideAndRegisterRequestResponse) { //forward enriched register document set
+            processRegisterDocumentSetResponse((OrchestrateProvideAndRegisterRequestResponse) msg);
 
         } else if (msg instanceof MediatorHTTPResponse) { //respond
             log.info("Received response from XDS.b Registry");
+            if (!completeForward((MediatorHTTPResponse) msg)) {
+                log.warning("Ignoring XDS.b Registry response received after the request timed out");
+                return;
+            }
             finalizeResponse((MediatorHTTPResponse) msg);
             if (isStoredQuery) {
-                boolean outcome = isAdhocQuerySuccessful((MediatorHTTPResponse) msg);
+                boolean outcome = isQuerySuccessful((MediatorHTTPResponse) msg);
                 sendAuditMessage(ATNAAudit.TYPE.REGISTRY_QUERY_ENRICHED, outcome); //audit
+                if (cacheKey != null && outcome) {
+                    cacheResponse((MediatorHTTPResponse) msg);
+                }
             }
 
+        } else if (msg instanceof ForwardTimeout) {
+            processForwardTimeout();
+
+        } else if (msg instanceof Deadline.Expired) {
+            processDeadlineExpired();
+
         } else {
             unhandled(msg);
         }
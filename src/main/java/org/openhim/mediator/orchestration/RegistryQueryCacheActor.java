@@ -0,0 +1,472 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the registry's responses to stored queries, so that queries that are repeated within a short time
+ * (e.g. by clinician portals) aren't all forwarded to the registry.
+ * <br/><br/>
+ * Entries are keyed by a canonical form of the enriched AdhocQueryRequest (see {@link #canonicalQueryKey(String)}),
+ * expire after <code>registry.cache.ttlSeconds</code> and the least recently used entries are evicted once there are
+ * more than <code>registry.cache.maxEntries</code>. All entries for a patient (including queries for several patients)
+ * are invalidated when a Provide and Register request for that patient's enterprise identifier is successfully
+ * forwarded to the repository.
+ * <br/><br/>
+ * Every invalidation starts a new generation. A lookup returns the current generation and the Put that follows a miss
+ * carries it back, so a response that was fetched from the registry while one of its patients was being invalidated
+ * is dropped rather than cached.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ *     <li>Lookup: responds with LookupResult</li>
+ *     <li>Put: caches a registry response</li>
+ *     <li>InvalidatePatients: removes all the entries for the patients</li>
+ * </ul>
+ */
+public class RegistryQueryCacheActor extends UntypedActor {
+
+    public static class Lookup {
+        final String key;
+
+        public Lookup(String key) {
+            this.key = key;
+        }
+    }
+
+    public static class LookupResult {
+        final CachedResponse response;
+        final long generation;
+
+        public LookupResult(CachedResponse response, long generation) {
+            this.response = response;
+            this.generation = generation;
+        }
+
+        /**
+         * @return the cached response or null if there is no (unexpired) entry for the query
+         */
+        public CachedResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * @return the invalidation generation at the time of the lookup, to send with the Put for the query
+         */
+        public long getGeneration() {
+            return generation;
+        }
+    }
+
+    public static class Put {
+        final String key;
+        final List<Identifier> patientIDs;
+        final CachedResponse response;
+        final long generation;
+
+        /**
+         * @param patientIDs the enterprise identifiers of the patients the query is for
+         * @param generation the generation returned by the lookup for the query
+         */
+        public Put(String key, List<Identifier> patientIDs, CachedResponse response, long generation) {
+            this.key = key;
+            this.patientIDs = patientIDs;
+            this.response = response;
+            this.generation = generation;
+        }
+    }
+
+    public static class InvalidatePatients {
+        final List<Identifier> patientIDs;
+
+        public InvalidatePatients(List<Identifier> patientIDs) {
+            this.patientIDs = patientIDs;
+        }
+    }
+
+    public static class CachedResponse {
+        private static final Pattern RELATES_TO = Pattern.compile("<(?:[\\w.-]+:)?RelatesTo\\b[^>]*>\\s*([^<]*?)\\s*</(?:[\\w.-]+:)?RelatesTo>");
+
+        final String body;
+        final String contentType;
+        final int status;
+        //the bounds of the wsa:RelatesTo value, -1 if the response isn't related to the cached query's MessageID
+        private final int relatesToStart;
+        private final int relatesToEnd;
+
+        /**
+         * @param messageID the SOAP MessageID of the query that the response is for
+         */
+        public CachedResponse(String body, String contentType, int status, String messageID) {
+            this.body = body;
+            this.contentType = contentType;
+            this.status = status;
+
+            int start = -1;
+            int end = -1;
+            if (messageID != null && !messageID.isEmpty()) {
+                Matcher m = RELATES_TO.matcher(body);
+                if (m.find() && messageID.equals(m.group(1))) {
+                    start = m.start(1);
+                    end = m.end(1);
+                }
+            }
+            relatesToStart = start;
+            relatesToEnd = end;
+        }
+
+        /**
+         * @return the response body, with its wsa:RelatesTo header set to the given SOAP MessageID rather than the
+         * cached query's. The rest of the body is left as is.
+         */
+        public String getBodyFor(String messageID) {
+            if (relatesToStart < 0 || messageID == null || messageID.isEmpty()) {
+                return body;
+            }
+            return body.substring(0, relatesToStart) + messageID + body.substring(relatesToEnd);
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private static class Entry {
+        final CachedResponse response;
+        final List<String> patientKeys;
+        final long expires;
+
+        Entry(CachedResponse response, List<String> patientKeys, long expires) {
+            this.response = response;
+            this.patientKeys = patientKeys;
+            this.expires = expires;
+        }
+    }
+
+    private static class Invalidation {
+        final long generation;
+        final long at;
+
+        Invalidation(long generation, long at) {
+            this.generation = generation;
+            this.at = at;
+        }
+    }
+
+    private static class Sweep {}
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    private static final MetricsRegistry.Counter hits = lookups("hit");
+    private static final MetricsRegistry.Counter misses = lookups("miss");
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    //query keys by patient, for invalidation
+    private final Map<String, Set<String>> patientIndex = new HashMap<>();
+    //the latest invalidation of each patient, kept for a ttl so that puts from lookups before it can be dropped
+    private final Map<String, Invalidation> invalidations = new HashMap<>();
+    private long generation;
+    //puts from lookups before this generation are dropped, since their invalidations may have been swept
+    private long sweptGeneration;
+    private volatile int size;
+    private Cancellable sweeper;
+
+
+    public RegistryQueryCacheActor(MediatorConfig config) {
+        String ttl = config.getProperty("registry.cache.ttlSeconds");
+        String max = config.getProperty("registry.cache.maxEntries");
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttl != null ? Long.parseLong(ttl.trim()) : 60);
+        maxEntries = max != null ? Integer.parseInt(max.trim()) : 1000;
+
+        //access ordered, so that the least recently used entries are evicted first
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    evicted("size", 1);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static MetricsRegistry.Counter lookups(String result) {
+        return MetricsRegistry.getInstance().counter(
+                "mediator_registry_cache_lookups_total", "Registry stored query cache lookups", MetricsRegistry.labels("result", result)
+        );
+    }
+
+    private static void evicted(String reason, int n) {
+        MetricsRegistry.getInstance().counter(
+                "mediator_registry_cache_evictions_total", "Entries removed from the registry stored query cache", MetricsRegistry.labels("reason", reason)
+        ).increment(n);
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.gauge("mediator_registry_cache_entries", "Number of entries in the registry stored query cache", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return size;
+            }
+        });
+        metrics.gauge("mediator_registry_cache_hit_ratio", "Ratio of registry stored query cache lookups that were hits", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                long total = hits.getValue() + misses.getValue();
+                return total > 0 ? (double) hits.getValue() / total : 0;
+            }
+        });
+
+        FiniteDuration interval = Duration.create(ttlMillis, TimeUnit.MILLISECONDS);
+        sweeper = getContext().system().scheduler().schedule(
+                interval, interval, getSelf(), new Sweep(), getContext().dispatcher(), getSelf()
+        );
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (sweeper != null) {
+            sweeper.cancel();
+        }
+    }
+
+    /**
+     * Builds a cache key from the parts of an AdhocQueryRequest that determine its result: the query ID, the response
+     * options and the slots. Slots and their values are sorted and trimmed, and everything else (e.g. the SOAP header,
+     * namespace prefixes and whitespace) is ignored, so equivalent queries have the same key.
+     */
+    public static String canonicalQueryKey(String adhocQueryRequest) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(adhocQueryRequest));
+        String queryID = null;
+        String returnType = null;
+        String returnComposedObjects = null;
+        SortedMap<String, SortedSet<String>> slots = new TreeMap<>();
+
+        try {
+            SortedSet<String> slotValues = null;
+            StringBuilder value = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String localName = reader.getLocalName();
+                    if ("AdhocQuery".equals(localName)) {
+                        queryID = reader.getAttributeValue(null, "id");
+                    } else if ("ResponseOption".equals(localName)) {
+                        returnType = reader.getAttributeValue(null, "returnType");
+                        returnComposedObjects = reader.getAttributeValue(null, "returnComposedObjects");
+                    } else if ("Slot".equals(localName)) {
+                        String name = reader.getAttributeValue(null, "name");
+                        slotValues = slots.get(name);
+                        if (slotValues == null) {
+                            slotValues = new TreeSet<>();
+                            slots.put(name, slotValues);
+                        }
+                    } else if ("Value".equals(localName) && slotValues != null) {
+                        value = new StringBuilder();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (value != null && "Value".equals(reader.getLocalName())) {
+                        slotValues.add(value.toString().trim());
+                        value = null;
+                    } else if ("Slot".equals(reader.getLocalName())) {
+                        slotValues = null;
+                    }
+                } else if (value != null && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                    value.append(reader.getText());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        StringBuilder key = new StringBuilder();
+        key.append(queryID).append('|').append(returnType).append('|').append(returnComposedObjects);
+        for (Map.Entry<String, SortedSet<String>> slot : slots.entrySet()) {
+            key.append('|').append(slot.getKey()).append('=');
+            boolean first = true;
+            for (String v : slot.getValue()) {
+                if (!first) {
+                    key.append(',');
+                }
+                key.append(v);
+                first = false;
+            }
+        }
+        return key.toString();
+    }
+
+    private static String patientKey(Identifier patientID) {
+        return patientID.toCX();
+    }
+
+    private void index(String key, Entry entry) {
+        for (String patientKey : entry.patientKeys) {
+            Set<String> keys = patientIndex.get(patientKey);
+            if (keys == null) {
+                keys = new HashSet<>();
+                patientIndex.put(patientKey, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private void unindex(String key, Entry entry) {
+        for (String patientKey : entry.patientKeys) {
+            Set<String> keys = patientIndex.get(patientKey);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    patientIndex.remove(patientKey);
+                }
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+        }
+    }
+
+    private void lookup(Lookup msg) {
+        Entry entry = entries.get(msg.key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            remove(msg.key);
+            evicted("expired", 1);
+            entry = null;
+        }
+
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        getSender().tell(new LookupResult(entry != null ? entry.response : null, generation), getSelf());
+    }
+
+    private void put(Put msg) {
+        List<String> patientKeys = new ArrayList<>(msg.patientIDs.size());
+        for (Identifier patientID : msg.patientIDs) {
+            patientKeys.add(patientKey(patientID));
+        }
+        if (isStale(msg.generation, patientKeys)) {
+            log.info("Not caching stored query response: a patient was invalidated after the query was looked up");
+            evicted("stale", 1);
+            return;
+        }
+
+        remove(msg.key);
+        Entry entry = new Entry(msg.response, patientKeys, System.currentTimeMillis() + ttlMillis);
+        entries.put(msg.key, entry);
+        index(msg.key, entry);
+    }
+
+    private boolean isStale(long lookupGeneration, List<String> patientKeys) {
+        if (lookupGeneration < sweptGeneration) {
+            return true;
+        }
+        for (String patientKey : patientKeys) {
+            Invalidation invalidation = invalidations.get(patientKey);
+            if (invalidation != null && invalidation.generation > lookupGeneration) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void invalidate(InvalidatePatients msg) {
+        generation++;
+        Invalidation invalidation = new Invalidation(generation, System.currentTimeMillis());
+        for (Identifier patientID : msg.patientIDs) {
+            invalidations.put(patientKey(patientID), invalidation);
+            Set<String> keys = patientIndex.get(patientKey(patientID));
+            if (keys != null) {
+                keys = new HashSet<>(keys);
+                for (String key : keys) {
+                    remove(key);
+                }
+                evicted("invalidated", keys.size());
+                log.info("Invalidated " + keys.size() + " cached stored queries for patient " + patientID);
+            }
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().expires <= now) {
+                it.remove();
+                unindex(e.getKey(), e.getValue());
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            evicted("expired", expired);
+        }
+
+        Iterator<Invalidation> invalidated = invalidations.values().iterator();
+        while (invalidated.hasNext()) {
+            Invalidation invalidation = invalidated.next();
+            if (invalidation.at + ttlMillis <= now) {
+                invalidated.remove();
+                sweptGeneration = Math.max(sweptGeneration, invalidation.generation);
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof Lookup) {
+            lookup((Lookup) msg);
+        } else if (msg instanceof Put) {
+            put((Put) msg);
+        } else if (msg instanceof InvalidatePatients) {
+            invalidate((InvalidatePatients) msg);
+        } else if (msg instanceof Sweep) {
+            sweep();
+        } else {
+            unhandled(msg);
+        }
+        size = entries.size();
+    }
+}
@@ -8,6 +8,7 @@ package org.openhim.mediator.orchestration;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
@@ -18,17 +19,26 @@ import ca.uhn.hl7v2.util.StringUtil;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
-import org.openhim.mediator.denormalization.CSDRequestActor;
-import org.openhim.mediator.denormalization.PIXRequestActor;
-import org.openhim.mediator.dsub.DsubActor;
+import org.openhim.mediator.AdmissionController;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.Priority;
+import org.openhim.mediator.PriorityPolicy;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.denormalization.RegistryResponseError;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.DeferEnrichment;
 import org.openhim.mediator.messages.NotifyNewDocument;
 import org.openhim.mediator.messages.OrchestrateProvideAndRegisterRequest;
 import org.openhim.mediator.messages.OrchestrateProvideAndRegisterRequestResponse;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import org.openhim.mediator.metrics.StageTimer;
 import org.openhim.mediator.normalization.SOAPWrapper;
 import org.openhim.mediator.normalization.XDSbMimeProcessorActor;
 import org.w3c.dom.Document;
@@ -42,17 +52,29 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class RepositoryActor extends UntypedActor {
 
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
+    private static class ForwardTimeout {}
+
     private MediatorConfig config;
+    private final SharedResources resources;
+    private final CircuitBreaker repositoryBreaker;
+    private final AdmissionController admission;
+    private AdmissionController.Ticket admissionTicket;
+    //the routee of the shared xds-multipart-normalization pool that parsed this transaction's request
     private ActorRef mtomProcessor;
-    private ActorRef dsubActor;
 
     private MediatorHTTPRequest originalRequest;
+    private Deadline deadline = Deadline.NONE;
+    private MediatorSettings settings;
+    private Cancellable deadlineTimer;
+    private boolean responded;
+    private Priority priority = Priority.NORMAL;
 
     private String action;
     private String messageID;
@@ -64,12 +86,84 @@ public class RepositoryActor extends UntypedActor {
     private String messageBuffer;
     private SOAPWrapper soapWrapper;
     private String labOrderDocumentId;
+    private List<Identifier> enterprisePatientIds;
+    private DeferEnrichment deferredEnrichment;
+    //set while the request is forwarded to the repository
+    private Cancellable forwardTimeout;
+    private boolean forwardPending;
+
+    private final StageTimer stageTimer = new StageTimer("repository");
 
     public RepositoryActor(MediatorConfig config) {
         this.config = config;
-        mtomProcessor = getContext().actorOf(Props.create(XDSbMimeProcessorActor.class),
-                "xds-multipart-normalization");
-        dsubActor = getContext().actorOf(Props.create(DsubActor.class, config), "xds-dsub");
+        this.resources = SharedResources.get(getContext().system());
+        this.repositoryBreaker = CircuitBreaker.forDependency(resources, config, "xds.repository");
+        this.admission = AdmissionController.forRoute(resources, config, "/xdsrepository");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        MetricsRegistry.countActorStart(getClass());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (forwardPending) {
+            //the transaction ended before the repository responded, e.g. because the connection failed
+            repositoryBreaker.onFailure();
+        }
+        if (forwardTimeout != null) {
+            forwardTimeout.cancel();
+        }
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+        }
+        admission.release(admissionTicket);
+    }
+
+    private void admitRequest() {
+        admissionTicket = admission.admit(getContext(), originalRequest);
+        if (admissionTicket == null) {
+            log.warning("Rejecting repository request: admission limits reached");
+            respond(admission.rejection());
+        } else if (!admissionTicket.isQueued()) {
+            readMessage();
+        }
+    }
+
+    private void processQueueDeadline() {
+        if (admission.expire(admissionTicket)) {
+            log.warning("Rejecting repository request: not admitted in time");
+            respond(admission.rejection());
+        }
+    }
+
+    private void respond(Object response) {
+        responded = true;
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+            deadlineTimer = null;
+        }
+        originalRequest.getRespondTo().tell(response, getSelf());
+    }
+
+    private void processDeadlineExpired() {
+        if (responded) {
+            return;
+        }
+        log.warning("Repository request did not complete before its deadline. Stopping transaction.");
+        MetricsRegistry.getInstance().counter(
+                "mediator_deadline_exceeded_total", "Transactions stopped because they didn't complete before their deadline",
+                MetricsRegistry.labels("route", "/xdsrepository")
+        ).increment();
+        String err = "The transaction did not complete before its deadline";
+        if (action != null) {
+            respondRepositoryError(err, HttpStatus.SC_GATEWAY_TIMEOUT);
+        } else {
+            respond(new FinishRequest(err, "text/plain", HttpStatus.SC_GATEWAY_TIMEOUT));
+        }
+        //also stops the orchestrator, releasing the buffered message
+        getContext().stop(getSelf());
     }
 
 
@@ -83,7 +177,8 @@ public class RepositoryActor extends UntypedActor {
             log.info("Message is multipart. Parsing contents...");
             XDSbMimeProcessorActor.MimeMessage mimeMsg = new XDSbMimeProcessorActor.MimeMessage(
                     originalRequest.getRequestHandler(), getSelf(), originalRequest.getBody(), contentType);
-            mtomProcessor.tell(mimeMsg, getSelf());
+            stageTimer.start("mime_parse");
+            getContext().actorSelection(config.userPathFor("xds-multipart-normalization")).tell(mimeMsg, getSelf());
             messageIsMTOM = true;
         } else {
             messageBuffer = originalRequest.getBody();
@@ -95,6 +190,8 @@ public class RepositoryActor extends UntypedActor {
     private void processMtomProcessorResponse(XDSbMimeProcessorActor.XDSbMimeProcessorResponse msg) {
         if (msg.getOriginalRequest() instanceof XDSbMimeProcessorActor.MimeMessage) {
             log.info("Successfully parsed multipart contents");
+            stageTimer.stop("mime_parse");
+            mtomProcessor = getSender();
             messageBuffer = msg.getResponseObject();
 
             if (msg.getDocuments()!=null && msg.getDocuments().size()>0) {
@@ -109,6 +206,7 @@ public class RepositoryActor extends UntypedActor {
 
             triggerRepositoryAction();
         } else if (msg.getOriginalRequest() instanceof XDSbMimeProcessorActor.EnrichedMessage) {
+            stageTimer.stop("mime_rebuild");
             messageBuffer = msg.getResponseObject();
             forwardRequestToRepository();
         } else {
@@ -137,7 +235,7 @@ public class RepositoryActor extends UntypedActor {
 
                 if (action==null || action.isEmpty()) {
                     FinishRequest fr = new FinishRequest("Could not determine SOAP Action. Is the correct WS-Adressing header set?", "text/plain", HttpStatus.SC_BAD_REQUEST);
-                    originalRequest.getRespondTo().tell(fr, getSelf());
+                    respond(fr);
                     return false;
                 }
             }
@@ -146,6 +244,7 @@ public class RepositoryActor extends UntypedActor {
             log.info("Action: " + action);
             return true;
         } catch (ParserConfigurationException | SAXException | XPathExpressionException | IOException ex) {
+            responded = true;
             originalRequest.getRequestHandler().tell(new ExceptError(ex), getSelf());
             return false;
         }
@@ -178,38 +277,38 @@ public class RepositoryActor extends UntypedActor {
     }
 
     private void processProviderAndRegisterAction() {
-        ActorRef resolvePatientIDHandler = getContext().actorOf(Props.create(PIXRequestActor.class, config), "pix-denormalization");
-        ActorRef resolveHealthcareWorkerIDHandler = getContext().actorOf(Props.create(CSDRequestActor.class, config), "csd-denormalization");
-        ActorRef resolveFacilityIDHandler = resolveHealthcareWorkerIDHandler;
         ActorRef pnrOrchestrator = getContext().actorOf(
-                Props.create(
-                        ProvideAndRegisterOrchestrationActor.class, config,
-                        resolvePatientIDHandler, resolveHealthcareWorkerIDHandler, resolveFacilityIDHandler
-                ),
-                "xds-pnr-orchestrator"
+                Props.create(ProvideAndRegisterOrchestrationActor.class, config), "xds-pnr-orchestrator"
         );
 
         try {
             soapWrapper = new SOAPWrapper(messageBuffer);
             OrchestrateProvideAndRegisterRequest msg = new OrchestrateProvideAndRegisterRequest(
-                    originalRequest.getRequestHandler(), getSelf(), soapWrapper.getSoapBody(), xForwardedFor, cdaDocument, messageID
+                    originalRequest.getRequestHandler(), getSelf(), soapWrapper.getSoapBody(), xForwardedFor, cdaDocument, messageID, deadline
             );
+            msg.setPriority(priority);
+            stageTimer.start("pnr_orchestration");
             pnrOrchestrator.tell(msg, getSelf());
         } catch (SOAPWrapper.SOAPParseException ex) {
             FinishRequest fr = new FinishRequest(ex.getMessage(), "text/plain", HttpStatus.SC_BAD_REQUEST);
+            responded = true;
             originalRequest.getRequestHandler().tell(fr, getSelf());
         }
     }
 
     private void processProvideAndRegisterResponse(OrchestrateProvideAndRegisterRequestResponse msg) {
+        stageTimer.stop("pnr_orchestration");
         soapWrapper.setSoapBody(msg.getResponseObject());
         messageBuffer = soapWrapper.getFullDocument();
         labOrderDocumentId = msg.getLabOrderDocumentId();
+        enterprisePatientIds = msg.getEnterprisePatientIds();
+        deferredEnrichment = msg.getDeferredEnrichment();
 
         if (messageIsMTOM) {
             XDSbMimeProcessorActor.EnrichedMessage mimeMsg = new XDSbMimeProcessorActor.EnrichedMessage(
                     originalRequest.getRequestHandler(), getSelf(), messageBuffer
             );
+            stageTimer.start("mime_rebuild");
             mtomProcessor.tell(mimeMsg, getSelf());
         } else {
             forwardRequestToRepository();
@@ -218,6 +317,7 @@ public class RepositoryActor extends UntypedActor {
 
     private void triggerRepositoryAction() {
         if (determineSOAPAction()) {
+            priority = PriorityPolicy.forConfig(resources, config).classify("/xdsrepository", action, AdmissionController.clientOf(originalRequest));
             if ("urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b".equals(action)) {
                 processProviderAndRegisterAction();
             } else {
@@ -228,6 +328,17 @@ public class RepositoryActor extends UntypedActor {
     }
 
     private void forwardRequestToRepository() {
+        if (deadline.hasPassed()) {
+            //the client has given up on the transaction
+            processDeadlineExpired();
+            return;
+        }
+        if (!repositoryBreaker.tryAcquire()) {
+            log.warning("XDS.b Repository circuit breaker is open. Failing request fast.");
+            respondRepositoryUnavailable("The XDS.b Repository is unavailable");
+            return;
+        }
+
         log.info("Forwarding request to repository");
         ActorSelection httpConnector = getContext().actorSelection(config.userPathFor("http-connector"));
 
@@ -236,31 +347,83 @@ public class RepositoryActor extends UntypedActor {
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", contentType);
 
-        String scheme;
-        Integer port;
-        if (config.getProperty("xds.repository.secure").equals("true")) {
-            scheme = "https";
-            port = Integer.parseInt(config.getProperty("xds.repository.securePort"));
-        } else {
-            scheme = "http";
-            port = Integer.parseInt(config.getProperty("xds.repository.port"));
-        }
-
+        MediatorSettings.Endpoint repository = settings.getRepository();
         MediatorHTTPRequest request = new MediatorHTTPRequest(
-                originalRequest.getRespondTo(), getSelf(), "XDS.b Repository", "POST", scheme,
-                config.getProperty("xds.repository.host"), port, config.getProperty("xds.repository.path"),
+                originalRequest.getRespondTo(), getSelf(), "XDS.b Repository", "POST", repository.getScheme(),
+                repository.getHost(), repository.getPort(), repository.getPath(),
                 messageBuffer, headers, null
         );
+        stageTimer.start("forward");
+        stageTimer.payload("forward", "request", messageBuffer);
         httpConnector.tell(request, getSelf());
+        forwardPending = true;
+        forwardTimeout = repositoryBreaker.scheduleCallTimeout(getContext(), new ForwardTimeout());
+    }
+
+    private void respondRepositoryUnavailable(String err) {
+        respondRepositoryError(err, HttpStatus.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private void respondRepositoryError(String err, int status) {
+        String responseAction = "urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b".equals(action)
+                ? RegistryResponseError.PNR_RESPONSE_ACTION : action + "Response";
+        RegistryResponseError registryResponseError = new RegistryResponseError(responseAction, messageID);
+        registryResponseError.addRegistryError(new RegistryResponseError.RegistryError(RegistryResponseError.XDS_REPOSITORY_ERROR, err));
+        respond(registryResponseError.toFinishRequest(status));
+        stageTimer.stopTotal();
+    }
+
+    private void processForwardTimeout() {
+        if (!forwardPending) {
+            return;
+        }
+        log.warning("XDS.b Repository did not respond within " + repositoryBreaker.getCallTimeoutMillis() + "ms");
+        forwardPending = false;
+        repositoryBreaker.onFailure();
+        respondRepositoryUnavailable("The XDS.b Repository did not respond in time");
+    }
+
+    /**
+     * @return false if the response arrived after the forward had already timed out
+     */
+    private boolean completeForward(MediatorHTTPResponse response) {
+        if (!forwardPending) {
+            return false;
+        }
+        forwardPending = false;
+        if (forwardTimeout != null) {
+            forwardTimeout.cancel();
+            forwardTimeout = null;
+        }
+        if (response.getStatusCode() >= 500) {
+            repositoryBreaker.onFailure();
+        } else {
+            repositoryBreaker.onSuccess();
+        }
+        return true;
     }
 
     private void finalizeResponse(MediatorHTTPResponse response) {
+        stageTimer.stop("forward");
+        stageTimer.payload("forward", "response", response.getBody());
         if (StringUtil.isNotBlank(labOrderDocumentId)) {
             log.info("Notifying DBUS {}", labOrderDocumentId);            
             NotifyNewDocument msg = new NotifyNewDocument(labOrderDocumentId);
-            dsubActor.tell(msg, getSelf());
+            getContext().actorSelection(config.userPathFor("xds-dsub")).tell(msg, getSelf());
         }
-        originalRequest.getRespondTo().tell(response.toFinishRequest(), getSelf());
+        if (enterprisePatientIds != null && !enterprisePatientIds.isEmpty()
+                && response.getStatusCode() >= 200 && response.getStatusCode() <= 299
+                && settings.isRegistryCacheEnabled()) {
+            //the patients have new documents, so their cached stored query responses are stale
+            RegistryQueryCacheActor.InvalidatePatients msg = new RegistryQueryCacheActor.InvalidatePatients(enterprisePatientIds);
+            getContext().actorSelection(config.userPathFor("registry-query-cache")).tell(msg, getSelf());
+        }
+        if (deferredEnrichment != null && DeferredEnrichmentActor.isSuccessfulResponse(response)) {
+            //the documents are registered, so the identifiers that weren't resolved in time can be applied to them
+            getContext().actorSelection(config.userPathFor("pnr-deferred-enrichment")).tell(deferredEnrichment, getSelf());
+        }
+        respond(response.toFinishRequest());
+        stageTimer.stopTotal();
     }
 
     @Override
@@ -268,14 +431,29 @@ public class RepositoryActor extends UntypedActor {
         if (msg instanceof MediatorHTTPRequest) {
             originalRequest = (MediatorHTTPRequest) msg;
             xForwardedFor = ((MediatorHTTPRequest)msg).getHeaders().get("X-Forwarded-For");
+            settings = MediatorSettings.get(config);
+            deadline = Deadline.forRequest(config);
+            deadlineTimer = deadline.schedule(getContext());
+            admitRequest();
+        } else if (msg instanceof AdmissionController.Admitted) {
             readMessage();
+        } else if (msg instanceof AdmissionController.QueueDeadline) {
+            processQueueDeadline();
         } else if (msg instanceof XDSbMimeProcessorActor.XDSbMimeProcessorResponse) {
             processMtomProcessorResponse((XDSbMimeProcessorActor.XDSbMimeProcessorResponse) msg);
         } else if (msg instanceof OrchestrateProvideAndRegisterRequestResponse) {
             processProvideAndRegisterResponse((OrchestrateProvideAndRegisterRequestResponse) msg);
         } else if (msg instanceof MediatorHTTPResponse) {
             log.info("Finalizing response");            
+            if (!completeForward((MediatorHTTPResponse) msg)) {
+                log.warning("Ignoring XDS.b Repository response received after the request timed out");
+                return;
+            }
             finalizeResponse((MediatorHTTPResponse) msg);
+        } else if (msg instanceof ForwardTimeout) {
+            processForwardTimeout();
+        } else if (msg instanceof Deadline.Expired) {
+            processDeadlineExpired();
         } else {
             unhandled(msg);
         }
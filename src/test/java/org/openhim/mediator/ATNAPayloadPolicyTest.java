@@ -0,0 +1,99 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.ATNAAudit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ATNAPayloadPolicyTest {
+
+    private static ATNAPayloadPolicy buildPolicy(String... keyValues) {
+        Properties props = new Properties();
+        for (int i=0; i<keyValues.length; i+=2) {
+            props.setProperty(keyValues[i], keyValues[i+1]);
+        }
+        MediatorConfig config = new MediatorConfig();
+        config.setName("atna-payload-tests");
+        config.setProperties(props);
+        return new ATNAPayloadPolicy(config);
+    }
+
+    private static ATNAAudit buildAudit(ATNAAudit.TYPE type, String message) {
+        ATNAAudit audit = new ATNAAudit(type);
+        audit.setMessage(message);
+        audit.setUniqueId("1.2.3");
+        audit.setDocumentUniqueIds(Arrays.asList("1.2.3.1", "1.2.3.2"));
+        return audit;
+    }
+
+    @Test
+    public void testDefaultsToFull() throws Exception {
+        ATNAPayloadPolicy policy = buildPolicy();
+
+        for (ATNAAudit.TYPE type : ATNAAudit.TYPE.values()) {
+            assertEquals(ATNAPayloadPolicy.Mode.FULL, policy.getMode(type));
+        }
+        assertEquals("<message/>", policy.payloadFor(buildAudit(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED, "<message/>")));
+    }
+
+    @Test
+    public void testPerTypeModes() throws Exception {
+        ATNAPayloadPolicy policy = buildPolicy(
+                "atna.payload.default", "digest",
+                "atna.payload.PROVIDE_AND_REGISTER_RECEIVED", "metadata",
+                "atna.payload.PIX_REQUEST", "Full"
+        );
+
+        assertEquals(ATNAPayloadPolicy.Mode.METADATA, policy.getMode(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED));
+        assertEquals(ATNAPayloadPolicy.Mode.FULL, policy.getMode(ATNAAudit.TYPE.PIX_REQUEST));
+        assertEquals(ATNAPayloadPolicy.Mode.DIGEST, policy.getMode(ATNAAudit.TYPE.REGISTRY_QUERY_RECEIVED));
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        ATNAPayloadPolicy policy = buildPolicy("atna.payload.default", "metadata");
+
+        String payload = policy.payloadFor(buildAudit(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED, "<message/>"));
+        assertEquals("uniqueId=1.2.3\ndocumentUniqueId=1.2.3.1\ndocumentUniqueId=1.2.3.2", payload);
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        ATNAPayloadPolicy policy = buildPolicy("atna.payload.default", "truncated", "atna.payload.truncateBytes", "4");
+
+        assertEquals("<mes", policy.payloadFor(buildAudit(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED, "<message/>")));
+        assertEquals("<a/>", policy.payloadFor(buildAudit(ATNAAudit.TYPE.PROVIDE_AND_REGISTER_RECEIVED, "<a/>")));
+    }
+
+    @Test
+    public void testTruncateDoesntSplitCharacters() throws Exception {
+        assertEquals("ab", ATNAPayloadPolicy.truncate("ab\u00e9", 3));
+        assertEquals("ab\u00e9", ATNAPayloadPolicy.truncate("ab\u00e9", 4));
+        assertEquals("a", ATNAPayloadPolicy.truncate("a\u20ac", 3));
+        assertEquals("a", ATNAPayloadPolicy.truncate("a\ud83d\ude00", 4));
+        assertEquals("a\ud83d\ude00", ATNAPayloadPolicy.truncate("a\ud83d\ude00", 5));
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        String message = "<message>\u00e9</message>";
+        String payload = ATNAPayloadPolicy.digest(message);
+
+        assertTrue(payload.startsWith("sha256="));
+        assertEquals(7 + 64, payload.indexOf('\n'));
+        assertTrue(payload.endsWith("\nsize=" + message.getBytes(StandardCharsets.UTF_8).length));
+        assertEquals(payload, ATNAPayloadPolicy.digest(message));
+        assertEquals("sha256=e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855\nsize=0", ATNAPayloadPolicy.digest(""));
+    }
+}
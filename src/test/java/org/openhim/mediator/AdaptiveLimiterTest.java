@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorSystem;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveLimiterTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testQueueAndPermits() throws Exception {
+        new JavaTestKit(system) {{
+            AdaptiveLimiter limiter = new AdaptiveLimiter("test-queue", true, 2, 1, 10, 1, 2.0, 0.5);
+
+            assertEquals(AdaptiveLimiter.Result.ACQUIRED, limiter.acquire(getRef(), "a"));
+            assertEquals(AdaptiveLimiter.Result.ACQUIRED, limiter.acquire(getRef(), "b"));
+            assertEquals(AdaptiveLimiter.Result.QUEUED, limiter.acquire(getRef(), "c"));
+            assertEquals("The queue is full", AdaptiveLimiter.Result.REJECTED, limiter.acquire(getRef(), "d"));
+            assertEquals(1, limiter.getQueued());
+
+            limiter.onSuccess(10 * MS);
+            AdaptiveLimiter.Permit permit = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), AdaptiveLimiter.Permit.class);
+            assertEquals("c", permit.getKey());
+            assertEquals(0, limiter.getQueued());
+            assertEquals(2, limiter.getInFlight());
+
+            assertEquals(AdaptiveLimiter.Result.QUEUED, limiter.acquire(getRef(), "e"));
+            assertTrue(limiter.cancel(getRef(), "e"));
+            assertFalse(limiter.cancel(getRef(), "e"));
+            limiter.release();
+            limiter.release();
+            expectNoMsg(Duration.create(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, limiter.getInFlight());
+        }};
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsStable() throws Exception {
+        new JavaTestKit(system) {{
+            AdaptiveLimiter limiter = new AdaptiveLimiter("test-grow", true, 2, 1, 4, 0, 2.0, 0.5);
+
+            for (int i=0; i<50; i++) {
+                for (int j=0; j<limiter.getLimit(); j++) {
+                    assertEquals(AdaptiveLimiter.Result.ACQUIRED, limiter.acquire(getRef(), i + "-" + j));
+                }
+                int inFlight = limiter.getInFlight();
+                for (int j=0; j<inFlight; j++) {
+                    limiter.onSuccess(10 * MS);
+                }
+            }
+            assertEquals("The limit should grow up to the maximum", 4, limiter.getLimit());
+        }};
+    }
+
+    @Test
+    public void testLimitShrinksOnCongestionAndDrops() throws Exception {
+        new JavaTestKit(system) {{
+            AdaptiveLimiter limiter = new AdaptiveLimiter("test-shrink", true, 8, 2, 10, 0, 2.0, 0.5);
+
+            limiter.acquire(getRef(), "a");
+            limiter.onSuccess(10 * MS);
+            assertEquals(8, limiter.getLimit());
+
+            limiter.acquire(getRef(), "b");
+            limiter.onSuccess(50 * MS);
+            assertEquals("A slow call should reduce the limit", 4, limiter.getLimit());
+
+            limiter.acquire(getRef(), "c");
+            limiter.onDropped();
+            assertEquals(2, limiter.getLimit());
+
+            limiter.acquire(getRef(), "d");
+            limiter.onDropped();
+            assertEquals("The limit shouldn't drop below the minimum", 2, limiter.getLimit());
+        }};
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        new JavaTestKit(system) {{
+            AdaptiveLimiter limiter = new AdaptiveLimiter("test-disabled", false, 1, 1, 1, 0, 2.0, 0.5);
+
+            for (int i=0; i<10; i++) {
+                assertEquals(AdaptiveLimiter.Result.ACQUIRED, limiter.acquire(getRef(), i));
+            }
+            assertEquals(0, limiter.getInFlight());
+        }};
+    }
+
+    @Test
+    public void testInteractiveCallsAreServedAheadOfBulkCalls() throws Exception {
+        new JavaTestKit(system) {{
+            AdaptiveLimiter limiter = new AdaptiveLimiter("test-priority", true, 1, 1, 1, 2, 2.0, 0.5, new int[] {2, 1, 1});
+
+            assertEquals(AdaptiveLimiter.Result.ACQUIRED, limiter.acquire(getRef(), "a", Priority.BULK));
+            assertEquals(AdaptiveLimiter.Result.QUEUED, limiter.acquire(getRef(), "b1", Priority.BULK));
+            assertEquals(AdaptiveLimiter.Result.QUEUED, limiter.acquire(getRef(), "b2", Priority.BULK));
+            assertEquals("The bulk lane is full", AdaptiveLimiter.Result.REJECTED, limiter.acquire(getRef(), "b3", Priority.BULK));
+            assertEquals("Other lanes have their own capacity", AdaptiveLimiter.Result.QUEUED, limiter.acquire(getRef(), "i1", Priority.INTERACTIVE));
+            assertEquals(AdaptiveLimiter.Result.QUEUED, limiter.acquire(getRef(), "i2", Priority.INTERACTIVE));
+            assertEquals(2, limiter.getQueued(Priority.BULK));
+            assertEquals(2, limiter.getQueued(Priority.INTERACTIVE));
+
+            String[] expected = {"i1", "i2", "b1", "b2"};
+            for (String key : expected) {
+                limiter.onSuccess(10 * MS);
+                AdaptiveLimiter.Permit permit = expectMsgClass(Duration.create(1, TimeUnit.SECONDS), AdaptiveLimiter.Permit.class);
+                assertEquals(key, permit.getKey());
+            }
+            assertEquals(0, limiter.getQueued());
+        }};
+    }
+}
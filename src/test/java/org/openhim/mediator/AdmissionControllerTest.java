@@ -0,0 +1,159 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorSystem;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        new JavaTestKit(system) {{
+            AdmissionController admission = new AdmissionController("/test", 2, 0, 0, 0, 0, 0);
+
+            AdmissionController.Ticket t1 = admission.admit(getRef(), "a", 10);
+            AdmissionController.Ticket t2 = admission.admit(getRef(), "b", 10);
+            assertNotNull(t1);
+            assertNotNull(t2);
+            assertFalse(t1.isQueued());
+            assertNull("Requests over the limit should be rejected when queueing is disabled", admission.admit(getRef(), "c", 10));
+
+            admission.release(t1);
+            admission.release(t1);
+            assertEquals(1, admission.getInFlight());
+            assertNotNull(admission.admit(getRef(), "c", 10));
+        }};
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        new JavaTestKit(system) {{
+            AdmissionController admission = new AdmissionController("/test", 0, 100, 0, 0, 0, 0);
+
+            AdmissionController.Ticket large = admission.admit(getRef(), "a", 500);
+            assertNotNull("A large request should be admitted when nothing else is in flight", large);
+            assertNull(admission.admit(getRef(), "a", 1));
+
+            admission.release(large);
+            assertEquals(0, admission.getInFlightBytes());
+            assertNotNull(admission.admit(getRef(), "a", 60));
+            assertNull(admission.admit(getRef(), "a", 60));
+            assertNotNull(admission.admit(getRef(), "a", 40));
+        }};
+    }
+
+    @Test
+    public void testPerClientLimits() throws Exception {
+        new JavaTestKit(system) {{
+            AdmissionController admission = new AdmissionController("/test", 10, 0, 1, 0, 0, 0);
+
+            assertNotNull(admission.admit(getRef(), "10.0.0.1", 10));
+            assertNull(admission.admit(getRef(), "10.0.0.1", 10));
+            assertNotNull("Other clients shouldn't be limited", admission.admit(getRef(), "10.0.0.2", 10));
+        }};
+    }
+
+    @Test
+    public void testQueue() throws Exception {
+        new JavaTestKit(system) {{
+            AdmissionController admission = new AdmissionController("/test", 1, 0, 0, 0, 60000, 1);
+
+            AdmissionController.Ticket t1 = admission.admit(getRef(), "a", 10);
+            AdmissionController.Ticket queued = admission.admit(getRef(), "b", 10);
+            assertTrue(queued.isQueued());
+            assertEquals(1, admission.getQueued());
+            assertNull("The queue is full", admission.admit(getRef(), "c", 10));
+
+            admission.release(t1);
+            expectMsgClass(Duration.create(1, TimeUnit.SECONDS), AdmissionController.Admitted.class);
+            assertEquals(0, admission.getQueued());
+            assertEquals(1, admission.getInFlight());
+            assertFalse("An admitted request can't expire", admission.expire(queued));
+
+            AdmissionController.Ticket expired = admission.admit(getRef(), "c", 10);
+            assertTrue(admission.expire(expired));
+            assertEquals(0, admission.getQueued());
+            admission.release(queued);
+            expectNoMsg(Duration.create(100, TimeUnit.MILLISECONDS));
+            assertEquals(0, admission.getInFlight());
+        }};
+    }
+
+    @Test
+    public void testForRoute() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("admission.enabled", "true");
+        props.setProperty("admission.maxInFlight", "5");
+        props.setProperty("admission.xdsrepository.maxInFlight", "1");
+        MediatorConfig config = new MediatorConfig();
+        config.setName("admission-tests");
+        config.setProperties(props);
+
+        SharedResources resources = new SharedResources();
+        AdmissionController repository = AdmissionController.forRoute(resources, config, "/xdsrepository");
+        assertSame(repository, AdmissionController.forRoute(resources, config, "/xdsrepository"));
+        assertNotNull(repository.admit(null, "a", 0));
+        assertNull(repository.admit(null, "a", 0));
+
+        AdmissionController registry = AdmissionController.forRoute(resources, config, "/xdsregistry");
+        for (int i=0; i<5; i++) {
+            assertNotNull(registry.admit(null, "a", 0));
+        }
+        assertNull(registry.admit(null, "a", 0));
+    }
+
+    @Test
+    public void testForRoute_shouldNotLimitUnlessEnabled() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("admission.maxInFlight", "1");
+        MediatorConfig config = new MediatorConfig();
+        config.setName("admission-disabled-tests");
+        config.setProperties(props);
+
+        AdmissionController repository = AdmissionController.forRoute(new SharedResources(), config, "/xdsrepository");
+        for (int i=0; i<5; i++) {
+            assertNotNull(repository.admit(null, "a", 0));
+        }
+    }
+
+    @Test
+    public void testClientOf() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        MediatorHTTPRequest request = new MediatorHTTPRequest(null, null, "unit-test", "POST", "http", null, null, "/xdsrepository", "", headers, null);
+        assertEquals("unknown", AdmissionController.clientOf(request));
+
+        headers.put("X-Forwarded-For", "10.0.0.1, 192.168.1.1");
+        assertEquals("10.0.0.1", AdmissionController.clientOf(request));
+    }
+}
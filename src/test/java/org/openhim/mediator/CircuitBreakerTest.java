@@ -0,0 +1,104 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterFailureThreshold() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-open", true, 1000, 3, 60000, 1);
+
+        for (int i=0; i<2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        //a success resets the count
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        for (int i=0; i<2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Calls should fail fast while the breaker is open", breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpen_closesOnSuccess() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-close", true, 1000, 1, 50, 1);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(100);
+        assertTrue("A probe should be let through after the reset timeout", breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("Only one probe should be let through", breaker.tryAcquire());
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpen_reopensOnFailure() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-reopen", true, 1000, 1, 50, 1);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        Thread.sleep(100);
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test-disabled", false, 1000, 1, 60000, 1);
+
+        for (int i=0; i<10; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testForDependency() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("pix.breaker.callTimeoutMs", "2500");
+        MediatorConfig config = new MediatorConfig();
+        config.setName("circuit-breaker-tests");
+        config.setProperties(props);
+
+        SharedResources resources = new SharedResources();
+        CircuitBreaker breaker = CircuitBreaker.forDependency(resources, config, "pix");
+        assertEquals("pix", breaker.getDependency());
+        assertEquals(2500, breaker.getCallTimeoutMillis());
+        assertSame(breaker, CircuitBreaker.forDependency(resources, config, "pix"));
+        assertNotSame(breaker, CircuitBreaker.forDependency(resources, config, "ilr"));
+        assertEquals(15000, CircuitBreaker.forDependency(resources, config, "ilr").getCallTimeoutMillis());
+        //each actor system has its own breakers
+        assertNotSame(breaker, CircuitBreaker.forDependency(new SharedResources(), config, "pix"));
+    }
+}
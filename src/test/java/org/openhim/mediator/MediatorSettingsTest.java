@@ -0,0 +1,191 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.exceptions.ValidationException;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class MediatorSettingsTest {
+
+    private static Properties buildProperties(String... keyValues) {
+        Properties props = new Properties();
+        props.setProperty("xds.registry.host", "registry.local");
+        props.setProperty("xds.registry.port", "8080");
+        props.setProperty("xds.registry.securePort", "8443");
+        props.setProperty("xds.registry.path", "axis2/services/xdsregistryb");
+        props.setProperty("xds.registry.secure", "false");
+        props.setProperty("pix.manager.host", "pix.local");
+        props.setProperty("pix.manager.port", "2100");
+        props.setProperty("pix.manager.securePort", "2101");
+        props.setProperty("pix.secure", "true");
+        for (int i=0; i<keyValues.length; i+=2) {
+            props.setProperty(keyValues[i], keyValues[i+1]);
+        }
+        return props;
+    }
+
+    private static MediatorConfig buildConfig(String name, Properties props) {
+        MediatorConfig config = new MediatorConfig();
+        config.setName(name);
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testCompilesEndpoints() throws Exception {
+        Properties props = buildProperties();
+        MediatorSettings settings = new MediatorSettings(props, props);
+
+        MediatorSettings.Endpoint registry = settings.getRegistry();
+        assertEquals("registry.local", registry.getHost());
+        assertEquals(8080, registry.getPort());
+        assertEquals("http", registry.getScheme());
+        assertEquals("axis2/services/xdsregistryb", registry.getPath());
+        assertEquals("http://registry.local:8080/axis2/services/xdsregistryb", registry.getURI().toString());
+        assertEquals("axis2/services/xdsregistryb", settings.getRegistryUpdatePath());
+
+        MediatorSettings.Endpoint pixManager = settings.getPixManager();
+        assertTrue(pixManager.isSecure());
+        assertEquals(2101, pixManager.getPort());
+
+        //not configured
+        assertNull(settings.getRepository());
+        assertNull(settings.getAtna());
+    }
+
+    @Test
+    public void testDefaults() throws Exception {
+        Properties props = buildProperties();
+        MediatorSettings settings = new MediatorSettings(props, props);
+
+        assertTrue(settings.isEnrichProviders());
+        assertTrue(settings.isEnrichFacilities());
+        assertFalse(settings.isAutoRegisterPatients());
+        assertFalse(settings.isDeferEnrichment());
+        assertFalse(settings.isRegistryCacheEnabled());
+        assertEquals(1000, settings.getEnrichmentBudgetMillis());
+    }
+
+    @Test
+    public void testAuthoritiesAreNewInstances() throws Exception {
+        Properties props = buildProperties("client.requestedAssigningAuthority", "ECID", "client.requestedAssigningAuthorityId", "1.2.3");
+        MediatorSettings settings = new MediatorSettings(props, props);
+
+        assertEquals("ECID", settings.getClientAuthority().getAssigningAuthority());
+        assertEquals("1.2.3", settings.getClientAuthority().getAssigningAuthorityId());
+        assertNotSame(settings.getClientAuthority(), settings.getClientAuthority());
+    }
+
+    @Test(expected = ValidationException.class)
+    public void testInvalidPort() throws Exception {
+        Properties props = buildProperties("xds.registry.port", "80a");
+        new MediatorSettings(props, props);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void testMissingPort() throws Exception {
+        Properties props = buildProperties("xds.repository.host", "repository.local");
+        new MediatorSettings(props, props);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void testInvalidBoolean() throws Exception {
+        Properties props = buildProperties("pnr.patients.autoRegister", "yes");
+        new MediatorSettings(props, props);
+    }
+
+    @Test
+    public void testAtnaPayloadModes() throws Exception {
+        Properties props = buildProperties(
+                "atna.payload.default", "Digest", "atna.payload.PROVIDE_AND_REGISTER_RECEIVED", " metadata ", "atna.payload.truncateBytes", "1024"
+        );
+        new MediatorSettings(props, props);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void testInvalidAtnaPayloadMode() throws Exception {
+        Properties props = buildProperties("atna.payload.PROVIDE_AND_REGISTER_RECEIVED", "summary");
+        new MediatorSettings(props, props);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void testUnknownAtnaPayloadType() throws Exception {
+        Properties props = buildProperties("atna.payload.PROVIDE_AND_REGISTER", "metadata");
+        new MediatorSettings(props, props);
+    }
+
+    @Test(expected = ValidationException.class)
+    public void testInvalidAtnaPayloadTruncateBytes() throws Exception {
+        Properties props = buildProperties("atna.payload.truncateBytes", "0");
+        new MediatorSettings(props, props);
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        MediatorConfig config = buildConfig("settings-reload-test", buildProperties());
+        MediatorSettings original = MediatorSettings.load(config);
+        assertSame(original, MediatorSettings.get(config));
+
+        MediatorSettings reloaded = MediatorSettings.reload(config, buildProperties("xds.registry.port", "9090"));
+        assertSame(reloaded, MediatorSettings.get(config));
+        assertEquals(9090, MediatorSettings.get(config).getRegistry().getPort());
+    }
+
+    @Test
+    public void testReloadFlipsSwitches() throws Exception {
+        MediatorConfig config = buildConfig("settings-switch-reload-test", buildProperties());
+        MediatorSettings original = MediatorSettings.load(config);
+        assertFalse(original.isAutoRegisterPatients());
+        assertTrue(original.isSendParseOrchestration());
+
+        MediatorSettings.reload(config, buildProperties(
+                "pnr.patients.autoRegister", "true",
+                "pnr.sendParseOrchestration", "false",
+                "pnr.enrichment.deferred", "true",
+                "registry.cache.enabled", "true"
+        ));
+
+        MediatorSettings reloaded = MediatorSettings.get(config);
+        assertTrue(reloaded.isAutoRegisterPatients());
+        assertFalse(reloaded.isSendParseOrchestration());
+        //these decide which actors are started, so they keep their startup values
+        assertFalse(reloaded.isDeferEnrichment());
+        assertFalse(reloaded.isRegistryCacheEnabled());
+        //original snapshot is unchanged
+        assertFalse(original.isAutoRegisterPatients());
+    }
+
+    @Test
+    public void testInvalidReloadKeepsCurrentSettings() throws Exception {
+        MediatorConfig config = buildConfig("settings-invalid-reload-test", buildProperties());
+        MediatorSettings original = MediatorSettings.load(config);
+
+        try {
+            MediatorSettings.reload(config, buildProperties("xds.registry.port", "not-a-port"));
+            fail("Expected a ValidationException");
+        } catch (ValidationException ex) {
+            //expected
+        }
+        assertSame(original, MediatorSettings.get(config));
+    }
+
+    @Test
+    public void testReplacedPropertiesAreCompiled() throws Exception {
+        MediatorConfig config = buildConfig("settings-replaced-test", buildProperties());
+        MediatorSettings original = MediatorSettings.get(config);
+
+        config.setProperties(buildProperties("registry.cache.enabled", "true"));
+        MediatorSettings settings = MediatorSettings.get(config);
+        assertNotSame(original, settings);
+        assertTrue(settings.isRegistryCacheEnabled());
+    }
+}
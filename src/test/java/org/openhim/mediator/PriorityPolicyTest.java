@@ -0,0 +1,65 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class PriorityPolicyTest {
+
+    private static final String PNR = "urn:ihe:iti:2007:ProvideAndRegisterDocumentSet-b";
+    private static final String STORED_QUERY = "urn:ihe:iti:2007:RegistryStoredQuery";
+
+    private static PriorityPolicy buildPolicy(String... keyValues) {
+        Properties props = new Properties();
+        for (int i=0; i<keyValues.length; i+=2) {
+            props.setProperty(keyValues[i], keyValues[i+1]);
+        }
+        MediatorConfig config = new MediatorConfig();
+        config.setName("priority-policy-tests");
+        config.setProperties(props);
+        return new PriorityPolicy(config);
+    }
+
+    @Test
+    public void testDefaultsToNormal() throws Exception {
+        PriorityPolicy policy = buildPolicy();
+        assertEquals(Priority.NORMAL, policy.classify("/xdsregistry", STORED_QUERY, "10.0.0.1"));
+
+        policy = buildPolicy("priority.default", "bulk");
+        assertEquals(Priority.BULK, policy.classify("/xdsregistry", null, null));
+    }
+
+    @Test
+    public void testPrecedence() throws Exception {
+        PriorityPolicy policy = buildPolicy(
+                "priority.routes.interactive", "/xdsregistry",
+                "priority.actions.bulk", PNR + ", urn:ihe:iti:2007:RegisterDocumentSet-b",
+                "priority.clients.bulk", "10.0.0.12",
+                "priority.clients.interactive", "10.0.0.13"
+        );
+
+        assertEquals(Priority.INTERACTIVE, policy.classify("/xdsregistry", STORED_QUERY, "10.0.0.1"));
+        assertEquals("Actions take precedence over routes", Priority.BULK, policy.classify("/xdsregistry", "urn:ihe:iti:2007:RegisterDocumentSet-b", "10.0.0.1"));
+        assertEquals("Clients take precedence over routes", Priority.BULK, policy.classify("/xdsregistry", STORED_QUERY, "10.0.0.12"));
+        assertEquals("Clients take precedence over actions", Priority.INTERACTIVE, policy.classify("/xdsrepository", PNR, "10.0.0.13"));
+        assertEquals(Priority.NORMAL, policy.classify("/xdsrepository", "urn:ihe:iti:2007:RetrieveDocumentSet", "10.0.0.1"));
+    }
+
+    @Test
+    public void testMostUrgentClassWins() throws Exception {
+        PriorityPolicy policy = buildPolicy(
+                "priority.actions.bulk", STORED_QUERY,
+                "priority.actions.interactive", STORED_QUERY
+        );
+        assertEquals(Priority.INTERACTIVE, policy.classify("/xdsregistry", STORED_QUERY, null));
+    }
+}
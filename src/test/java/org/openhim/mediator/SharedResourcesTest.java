@@ -0,0 +1,79 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorSystem;
+import akka.testkit.JavaTestKit;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SharedResourcesTest {
+
+    private static class Counted implements Closeable {
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+
+    private static SharedResources.Factory<Counted, RuntimeException> factory(final AtomicInteger created) {
+        return new SharedResources.Factory<Counted, RuntimeException>() {
+            @Override
+            public Counted create() {
+                created.incrementAndGet();
+                return new Counted();
+            }
+        };
+    }
+
+    @Test
+    public void testGetOrCreate() throws Exception {
+        SharedResources resources = new SharedResources();
+        AtomicInteger created = new AtomicInteger();
+
+        Counted resource = resources.getOrCreate("test", factory(created));
+        assertSame(resource, resources.getOrCreate("test", factory(created)));
+        assertSame(resource, resources.getIfPresent("test"));
+        assertNotSame(resource, resources.getOrCreate("other", factory(created)));
+        assertEquals(2, created.get());
+        assertNull(resources.getIfPresent("missing"));
+    }
+
+    @Test
+    public void testPutClosesThePreviousResource() throws Exception {
+        SharedResources resources = new SharedResources();
+        Counted first = new Counted();
+        Counted second = new Counted();
+
+        resources.put("test", first);
+        resources.put("test", first);
+        assertEquals(0, first.closed.get());
+
+        resources.put("test", second);
+        assertEquals(1, first.closed.get());
+        assertSame(second, resources.getIfPresent("test"));
+    }
+
+    @Test
+    public void testResourcesAreClosedWithTheActorSystem() throws Exception {
+        ActorSystem system = ActorSystem.create();
+        SharedResources resources = SharedResources.get(system);
+        assertSame(resources, SharedResources.get(system));
+        Counted resource = resources.getOrCreate("test", factory(new AtomicInteger()));
+
+        JavaTestKit.shutdownActorSystem(system);
+
+        assertEquals(1, resource.closed.get());
+        assertNull(resources.getIfPresent("test"));
+    }
+}
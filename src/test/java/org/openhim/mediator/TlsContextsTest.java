@@ -0,0 +1,158 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.metrics.Histogram;
+import org.openhim.mediator.metrics.MetricsRegistry;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class TlsContextsTest {
+
+    private static final String KEYSTORE = "src/main/resources/tls/ihe/keystore.jks";
+    //a self-signed certificate that doesn't expire, as the IHE one has
+    private static final String TEST_KEYSTORE = "src/test/resources/tls/test-keystore.jks";
+
+    private static MediatorConfig buildConfig(String name, String... keyValues) {
+        Properties props = new Properties();
+        for (int i=0; i<keyValues.length; i+=2) {
+            props.setProperty(keyValues[i], keyValues[i+1]);
+        }
+        MediatorConfig config = new MediatorConfig();
+        config.setName(name);
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testContextIsBuiltOncePerEndpoint() throws Exception {
+        MediatorConfig config = buildConfig("tls-cached-test",
+                "ihe.keystore", KEYSTORE, "ihe.keypassword", "password", "ihe.storepassword", "password");
+
+        SharedResources resources = new SharedResources();
+        SSLContext atna = TlsContexts.forEndpoint(resources, config, TlsContexts.ATNA);
+        assertSame(atna, TlsContexts.forEndpoint(resources, config, TlsContexts.ATNA));
+        assertNotSame(atna, TlsContexts.forEndpoint(resources, config, TlsContexts.PIX));
+        assertSame(atna.getSocketFactory(), TlsContexts.socketFactory(resources, config, TlsContexts.ATNA));
+    }
+
+    @Test
+    public void testSessionCacheSettings() throws Exception {
+        MediatorConfig config = buildConfig("tls-session-test",
+                "dsub.tls.keystore", KEYSTORE, "dsub.tls.keypassword", "password", "dsub.tls.storepassword", "password",
+                "tls.sessionCacheSize", "16", "tls.sessionTimeoutSeconds", "60");
+
+        assertTrue(TlsContexts.isConfigured(config, TlsContexts.DSUB));
+        assertFalse(TlsContexts.isConfigured(config, TlsContexts.ATNA));
+
+        SSLContext dsub = TlsContexts.forEndpoint(new SharedResources(), config, TlsContexts.DSUB);
+        assertEquals(16, dsub.getClientSessionContext().getSessionCacheSize());
+        assertEquals(60, dsub.getClientSessionContext().getSessionTimeout());
+    }
+
+    @Test
+    public void testInstallDefault_shouldLeaveTheDefaultWithPixOverrides() throws Exception {
+        MediatorConfig config = buildConfig("tls-default-test",
+                "ihe.keystore", KEYSTORE, "ihe.keypassword", "password", "ihe.storepassword", "password",
+                "pix.tls.truststore", KEYSTORE);
+        SSLContext original = SSLContext.getDefault();
+
+        assertFalse(TlsContexts.installDefault(new SharedResources(), config));
+        assertSame(original, SSLContext.getDefault());
+    }
+
+    /**
+     * Accept one connection, complete the handshake and echo a byte
+     */
+    private static Thread startServer(final SSLServerSocket server) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (SSLSocket socket = (SSLSocket) server.accept()) {
+                    socket.startHandshake();
+                    socket.getOutputStream().write(socket.getInputStream().read());
+                } catch (IOException ex) {
+                    //the client's assertions fail
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static Histogram handshakeSeconds(String endpoint) {
+        return MetricsRegistry.getInstance().histogram(
+                "mediator_tls_handshake_seconds", "Latency of the TLS handshakes with upstream services",
+                MetricsRegistry.labels("endpoint", endpoint), Histogram.LATENCY_BUCKETS
+        );
+    }
+
+    /**
+     * Connect an unconnected socket, wait, then handshake with startHandshake or, if explicit is false, the first write
+     *
+     * @return the seconds the handshake was timed at
+     */
+    private static double timeHandshake(String name, String endpoint, boolean explicit, long idleMillis) throws Exception {
+        MediatorConfig config = buildConfig(name,
+                "ihe.keystore", TEST_KEYSTORE, "ihe.keypassword", "password", "ihe.storepassword", "password");
+        SSLContext context = TlsContexts.forEndpoint(new SharedResources(), config, endpoint);
+        Histogram histogram = handshakeSeconds(endpoint);
+        long count = histogram.getCount();
+        double sum = histogram.getSum();
+
+        try (SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0)) {
+            Thread serverThread = startServer(server);
+            try (Socket socket = context.getSocketFactory().createSocket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getLocalPort()), 5000);
+                socket.setSoTimeout(5000);
+                Thread.sleep(idleMillis);
+                if (explicit) {
+                    ((SSLSocket) socket).startHandshake();
+                }
+                socket.getOutputStream().write(42);
+                assertEquals(42, socket.getInputStream().read());
+            }
+            serverThread.join(5000);
+        }
+
+        //the handshake listener is called on another thread
+        for (int i=0; i<50 && histogram.getCount() == count; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(count + 1, histogram.getCount());
+        return histogram.getSum() - sum;
+    }
+
+    @Test
+    public void testHandshakeIsTimedFromStartHandshake() throws Exception {
+        double seconds = timeHandshake("tls-timer-explicit-test", TlsContexts.ATNA, true, 1000);
+        assertTrue("Timed the idle connection: " + seconds, seconds < 1.0);
+    }
+
+    @Test
+    public void testHandshakeIsTimedFromTheFirstWrite() throws Exception {
+        double seconds = timeHandshake("tls-timer-implicit-test", TlsContexts.DSUB, false, 1000);
+        assertTrue("Timed the idle connection: " + seconds, seconds < 1.0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingKeystore() throws Exception {
+        MediatorConfig config = buildConfig("tls-missing-test",
+                "ihe.keystore", "does-not-exist.jks", "ihe.storepassword", "password");
+        TlsContexts.forEndpoint(new SharedResources(), config, TlsContexts.PIX);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
+
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class WarmUpTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MediatorConfig buildConfig(String name, Properties props) {
+        props.setProperty("mediator.warmup.timeoutMs", "60000");
+        props.setProperty("mediator.warmup.connectTimeoutMs", "1000");
+        MediatorConfig config = new MediatorConfig();
+        config.setName(name);
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testWarmsUpFromBundledFixtures() throws Exception {
+        MediatorConfig config = buildConfig("warmup-test", new Properties());
+
+        Map<String, Long> timings = new WarmUp(SharedResources.get(system), config, Logging.getLogger(system, "warmup-test")).run();
+
+        assertTrue(timings.containsKey("jaxb:" + ParseProvideAndRegisterRequestActor.XDS_B_PACKAGE));
+        assertTrue(timings.containsKey("provide-and-register"));
+        assertFalse("No upstream services are configured", timings.containsKey("connect:pix"));
+        for (Map.Entry<String, Long> timing : timings.entrySet()) {
+            assertTrue(timing.getKey() + " should have succeeded", timing.getValue() >= 0);
+        }
+    }
+
+    @Test
+    public void testUnreachableUpstreamDoesNotFailWarmUp() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        Properties props = new Properties();
+        props.setProperty("pix.manager.host", "localhost");
+        props.setProperty("pix.manager.port", String.valueOf(closedPort));
+        MediatorConfig config = buildConfig("warmup-unreachable-test", props);
+
+        Map<String, Long> timings = new WarmUp(SharedResources.get(system), config, Logging.getLogger(system, "warmup-test")).run();
+
+        assertEquals(Long.valueOf(-1), timings.get("connect:pix"));
+        assertTrue(timings.get("hl7v2") >= 0);
+    }
+
+    @Test
+    public void testConnectsToUpstream() throws Exception {
+        try (ServerSocket pixManager = new ServerSocket(0)) {
+            Properties props = new Properties();
+            props.setProperty("pix.manager.host", "localhost");
+            props.setProperty("pix.manager.port", String.valueOf(pixManager.getLocalPort()));
+            MediatorConfig config = buildConfig("warmup-connect-test", props);
+
+            Map<String, Long> timings = new WarmUp(SharedResources.get(system), config, Logging.getLogger(system, "warmup-test")).run();
+
+            assertTrue(timings.get("connect:pix") >= 0);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WeightedFairQueueTest {
+
+    @Test
+    public void testServesLanesInWeightedRounds() throws Exception {
+        WeightedFairQueue<String> queue = new WeightedFairQueue<>(new int[] {3, 2, 1});
+        for (int i=0; i<4; i++) {
+            queue.add(Priority.BULK, "b" + i);
+            queue.add(Priority.NORMAL, "n" + i);
+            queue.add(Priority.INTERACTIVE, "i" + i);
+        }
+        assertEquals(12, queue.size());
+        assertEquals(4, queue.size(Priority.BULK));
+
+        List<String> order = new ArrayList<>();
+        String item;
+        while ((item = queue.poll()) != null) {
+            order.add(item);
+        }
+
+        assertEquals(
+                "[i0, i1, i2, n0, n1, b0, i3, n2, n3, b1, b2, b3]",
+                order.toString()
+        );
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testEmptyLanesDontHoldUpARound() throws Exception {
+        WeightedFairQueue<String> queue = new WeightedFairQueue<>(new int[] {1, 1, 1});
+        queue.add(Priority.BULK, "b0");
+        queue.add(Priority.BULK, "b1");
+        queue.add(Priority.BULK, "b2");
+
+        assertEquals("b0", queue.poll());
+        assertEquals("b1", queue.poll());
+
+        queue.add(Priority.INTERACTIVE, "i0");
+        assertEquals("i0", queue.poll());
+        assertEquals("b2", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        WeightedFairQueue<String> queue = new WeightedFairQueue<>();
+        queue.add(Priority.NORMAL, "a");
+        queue.add(Priority.BULK, "b");
+
+        assertTrue(queue.remove("b"));
+        assertFalse(queue.remove("b"));
+        assertEquals(1, queue.size());
+        assertEquals("a", queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testParseWeights() throws Exception {
+        assertArrayEquals(WeightedFairQueue.DEFAULT_WEIGHTS, WeightedFairQueue.parseWeights(null));
+        assertArrayEquals(new int[] {10, 5, 2}, WeightedFairQueue.parseWeights("10, 5, 2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWeightsForEveryLaneAreRequired() throws Exception {
+        new WeightedFairQueue<String>(new int[] {1, 2});
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import com.typesafe.config.Config;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class XDSMediatorMainTest {
+
+    private static MediatorConfig buildConfig(String weights) {
+        MediatorConfig config = new MediatorConfig();
+        config.setName("main-tests");
+        Properties props = new Properties();
+        if (weights != null) {
+            props.setProperty("priority.weights", weights);
+        }
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testBuildActorSystemConfig_shouldUseThePriorityWeights() throws Exception {
+        Config config = XDSMediatorMain.buildActorSystemConfig(buildConfig(" 16,2,1 "));
+        assertEquals("16,2,1", config.getString("mediator-mailboxes.priority.weights"));
+        assertEquals("org.openhim.mediator.PriorityMailbox", config.getString("mediator-mailboxes.priority.mailbox-type"));
+    }
+
+    @Test
+    public void testBuildActorSystemConfig_shouldKeepTheDefaultWeights() throws Exception {
+        Config config = XDSMediatorMain.buildActorSystemConfig(buildConfig(null));
+        assertEquals("8,4,1", config.getString("mediator-mailboxes.priority.weights"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuildActorSystemConfig_shouldRejectInvalidWeights() throws Exception {
+        XDSMediatorMain.buildActorSystemConfig(buildConfig("8,4"));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.datatypes;
+
+import org.junit.Test;
+import org.openhim.mediator.exceptions.CXParseException;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HL7CodecTest {
+
+    private static final int FUZZ_ITERATIONS = 20000;
+    private static final char[] ALPHABET = {'^', '^', '^', '&', '&', 'a', 'Z', '1', '.', ' ', '-', '\u00e9'};
+
+    private static String randomValue(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i=0; i<length; i++) {
+            sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String randomToken(Random random) {
+        //no delimiters
+        String value = randomValue(random, 6).replace("^", "").replace("&", "");
+        return value.isEmpty() || random.nextInt(4) == 0 ? null : value;
+    }
+
+    @Test
+    public void testParseCX() throws Exception {
+        Identifier id = HL7Codec.parseCX("76cc765a442f410^^^&1.3.6.1.4.1.21367.2005.3.7&ISO^PI");
+        assertEquals("76cc765a442f410", id.getIdentifier());
+        assertNull(id.getAssigningAuthority().getAssigningAuthority());
+        assertEquals("1.3.6.1.4.1.21367.2005.3.7", id.getAssigningAuthority().getAssigningAuthorityId());
+        assertEquals("ISO", id.getAssigningAuthority().getAssigningAuthorityIdType());
+        assertEquals("PI", id.getTypeCode());
+    }
+
+    @Test(expected = CXParseException.class)
+    public void testParseCX_empty() throws Exception {
+        HL7Codec.parseCX("  ");
+    }
+
+    @Test
+    public void testAssigningAuthoritiesAreShared() throws Exception {
+        Identifier id1 = new Identifier("1^^^&1.2.3&ISO");
+        Identifier id2 = new Identifier("2^^^&1.2.3&ISO");
+        assertSame(id1.getAssigningAuthority(), id2.getAssigningAuthority());
+        assertSame(HL7Codec.parseXCN("3^^^^^^^^&1.2.3&ISO").getAssigningAuthority(), HL7Codec.parseXCN("4^^^^^^^^&1.2.3&ISO").getAssigningAuthority());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSharedAssigningAuthoritiesCantBeModified() throws Exception {
+        new Identifier("1^^^&1.2.3&ISO").getAssigningAuthority().setAssigningAuthorityId("1.2.4");
+    }
+
+    @Test
+    public void testCanonicalCXFollowsChanges() throws Exception {
+        AssigningAuthority authority = new AssigningAuthority("", "1.2.3", "ISO");
+        Identifier id = new Identifier("1234", authority);
+        assertEquals("1234^^^&1.2.3&ISO", id.toCX());
+
+        authority.setAssigningAuthorityId("1.2.4");
+        assertEquals("1234^^^&1.2.4&ISO", id.toCX());
+
+        id.setTypeCode("PI");
+        assertEquals("1234^^^&1.2.4&ISO^PI", id.toCX());
+        assertEquals(new Identifier("1234^^^&1.2.4&ISO^PI"), id);
+        assertEquals(new Identifier("1234^^^&1.2.4&ISO^PI").hashCode(), id.hashCode());
+    }
+
+    @Test
+    public void testEqualsAndHashCodeAgree() throws Exception {
+        //empty and missing subcomponents encode the same way
+        AssigningAuthority a1 = new AssigningAuthority("NID", "");
+        AssigningAuthority a2 = new AssigningAuthority("NID", null);
+        assertEquals(a1, a2);
+        assertEquals(a1.hashCode(), a2.hashCode());
+
+        Identifier id1 = new Identifier("1234", a1);
+        Identifier id2 = new Identifier("1234", a2, " ");
+        assertEquals(id1, id2);
+        assertEquals(id1.hashCode(), id2.hashCode());
+    }
+
+    @Test
+    public void testParseXCN() throws Exception {
+        Identifier id = HL7Codec.parseXCN("pro111^Smitty^Gerald^^^^^^&1.2.3&ISO");
+        assertEquals("pro111", id.getIdentifier());
+        assertEquals("&1.2.3", id.getAssigningAuthority().toHL7());
+
+        assertNull(HL7Codec.parseXCN("^Smitty^Gerald^^^^^^&1.2.3&ISO"));
+        assertNull(HL7Codec.parseXCN("pro111^Smitty^Gerald"));
+        assertNull(HL7Codec.parseXCN("pro111^Smitty^Gerald^^^^^^"));
+    }
+
+    @Test
+    public void testParseXON() throws Exception {
+        Identifier id = HL7Codec.parseXON("Some Hospital^^^^^&1.2.3.4.5.6.7.8.9.1789&ISO^^^^45");
+        assertEquals("45", id.getIdentifier());
+        assertEquals("&1.2.3.4.5.6.7.8.9.1789", id.getAssigningAuthority().toHL7());
+        assertEquals("Some Hospital", HL7Codec.xonOrganisationName("Some Hospital^^^^^&1.2.3.4.5.6.7.8.9.1789&ISO^^^^45"));
+
+        assertNull(HL7Codec.parseXON("Some Hospital"));
+        assertNull(HL7Codec.parseXON("Some Hospital^^^^^^^^^45"));
+        assertEquals("", HL7Codec.xonOrganisationName("^^^^^&1.2.3&ISO^^^^45"));
+    }
+
+    @Test
+    public void fuzzParseCX_shouldMatchSplitParser() throws Exception {
+        Random random = new Random(41);
+        for (int i=0; i<FUZZ_ITERATIONS; i++) {
+            String cx = randomValue(random, 24);
+
+            if (cx.trim().isEmpty()) {
+                try {
+                    HL7Codec.parseCX(cx);
+                    fail("Expected a CXParseException for '" + cx + "'");
+                } catch (CXParseException ex) {
+                    continue;
+                }
+            }
+
+            String[] expected = SplitHL7Parser.parseCX(cx);
+
+            Identifier id = HL7Codec.parseCX(cx);
+            String msg = "CX '" + cx + "'";
+            assertEquals(msg, expected[0], id.getIdentifier());
+            assertEquals(msg, expected[4], id.getTypeCode());
+            if (expected[1] == null) {
+                assertNull(msg, id.getAssigningAuthority());
+            } else {
+                AssigningAuthority authority = id.getAssigningAuthority();
+                assertNotNull(msg, authority);
+                assertEquals(msg, expected[1].isEmpty() ? null : expected[1], authority.getAssigningAuthority());
+                assertEquals(msg, expected[2], authority.getAssigningAuthorityId());
+                assertEquals(msg, expected[3], authority.getAssigningAuthorityIdType());
+            }
+        }
+    }
+
+    @Test
+    public void fuzzParseXCNAndXON_shouldMatchSplitParser() throws Exception {
+        Random random = new Random(42);
+        for (int i=0; i<FUZZ_ITERATIONS; i++) {
+            String value = randomValue(random, 32);
+            String msg = "Value '" + value + "'";
+
+            String[] expected = null;
+            boolean failed = false;
+            try {
+                expected = SplitHL7Parser.parseXCN(value);
+            } catch (RuntimeException ex) {
+                //the split parser fails on short values and authorities without a universal ID type
+                failed = true;
+            }
+            Identifier xcn = HL7Codec.parseXCN(value);
+            if (!failed && (expected == null || expected[1].indexOf('&') < 0)) {
+                if (expected == null) {
+                    assertNull(msg, xcn);
+                } else {
+                    assertEquals(msg, expected[0], xcn.getIdentifier());
+                    assertEquals(msg, new AssigningAuthority("", expected[1]), xcn.getAssigningAuthority());
+                }
+            }
+
+            failed = false;
+            try {
+                expected = SplitHL7Parser.parseXON(value);
+            } catch (RuntimeException ex) {
+                failed = true;
+            }
+            Identifier xon = HL7Codec.parseXON(value);
+            if (!failed && (expected == null || expected[1].indexOf('&') < 0)) {
+                if (expected == null) {
+                    assertNull(msg, xon);
+                } else {
+                    assertEquals(msg, expected[0], xon.getIdentifier());
+                    assertEquals(msg, new AssigningAuthority("", expected[1]), xon.getAssigningAuthority());
+                    assertEquals(msg, expected[2], HL7Codec.xonOrganisationName(value));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fuzzRoundTrip() throws Exception {
+        Random random = new Random(43);
+        for (int i=0; i<FUZZ_ITERATIONS; i++) {
+            String value = randomToken(random);
+            if (value == null || value.trim().isEmpty()) {
+                continue;
+            }
+            AssigningAuthority authority = null;
+            if (random.nextBoolean()) {
+                authority = new AssigningAuthority(randomToken(random), randomToken(random), randomToken(random));
+            }
+            Identifier id = new Identifier(value, authority, randomToken(random));
+
+            if (authority != null && authority.toHL7().isEmpty()) {
+                //an empty assigning authority can't be told apart from a missing one
+                continue;
+            }
+
+            Identifier parsed = new Identifier(id.toCX());
+            String msg = "CX '" + id.toCX() + "'";
+            assertEquals(msg, id.toCX(), parsed.toCX());
+            assertEquals(msg, id, parsed);
+            assertEquals(msg, id.hashCode(), parsed.hashCode());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.datatypes;
+
+import org.openhim.mediator.exceptions.CXParseException;
+
+/**
+ * The previous regex split based parsing of CX, XCN and XON values.
+ * Kept as the reference for {@link HL7CodecTest} and as a baseline for the HL7Codec benchmarks.
+ */
+public class SplitHL7Parser {
+
+    /**
+     * @return the identifier, assigning authority (name, universal ID and type) and type code components
+     */
+    public static String[] parseCX(String CX) throws CXParseException {
+        if (CX.trim().isEmpty()) {
+            throw new CXParseException("Empty CX string");
+        }
+
+        String[] result = new String[5];
+        String[] tokens = CX.split("\\^");
+
+        if (tokens.length>0 && !tokens[0].isEmpty()) {
+            result[0] = tokens[0];
+        }
+
+        if (tokens.length>3 && !tokens[3].isEmpty()) {
+            String[] authTokens = tokens[3].split("&");
+            //marks that the identifier has an assigning authority
+            result[1] = "";
+
+            if (authTokens.length>0 && !authTokens[0].isEmpty()) {
+                result[1] = authTokens[0];
+            }
+            if (authTokens.length>1 && !authTokens[1].isEmpty()) {
+                result[2] = authTokens[1];
+            }
+            if (authTokens.length>2 && !authTokens[2].isEmpty()) {
+                result[3] = authTokens[2];
+            }
+        }
+
+        if (tokens.length>4 && !tokens[4].isEmpty()) {
+            result[4] = tokens[4];
+        }
+        return result;
+    }
+
+    /**
+     * @return the identifier and assigning authority universal ID, or null if the value doesn't have both
+     */
+    public static String[] parseXCN(String xcn) {
+        String[] xcnComponents = xcn.split("\\^", -1);
+
+        if (!xcnComponents[0].isEmpty() && !xcnComponents[8].isEmpty()) {
+            return new String[] {
+                    xcnComponents[0],
+                    xcnComponents[8].substring(xcnComponents[8].indexOf('&') + 1, xcnComponents[8].lastIndexOf('&'))
+            };
+        }
+        return null;
+    }
+
+    /**
+     * @return the identifier, assigning authority universal ID and organisation name, or null if the value doesn't have them
+     */
+    public static String[] parseXON(String xon) {
+        String[] xonComponents = xon.split("\\^", -1);
+
+        if (xonComponents.length >= 10 && !xonComponents[5].isEmpty() && !xonComponents[9].isEmpty()) {
+            return new String[] {
+                    xonComponents[9],
+                    xonComponents[5].substring(xonComponents[5].indexOf('&') + 1, xonComponents[5].lastIndexOf('&')),
+                    xonComponents[0]
+            };
+        }
+        return null;
+    }
+}
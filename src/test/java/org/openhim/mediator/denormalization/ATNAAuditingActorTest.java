@@ -0,0 +1,24 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class ATNAAuditingActorTest {
+
+    @Test
+    public void testUtf8Length() throws Exception {
+        String[] messages = {"", "<Audit/>", "<Name>Zoë</Name>", "<Name>王</Name>", "<Name>😀</Name>", "\uD83D"};
+        for (String message : messages) {
+            assertEquals(message, message.getBytes(StandardCharsets.UTF_8).length, ATNAAuditingActor.utf8Length(message));
+        }
+    }
+}
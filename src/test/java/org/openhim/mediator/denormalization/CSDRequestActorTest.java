@@ -12,13 +12,15 @@ import akka.actor.Props;
 import akka.testkit.JavaTestKit;
 import org.apache.http.HttpStatus;
 import org.junit.*;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.SharedResources;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.dummies.MockRootContext;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.testing.MockHTTPConnector;
-import org.openhim.mediator.engine.testing.TestingUtils;
 import org.openhim.mediator.messages.ResolveFacilityIdentifier;
 import org.openhim.mediator.messages.ResolveFacilityIdentifierResponse;
 import org.openhim.mediator.messages.ResolveHealthcareWorkerIdentifier;
@@ -125,7 +127,7 @@ public class CSDRequestActorTest {
     }
 
     private void stubWith(Class<? extends MockHTTPConnector> clazz) {
-        TestingUtils.launchMockHTTPConnector(system, testConfig.getName(), clazz);
+        MockRootContext.launchMockHTTPConnector(system, testConfig.getName(), clazz);
     }
 
     private void stubForHealthcareWorkerLookup() {
@@ -145,7 +147,7 @@ public class CSDRequestActorTest {
     }
 
     private void clearStub() {
-        TestingUtils.clearRootContext(system, testConfig.getName());
+        MockRootContext.clearRootContext(system, testConfig.getName());
     }
 
     @Test
@@ -309,4 +311,29 @@ public class CSDRequestActorTest {
             }
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOpenBreaker_shouldFailFast() throws Exception {
+        testConfig.setName("csd-breaker-tests");
+        CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "ilr");
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+
+        new JavaTestKit(system) {{
+            //no http-connector is running, so only the breaker can answer
+            ActorRef actor = system.actorOf(Props.create(CSDRequestActor.class, testConfig));
+
+            Identifier testId = new Identifier("1234", new AssigningAuthority("", "testauth"));
+            actor.tell(new ResolveFacilityIdentifier(getRef(), getRef(), testId, new AssigningAuthority("", "not used")), getRef());
+
+            ResolveFacilityIdentifierResponse response = expectMsgClass(
+                    Duration.create(5, TimeUnit.SECONDS),
+                    ResolveFacilityIdentifierResponse.class
+            );
+            assertNull(response.getIdentifier());
+            assertEquals("The ILR is unavailable", response.getError());
+        }};
+    }
+}
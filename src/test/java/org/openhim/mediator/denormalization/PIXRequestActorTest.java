@@ -17,20 +17,26 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.Deadline;
+import org.openhim.mediator.SharedResources;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.dummies.MockRootContext;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
 import org.openhim.mediator.engine.messages.MediatorSocketResponse;
 import org.openhim.mediator.engine.testing.MockLauncher;
-import org.openhim.mediator.engine.testing.TestingUtils;
 import org.openhim.mediator.messages.ResolvePatientIdentifier;
 import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
 import scala.concurrent.duration.Duration;
 
+import java.io.File;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
@@ -74,6 +80,13 @@ public class PIXRequestActorTest {
         }
     }
 
+    private static class MockPIXReceiver_Unresponsive extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            //never respond
+        }
+    }
+
     static ActorSystem system;
     MediatorConfig testConfig;
 
@@ -96,13 +109,17 @@ public class PIXRequestActorTest {
     }
 
     private void sendTestRequest(ActorRef ref, Class<? extends UntypedActor> handler) {
-        TestingUtils.launchActors(system, testConfig.getName(), Collections.singletonList(new MockLauncher.ActorToLaunch("mllp-connector", handler)));
+        sendTestRequest(ref, handler, Deadline.NONE);
+    }
+
+    private void sendTestRequest(ActorRef ref, Class<? extends UntypedActor> handler, Deadline deadline) {
+        MockRootContext.launchActors(system, testConfig.getName(), Collections.singletonList(new MockLauncher.ActorToLaunch("mllp-connector", handler)));
         TestActorRef<PIXRequestActor> actor = TestActorRef.create(system, Props.create(PIXRequestActor.class, testConfig));
 
         Identifier fromId = new Identifier("1234", new AssigningAuthority("test-auth", "1.2.3", "ISO"));
         AssigningAuthority targetDomain = new AssigningAuthority("ECID", "ECID", "ECID");
 
-        actor.tell(new ResolvePatientIdentifier(ref, ref, fromId, targetDomain), ref);
+        actor.tell(new ResolvePatientIdentifier(ref, ref, null, fromId, targetDomain, deadline), ref);
     }
 
     @Test
@@ -114,7 +131,7 @@ public class PIXRequestActorTest {
             assertNotNull(response.getIdentifier());
             assertEquals("975cac30-68e5-11e4-bf2a-04012ce65b02", response.getIdentifier().getIdentifier());
 
-            TestingUtils.clearRootContext(system, testConfig.getName());
+            MockRootContext.clearRootContext(system, testConfig.getName());
         }};
     }
 
@@ -126,7 +143,7 @@ public class PIXRequestActorTest {
             ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
             assertNull(response.getIdentifier());
 
-            TestingUtils.clearRootContext(system, testConfig.getName());
+            MockRootContext.clearRootContext(system, testConfig.getName());
         }};
     }
 
@@ -138,7 +155,101 @@ public class PIXRequestActorTest {
             ExceptError response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ExceptError.class);
             assertNotNull(response.getError());
 
-            TestingUtils.clearRootContext(system, testConfig.getName());
+            MockRootContext.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPIXQuery_shouldFailOnceTheRequestExpires() {
+        new JavaTestKit(system) {{
+            testConfig.setName("pix-expiry-tests");
+            testConfig.getProperties().setProperty("pix.pending.timeoutMs", "200");
+            sendTestRequest(getRef(), MockPIXReceiver_Unresponsive.class);
+
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertNull(response.getIdentifier());
+            assertEquals("The PIX manager did not respond in time", response.getError());
+
+            MockRootContext.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    private void openXrefIndex(Identifier... identifiers) throws Exception {
+        File file = new File(Files.createTempDirectory("pix-xref").toFile(), "pix-xref.log");
+        testConfig.getProperties().setProperty("pix.xref.file", file.getAbsolutePath());
+        PatientXrefIndex xref = PatientXrefIndex.open(SharedResources.get(system), testConfig);
+        if (identifiers.length > 0) {
+            xref.link(Arrays.asList(identifiers));
+        }
+    }
+
+    @Test
+    public void testPIXQuery_shouldResolveFromTheLocalXrefIndex() throws Exception {
+        testConfig.setName("pix-xref-hit-tests");
+        openXrefIndex(
+                new Identifier("1234", new AssigningAuthority("test-auth", "1.2.3", "ISO")),
+                new Identifier("local-ecid", new AssigningAuthority("ECID", "ECID", "ECID"))
+        );
+
+        new JavaTestKit(system) {{
+            //the PIX manager never responds, so the identifier can only come from the index
+            sendTestRequest(getRef(), MockPIXReceiver_Unresponsive.class);
+
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertNotNull(response.getIdentifier());
+            assertEquals("local-ecid", response.getIdentifier().getIdentifier());
+
+            MockRootContext.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPIXQuery_shouldQueryThePIXManagerOnAnXrefIndexMiss() throws Exception {
+        testConfig.setName("pix-xref-miss-tests");
+        openXrefIndex();
+
+        new JavaTestKit(system) {{
+            sendTestRequest(getRef(), MockPIXReceiver_Valid.class);
+
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertEquals("975cac30-68e5-11e4-bf2a-04012ce65b02", response.getIdentifier().getIdentifier());
+
+            MockRootContext.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPIXQuery_shouldFailFastWhileTheBreakerIsOpen() {
+        testConfig.setName("pix-breaker-tests");
+        CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "pix");
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+
+        new JavaTestKit(system) {{
+            //the PIX manager never responds, so only the breaker can answer in time
+            sendTestRequest(getRef(), MockPIXReceiver_Unresponsive.class);
+
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertNull(response.getIdentifier());
+            assertEquals("The PIX manager is unavailable", response.getError());
+
+            MockRootContext.clearRootContext(system, testConfig.getName());
+        }};
+    }
+
+    @Test
+    public void testPIXQuery_shouldNotQueryOnceTheDeadlineHasPassed() {
+        new JavaTestKit(system) {{
+            testConfig.setName("pix-deadline-tests");
+            sendTestRequest(getRef(), MockPIXReceiver_Valid.class, Deadline.after(0));
+
+            ResolvePatientIdentifierResponse response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), ResolvePatientIdentifierResponse.class);
+            assertNull(response.getIdentifier());
+            assertEquals("Not enough time left to query the PIX manager", response.getError());
+
+            MockRootContext.clearRootContext(system, testConfig.getName());
         }};
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,212 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.*;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.ResolvePatientIdentifier;
+import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
+import org.openhim.mediator.messages.ResolvePatientIdentifiers;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.*;
+
+public class PIXmRequestActorTest {
+
+    private static final AssigningAuthority CLINIC = new AssigningAuthority("clinic", "1.2.3", "ISO");
+    private static final AssigningAuthority ECID = new AssigningAuthority("ECID", "ECID", "ECID");
+
+    private static final String BATCH_RESPONSE =
+            "<Bundle xmlns=\"http://hl7.org/fhir\">" +
+            "  <type value=\"batch-response\"/>" +
+            "  <entry>" +
+            "    <resource><Parameters>" +
+            "      <parameter><name value=\"targetIdentifier\"/><valueIdentifier><system value=\"other\"/><value value=\"other-1\"/></valueIdentifier></parameter>" +
+            "      <parameter><name value=\"targetIdentifier\"/><valueIdentifier><system value=\"ECID\"/><value value=\"ecid-1\"/></valueIdentifier></parameter>" +
+            "    </Parameters></resource>" +
+            "    <response><status value=\"200 OK\"/></response>" +
+            "  </entry>" +
+            "  <entry>" +
+            "    <response><status value=\"404 Not Found\"/></response>" +
+            "  </entry>" +
+            "</Bundle>";
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+
+    @Rule
+    public WireMockRule pixmManager = new WireMockRule(8521);
+
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create("pixm-unit-test");
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("pixm.host", "localhost");
+        testConfig.getProperties().setProperty("pixm.port", "8521");
+        testConfig.getProperties().setProperty("pixm.path", "fhir");
+    }
+
+    private void sendBatch(ActorRef ref, Identifier... identifiers) {
+        ResolvePatientIdentifier[] requests = new ResolvePatientIdentifier[identifiers.length];
+        for (int i=0; i<identifiers.length; i++) {
+            requests[i] = new ResolvePatientIdentifier(ref, ref, identifiers[i], ECID);
+        }
+        ActorRef actor = system.actorOf(Props.create(PIXmRequestActor.class, testConfig));
+        actor.tell(new ResolvePatientIdentifiers(Arrays.asList(requests)), ref);
+    }
+
+    @Test
+    public void testBatchQuery_shouldResolveAllIdentifiersWithOneRequest() {
+        testConfig.setName("pixm-batch-tests");
+        stubFor(post(urlEqualTo("/fhir"))
+                .willReturn(aResponse().withStatus(200).withBody(BATCH_RESPONSE).withHeader("Content-Type", PIXmRequestActor.FHIR_XML))
+        );
+
+        new JavaTestKit(system) {{
+            sendBatch(getRef(),
+                    new Identifier("1234", CLINIC), new Identifier("5678", CLINIC), new Identifier("1234", CLINIC));
+
+            Object[] responses = receiveN(3, Duration.create(10, TimeUnit.SECONDS));
+            Map<String, Identifier> results = new HashMap<>();
+            int resolved = 0;
+            for (Object response : responses) {
+                ResolvePatientIdentifierResponse result = (ResolvePatientIdentifierResponse) response;
+                assertNull(result.getError());
+                Identifier source = ((ResolvePatientIdentifier) result.getOriginalRequest()).getIdentifier();
+                results.put(source.getIdentifier(), result.getIdentifier());
+                if (result.getIdentifier() != null) {
+                    resolved++;
+                }
+            }
+
+            assertEquals(2, resolved);
+            assertEquals("ecid-1", results.get("1234").getIdentifier());
+            assertEquals(ECID, results.get("1234").getAssigningAuthority());
+            //not found
+            assertNull(results.get("5678"));
+        }};
+
+        verify(1, postRequestedFor(urlEqualTo("/fhir"))
+                .withHeader("Content-Type", containing(PIXmRequestActor.FHIR_XML))
+                .withRequestBody(containing("sourceIdentifier=urn%3Aoid%3A1.2.3%7C1234"))
+                .withRequestBody(containing("sourceIdentifier=urn%3Aoid%3A1.2.3%7C5678")));
+        //the duplicate identifier is only queried once
+        String body = findAll(postRequestedFor(urlEqualTo("/fhir"))).get(0).getBodyAsString();
+        assertEquals(1, StringUtils.countMatches(body, "sourceIdentifier=urn%3Aoid%3A1.2.3%7C1234"));
+    }
+
+    @Test
+    public void testBatchQuery_shouldFailEachRequestIfTheBatchFails() {
+        testConfig.setName("pixm-failure-tests");
+        stubFor(post(urlEqualTo("/fhir"))
+                .willReturn(aResponse().withStatus(500).withBody("Internal error"))
+        );
+
+        new JavaTestKit(system) {{
+            sendBatch(getRef(), new Identifier("1234", CLINIC), new Identifier("5678", CLINIC));
+
+            for (Object response : receiveN(2, Duration.create(10, TimeUnit.SECONDS))) {
+                ResolvePatientIdentifierResponse result = (ResolvePatientIdentifierResponse) response;
+                assertNull(result.getIdentifier());
+                assertNotNull(result.getError());
+            }
+        }};
+    }
+
+    @Test
+    public void testBatchQuery_shouldFailEachRequestIfTheResponseCantBeRead() {
+        testConfig.setName("pixm-invalid-response-tests");
+        testConfig.getProperties().setProperty("pixm.breaker.failureThreshold", "1");
+        stubFor(post(urlEqualTo("/fhir"))
+                .willReturn(aResponse().withStatus(200).withBody("not a bundle").withHeader("Content-Type", PIXmRequestActor.FHIR_XML))
+        );
+
+        new JavaTestKit(system) {{
+            sendBatch(getRef(), new Identifier("1234", CLINIC), new Identifier("5678", CLINIC));
+
+            for (Object response : receiveN(2, Duration.create(10, TimeUnit.SECONDS))) {
+                ResolvePatientIdentifierResponse result = (ResolvePatientIdentifierResponse) response;
+                assertNull(result.getIdentifier());
+                assertNotNull(result.getError());
+            }
+        }};
+
+        //an unreadable response counts as a failure
+        CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "pixm");
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testReadBatchResponse_shouldReportEntryErrors() throws Exception {
+        PIXmRequestActor.Query query = new PIXmRequestActor.Query(new Identifier("1234", CLINIC), ECID);
+        PIXmRequestActor.Query unanswered = new PIXmRequestActor.Query(new Identifier("5678", CLINIC), ECID);
+
+        PIXmRequestActor.readBatchResponse(
+                "<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"batch-response\"/>" +
+                "<entry><response><status value=\"400 Bad Request\"/></response></entry></Bundle>",
+                Arrays.asList(query, unanswered)
+        );
+
+        assertNull(query.result);
+        assertEquals("The PIXm manager responded with status 400 Bad Request", query.error);
+        assertNotNull(unanswered.error);
+    }
+
+    @Test
+    public void testReadBatchResponse_shouldNotResolveIdentifiersInOtherSystems() throws Exception {
+        PIXmRequestActor.Query query = new PIXmRequestActor.Query(new Identifier("1234", CLINIC), ECID);
+
+        PIXmRequestActor.readBatchResponse(
+                "<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"batch-response\"/><entry>" +
+                "<resource><Parameters>" +
+                "<parameter><name value=\"targetIdentifier\"/><valueIdentifier><system value=\"other\"/><value value=\"other-1\"/></valueIdentifier></parameter>" +
+                "<parameter><name value=\"targetIdentifier\"/><valueIdentifier><system value=\"urn:oid:1.2.3\"/><value value=\"1234\"/></valueIdentifier></parameter>" +
+                "</Parameters></resource>" +
+                "<response><status value=\"200 OK\"/></response></entry></Bundle>",
+                Arrays.asList(query)
+        );
+
+        assertNull(query.result);
+        assertNull(query.error);
+    }
+
+    @Test
+    public void testSystemFor() {
+        assertEquals("urn:oid:1.2.3", PIXmRequestActor.systemFor(CLINIC));
+        assertEquals("urn:oid:1.2.3", PIXmRequestActor.systemFor(new AssigningAuthority(null, "1.2.3", null)));
+        assertEquals("ECID", PIXmRequestActor.systemFor(ECID));
+        assertEquals("clinic", PIXmRequestActor.systemFor(new AssigningAuthority("clinic")));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import ca.uhn.hl7v2.parser.GenericParser;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class PatientXrefFeedActorTest {
+
+    private static final AssigningAuthority CLINIC = new AssigningAuthority("clinic", "1.2.3", "ISO");
+    private static final AssigningAuthority ECID = new AssigningAuthority("ECID", "ECID", "ECID");
+
+    private static final String A04 =
+            "MSH|^~\\&|cr|cr|openhim|openhim|20141104094500||ADT^A04^ADT_A01|msg-a04|P|2.5\r" +
+            "EVN||20141104\r" +
+            "PID|||1234^^^clinic&1.2.3&ISO~ecid-1^^^ECID&ECID&ECID||Doe^Jane\r" +
+            "PV1||O\r";
+
+    private static final String A40 =
+            "MSH|^~\\&|cr|cr|openhim|openhim|20141104094500||ADT^A40^ADT_A39|msg-a40|P|2.5\r" +
+            "EVN||20141104\r" +
+            "PID|||ecid-2^^^ECID&ECID&ECID\r" +
+            "MRG|ecid-1^^^ECID&ECID&ECID\r";
+
+    private static final String A03 =
+            "MSH|^~\\&|cr|cr|openhim|openhim|20141104094500||ADT^A03^ADT_A03|msg-a03|P|2.5\r" +
+            "EVN||20141104\r" +
+            "PID|||1234^^^clinic&1.2.3&ISO||Doe^Jane\r" +
+            "PV1||O\r";
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+    PatientXrefIndex xref;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        testConfig = new MediatorConfig();
+        testConfig.setName("pix-xref-feed-tests");
+        testConfig.setProperties("mediator-unit-test.properties");
+        File file = new File(Files.createTempDirectory("pix-xref-feed").toFile(), "pix-xref.log");
+        testConfig.getProperties().setProperty("pix.xref.file", file.getAbsolutePath());
+        testConfig.getProperties().setProperty("pix.xref.feed.port", "0");
+        xref = PatientXrefIndex.open(SharedResources.get(system), testConfig);
+    }
+
+    private String process(String message) {
+        TestActorRef<PatientXrefFeedActor> actor = TestActorRef.create(system, Props.create(PatientXrefFeedActor.class, testConfig));
+        try {
+            return actor.underlyingActor().process(xref, new GenericParser(), message);
+        } finally {
+            system.stop(actor);
+        }
+    }
+
+    @Test
+    public void testIdentityFeed() throws Exception {
+        String ack = process(A04);
+
+        assertTrue(ack, ack.contains("MSA|AA|msg-a04"));
+        assertEquals("ecid-1", xref.resolve(new Identifier("1234", CLINIC), ECID).getIdentifier());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        process(A04);
+        String ack = process(A40);
+
+        assertTrue(ack, ack.contains("MSA|AA|msg-a40"));
+        assertEquals("ecid-2", xref.resolve(new Identifier("1234", CLINIC), ECID).getIdentifier());
+        assertEquals(1, xref.size());
+    }
+
+    @Test
+    public void testUnsupportedMessage() throws Exception {
+        String ack = process(A03);
+
+        assertTrue(ack, ack.contains("MSA|AE|msg-a03"));
+        assertNull(xref.resolve(new Identifier("1234", CLINIC), ECID));
+    }
+
+    @Test
+    public void testInvalidMessage() throws Exception {
+        String ack = process("not an HL7 message");
+
+        assertTrue(ack, ack.contains("MSA|AE"));
+    }
+
+    @Test
+    public void testAllowedSender() throws Exception {
+        testConfig.getProperties().setProperty("pix.xref.feed.allowedSenders", "other^other, cr^cr");
+        String ack = process(A04);
+
+        assertTrue(ack, ack.contains("MSA|AA|msg-a04"));
+    }
+
+    @Test
+    public void testSenderNotAllowed() throws Exception {
+        testConfig.getProperties().setProperty("pix.xref.feed.allowedSenders", "cr^other");
+        String ack = process(A04);
+
+        assertTrue(ack, ack.contains("MSA|AE|msg-a04"));
+        assertNull(xref.resolve(new Identifier("1234", CLINIC), ECID));
+    }
+
+    @Test
+    public void testReadMessage() throws Exception {
+        InputStream in = new ByteArrayInputStream((MLLPConnector.wrapMLLP(A04) + MLLPConnector.wrapMLLP(A40)).getBytes("UTF-8"));
+
+        assertEquals(A04, PatientXrefFeedActor.readMessage(in, 1024));
+        assertEquals(A40, PatientXrefFeedActor.readMessage(in, 1024));
+        assertNull(PatientXrefFeedActor.readMessage(in, 1024));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMessage_shouldRejectLargeFrames() throws Exception {
+        InputStream in = new ByteArrayInputStream(MLLPConnector.wrapMLLP(A04).getBytes("UTF-8"));
+        PatientXrefFeedActor.readMessage(in, A04.length() - 1);
+    }
+
+    private Socket connect(String readTimeoutMs, String maxMessageBytes) throws Exception {
+        testConfig.getProperties().setProperty("pix.xref.feed.readTimeoutMs", readTimeoutMs);
+        testConfig.getProperties().setProperty("pix.xref.feed.maxMessageBytes", maxMessageBytes);
+        final TestActorRef<PatientXrefFeedActor> actor = TestActorRef.create(system, Props.create(PatientXrefFeedActor.class, testConfig));
+        Socket conn = new Socket("127.0.0.1", actor.underlyingActor().getLocalPort()) {
+            @Override
+            public synchronized void close() throws IOException {
+                super.close();
+                system.stop(actor);
+            }
+        };
+        //fail rather than hang if the listener doesn't drop the connection
+        conn.setSoTimeout(5000);
+        return conn;
+    }
+
+    private static void assertDropped(Socket conn) throws IOException {
+        try {
+            assertEquals("Expected the listener to close the connection", -1, conn.getInputStream().read());
+        } catch (SocketException ex) {
+            //reset, because the listener closed it with unread input
+        }
+    }
+
+    @Test
+    public void testFeedConnection() throws Exception {
+        try (Socket conn = connect("5000", "1024")) {
+            conn.getOutputStream().write(MLLPConnector.wrapMLLP(A04).getBytes("UTF-8"));
+
+            String ack = PatientXrefFeedActor.readMessage(conn.getInputStream(), 1024);
+            assertTrue(ack, ack.contains("MSA|AA|msg-a04"));
+        }
+    }
+
+    @Test
+    public void testFeedConnection_shouldDropIdleConnections() throws Exception {
+        try (Socket conn = connect("200", "1024")) {
+            long start = System.currentTimeMillis();
+            assertDropped(conn);
+            assertTrue(System.currentTimeMillis() - start < 4000);
+        }
+    }
+
+    @Test
+    public void testFeedConnection_shouldDropLargeMessages() throws Exception {
+        try (Socket conn = connect("5000", "64")) {
+            conn.getOutputStream().write(MLLPConnector.wrapMLLP(A04).getBytes("UTF-8"));
+
+            //dropped without an ack
+            assertDropped(conn);
+            assertNull(xref.resolve(new Identifier("1234", CLINIC), ECID));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class PatientXrefIndexTest {
+
+    private static final AssigningAuthority CLINIC = new AssigningAuthority("clinic", "1.2.3", "ISO");
+    private static final AssigningAuthority ECID = new AssigningAuthority("ECID", "ECID", "ECID");
+
+    private File dir;
+    private SharedResources resources;
+
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pix-xref-test").toFile();
+        resources = new SharedResources();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        resources.close();
+    }
+
+    private MediatorConfig buildConfig(String name, String... keyValues) {
+        Properties props = new Properties();
+        props.setProperty("pix.xref.file", new File(dir, "pix-xref.log").getAbsolutePath());
+        for (int i=0; i<keyValues.length; i+=2) {
+            props.setProperty(keyValues[i], keyValues[i+1]);
+        }
+        MediatorConfig config = new MediatorConfig();
+        config.setName(name);
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testResolvesLinkedIdentifiers() throws Exception {
+        PatientXrefIndex xref = PatientXrefIndex.open(resources, buildConfig("xref-link-test"));
+        xref.link(Arrays.asList(new Identifier("1234", CLINIC), new Identifier("ecid-1", ECID)));
+
+        assertEquals("ecid-1", xref.resolve(new Identifier("1234", CLINIC), ECID).getIdentifier());
+        assertEquals("1234", xref.resolve(new Identifier("ecid-1", ECID), CLINIC).getIdentifier());
+        //only the universal ID is needed to find the authority
+        assertEquals("ecid-1", xref.resolve(new Identifier("1234", new AssigningAuthority(null, "1.2.3", "ISO")), ECID).getIdentifier());
+
+        assertNull(xref.resolve(new Identifier("5678", CLINIC), ECID));
+        assertNull(xref.resolve(new Identifier("1234", CLINIC), new AssigningAuthority("other", "4.5.6", "ISO")));
+        assertSame(xref, PatientXrefIndex.get(resources, buildConfig("xref-link-test")));
+    }
+
+    @Test
+    public void testLinkingJoinsPatients() throws Exception {
+        PatientXrefIndex xref = PatientXrefIndex.open(resources, buildConfig("xref-join-test"));
+        AssigningAuthority lab = new AssigningAuthority("lab", "7.8.9", "ISO");
+        xref.link(Arrays.asList(new Identifier("1234", CLINIC), new Identifier("ecid-1", ECID)));
+        xref.link(Arrays.asList(new Identifier("lab-1", lab), new Identifier("ecid-1", ECID)));
+
+        assertEquals(1, xref.size());
+        assertEquals("lab-1", xref.resolve(new Identifier("1234", CLINIC), lab).getIdentifier());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        PatientXrefIndex xref = PatientXrefIndex.open(resources, buildConfig("xref-merge-test"));
+        xref.link(Arrays.asList(new Identifier("1234", CLINIC), new Identifier("ecid-1", ECID)));
+        xref.link(Arrays.asList(new Identifier("5678", CLINIC), new Identifier("ecid-2", ECID)));
+
+        xref.merge(Collections.singletonList(new Identifier("ecid-1", ECID)), Collections.singletonList(new Identifier("ecid-2", ECID)));
+
+        assertEquals(1, xref.size());
+        assertEquals("ecid-1", xref.resolve(new Identifier("5678", CLINIC), ECID).getIdentifier());
+        assertEquals("ecid-1", xref.resolve(new Identifier("ecid-2", ECID), ECID).getIdentifier());
+    }
+
+    @Test
+    public void testReplaysAndCompactsJournal() throws Exception {
+        MediatorConfig config = buildConfig("xref-replay-test");
+        PatientXrefIndex xref = PatientXrefIndex.open(resources, config);
+        xref.link(Arrays.asList(new Identifier("1234", CLINIC), new Identifier("ecid-1", ECID)));
+        xref.link(Arrays.asList(new Identifier("5678", CLINIC), new Identifier("ecid-2", ECID)));
+        xref.merge(Collections.singletonList(new Identifier("ecid-1", ECID)), Collections.singletonList(new Identifier("ecid-2", ECID)));
+        //a record that was only partly written
+        FileUtils.writeStringToFile(new File(dir, "pix-xref.log"), "M\t9999^^^&1.2", StandardCharsets.UTF_8, true);
+
+        PatientXrefIndex reopened = PatientXrefIndex.open(resources, config);
+
+        assertSame(reopened, PatientXrefIndex.get(resources, config));
+        assertEquals(1, reopened.size());
+        assertEquals(1, reopened.getSkipped());
+        assertEquals("ecid-1", reopened.resolve(new Identifier("5678", CLINIC), ECID).getIdentifier());
+        assertEquals(1, FileUtils.readLines(new File(dir, "pix-xref.log"), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testBootstrap() throws Exception {
+        File export = new File(dir, "export.txt");
+        FileUtils.writeStringToFile(export,
+                "# client registry export\n" +
+                "1234^^^clinic&1.2.3&ISO~ecid-1^^^ECID&ECID&ECID\n" +
+                "\n" +
+                "5678^^^clinic&1.2.3&ISO~ecid-2^^^ECID&ECID&ECID\n",
+                StandardCharsets.UTF_8);
+
+        PatientXrefIndex xref = PatientXrefIndex.open(resources, buildConfig("xref-bootstrap-test", "pix.xref.bootstrapFile", export.getAbsolutePath()));
+
+        assertEquals(2, xref.size());
+        assertEquals("ecid-2", xref.resolve(new Identifier("5678", CLINIC), ECID).getIdentifier());
+        assertTrue(new File(dir, "pix-xref.log").exists());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StoredQueryEnricherTest {
+
+    private static final String MULTI_SLOT_QUERY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<q:AdhocQueryRequest xmlns:q=\"urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0\" xmlns:r=\"urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0\">"
+            + "<r:AdhocQuery id=\"urn:uuid:14d4debf-8f97-4251-9a74-a90016b0af0d\">"
+            + "<r:Slot name=\"$XDSDocumentEntryPatientId\"><r:ValueList><r:Value>'1234^^^&amp;1.2.3&amp;ISO'</r:Value></r:ValueList></r:Slot>"
+            + "<r:Slot name=\"$XDSSubmissionSetPatientId\"><r:ValueList><r:Value>'5678^^^&amp;1.2.3&amp;ISO'</r:Value></r:ValueList></r:Slot>"
+            + "<r:Slot name=\"$XDSFolderPatientId\"><r:ValueList><r:Value>('1234^^^&amp;1.2.3&amp;ISO','5678^^^&amp;1.2.3&amp;ISO')</r:Value></r:ValueList></r:Slot>"
+            + "<r:Slot name=\"$XDSDocumentEntryStatus\"><r:ValueList><r:Value>1234^^^&amp;1.2.3&amp;ISO</r:Value></r:ValueList></r:Slot>"
+            + "<!-- unchanged -->"
+            + "</r:AdhocQuery>"
+            + "</q:AdhocQueryRequest>";
+
+    private static String enrich(String query, Map<Identifier, Identifier> ids, Identifier defaultID) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StoredQueryEnricher.enrich(IOUtils.toInputStream(query, "UTF-8"), out, ids, defaultID);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testEnrich() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("adhocQueryRequest_wSOAP.xml");
+        String query = IOUtils.toString(in);
+        in = getClass().getClassLoader().getResourceAsStream("adhocQueryRequest_enriched_wSOAP.xml");
+        String expected = IOUtils.toString(in);
+
+        Identifier id = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+        String enriched = enrich(query, new HashMap<Identifier, Identifier>(), id);
+
+        assertEquals(EnrichRegistryStoredQueryActorTest.trimXML(expected), EnrichRegistryStoredQueryActorTest.trimXML(enriched));
+    }
+
+    @Test
+    public void testEnrich_multiplePatientIDSlots() throws Exception {
+        Map<Identifier, Identifier> ids = new HashMap<>();
+        ids.put(new Identifier("1234^^^&1.2.3&ISO"), new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID")));
+        ids.put(new Identifier("5678^^^&1.2.3&ISO"), new Identifier("ECID2", new AssigningAuthority("ECID", "ECID", "ECID")));
+
+        String enriched = enrich(MULTI_SLOT_QUERY, ids, null);
+
+        String expected = MULTI_SLOT_QUERY
+                .replace("'1234^^^&amp;1.2.3&amp;ISO'", "'ECID1^^^ECID&amp;ECID&amp;ECID'")
+                .replace("'5678^^^&amp;1.2.3&amp;ISO'", "'ECID2^^^ECID&amp;ECID&amp;ECID'");
+        assertEquals(expected, enriched);
+    }
+
+    @Test
+    public void testEnrich_unknownIDIsUnchanged() throws Exception {
+        String enriched = enrich(MULTI_SLOT_QUERY, new HashMap<Identifier, Identifier>(), null);
+        assertEquals(MULTI_SLOT_QUERY, enriched);
+    }
+}
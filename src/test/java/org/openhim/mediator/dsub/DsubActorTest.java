@@ -0,0 +1,83 @@
+package org.openhim.mediator.dsub;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DsubActorTest {
+
+    private static final String GET_MESSAGES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"\n" +
+            " xmlns:a=\"http://www.w3.org/2005/08/addressing\"\n" +
+            " xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\"\n" +
+            " xmlns:dsub=\"urn:openhim:mediator:xds:dsub\">\n" +
+            " <s:Header>\n" +
+            " <a:Action>http://docs.oasis-open.org/wsn/bw-2/PullPoint/GetMessagesRequest</a:Action>\n" +
+            " </s:Header>\n" +
+            " <s:Body>\n" +
+            " <wsnt:GetMessages dsub:locationId=\"FC-1\" dsub:cursor=\"%s\"/>\n" +
+            " </s:Body>\n" +
+            "</s:Envelope>";
+
+    private ActorSystem system;
+    private MediatorConfig testConfig;
+
+    @Before
+    public void before() throws Exception {
+        system = ActorSystem.create();
+
+        testConfig = new MediatorConfig();
+        testConfig.setName("dsub-tests");
+        testConfig.setProperties("mediator-unit-test.properties");
+        //the same server as the Mongo based tests
+        testConfig.getProperties().setProperty("mediator.mongo.host", "localhost");
+    }
+
+    @After
+    public void after() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private FinishRequest getMessages(String cursor) {
+        JavaTestKit probe = new JavaTestKit(system);
+        ActorRef actor = system.actorOf(Props.create(DsubActor.class, testConfig));
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                probe.getRef(), probe.getRef(), "unit-test", "POST", "http", null, null, "/dsub",
+                String.format(GET_MESSAGES, cursor), Collections.<String, String>emptyMap(), null
+        );
+        actor.tell(request, probe.getRef());
+        return probe.expectMsgClass(Duration.create(10, TimeUnit.SECONDS), FinishRequest.class);
+    }
+
+    @Test
+    public void testGetMessages_shouldRejectCursorsTooLargeForASequenceNumber() {
+        FinishRequest response = getMessages("92233720368547758070");
+
+        assertEquals(400, response.getResponseStatus().intValue());
+        assertTrue(response.getResponse().contains("<s:Fault>"));
+        assertTrue(response.getResponse().contains("Invalid GetMessages cursor: 92233720368547758070"));
+    }
+
+    @Test
+    public void testGetMessages_shouldRejectCursorsThatArentNumbers() {
+        FinishRequest response = getMessages("abc");
+
+        assertEquals(400, response.getResponseStatus().intValue());
+        assertTrue(response.getResponse().contains("<s:Fault>"));
+    }
+}
@@ -0,0 +1,161 @@
+package org.openhim.mediator.dsub.pull;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Test;
+import org.openhim.mediator.MongoBasedTest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MongoPullPointTest extends MongoBasedTest {
+
+    private MongoDatabase mongoDb;
+    private PullPointFactory pullPointFactory;
+
+    @Override
+    protected void mongoInitialized(MongoDatabase mongoDb) {
+        this.mongoDb = mongoDb;
+        pullPointFactory = new PullPointFactory(mongoDb);
+    }
+
+    @Test
+    public void shouldPageThroughMessagesWithACursor() {
+        PullPoint pullPoint = pullPointFactory.get("FC-1");
+        pullPoint.create();
+        pullPoint.registerDocuments(asList("doc-1", "doc-2", "doc-3"));
+
+        List<PullPointEntry> first = pullPoint.getMessages(null, 2);
+        assertEquals(2, first.size());
+        assertEquals("doc-1", first.get(0).getDocumentId());
+        assertEquals("doc-2", first.get(1).getDocumentId());
+        assertTrue(first.get(0).getSequence() < first.get(1).getSequence());
+
+        long cursor = first.get(1).getSequence();
+        List<PullPointEntry> second = pullPoint.getMessages(cursor, 2);
+        assertEquals(1, second.size());
+        assertEquals("doc-3", second.get(0).getDocumentId());
+
+        //the entries up to the cursor were acknowledged, so a consumer without a cursor resumes after them
+        assertEquals(asList("doc-3"), pullPoint.getDocumentIds());
+        assertEquals("doc-3", pullPoint.getMessages(null, 10).get(0).getDocumentId());
+
+        pullPoint.acknowledge(second.get(0).getSequence());
+        assertTrue(pullPoint.getMessages(null, 10).isEmpty());
+    }
+
+    @Test
+    public void shouldRejectCursorsPastTheLastDeliveredMessage() {
+        PullPoint pullPoint = pullPointFactory.get("FC-1");
+        pullPoint.create();
+        pullPoint.registerDocuments(asList("doc-1", "doc-2", "doc-3"));
+
+        List<PullPointEntry> first = pullPoint.getMessages(null, 1);
+        long undelivered = first.get(0).getSequence() + 2;
+        try {
+            pullPoint.getMessages(undelivered, 10);
+            fail("Expected the cursor to be rejected");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+        try {
+            pullPoint.acknowledge(undelivered);
+            fail("Expected the sequence number to be rejected");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+
+        //nothing was acknowledged
+        assertEquals(asList("doc-1", "doc-2", "doc-3"), pullPoint.getDocumentIds());
+        assertEquals(2, pullPoint.getMessages(first.get(0).getSequence(), 10).size());
+    }
+
+    @Test
+    public void shouldDeliverEntriesThatLandBehindTheCursor() {
+        PullPoint pullPoint = pullPointFactory.get("FC-1");
+        pullPoint.create();
+        pullPoint.registerDocument("doc-1");
+        //another writer reserves a sequence number, but is slower to insert its entry
+        long reserved = MongoPullPoint.reserveSequences(mongoDb, 1);
+        pullPoint.registerDocument("doc-3");
+
+        List<PullPointEntry> first = pullPoint.getMessages(null, 10);
+        assertEquals(2, first.size());
+        long cursor = first.get(1).getSequence();
+        assertTrue(reserved < cursor);
+
+        MongoPullPoint.insert(mongoDb, asList(MongoPullPoint.newEntry("FC-1", "doc-2")), reserved);
+
+        //acknowledging the cursor doesn't drop the late entry, which is delivered next
+        List<PullPointEntry> second = pullPoint.getMessages(cursor, 10);
+        assertEquals(1, second.size());
+        assertEquals("doc-2", second.get(0).getDocumentId());
+        assertTrue(PullPointResponses.getMessagesResponse("http://broker", second, cursor).contains("dsub:cursor=\"" + cursor + "\""));
+
+        assertTrue(pullPoint.getMessages(cursor, 10).isEmpty());
+        assertTrue(pullPoint.getDocumentIds().isEmpty());
+    }
+
+    @Test
+    public void shouldMigrateLegacyEntries() {
+        MongoCollection<Document> legacy = mongoDb.getCollection(MongoPullPoint.LEGACY_ENTRIES);
+        legacy.insertOne(new Document("_id", UUID.randomUUID()).append("documentId", "doc-1").append("locationId", "FC-1"));
+        legacy.insertOne(new Document("_id", UUID.randomUUID()).append("documentId", "doc-2").append("locationId", "FC-2"));
+
+        assertEquals(2, MongoPullPoint.migrateLegacyEntries(mongoDb));
+
+        assertTrue(pullPointFactory.get("FC-1").exists());
+        assertEquals(asList("doc-1"), pullPointFactory.get("FC-1").getDocumentIds());
+        assertEquals(asList("doc-2"), pullPointFactory.get("FC-2").getDocumentIds());
+        assertEquals(0, legacy.count());
+        assertEquals(0, MongoPullPoint.migrateLegacyEntries(mongoDb));
+    }
+
+    @Test
+    public void shouldRegisterDocumentsForEveryPullPoint() {
+        pullPointFactory.get("FC-1").create();
+        pullPointFactory.get("FC-2").create();
+
+        assertEquals(2, pullPointFactory.registerDocument("doc-1", null));
+        assertEquals(1, pullPointFactory.registerDocument("doc-2", "FC-2"));
+        assertEquals(0, pullPointFactory.registerDocument("doc-3", "FC-UNKNOWN"));
+
+        assertEquals(asList("doc-1"), pullPointFactory.get("FC-1").getDocumentIds());
+        assertEquals(asList("doc-1", "doc-2"), pullPointFactory.get("FC-2").getDocumentIds());
+    }
+
+    @Test
+    public void shouldDestroyPullPoints() {
+        PullPoint pullPoint = pullPointFactory.get("FC-1");
+        assertFalse(pullPoint.exists());
+
+        pullPoint.create();
+        pullPoint.registerDocument("doc-1");
+        assertTrue(pullPoint.exists());
+
+        pullPoint.destroy();
+        assertFalse(pullPoint.exists());
+        assertTrue(pullPoint.getDocumentIds().isEmpty());
+        assertEquals(0, pullPointFactory.registerDocument("doc-2", null));
+    }
+
+    @Test
+    public void shouldBuildGetMessagesResponses() {
+        String response = PullPointResponses.getMessagesResponse("http://broker",
+                asList(new PullPointEntry(7, "doc-1"), new PullPointEntry(9, "doc<2>")), 3);
+
+        assertTrue(response.contains("dsub:cursor=\"9\""));
+        assertTrue(response.contains("<rim:ObjectRef id=\"doc-1\"/>"));
+        assertTrue(response.contains("<rim:ObjectRef id=\"doc&lt;2&gt;\"/>"));
+        assertTrue(PullPointResponses.getMessagesResponse("http://broker", Collections.<PullPointEntry>emptyList(), 3)
+                .contains("dsub:cursor=\"3\""));
+    }
+}
@@ -14,6 +14,7 @@ import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.messages.BaseResolveIdentifier;
 import org.openhim.mediator.messages.BaseResolveIdentifierResponse;
 import org.openhim.mediator.messages.ResolvePatientIdentifier;
+import org.openhim.mediator.messages.ResolvePatientIdentifiers;
 
 import java.util.List;
 
@@ -68,7 +69,11 @@ public class DummyResolveIdentifierActor extends UntypedActor {
 
     @Override
     public void onReceive(Object msg) throws Exception {
-        if (expectedMessageClass.isInstance(msg)) {
+        if (msg instanceof ResolvePatientIdentifiers) {
+            for (ResolvePatientIdentifier request : ((ResolvePatientIdentifiers) msg).getRequests()) {
+                onReceive(request);
+            }
+        } else if (expectedMessageClass.isInstance(msg)) {
             if (expectedRequest!=null) {
                 assertEquals(expectedRequest, msg);
                 expectedRequest.seen++;
@@ -0,0 +1,75 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.dummies;
+
+import akka.actor.ActorIdentity;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Identify;
+import akka.actor.InvalidActorNameException;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Synchronous versions of the TestingUtils launch and clear helpers.
+ * <br/><br/>
+ * TestingUtils starts the mocks and stops them with a PoisonPill without waiting for either, so a test could message
+ * a mock before it exists, or fail to launch its mocks because the last test's root context was still stopping.
+ */
+public class MockRootContext {
+    private static final long LAUNCH_TIMEOUT_MILLIS = 3000;
+
+    public static void launchMockHTTPConnector(ActorSystem system, String root, Class<? extends MockHTTPConnector> clazz) {
+        launchActors(system, root, Collections.singletonList(new MockLauncher.ActorToLaunch("http-connector", clazz)));
+    }
+
+    /**
+     * Launch the mocks under <code>/user/{root}</code>. The mocks exist once this returns.
+     */
+    public static void launchActors(ActorSystem system, String root, List<MockLauncher.ActorToLaunch> actorsToLaunch) {
+        long end = System.currentTimeMillis() + LAUNCH_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                //the launcher creates its children in its constructor, which a TestActorRef runs on this thread
+                TestActorRef.create(system, Props.create(MockLauncher.class, actorsToLaunch), root);
+                return;
+            } catch (InvalidActorNameException ex) {
+                //the guardian hasn't released the name of a stopped root context yet
+                if (System.currentTimeMillis() > end) {
+                    throw ex;
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the mocks under <code>/user/{root}</code> and wait for them to terminate
+     */
+    public static void clearRootContext(ActorSystem system, String root) {
+        JavaTestKit probe = new JavaTestKit(system);
+        system.actorSelection("/user/" + root).tell(new Identify(root), probe.getRef());
+        ActorRef context = probe.expectMsgClass(ActorIdentity.class).getRef();
+        if (context != null) {
+            probe.watch(context);
+            system.stop(context);
+            probe.expectTerminated(context);
+        }
+        system.stop(probe.getRef());
+    }
+}
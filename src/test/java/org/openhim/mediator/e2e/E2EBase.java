@@ -19,13 +19,17 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.openhim.mediator.denormalization.ATNAAuditingActor;
+import org.openhim.mediator.denormalization.CSDRequestActor;
 import org.openhim.mediator.denormalization.EnrichRegistryStoredQueryActor;
+import org.openhim.mediator.denormalization.PIXRequestActor;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.MediatorServer;
 import org.openhim.mediator.engine.RoutingTable;
 import org.openhim.mediator.engine.StartupActorsConfig;
 import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.normalization.ParseProvideAndRegisterRequestActor;
 import org.openhim.mediator.normalization.ParseRegistryStoredQueryActor;
+import org.openhim.mediator.normalization.XDSbMimeProcessorActor;
 import org.openhim.mediator.orchestration.RegistryActor;
 import org.openhim.mediator.orchestration.RepositoryActor;
 
@@ -258,6 +262,10 @@ public class E2EBase {
         startupActors.addActor("parse-registry-stored-query", ParseRegistryStoredQueryActor.class);
         startupActors.addActor("enrich-registry-stored-query", EnrichRegistryStoredQueryActor.class);
         startupActors.addActor("atna-auditing", ATNAAuditingActor.class);
+        startupActors.addActor("pix-denormalization", PIXRequestActor.Pool.class);
+        startupActors.addActor("csd-denormalization", CSDRequestActor.Pool.class);
+        startupActors.addActor("xds-multipart-normalization", XDSbMimeProcessorActor.Pool.class);
+        startupActors.addActor("xds-pnr-document-normalization", ParseProvideAndRegisterRequestActor.Pool.class);
         testConfig.setStartupActors(startupActors);
     }
 
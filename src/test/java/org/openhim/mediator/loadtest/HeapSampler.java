@@ -0,0 +1,95 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Samples heap usage and garbage collection activity while a load test runs.
+ * <br/><br/>
+ * The mediator, stand-ins and driver share a JVM, so the figures are an upper bound for the mediator alone.
+ */
+public class HeapSampler extends Thread {
+    private static final long INTERVAL_MS = 250;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private volatile boolean running = true;
+    private volatile long maxUsed;
+    private volatile long sumUsed;
+    private volatile int samples;
+    private volatile long gcCountAtReset;
+    private volatile long gcTimeAtReset;
+
+
+    public HeapSampler() {
+        super("heap-sampler");
+        setDaemon(true);
+    }
+
+    /**
+     * Discard the samples taken so far, e.g. at the end of the warm-up period
+     */
+    public synchronized void reset() {
+        maxUsed = 0;
+        sumUsed = 0;
+        samples = 0;
+        gcCountAtReset = gcCount();
+        gcTimeAtReset = gcTime();
+    }
+
+    private synchronized void sample() {
+        long used = memory.getHeapMemoryUsage().getUsed();
+        maxUsed = Math.max(maxUsed, used);
+        sumUsed += used;
+        samples++;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    public void stopSampling() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            sample();
+            try {
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long mb = 1024 * 1024;
+        return String.format("max used=%dMiB mean used=%dMiB committed=%dMiB max=%dMiB, gc: %d collections, %dms",
+                maxUsed / mb, samples > 0 ? sumUsed / samples / mb : 0,
+                memory.getHeapMemoryUsage().getCommitted() / mb, memory.getHeapMemoryUsage().getMax() / mb,
+                gcCount() - gcCountAtReset, gcTime() - gcTimeAtReset);
+    }
+}
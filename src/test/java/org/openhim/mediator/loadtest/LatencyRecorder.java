@@ -0,0 +1,66 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Records every latency of a request type, so that exact percentiles can be reported.
+ * A load test run produces at most a few hundred thousand samples, which is cheap to keep.
+ */
+public class LatencyRecorder {
+    private long[] latencies = new long[1024];
+    private int count = 0;
+    private int failures = 0;
+
+
+    /**
+     * @param latencyNanos the time from when the request was due to be sent until its response was received
+     */
+    public synchronized void record(long latencyNanos, boolean success) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[count++] = latencyNanos;
+        if (!success) {
+            failures++;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds at the percentile (nearest rank), or 0 if nothing was recorded
+     */
+    public synchronized double getPercentileMillis(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.min(Math.max(rank, 1), count) - 1] / 1e6;
+    }
+
+    public synchronized double getMeanMillis() {
+        if (count == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i=0; i<count; i++) {
+            sum += latencies[i];
+        }
+        return sum / count / 1e6;
+    }
+}
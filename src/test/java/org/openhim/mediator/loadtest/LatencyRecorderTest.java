@@ -0,0 +1,50 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testGetPercentileMillis() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder();
+        //record out of order and past the initial capacity
+        for (int i=2000; i>0; i--) {
+            recorder.record(i * 1000000L, i % 100 != 0);
+        }
+
+        assertEquals(2000, recorder.getCount());
+        assertEquals(20, recorder.getFailures());
+        assertEquals(1000, recorder.getPercentileMillis(50), 0.0001);
+        assertEquals(1980, recorder.getPercentileMillis(99), 0.0001);
+        assertEquals(2000, recorder.getPercentileMillis(100), 0.0001);
+        assertEquals(1000.5, recorder.getMeanMillis(), 0.0001);
+    }
+
+    @Test
+    public void testGetPercentileMillis_empty() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder();
+        assertEquals(0, recorder.getPercentileMillis(99), 0.0001);
+        assertEquals(0, recorder.getMeanMillis(), 0.0001);
+    }
+
+    @Test
+    public void testBehaviour_shouldFail() throws Exception {
+        LoadTestConfig.Behaviour behaviour = new LoadTestConfig.Behaviour(0, 0.05);
+        int failed = 0;
+        for (long call=1; call<=100; call++) {
+            if (behaviour.shouldFail(call)) {
+                failed++;
+            }
+        }
+        assertEquals(5, failed);
+        assertFalse(new LoadTestConfig.Behaviour(0, 0).shouldFail(1));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a weighted mix of requests to the mediator at a fixed rate (an open workload).
+ * <br/><br/>
+ * Requests are scheduled independently of how quickly the mediator responds, and latency is measured from when
+ * a request was due rather than when it was actually sent. Time spent queued behind a slow mediator is therefore
+ * counted, rather than hidden by the driver slowing down (coordinated omission).
+ */
+public class LoadDriver {
+
+    /**
+     * A type of request in the mix
+     */
+    public static class RequestType {
+        final String name;
+        final String path;
+        final String contentType;
+        final String body;
+        final int weight;
+        final LatencyRecorder recorder = new LatencyRecorder();
+
+        RequestType(String name, String path, String contentType, String body, int weight) {
+            this.name = name;
+            this.path = path;
+            this.contentType = contentType;
+            this.body = body;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyRecorder getRecorder() {
+            return recorder;
+        }
+    }
+
+    private static final String MTOM_CONTENT_TYPE = "multipart/related; type=\"application/xop+xml\"; "
+            + "boundary=\"MIMEBoundaryurn_uuid_76A2C3D9BCD3AECFF31217932910180\"; start-info=\"application/soap+xml\"";
+
+    private final LoadTestConfig config;
+    private final String baseUrl;
+    private final List<RequestType> mix = new ArrayList<>();
+    private final CloseableHttpClient client;
+    private final ExecutorService workers;
+    private final HeapSampler heapSampler = new HeapSampler();
+
+    private volatile boolean recording = false;
+    private long measuredNanos;
+
+
+    public LoadDriver(LoadTestConfig config, String baseUrl) throws IOException {
+        this.config = config;
+        this.baseUrl = baseUrl;
+
+        addToMix("pnr", "/xdsrepository", "application/soap+xml", "pnr_e2e.xml", config.getInt("loadtest.mix.pnr", 4));
+        addToMix("pnr-mtom", "/xdsrepository", MTOM_CONTENT_TYPE, "pnr_e2e_mtom.xml", config.getInt("loadtest.mix.pnrMtom", 2));
+        addToMix("stored-query", "/xdsregistry", "application/soap+xml", "adhocQueryRequest_wSOAP.xml", config.getInt("loadtest.mix.storedQuery", 4));
+        if (config.isDsubEnabled()) {
+            addToMix("subscribe", "/dsub", "application/soap+xml", "iti/iti-52.xml", config.getInt("loadtest.mix.subscribe", 1));
+        }
+
+        int timeout = config.getInt("mediator.timeout", 30000);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        client = HttpClientBuilder.create()
+                .setDefaultRequestConfig(requestConfig)
+                .setMaxConnTotal(config.getConcurrency())
+                .setMaxConnPerRoute(config.getConcurrency())
+                .build();
+        workers = Executors.newFixedThreadPool(config.getConcurrency());
+    }
+
+    private void addToMix(String name, String path, String contentType, String resource, int weight) throws IOException {
+        if (weight <= 0) {
+            return;
+        }
+        InputStream in = getClass().getClassLoader().getResourceAsStream(resource);
+        try {
+            mix.add(new RequestType(name, path, contentType, IOUtils.toString(in), weight));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public List<RequestType> getMix() {
+        return mix;
+    }
+
+    public HeapSampler getHeapSampler() {
+        return heapSampler;
+    }
+
+    /**
+     * @return the length of the measured (post warm-up) period in seconds
+     */
+    public double getMeasuredSeconds() {
+        return measuredNanos / 1e9;
+    }
+
+    private RequestType pick(Random random, int totalWeight) {
+        int r = random.nextInt(totalWeight);
+        for (RequestType type : mix) {
+            r -= type.weight;
+            if (r < 0) {
+                return type;
+            }
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    private void send(RequestType type, long dueNanos, boolean record) {
+        boolean success = false;
+        HttpPost post = new HttpPost(baseUrl + type.path);
+        post.setHeader("Content-Type", type.contentType);
+        try {
+            post.setEntity(new StringEntity(type.body));
+            CloseableHttpResponse response = client.execute(post);
+            try {
+                EntityUtils.consume(response.getEntity());
+                int status = response.getStatusLine().getStatusCode();
+                success = status >= 200 && status < 300;
+            } finally {
+                IOUtils.closeQuietly(response);
+            }
+        } catch (IOException e) {
+            success = false;
+        }
+
+        if (record) {
+            type.recorder.record(System.nanoTime() - dueNanos, success);
+        }
+    }
+
+    /**
+     * Run the warm-up and measured periods, blocking until all sent requests have completed
+     */
+    public void run() throws InterruptedException {
+        if (mix.isEmpty()) {
+            throw new IllegalStateException("No requests in the mix");
+        }
+
+        int totalWeight = 0;
+        for (RequestType type : mix) {
+            totalWeight += type.weight;
+        }
+
+        Random random = new Random(config.getSeed());
+        long interval = (long) (1e9 / config.getRate());
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+
+        heapSampler.start();
+        long next = System.nanoTime();
+        while (next < end) {
+            long now = System.nanoTime();
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+
+            if (!recording && next >= warmupEnd) {
+                recording = true;
+                heapSampler.reset();
+            }
+
+            final RequestType type = pick(random, totalWeight);
+            final long due = next;
+            final boolean record = recording;
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(type, due, record);
+                }
+            });
+            next += interval;
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(config.getInt("mediator.timeout", 30000) * 2L, TimeUnit.MILLISECONDS);
+        measuredNanos = System.nanoTime() - warmupEnd;
+        heapSampler.stopSampling();
+        IOUtils.closeQuietly(client);
+    }
+
+    /**
+     * Summarise the measured period
+     */
+    public Map<String, String> report() {
+        Map<String, String> lines = new LinkedHashMap<>();
+        int total = 0;
+        int failures = 0;
+        for (RequestType type : mix) {
+            LatencyRecorder r = type.recorder;
+            total += r.getCount();
+            failures += r.getFailures();
+            lines.put(type.name, String.format("count=%d failures=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+                    r.getCount(), r.getFailures(), r.getMeanMillis(), r.getPercentileMillis(50),
+                    r.getPercentileMillis(99), r.getPercentileMillis(100)));
+        }
+        lines.put("throughput", String.format("%.1f req/s (target %.1f req/s), %d requests, %d failures",
+                total / getMeasuredSeconds(), config.getRate(), total, failures));
+        lines.put("heap", heapSampler.toString());
+        return lines;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import org.openhim.mediator.XDSMediatorMain;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.MediatorServer;
+import org.openhim.mediator.engine.RoutingTable;
+
+import java.util.Map;
+
+/**
+ * A self-contained load test for the mediator.
+ * <br/><br/>
+ * Starts the mediator along with in-process stand-ins for the PIX Manager, CSD InfoManager, XDS.b registry,
+ * XDS.b repository and ATNA audit repository, then drives a mix of Provide and Register (plain and MTOM),
+ * stored query and (if Mongo is configured) subscription requests at a target rate. Reports latency percentiles,
+ * throughput and heap usage.
+ * <br/><br/>
+ * Usage: <code>mvn -Ploadtest test-compile exec:exec</code>, or run this class with <code>--conf &lt;file&gt;</code>
+ * to override the settings in <code>mediator-loadtest.properties</code>.
+ */
+public class LoadTest {
+
+    private static MediatorConfig buildMediatorConfig(LoadTestConfig loadTestConfig) throws RoutingTable.RouteAlreadyMappedException {
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties(loadTestConfig.getProperties());
+
+        config.setName(config.getProperty("mediator.name"));
+        config.setServerHost(config.getProperty("mediator.host"));
+        config.setServerPort(Integer.parseInt(config.getProperty("mediator.port")));
+        config.setRootTimeout(Integer.parseInt(config.getProperty("mediator.timeout")));
+
+        config.setCoreHost(config.getProperty("core.host"));
+        config.setCoreAPIUsername(config.getProperty("core.api.user"));
+        config.setCoreAPIPassword(config.getProperty("core.api.password"));
+        config.setCoreAPIPort(Integer.parseInt(config.getProperty("core.api.port")));
+
+        config.setRoutingTable(XDSMediatorMain.buildRoutingTable());
+        config.setStartupActors(XDSMediatorMain.buildStartupActorsConfig(config));
+
+        return config;
+    }
+
+    public static void main(String... args) throws Exception {
+        String configPath = null;
+        if (args.length==2 && args[0].equals("--conf")) {
+            configPath = args[1];
+        }
+
+        LoadTestConfig loadTestConfig = new LoadTestConfig(configPath);
+        MediatorConfig config = buildMediatorConfig(loadTestConfig);
+
+        StandInPIXServer pix = new StandInPIXServer(Integer.parseInt(config.getProperty("pix.manager.port")), loadTestConfig.getBehaviour("pix"));
+        StandInATNAServer atna = new StandInATNAServer(Integer.parseInt(config.getProperty("atna.tcpPort")));
+        //the CSD InfoManager, registry and repository share a port, so are served by a single WireMock server
+        StandInHTTPServices httpServices = new StandInHTTPServices(Integer.parseInt(config.getProperty("xds.registry.port")));
+        MediatorServer server = new MediatorServer(config);
+
+        try {
+            pix.start();
+            atna.start();
+            httpServices.start(loadTestConfig);
+            server.start(false);
+
+            System.out.println(String.format("Running at %.1f req/s for %ds after a %ds warm-up (pix: %s, csd: %s, registry: %s, repository: %s)",
+                    loadTestConfig.getRate(), loadTestConfig.getDurationSeconds(), loadTestConfig.getWarmupSeconds(),
+                    loadTestConfig.getBehaviour("pix"), loadTestConfig.getBehaviour("csd"),
+                    loadTestConfig.getBehaviour("registry"), loadTestConfig.getBehaviour("repository")));
+            if (!loadTestConfig.isDsubEnabled()) {
+                System.out.println("mediator.mongo.host isn't set, so /dsub won't be exercised");
+            }
+
+            LoadDriver driver = new LoadDriver(loadTestConfig, "http://" + config.getServerHost() + ":" + config.getServerPort());
+            driver.run();
+
+            for (Map.Entry<String, String> line : driver.report().entrySet()) {
+                System.out.println(String.format("%-14s %s", line.getKey(), line.getValue()));
+            }
+            System.out.println(String.format("%-14s pix calls=%d (injected failures=%d), atna audits=%d",
+                    "stand-ins", pix.getCalled(), pix.getFailed(), atna.getReceived()));
+        } finally {
+            server.stop();
+            httpServices.stop();
+            pix.kill();
+            atna.kill();
+        }
+        System.exit(0);
+    }
+}
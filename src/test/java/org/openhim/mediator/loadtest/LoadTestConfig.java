@@ -0,0 +1,138 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Load test settings.
+ * <br/><br/>
+ * The defaults are read from <code>mediator-loadtest.properties</code>, which also contains the mediator's own
+ * configuration. They can be overridden by a properties file passed with <code>--conf</code>
+ * and then by system properties.
+ */
+public class LoadTestConfig {
+
+    /**
+     * Latency and failure injection for a stand-in service
+     */
+    public static class Behaviour {
+        final long latencyMs;
+        final double failureRate;
+        final int failEvery;
+
+        Behaviour(long latencyMs, double failureRate) {
+            this.latencyMs = latencyMs;
+            this.failureRate = failureRate;
+            //failures are injected deterministically, every n-th call, so that runs are reproducible
+            this.failEvery = failureRate > 0 ? (int) Math.max(1, Math.round(1.0 / Math.min(failureRate, 1.0))) : 0;
+        }
+
+        /**
+         * @param call the 1-based number of the call to the service
+         */
+        boolean shouldFail(long call) {
+            return failEvery > 0 && call % failEvery == 0;
+        }
+
+        void delay() {
+            if (latencyMs > 0) {
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%dms, failureRate=%.3f", latencyMs, failureRate);
+        }
+    }
+
+    private final Properties properties;
+
+
+    public LoadTestConfig(String configPath) throws IOException {
+        properties = new Properties();
+        load(properties, getClass().getClassLoader().getResourceAsStream("mediator-loadtest.properties"));
+        if (configPath != null) {
+            load(properties, FileUtils.openInputStream(new File(configPath)));
+        }
+        properties.putAll(System.getProperties());
+    }
+
+    private static void load(Properties properties, InputStream in) throws IOException {
+        try {
+            properties.load(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public String getProperty(String key) {
+        return properties.getProperty(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+
+    /**
+     * @param service e.g. "pix", as in <code>loadtest.pix.latencyMs</code> and <code>loadtest.pix.failureRate</code>
+     */
+    public Behaviour getBehaviour(String service) {
+        return new Behaviour(
+                getInt("loadtest." + service + ".latencyMs", 0),
+                getDouble("loadtest." + service + ".failureRate", 0)
+        );
+    }
+
+    /**
+     * Subscriptions are stored in Mongo, so the /dsub route is only exercised if a Mongo host is configured
+     */
+    public boolean isDsubEnabled() {
+        return getProperty("mediator.mongo.host") != null && !getProperty("mediator.mongo.host").trim().isEmpty();
+    }
+
+    public double getRate() {
+        return getDouble("loadtest.rate", 20);
+    }
+
+    public int getDurationSeconds() {
+        return getInt("loadtest.durationSeconds", 60);
+    }
+
+    public int getWarmupSeconds() {
+        return getInt("loadtest.warmupSeconds", 10);
+    }
+
+    public int getConcurrency() {
+        return getInt("loadtest.concurrency", 32);
+    }
+
+    public long getSeed() {
+        return getInt("loadtest.seed", 42);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TCP syslog collector that counts and discards the ATNA audits it receives
+ */
+public class StandInATNAServer extends Thread {
+    private final ServerSocket socket;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final AtomicLong received = new AtomicLong();
+
+    public StandInATNAServer(int port) throws IOException {
+        super("stand-in-atna");
+        setDaemon(true);
+        socket = new ServerSocket(port);
+    }
+
+    public void kill() {
+        IOUtils.closeQuietly(socket);
+        connections.shutdownNow();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            do {
+                final Socket conn = socket.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            IOUtils.copy(conn.getInputStream(), NullOutputStream.NULL_OUTPUT_STREAM);
+                            received.incrementAndGet();
+                        } catch (IOException e) {
+                            System.out.println("Warning: " + e.getMessage());
+                        } finally {
+                            IOUtils.closeQuietly(conn);
+                        }
+                    }
+                });
+            } while (!socket.isClosed());
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.out.println("Warning: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+
+/**
+ * WireMock stand-ins for the CSD InfoManager, XDS.b registry and XDS.b repository.
+ * <br/><br/>
+ * WireMock doesn't support random faults, so failures are injected with a scenario that cycles through one state
+ * per call, e.g. a failure rate of 0.05 responds with a 500 on every 20th call to the service.
+ */
+public class StandInHTTPServices {
+    /**
+     * Limits the number of stubs registered for very low failure rates
+     */
+    private static final int MAX_CYCLE = 1000;
+
+    private static final String CSD_RESPONSE = "<CSD xmlns='urn:ihe:iti:csd:2013'>\n"
+            + "  <serviceDirectory/>\n"
+            + "  <organizationDirectory/>\n"
+            + "  <providerDirectory>\n"
+            + "    <provider entityID='urn:oid:1.2.3.1234'>\n"
+            + "       <csd:otherID code='id'>urn:oid:1.2.3.1234</csd:otherID>\n"
+            + "    </provider>\n"
+            + "  </providerDirectory>\n"
+            + "  <facilityDirectory>\n"
+            + "    <facility entityID='urn:oid:1.2.3.2345'>\n"
+            + "       <csd:otherID code='code'>urn:oid:1.2.3.2345</csd:otherID>\n"
+            + "    </facility>\n"
+            + "  </facilityDirectory>\n"
+            + "</CSD>\n";
+
+    private final WireMockServer server;
+    private final WireMock client;
+
+
+    public StandInHTTPServices(int port) {
+        server = new WireMockServer(port);
+        client = new WireMock("localhost", port);
+    }
+
+    public void start(LoadTestConfig config) throws IOException {
+        server.start();
+
+        stub(config.getProperty("ilr.csr.path"), config.getBehaviour("csd"),
+                aResponse().withStatus(200).withBody(CSD_RESPONSE).withHeader("Content-Type", "application/xml"));
+        stub(config.getProperty("xds.registry.path"), config.getBehaviour("registry"),
+                aResponse().withStatus(200).withBody(resource("adhocQueryResponse_wSOAP.xml")).withHeader("Content-Type", "application/soap+xml"));
+        stub(config.getProperty("xds.repository.path"), config.getBehaviour("repository"),
+                aResponse().withStatus(201).withBody(resource("pnrResponse_e2e.xml")).withHeader("Content-Type", "multipart/related"));
+    }
+
+    public void stop() {
+        server.stop();
+    }
+
+    private void stub(String path, LoadTestConfig.Behaviour behaviour, ResponseDefinitionBuilder success) {
+        success.withFixedDelay((int) behaviour.latencyMs);
+
+        if (behaviour.failEvery == 0) {
+            client.register(post(urlEqualTo(path)).willReturn(success));
+            return;
+        }
+
+        int cycle = Math.min(behaviour.failEvery, MAX_CYCLE);
+        ResponseDefinitionBuilder failure = aResponse().withStatus(500).withBody("Injected failure")
+                .withFixedDelay((int) behaviour.latencyMs);
+
+        for (int i=0; i<cycle; i++) {
+            MappingBuilder mapping = post(urlEqualTo(path))
+                    .inScenario(path)
+                    .whenScenarioStateIs(i == 0 ? Scenario.STARTED : "call-" + i)
+                    .willSetStateTo(i+1 == cycle ? Scenario.STARTED : "call-" + (i+1))
+                    .willReturn(i+1 == cycle ? failure : success);
+            client.register(mapping);
+        }
+    }
+
+    private String resource(String name) throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(name);
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
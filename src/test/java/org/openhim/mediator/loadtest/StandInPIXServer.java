@@ -0,0 +1,105 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.loadtest;
+
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An MLLP PIX Manager that answers every query with <code>pixResponse-ECID1.er7</code>.
+ * <br/><br/>
+ * Failures are injected by closing the connection without responding.
+ */
+public class StandInPIXServer extends Thread {
+    private final ServerSocket socket;
+    private final LoadTestConfig.Behaviour behaviour;
+    private final String response;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final AtomicLong called = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public StandInPIXServer(int port, LoadTestConfig.Behaviour behaviour) throws IOException {
+        super("stand-in-pix");
+        setDaemon(true);
+        this.behaviour = behaviour;
+        InputStream in = getClass().getClassLoader().getResourceAsStream("pixResponse-ECID1.er7");
+        response = MLLPConnector.wrapMLLP(IOUtils.toString(in));
+        IOUtils.closeQuietly(in);
+        socket = new ServerSocket(port);
+    }
+
+    public void kill() {
+        IOUtils.closeQuietly(socket);
+        connections.shutdownNow();
+    }
+
+    public long getCalled() {
+        return called.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void handle(Socket conn) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+            InputStream in = conn.getInputStream();
+            int lastByte = -1;
+            int lastLastByte;
+            do {
+                lastLastByte = lastByte;
+                lastByte = in.read();
+                if (lastByte != -1) {
+                    buffer.write(lastByte);
+                }
+            }
+            while (lastByte != -1 && lastLastByte != MLLPConnector.MLLP_FOOTER_FS && lastByte != MLLPConnector.MLLP_FOOTER_CR);
+
+            behaviour.delay();
+            if (behaviour.shouldFail(called.incrementAndGet())) {
+                failed.incrementAndGet();
+                return;
+            }
+
+            conn.getOutputStream().write(response.getBytes());
+            conn.getOutputStream().flush();
+        } catch (IOException e) {
+            System.out.println("Warning: " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(conn);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            do {
+                final Socket conn = socket.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(conn);
+                    }
+                });
+            } while (!socket.isClosed());
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.out.println("Warning: " + e.getMessage());
+            }
+        }
+    }
+}
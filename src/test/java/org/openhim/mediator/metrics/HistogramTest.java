@@ -0,0 +1,65 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testObserve() throws Exception {
+        Histogram histogram = new Histogram(new double[]{1, 10, 100});
+        histogram.observe(0.5);
+        histogram.observe(1);
+        histogram.observe(50);
+        histogram.observe(1000);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(1051.5, histogram.getSum(), 0.0001);
+    }
+
+    @Test
+    public void testGetValueAtPercentile() throws Exception {
+        Histogram histogram = new Histogram(new double[]{1, 10, 100});
+        for (int i=0; i<90; i++) {
+            histogram.observe(5);
+        }
+        for (int i=0; i<10; i++) {
+            histogram.observe(50);
+        }
+
+        assertEquals(10, histogram.getValueAtPercentile(50), 0.0001);
+        assertEquals(10, histogram.getValueAtPercentile(90), 0.0001);
+        assertEquals(100, histogram.getValueAtPercentile(99), 0.0001);
+    }
+
+    @Test
+    public void testGetValueAtPercentile_empty() throws Exception {
+        assertEquals(0, new Histogram(Histogram.LATENCY_BUCKETS).getValueAtPercentile(99), 0.0001);
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        Histogram histogram = metrics.histogram("test_duration_seconds", "Duration", MetricsRegistry.labels("stage", "parse"), new double[]{0.1, 1});
+        histogram.observe(0.05);
+        histogram.observe(0.5);
+        histogram.observe(5);
+
+        assertSame(histogram, metrics.histogram("test_duration_seconds", "Duration", MetricsRegistry.labels("stage", "parse"), new double[]{0.1, 1}));
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE test_duration_seconds histogram\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"parse\",le=\"0.1\"} 1\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"parse\",le=\"1.0\"} 2\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"parse\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_duration_seconds_sum{stage=\"parse\"} 5.55\n"));
+        assertTrue(text.contains("test_duration_seconds_count{stage=\"parse\"} 3\n"));
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testCounter() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        MetricsRegistry.Counter counter = metrics.counter("test_requests_total", "Requests", MetricsRegistry.labels("route", "/xdsregistry"));
+        counter.increment();
+        counter.increment(2);
+
+        assertSame(counter, metrics.counter("test_requests_total", "Requests", MetricsRegistry.labels("route", "/xdsregistry")));
+        assertEquals(3, counter.getValue());
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# HELP test_requests_total Requests\n"));
+        assertTrue(text.contains("# TYPE test_requests_total counter\n"));
+        assertTrue(text.contains("test_requests_total{route=\"/xdsregistry\"} 3\n"));
+    }
+
+    @Test
+    public void testGauge() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.gauge("test_ratio", "A ratio", new MetricsRegistry.Gauge() {
+            @Override
+            public double getValue() {
+                return 0.5;
+            }
+        });
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE test_ratio gauge\n"));
+        assertTrue(text.contains("test_ratio 0.5\n"));
+    }
+
+    @Test
+    public void testLabelsAreEscaped() throws Exception {
+        assertEquals("a=\"x\\\"y\",b=\"z\"", MetricsRegistry.labels("a", "x\"y", "b", "z"));
+    }
+}
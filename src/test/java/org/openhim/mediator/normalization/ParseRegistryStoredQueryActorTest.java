@@ -20,6 +20,8 @@ import org.openhim.mediator.messages.ParsedRegistryStoredQuery;
 import scala.concurrent.duration.Duration;
 
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -57,6 +59,53 @@ public class ParseRegistryStoredQueryActorTest {
         }};
     }
 
+    @Test
+    public void testParseMultiplePatientIDs() throws Exception {
+        InputStream testAdhocRequestIn = getClass().getClassLoader().getResourceAsStream("adhocQueryRequest_wSOAP.xml");
+        final String testAdhocRequest = IOUtils.toString(testAdhocRequestIn).replace(
+                "<rim:Slot name=\"$XDSDocumentEntryStatus\">",
+                "<rim:Slot name=\"$XDSSubmissionSetPatientId\"><rim:ValueList>" +
+                "<rim:Value>('1111^^^TestID&amp;1.2.3&amp;ISO', '1234567890^^^TestID&amp;1.2.3&amp;ISO')</rim:Value>" +
+                "</rim:ValueList><rim:ValueList><rim:Value>'2222^^^TestID&amp;1.2.3&amp;ISO'</rim:Value></rim:ValueList></rim:Slot>" +
+                "<rim:Slot name=\"$XDSDocumentEntryStatus\">"
+        );
+
+        new JavaTestKit(system) {{
+            ActorRef actor = system.actorOf(Props.create(ParseRegistryStoredQueryActor.class));
+
+            actor.tell(new SimpleMediatorRequest<>(getRef(), getRef(), testAdhocRequest), getRef());
+
+            ParsedRegistryStoredQuery result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), ParsedRegistryStoredQuery.class);
+            assertEquals(3, result.getPatientIds().size());
+            assertEquals("1234567890", result.getPatientIds().get(0).getIdentifier());
+            assertEquals("1111", result.getPatientIds().get(1).getIdentifier());
+            assertEquals("2222", result.getPatientIds().get(2).getIdentifier());
+            assertEquals("1234567890", result.getPatientId().getIdentifier());
+        }};
+    }
+
+    @Test
+    public void testParseRequestWithoutPatientID() throws Exception {
+        InputStream testAdhocRequestIn = getClass().getClassLoader().getResourceAsStream("adhocQueryRequest_wSOAP.xml");
+        final String testAdhocRequest = IOUtils.toString(testAdhocRequestIn).replace("$XDSDocumentEntryPatientId", "$XDSDocumentEntryClassCode");
+
+        new JavaTestKit(system) {{
+            ActorRef actor = system.actorOf(Props.create(ParseRegistryStoredQueryActor.class));
+
+            actor.tell(new SimpleMediatorRequest<>(getRef(), getRef(), testAdhocRequest), getRef());
+
+            FinishRequest result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), FinishRequest.class);
+            assertEquals(new Integer(400), result.getResponseStatus());
+        }};
+    }
+
+    @Test
+    public void testSplitSlotValue() throws Exception {
+        assertEquals(Arrays.asList("a^^^&1.2&ISO"), ParseRegistryStoredQueryActor.splitSlotValue(" 'a^^^&1.2&ISO' "));
+        assertEquals(Arrays.asList("a", "b"), ParseRegistryStoredQueryActor.splitSlotValue("('a', 'b')"));
+        assertEquals(Collections.<String>emptyList(), ParseRegistryStoredQueryActor.splitSlotValue("''"));
+    }
+
     @Test
     public void testParseInvalidRequest() throws Exception {
         final String testAdhocRequest = "a bad message";
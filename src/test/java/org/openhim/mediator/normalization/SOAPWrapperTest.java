@@ -9,6 +9,7 @@ package org.openhim.mediator.normalization;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class SOAPWrapperTest {
 
@@ -24,4 +25,20 @@ public class SOAPWrapperTest {
         assertEquals(TEST_MSG_END, wrapper.soapEnd);
         assertEquals(wrapper.getFullDocument(), TEST_MSG_START + TEST_MSG_BODY + TEST_MSG_END);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetHeaderFields() throws Exception {
+        SOAPWrapper wrapper = new SOAPWrapper(
+                "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:a=\"http://www.w3.org/2005/08/addressing\">" +
+                "<s:Header><a:Action s:mustUnderstand=\"1\"> urn:ihe:iti:2007:RegisterDocumentSet-b </a:Action>" +
+                "<a:MessageID>urn:uuid:1</a:MessageID></s:Header>" +
+                "<s:Body><Action>not a header</Action></s:Body></s:Envelope>"
+        );
+        assertEquals("urn:ihe:iti:2007:RegisterDocumentSet-b", wrapper.getAction());
+        assertEquals("urn:uuid:1", wrapper.getMessageID());
+
+        SOAPWrapper noHeader = new SOAPWrapper(TEST_MSG_START + TEST_MSG_BODY + TEST_MSG_END);
+        assertNull(noHeader.getAction());
+        assertNull(noHeader.getMessageID());
+    }
+}
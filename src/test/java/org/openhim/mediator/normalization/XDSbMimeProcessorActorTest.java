@@ -92,4 +92,32 @@ public class XDSbMimeProcessorActorTest {
             assertEquals(testPnRModifiedMtom, result.getResponseObject().replaceAll("\r", ""));
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEnrichedMimeMessage_interleavedTransactions() throws Exception {
+        InputStream testPnRBasicMtomIn = getClass().getClassLoader().getResourceAsStream("PnRBasicMtom.xml");
+        final String testPnRBasicMtom = IOUtils.toString(testPnRBasicMtomIn);
+        InputStream testPnRModifiedMtomIn = getClass().getClassLoader().getResourceAsStream("PnRModifiedMtom.xml");
+        final String testPnRModifiedMtom = IOUtils.toString(testPnRModifiedMtomIn);
+
+        new JavaTestKit(system) {{
+            ActorRef actor = system.actorOf(Props.create(XDSbMimeProcessorActor.class));
+            JavaTestKit otherTransaction = new JavaTestKit(system);
+
+            actor.tell(new XDSbMimeProcessorActor.MimeMessage(getRef(), getRef(), testPnRBasicMtom, CONTENT_TYPE), getRef());
+            expectMsgClass(Duration.create(60, TimeUnit.SECONDS), XDSbMimeProcessorActor.XDSbMimeProcessorResponse.class);
+            actor.tell(new XDSbMimeProcessorActor.MimeMessage(otherTransaction.getRef(), otherTransaction.getRef(), testPnRBasicMtom, CONTENT_TYPE), otherTransaction.getRef());
+            otherTransaction.expectMsgClass(Duration.create(60, TimeUnit.SECONDS), XDSbMimeProcessorActor.XDSbMimeProcessorResponse.class);
+
+            actor.tell(new XDSbMimeProcessorActor.EnrichedMessage(getRef(), getRef(), "My test"), getRef());
+            XDSbMimeProcessorActor.XDSbMimeProcessorResponse result = expectMsgClass(Duration.create(60, TimeUnit.SECONDS), XDSbMimeProcessorActor.XDSbMimeProcessorResponse.class);
+            assertEquals(testPnRModifiedMtom, result.getResponseObject().replaceAll("\r", ""));
+            assertEquals(1, result.getDocuments().size());
+
+            //the other transaction's request should still be available
+            actor.tell(new XDSbMimeProcessorActor.EnrichedMessage(otherTransaction.getRef(), otherTransaction.getRef(), "My test"), otherTransaction.getRef());
+            result = otherTransaction.expectMsgClass(Duration.create(60, TimeUnit.SECONDS), XDSbMimeProcessorActor.XDSbMimeProcessorResponse.class);
+            assertEquals(testPnRModifiedMtom, result.getResponseObject().replaceAll("\r", ""));
+        }};
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BulkIngestionActorTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static FinishRequest sendRequest(JavaTestKit kit, String method, String body, Map<String, String> headers) {
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties(new Properties());
+        ActorRef actor = system.actorOf(Props.create(BulkIngestionActor.class, config));
+
+        MediatorHTTPRequest request = new MediatorHTTPRequest(
+                kit.getRef(), kit.getRef(), "unit-test", method, "http", null, null, "/bulk", body, headers, null
+        );
+        actor.tell(request, kit.getRef());
+        return kit.expectMsgClass(Duration.create(10, TimeUnit.SECONDS), FinishRequest.class);
+    }
+
+    @Test
+    public void testParseJSONObject() throws Exception {
+        Map<String, String> obj = BulkIngestionActor.parseJSONObject(" {\"id\": \"a \\\"b\\\"\", \"n\": 12, \"ok\":true, \"x\": null, \"u\":\"\\u00e9\"} ");
+        assertEquals("a \"b\"", obj.get("id"));
+        assertEquals("12", obj.get("n"));
+        assertEquals("true", obj.get("ok"));
+        assertTrue(obj.containsKey("x"));
+        assertNull(obj.get("x"));
+        assertEquals("\u00e9", obj.get("u"));
+
+        assertTrue(BulkIngestionActor.parseJSONObject("{}").isEmpty());
+        assertEquals("a \"b\"\n", BulkIngestionActor.parseJSONObject("{\"s\":" + BulkIngestionActor.jsonString("a \"b\"\n") + "}").get("s"));
+
+        String[] invalid = {"", "{", "{\"id\":\"a\"", "{\"id\":[1]}", "{\"id\":{}}", "{\"id\":\"a\"} x", "[]"};
+        for (String json : invalid) {
+            try {
+                BulkIngestionActor.parseJSONObject(json);
+                fail("Expected '" + json + "' to be rejected");
+            } catch (IllegalArgumentException ex) {
+                //expected
+            }
+        }
+    }
+
+    private static MediatorConfig sourceDirConfig(File sourceDir) {
+        Properties props = new Properties();
+        props.setProperty("bulk.sourceDir", sourceDir.getAbsolutePath());
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testParseManifest() throws Exception {
+        File sourceDir = Files.createTempDirectory("bulk-source").toFile();
+        try {
+            List<BulkRunActor.Item> items = BulkIngestionActor.parseManifest(
+                    "{\"id\":\"doc-1\",\"file\":\"doc-1.xml\"}\r\n\n{\"file\":\"2019/doc-2.xml\",\"contentType\":\"multipart/related\"}\n",
+                    sourceDirConfig(sourceDir)
+            );
+
+            assertEquals(2, items.size());
+            assertEquals("doc-1", items.get(0).getId());
+            assertEquals("doc-1.xml", items.get(0).getFile());
+            assertNull(items.get(0).getBody());
+            assertNull(items.get(0).getContentType());
+            assertEquals("2019/doc-2.xml", items.get(1).getId());
+            assertEquals("multipart/related", items.get(1).getContentType());
+        } finally {
+            FileUtils.deleteDirectory(sourceDir);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseManifest_duplicateItem() throws Exception {
+        MediatorConfig config = sourceDirConfig(new File(System.getProperty("java.io.tmpdir")));
+        BulkIngestionActor.parseManifest("{\"id\":\"doc-1\",\"file\":\"a.xml\"}\n{\"id\":\"doc-1\",\"file\":\"b.xml\"}", config);
+    }
+
+    @Test
+    public void testParseManifest_shouldRejectFilesOutsideOfTheSourceDir() throws Exception {
+        File sourceDir = Files.createTempDirectory("bulk-source").toFile();
+        try {
+            MediatorConfig config = sourceDirConfig(sourceDir);
+            String[] outside = {"../secret.xml", "docs/../../secret.xml", "..\\secret.xml", "/etc/passwd", new File(sourceDir, "a.xml").getAbsolutePath()};
+            for (String file : outside) {
+                try {
+                    BulkIngestionActor.parseManifest("{\"file\":" + BulkIngestionActor.jsonString(file) + "}", config);
+                    fail("Expected " + file + " to be rejected");
+                } catch (IllegalArgumentException ex) {
+                    assertFalse("The error shouldn't echo the path", ex.getMessage().contains("secret") || ex.getMessage().contains("passwd"));
+                }
+            }
+
+            //no source dir configured
+            MediatorConfig noSourceDir = new MediatorConfig();
+            noSourceDir.setProperties(new Properties());
+            try {
+                BulkIngestionActor.parseManifest("{\"file\":\"a.xml\"}", noSourceDir);
+                fail("Expected file items to be rejected without bulk.sourceDir");
+            } catch (IllegalArgumentException ex) {
+                //expected
+            }
+        } finally {
+            FileUtils.deleteDirectory(sourceDir);
+        }
+    }
+
+    @Test
+    public void testParseArchive() throws Exception {
+        String archive = "--boundary\r\n"
+                + "Content-Type: application/soap+xml\r\n"
+                + "Content-ID: <doc-1>\r\n"
+                + "\r\n"
+                + "<Envelope>1</Envelope>\r\n"
+                + "--boundary\r\n"
+                + "\r\n"
+                + "<Envelope>2</Envelope>\r\n"
+                + "--boundary--\r\n";
+
+        List<BulkRunActor.Item> items = BulkIngestionActor.parseArchive(archive, "multipart/mixed; boundary=boundary");
+
+        assertEquals(2, items.size());
+        assertEquals("doc-1", items.get(0).getId());
+        assertEquals("<Envelope>1</Envelope>", items.get(0).getBody());
+        assertEquals("application/soap+xml", items.get(0).getContentType());
+        assertEquals("part-2", items.get(1).getId());
+        assertEquals("<Envelope>2</Envelope>", items.get(1).getBody());
+        assertNull(items.get(1).getContentType());
+    }
+
+    @Test
+    public void testInvalidRequests() throws Exception {
+        new JavaTestKit(system) {{
+            Map<String, String> headers = new HashMap<>();
+            assertEquals(new Integer(400), sendRequest(this, "POST", "not json", headers).getResponseStatus());
+            assertEquals(new Integer(400), sendRequest(this, "GET", null, headers).getResponseStatus());
+
+            headers.put(BulkIngestionActor.RUN_ID_HEADER, "../etc");
+            assertEquals(new Integer(400), sendRequest(this, "POST", "{\"file\":\"a.xml\"}", headers).getResponseStatus());
+
+            headers.put(BulkIngestionActor.RUN_ID_HEADER, "unknown-run");
+            assertEquals(new Integer(404), sendRequest(this, "GET", null, headers).getResponseStatus());
+        }};
+    }
+}
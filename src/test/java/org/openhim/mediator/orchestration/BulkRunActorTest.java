@@ -0,0 +1,233 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import akka.testkit.TestActorRef;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BulkRunActorTest {
+
+    private static final String SUCCESS_RESPONSE =
+            "<rs:RegistryResponse xmlns:rs=\"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0\" status=\"urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Success\"/>";
+    private static final String FAILURE_RESPONSE =
+            "<rs:RegistryResponse xmlns:rs=\"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0\" status=\"urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Failure\">" +
+            "<rs:RegistryErrorList><rs:RegistryError errorCode=\"XDSUnknownPatientId\" codeContext=\"Patient &apos;1234&apos; not found\" " +
+            "severity=\"urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Error\"/></rs:RegistryErrorList></rs:RegistryResponse>";
+
+    /**
+     * Stands in for the repository route. Responds after a short delay, failing the items with a 'fail' body, and
+     * responding with a registry failure (with a 200, like the repository route) to a 'registry-fail' body.
+     */
+    public static class MockRepository extends UntypedActor {
+        static final AtomicInteger received = new AtomicInteger();
+        static final AtomicInteger inFlight = new AtomicInteger();
+        static final AtomicInteger maxInFlight = new AtomicInteger();
+
+        public MockRepository(MediatorConfig config) {
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorHTTPRequest) {
+                MediatorHTTPRequest request = (MediatorHTTPRequest) msg;
+                received.incrementAndGet();
+                int n = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), n));
+                }
+                Thread.sleep(50);
+                inFlight.decrementAndGet();
+
+                FinishRequest fr;
+                if ("fail".equals(request.getBody())) {
+                    fr = new FinishRequest("Repository error", "text/plain", 500);
+                } else if ("registry-fail".equals(request.getBody())) {
+                    fr = new FinishRequest(FAILURE_RESPONSE, "application/soap+xml", 200);
+                } else {
+                    fr = new FinishRequest(SUCCESS_RESPONSE, "application/soap+xml", 200);
+                }
+                request.getRespondTo().tell(fr, getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+    static ActorSystem system;
+    MediatorConfig testConfig;
+    File progressDir;
+
+
+    @Before
+    public void before() throws Exception {
+        system = ActorSystem.create();
+        progressDir = Files.createTempDirectory("bulk-progress").toFile();
+
+        Properties props = new Properties();
+        props.setProperty("bulk.parallelism", "2");
+        props.setProperty("bulk.progressDir", progressDir.getAbsolutePath());
+        props.setProperty("bulk.sourceDir", progressDir.getAbsolutePath());
+        testConfig = new MediatorConfig();
+        testConfig.setName("bulk-tests");
+        testConfig.setProperties(props);
+
+        MockRepository.received.set(0);
+        MockRepository.maxInFlight.set(0);
+    }
+
+    @After
+    public void after() throws Exception {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+        FileUtils.deleteDirectory(progressDir);
+    }
+
+    private static List<BulkRunActor.Item> items(String... bodies) {
+        List<BulkRunActor.Item> items = new ArrayList<>();
+        for (int i=0; i<bodies.length; i++) {
+            items.add(new BulkRunActor.Item("item-" + (i+1), null, bodies[i], null));
+        }
+        return items;
+    }
+
+    private BulkRunActor.RunStarted run(JavaTestKit kit, String runID, List<BulkRunActor.Item> items) {
+        TestActorRef<BulkRunActor> actor = TestActorRef.create(
+                system, Props.create(BulkRunActor.class, testConfig, runID, items, null)
+        );
+        actor.underlyingActor().itemHandler = MockRepository.class;
+        kit.watch(actor);
+
+        actor.tell(new BulkRunActor.Start(), kit.getRef());
+        BulkRunActor.RunStarted started = kit.expectMsgClass(Duration.create(10, TimeUnit.SECONDS), BulkRunActor.RunStarted.class);
+        kit.expectTerminated(Duration.create(10, TimeUnit.SECONDS), actor);
+        return started;
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        new JavaTestKit(system) {{
+            BulkRunActor.RunStarted started = run(this, "run1", items("a", "b", "fail", "c", "d"));
+            assertEquals(5, started.getTotal());
+            assertEquals(0, started.getSkipped());
+
+            assertEquals(5, MockRepository.received.get());
+            assertTrue("At most bulk.parallelism items should be in flight", MockRepository.maxInFlight.get() <= 2);
+
+            List<String> lines = FileUtils.readLines(BulkRunActor.progressFile(testConfig, "run1"), "UTF-8");
+            assertEquals(6, lines.size());
+            int failed = 0;
+            for (String line : lines.subList(0, 5)) {
+                Map<String, String> result = BulkIngestionActor.parseJSONObject(line);
+                if ("item-3".equals(result.get("id"))) {
+                    assertEquals("500", result.get("status"));
+                    assertEquals("Repository error", result.get("error"));
+                    failed++;
+                } else {
+                    assertEquals("200", result.get("status"));
+                }
+            }
+            assertEquals(1, failed);
+
+            Map<String, String> summary = BulkIngestionActor.parseJSONObject(lines.get(5));
+            assertEquals("true", summary.get("complete"));
+            assertEquals("5", summary.get("processed"));
+            assertEquals("1", summary.get("failed"));
+        }};
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        new JavaTestKit(system) {{
+            run(this, "run2", items("a", "b", "fail"));
+            MockRepository.received.set(0);
+
+            //an interrupted write
+            FileUtils.writeStringToFile(BulkRunActor.progressFile(testConfig, "run2"), "{\"id\":\"item-", "UTF-8", true);
+
+            BulkRunActor.RunStarted started = run(this, "run2", items("a", "b", "c"));
+            assertEquals(3, started.getTotal());
+            assertEquals(2, started.getSkipped());
+            assertEquals("Only the failed item should be processed again", 1, MockRepository.received.get());
+        }};
+    }
+
+    @Test
+    public void testRegistryFailure_shouldNotCountAsSuccessful() throws Exception {
+        new JavaTestKit(system) {{
+            run(this, "run4", items("a", "registry-fail"));
+
+            List<String> lines = FileUtils.readLines(BulkRunActor.progressFile(testConfig, "run4"), "UTF-8");
+            Map<String, String> failure = BulkIngestionActor.parseJSONObject(lines.get(0).contains("item-2") ? lines.get(0) : lines.get(1));
+            assertEquals("200", failure.get("status"));
+            assertEquals("false", failure.get("ok"));
+            assertEquals("XDSUnknownPatientId: Patient '1234' not found", failure.get("error"));
+            assertEquals("1", BulkIngestionActor.parseJSONObject(lines.get(2)).get("failed"));
+
+            //the failed item is submitted again when the run is resumed
+            MockRepository.received.set(0);
+            BulkRunActor.RunStarted started = run(this, "run4", items("a", "registry-fail"));
+            assertEquals(1, started.getSkipped());
+            assertEquals(1, MockRepository.received.get());
+        }};
+    }
+
+    @Test
+    public void testReadCompletedItems_shouldJudgeOlderLinesByStatus() throws Exception {
+        File progressFile = BulkRunActor.progressFile(testConfig, "run5");
+        FileUtils.writeStringToFile(progressFile,
+                "{\"id\":\"item-1\",\"status\":200}\n" +
+                "{\"id\":\"item-2\",\"status\":200,\"ok\":false}\n" +
+                "{\"id\":\"item-3\",\"status\":200,\"ok\":true}\n" +
+                "{\"id\":\"item-4\",\"status\":500}\n", "UTF-8");
+
+        Set<String> completed = BulkRunActor.readCompletedItems(progressFile);
+        assertEquals(new HashSet<>(Arrays.asList("item-1", "item-3")), completed);
+    }
+
+    @Test
+    public void testUnreadableFile() throws Exception {
+        new JavaTestKit(system) {{
+            List<BulkRunActor.Item> items = new ArrayList<>();
+            items.add(new BulkRunActor.Item("missing", "missing.xml", null, null));
+            items.add(new BulkRunActor.Item("outside", "../outside.xml", null, null));
+            run(this, "run3", items);
+
+            List<String> lines = FileUtils.readLines(BulkRunActor.progressFile(testConfig, "run3"), "UTF-8");
+            for (String line : lines.subList(0, 2)) {
+                Map<String, String> result = BulkIngestionActor.parseJSONObject(line);
+                assertEquals("400", result.get("status"));
+                assertFalse("The error shouldn't echo the path", result.get("error").contains(".xml"));
+            }
+            assertEquals(0, MockRepository.received.get());
+        }};
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
+import oasis.names.tc.ebxml_regrep.xsd.rim._3.*;
+import org.apache.commons.io.IOUtils;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.dummies.MockRootContext;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.testing.MockHTTPConnector;
+import org.openhim.mediator.engine.testing.MockLauncher;
+import org.openhim.mediator.messages.DeferEnrichment;
+import org.openhim.mediator.messages.ResolveHealthcareWorkerIdentifier;
+import org.openhim.mediator.messages.ResolveHealthcareWorkerIdentifierResponse;
+import scala.concurrent.duration.Duration;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeferredEnrichmentActorTest {
+
+    private static final Identifier EPID = new Identifier("EPID1", new AssigningAuthority("EPID", "EPID", "EPID"));
+
+    private static final String STORED_QUERY_RESPONSE =
+            "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"><s:Body>" +
+            "<query:AdhocQueryResponse xmlns:query=\"urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0\" " +
+            "xmlns:rim=\"urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0\" status=\"urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Success\">" +
+            "<rim:RegistryObjectList>" +
+            "<rim:ExtrinsicObject id=\"urn:uuid:old-version\" lid=\"urn:uuid:document01\" status=\"urn:oasis:names:tc:ebxml-regrep:StatusType:Deprecated\">" +
+            "<rim:VersionInfo versionName=\"1\"/>" +
+            "<rim:ExternalIdentifier identificationScheme=\"urn:uuid:2e82c1f6-a085-4c72-9da3-8640a32e42ab\" value=\"2009.9.1.2455\"/>" +
+            "</rim:ExtrinsicObject>" +
+            "<rim:ExtrinsicObject id=\"urn:uuid:document01-v2\" lid=\"urn:uuid:document01\" status=\"urn:oasis:names:tc:ebxml-regrep:StatusType:Approved\">" +
+            //the registered entry has the enterprise patient identifier, rather than the one in the original request
+            "<rim:Slot name=\"sourcePatientId\"><rim:ValueList><rim:Value>ECID1^^^&amp;ECID&amp;ECID</rim:Value></rim:ValueList></rim:Slot>" +
+            "<rim:Classification id=\"urn:uuid:author-1\" classificationScheme=\"urn:uuid:93606bcf-9494-43ec-9b4e-a7748d1a838d\" classifiedObject=\"urn:uuid:document01-v2\" nodeRepresentation=\"\">" +
+            "<rim:Slot name=\"authorPerson\"><rim:ValueList><rim:Value>pro111^Smitty^Gerald^^^^^^&amp;1.2.3&amp;ISO</rim:Value></rim:ValueList></rim:Slot>" +
+            "</rim:Classification>" +
+            "<rim:Classification id=\"urn:uuid:author-2\" classificationScheme=\"urn:uuid:93606bcf-9494-43ec-9b4e-a7748d1a838d\" classifiedObject=\"urn:uuid:document01-v2\" nodeRepresentation=\"\">" +
+            "<rim:Slot name=\"authorPerson\"><rim:ValueList><rim:Value>pro112^Dopplemeyer^Sherry^^^^^^&amp;1.2.3&amp;ISO</rim:Value></rim:ValueList></rim:Slot>" +
+            "</rim:Classification>" +
+            "<rim:ExternalIdentifier id=\"urn:uuid:uniqueid-2\" registryObject=\"urn:uuid:document01-v2\" identificationScheme=\"urn:uuid:2e82c1f6-a085-4c72-9da3-8640a32e42ab\" value=\"2009.9.1.2455\"/>" +
+            "<rim:VersionInfo versionName=\"2\"/>" +
+            "</rim:ExtrinsicObject>" +
+            "</rim:RegistryObjectList>" +
+            "</query:AdhocQueryResponse>" +
+            "</s:Body></s:Envelope>";
+
+    private static final String UPDATE_RESPONSE =
+            "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"><s:Body>" +
+            "<rs:RegistryResponse xmlns:rs=\"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0\" status=\"urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Success\"/>" +
+            "</s:Body></s:Envelope>";
+
+    //receives the requests sent to the registry
+    static volatile ActorRef registryProbe;
+
+    public static class MockCSD extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof ResolveHealthcareWorkerIdentifier) {
+                getSender().tell(new ResolveHealthcareWorkerIdentifierResponse((ResolveHealthcareWorkerIdentifier) msg, EPID), getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+    public static class MockRegistry extends MockHTTPConnector {
+        String response;
+
+        @Override
+        public String getResponse() {
+            return response;
+        }
+
+        @Override
+        public Integer getStatus() {
+            return 200;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void executeOnReceive(MediatorHTTPRequest msg) {
+            response = msg.getBody().contains(DeferredEnrichmentActor.STORED_QUERY_ACTION) ? STORED_QUERY_RESPONSE : UPDATE_RESPONSE;
+            registryProbe.tell(msg, getSelf());
+        }
+    }
+
+    ActorSystem system;
+    MediatorConfig testConfig;
+
+
+    @Before
+    public void before() throws Exception {
+        system = ActorSystem.create();
+
+        testConfig = new MediatorConfig();
+        testConfig.setName("deferred-enrichment-tests");
+        testConfig.setProperties("mediator-unit-test.properties");
+        testConfig.getProperties().setProperty("pnr.enrichment.retryDelayMs", "1000");
+
+        List<MockLauncher.ActorToLaunch> toLaunch = new LinkedList<>();
+        toLaunch.add(new MockLauncher.ActorToLaunch("http-connector", MockRegistry.class));
+        toLaunch.add(new MockLauncher.ActorToLaunch("csd-denormalization", MockCSD.class));
+        MockRootContext.launchActors(system, testConfig.getName(), toLaunch);
+    }
+
+    @After
+    public void after() {
+        MockRootContext.clearRootContext(system, testConfig.getName());
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private DeferEnrichment buildDeferEnrichment() throws Exception {
+        String metadata = IOUtils.toString(getClass().getClassLoader().getResourceAsStream("rds1.xml"));
+        DeferEnrichment.PendingIdentifier pending = new DeferEnrichment.PendingIdentifier(
+                "Document01", "2009.9.1.2455", 1, false, new Identifier("pro112", new AssigningAuthority("", "1.2.3", "ISO")), null
+        );
+        return new DeferEnrichment(metadata, Collections.singletonList(pending));
+    }
+
+    @Test
+    public void testReadRegisteredEntries() throws Exception {
+        Map<String, DeferredEnrichmentActor.RegisteredEntry> entries = DeferredEnrichmentActor.readRegisteredEntries(STORED_QUERY_RESPONSE);
+
+        assertEquals(1, entries.size());
+        DeferredEnrichmentActor.RegisteredEntry entry = entries.get("2009.9.1.2455");
+        assertEquals("Only approved entries should be read", "urn:uuid:document01-v2", entry.id);
+        assertEquals("urn:uuid:document01", entry.lid);
+        assertEquals("2", entry.version);
+    }
+
+    @Test
+    public void testBuildUpdate() throws Exception {
+        Map<String, DeferredEnrichmentActor.RegisteredEntry> registered = DeferredEnrichmentActor.readRegisteredEntries(STORED_QUERY_RESPONSE);
+        SubmitObjectsRequest update = DeferredEnrichmentActor.buildUpdate(buildDeferEnrichment(), Collections.singletonMap(0, EPID), registered);
+
+        RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(update, XDSConstants.UUID_XDSSubmissionSet);
+        assertTrue(submissionSet.getId().startsWith("urn:uuid:"));
+        assertTrue(InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, submissionSet).startsWith("2.25."));
+
+        ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(update).get(0);
+        assertEquals("urn:uuid:document01", eo.getLid());
+        assertTrue(eo.getId().startsWith("urn:uuid:"));
+        assertNotEquals(registered.get("2009.9.1.2455").id, eo.getId());
+        assertNull("The status and version are assigned by the registry", eo.getStatus());
+        assertNull(eo.getVersionInfo());
+        //built from the registered entry, not the original request
+        assertEquals("ECID1^^^&ECID&ECID", InfosetUtil.getSlotValue(eo.getSlot(), XDSConstants.SLOT_NAME_SOURCE_PATIENT_ID, null));
+        for (ClassificationType c : eo.getClassification()) {
+            assertEquals(eo.getId(), c.getClassifiedObject());
+        }
+
+        List<String> authorPersons = new ArrayList<>();
+        for (ClassificationType c : eo.getClassification()) {
+            if (XDSConstants.UUID_XDSDocumentEntry_author.equals(c.getClassificationScheme())) {
+                authorPersons.add(InfosetUtil.getSlotValue(c.getSlot(), XDSConstants.SLOT_NAME_AUTHOR_PERSON, null));
+            }
+        }
+        assertEquals(2, authorPersons.size());
+        assertEquals("Only the second author should be enriched", "pro111^Smitty^Gerald^^^^^^&1.2.3&ISO", authorPersons.get(0));
+        assertEquals(EPID.toXCN(), authorPersons.get(1));
+
+        AssociationType1 association = null;
+        for (Object o : update.getRegistryObjectList().getIdentifiable()) {
+            Object value = ((javax.xml.bind.JAXBElement) o).getValue();
+            if (value instanceof AssociationType1) {
+                association = (AssociationType1) value;
+            }
+        }
+        assertNotNull(association);
+        assertEquals(XDSConstants.HAS_MEMBER, association.getAssociationType());
+        assertEquals(submissionSet.getId(), association.getSourceObject());
+        assertEquals(eo.getId(), association.getTargetObject());
+        assertEquals("2", InfosetUtil.getSlotValue(association.getSlot(), "PreviousVersion", null));
+    }
+
+    @Test
+    public void testDeferredEnrichment() throws Exception {
+        new JavaTestKit(system) {{
+            registryProbe = getRef();
+            ActorRef actor = system.actorOf(Props.create(DeferredEnrichmentActor.class, testConfig));
+
+            actor.tell(buildDeferEnrichment(), getRef());
+
+            MediatorHTTPRequest query = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), MediatorHTTPRequest.class);
+            assertTrue(query.getBody().contains("('2009.9.1.2455')"));
+
+            MediatorHTTPRequest update = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), MediatorHTTPRequest.class);
+            assertTrue(update.getBody().contains(DeferredEnrichmentActor.UPDATE_DOCUMENT_SET_ACTION));
+            assertTrue(update.getBody().contains("EPID1"));
+            assertTrue(update.getBody().contains("lid=\"urn:uuid:document01\""));
+        }};
+    }
+
+    @Test
+    public void testDeferredEnrichment_shouldWaitForTheRegistryBreaker() throws Exception {
+        testConfig.getProperties().setProperty("xds.registry.breaker.resetTimeoutMs", "1500");
+        final CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "xds.registry");
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+
+        new JavaTestKit(system) {{
+            registryProbe = getRef();
+            ActorRef actor = system.actorOf(Props.create(DeferredEnrichmentActor.class, testConfig));
+
+            actor.tell(buildDeferEnrichment(), getRef());
+
+            //not sent while the breaker is open, but retried once it lets a probe through
+            expectNoMsg(Duration.create(500, TimeUnit.MILLISECONDS));
+            MediatorHTTPRequest query = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), MediatorHTTPRequest.class);
+            assertTrue(query.getBody().contains(DeferredEnrichmentActor.STORED_QUERY_ACTION));
+            expectMsgClass(Duration.create(5, TimeUnit.SECONDS), MediatorHTTPRequest.class);
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        }};
+    }
+}
@@ -12,6 +12,7 @@ import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.testkit.JavaTestKit;
 import ihe.iti.xds_b._2007.ProvideAndRegisterDocumentSetRequestType;
+import oasis.names.tc.ebxml_regrep.xsd.lcm._3.SubmitObjectsRequest;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.ExtrinsicObjectType;
 import oasis.names.tc.ebxml_regrep.xsd.rim._3.RegistryPackageType;
 import org.apache.commons.io.IOUtils;
@@ -80,7 +81,11 @@ public class ProvideAndRegisterOrchestrationActorTest {
     private static class ResolveIdentifierUnknownPatientMock extends UntypedActor {
         @Override
         public void onReceive(Object msg) throws Exception {
-            if (msg instanceof ResolvePatientIdentifier) {
+            if (msg instanceof ResolvePatientIdentifiers) {
+                for (ResolvePatientIdentifier request : ((ResolvePatientIdentifiers) msg).getRequests()) {
+                    onReceive(request);
+                }
+            } else if (msg instanceof ResolvePatientIdentifier) {
                 ResolvePatientIdentifierResponse response = new ResolvePatientIdentifierResponse((ResolvePatientIdentifier)msg, null);
                 getSender().tell(response, getSelf());
             } else {
@@ -89,6 +94,13 @@ public class ProvideAndRegisterOrchestrationActorTest {
         }
     }
 
+    //an ILR that never responds
+    private static class UnresponsiveResolveIdentifierMock extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+        }
+    }
+
     static ActorSystem system;
     MediatorConfig testConfig;
     ActorRef resolvePIDDummy;
@@ -185,6 +197,16 @@ public class ProvideAndRegisterOrchestrationActorTest {
         actor.tell(testMsg, ref);
     }
 
+    private void sendRegisterDocumentSetMessage(ActorSystem system, ActorRef ref, String resource) throws Exception {
+        InputStream testRDSIn = getClass().getClassLoader().getResourceAsStream(resource);
+        final String testRDS = IOUtils.toString(testRDSIn);
+
+        ActorRef actor = system.actorOf(Props.create(ProvideAndRegisterOrchestrationActor.class, testConfig, resolvePIDDummy, resolveHWIDDummy, resolveFIDDummy, identityFeedDummy));
+        OrchestrateRegisterDocumentSetRequest testMsg = new OrchestrateRegisterDocumentSetRequest(ref, ref, testRDS, null, null);
+
+        actor.tell(testMsg, ref);
+    }
+
     @Test
     public void shouldSendResolvePatientIDRequests() throws Exception {
         final List<DummyResolveIdentifierActor.ExpectedRequest> expectedPatientIds = new ArrayList<>();
@@ -493,4 +515,81 @@ public class ProvideAndRegisterOrchestrationActorTest {
             assertTrue(fr.getResponse().contains("<ns3:RegistryError errorCode=\"XDSUnknownPatientId\" codeContext=\"Failed to resolve patient identifier: 1111111111^^^&amp;1.2.3&amp;ISO\" severity=\"urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Error\"/>"));
         }};
     }
-}
\ No newline at end of file
+
+    @Test
+    public void validateAndEnrichRegisterDocumentSet_shouldEnrichMetadata() throws Exception {
+        setupResolvePatientIDMock();
+        setupResolveHCWIDMock();
+        setupResolveFacilityIDMock();
+        setupIdentityFeedMock();
+
+        new JavaTestKit(system) {{
+            sendRegisterDocumentSetMessage(system, getRef(), "rds1.xml");
+            OrchestrateProvideAndRegisterRequestResponse response = expectMsgClass(waitTime, OrchestrateProvideAndRegisterRequestResponse.class);
+
+            SubmitObjectsRequest sor = ParseProvideAndRegisterRequestActor.parseRegisterRequest(response.getResponseObject());
+
+            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(sor, XDSConstants.UUID_XDSSubmissionSet);
+            assertEquals("ECID1^^^ECID&ECID&ECID", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
+            ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(sor).get(0);
+            assertEquals("ECID1^^^ECID&ECID&ECID", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eo));
+            assertFalse(response.getResponseObject().contains("ProvideAndRegisterDocumentSetRequest"));
+            assertFalse(response.getEnterprisePatientIds().isEmpty());
+        }};
+    }
+
+    @Test
+    public void validateAndEnrichRegisterDocumentSet_shouldRespondWithRegistryErrorIfProviderNotResolved() throws Exception {
+        setupResolvePatientIDMock();
+        Identifier responseId = null;
+        resolveHWIDDummy = system.actorOf(Props.create(DummyResolveIdentifierActor.class, ResolveHealthcareWorkerIdentifier.class, ResolveHealthcareWorkerIdentifierResponse.class, responseId));
+        setupResolveFacilityIDMock();
+        setupIdentityFeedMock();
+
+        new JavaTestKit(system) {{
+            sendRegisterDocumentSetMessage(system, getRef(), "rds1.xml");
+            FinishRequest response = expectMsgClass(waitTime, FinishRequest.class);
+
+            assertEquals(new Integer(200), response.getResponseStatus());
+            assertTrue(response.getResponse().contains("urn:ihe:iti:2007:RegisterDocumentSet-bResponse"));
+            assertTrue(response.getResponse().contains("<ns3:RegistryError errorCode=\"XDSRegistryError\" codeContext=\"Failed to resolve healthcare worker identifier: pro111^^^^^^^^&amp;1.2.3\" severity=\"urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Error\"/>"));
+        }};
+    }
+
+    @Test
+    public void deferredEnrichment_shouldRespondOnceTheBudgetExpires() throws Exception {
+        final MediatorConfig config = new MediatorConfig();
+        config.setProperties("mediator-unit-test.properties");
+        config.getProperties().setProperty("pnr.sendParseOrchestration", "false");
+        config.getProperties().setProperty("pnr.enrichment.deferred", "true");
+        config.getProperties().setProperty("pnr.enrichment.budgetMs", "200");
+
+        setupResolvePatientIDMock();
+        resolveHWIDDummy = system.actorOf(Props.create(UnresponsiveResolveIdentifierMock.class));
+        setupResolveFacilityIDMock();
+        setupIdentityFeedMock();
+
+        new JavaTestKit(system) {{
+            sendPnRMessage(config, system, getRef(), "pnr1.xml");
+            OrchestrateProvideAndRegisterRequestResponse response = expectMsgClass(waitTime, OrchestrateProvideAndRegisterRequestResponse.class);
+
+            ProvideAndRegisterDocumentSetRequestType pnr = ParseProvideAndRegisterRequestActor.parseRequest(response.getResponseObject());
+            RegistryPackageType regPac = InfosetUtil.getRegistryPackage(pnr.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+            assertEquals("The patient identifiers should still be enriched",
+                    "ECID1^^^ECID&ECID&ECID", InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, regPac));
+            assertTrue("The local healthcare worker identifiers should be kept", response.getResponseObject().contains("pro111^Smitty"));
+            assertTrue(response.getResponseObject().contains("ELID1"));
+
+            DeferEnrichment deferred = response.getDeferredEnrichment();
+            assertNotNull(deferred);
+            assertEquals(2, deferred.getPending().size());
+            for (DeferEnrichment.PendingIdentifier pending : deferred.getPending()) {
+                assertFalse(pending.isFacility());
+                assertEquals("Document01", pending.getDocumentEntryId());
+            }
+            assertEquals("pro111", deferred.getPending().get(0).getLocalId().getIdentifier());
+            assertEquals(0, deferred.getPending().get(0).getAuthorIndex());
+            assertEquals(1, deferred.getPending().get(1).getAuthorIndex());
+        }};
+    }
+}
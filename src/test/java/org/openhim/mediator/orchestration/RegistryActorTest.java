@@ -13,18 +13,25 @@ import akka.testkit.JavaTestKit;
 import akka.testkit.TestActorRef;
 import org.apache.commons.io.IOUtils;
 import org.junit.*;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.SharedResources;
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.denormalization.EnrichRegistryStoredQueryActor;
+import org.openhim.mediator.denormalization.RegistryResponseError;
 import org.openhim.mediator.dummies.DummyResolveIdentifierActor;
+import org.openhim.mediator.dummies.MockRootContext;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
 import org.openhim.mediator.engine.testing.MockHTTPConnector;
 import org.openhim.mediator.engine.testing.MockLauncher;
-import org.openhim.mediator.engine.testing.TestingUtils;
 import org.openhim.mediator.messages.ResolvePatientIdentifier;
 import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
+import org.openhim.mediator.metrics.Histogram;
+import org.openhim.mediator.metrics.MetricsRegistry;
+import org.openhim.mediator.metrics.StageTimer;
 import org.openhim.mediator.normalization.ParseRegistryStoredQueryActor;
 import scala.concurrent.duration.Duration;
 
@@ -89,12 +96,12 @@ public class RegistryActorTest {
         toLaunch.add(new MockLauncher.ActorToLaunch("http-connector", MockRegistry.class));
         toLaunch.add(new MockLauncher.ActorToLaunch("parse-registry-stored-query", ParseRegistryStoredQueryActor.class));
         toLaunch.add(new MockLauncher.ActorToLaunch("enrich-registry-stored-query", EnrichRegistryStoredQueryActor.class));
-        TestingUtils.launchActors(system, testConfig.getName(), toLaunch);
+        MockRootContext.launchActors(system, testConfig.getName(), toLaunch);
     }
 
     @After
     public void after() {
-        TestingUtils.clearRootContext(system, testConfig.getName());
+        MockRootContext.clearRootContext(system, testConfig.getName());
         JavaTestKit.shutdownActorSystem(system);
         system = null;
     }
@@ -130,6 +137,117 @@ public class RegistryActorTest {
         }};
     }
 
+    @Test
+    public void testRegistryStoredQuery_shouldOnlyStartTheRegistryActor() throws Exception {
+        new JavaTestKit(system) {{
+            Identifier ecid = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+            ActorRef resolvePIDDummy = system.actorOf(
+                    Props.create(DummyResolveIdentifierActor.class, ResolvePatientIdentifier.class, ResolvePatientIdentifierResponse.class, ecid)
+            );
+            MetricsRegistry.Counter started = MetricsRegistry.getInstance().counter(
+                    "mediator_actors_started_total", "Number of actors started", MetricsRegistry.labels("actor", "RegistryActor")
+            );
+            long startedBefore = started.getValue();
+
+            TestActorRef<RegistryActor> actor = TestActorRef.create(system, Props.create(RegistryActor.class, testConfig));
+            actor.underlyingActor().resolvePatientIDActor = resolvePIDDummy;
+
+            actor.tell(buildTestAdhocQueryRequest(getRef()), getRef());
+            expectMsgClass(Duration.create(60, TimeUnit.SECONDS), FinishRequest.class);
+
+            //the pix lookup goes to the shared resolver, so the transaction doesn't create any child actors
+            assertEquals(1, started.getValue() - startedBefore);
+            assertFalse(actor.underlyingActor().getContext().getChildren().iterator().hasNext());
+        }};
+    }
+
+    @Test
+    public void testRegistryStoredQuery_shouldFailFastWhileTheBreakerIsOpen() throws Exception {
+        //each test has its own actor system, so the breaker doesn't stay open for the other tests
+        CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "xds.registry");
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+
+        new JavaTestKit(system) {{
+            Identifier ecid = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+            ActorRef resolvePIDDummy = system.actorOf(
+                    Props.create(DummyResolveIdentifierActor.class, ResolvePatientIdentifier.class, ResolvePatientIdentifierResponse.class, ecid)
+            );
+            TestActorRef<RegistryActor> actor = TestActorRef.create(system, Props.create(RegistryActor.class, testConfig));
+            actor.underlyingActor().resolvePatientIDActor = resolvePIDDummy;
+
+            actor.tell(buildTestAdhocQueryRequest(getRef()), getRef());
+
+            FinishRequest response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+            assertEquals(new Integer(503), response.getResponseStatus());
+            assertTrue(response.getResponse().contains("The XDS.b Registry is unavailable"));
+            assertTrue(response.getResponse().contains(RegistryResponseError.STORED_QUERY_RESPONSE_ACTION));
+            assertTrue(response.getResponse().contains("urn:uuid:44657c95-9a4a-420e-bb62-93a773e8a5f1"));
+            //XDSRegistryNotAvailable isn't a stored query error
+            assertTrue(response.getResponse().contains("errorCode=\"" + RegistryResponseError.XDS_REGISTRY_ERROR + "\""));
+        }};
+    }
+
+    @Test
+    public void testRegisterDocumentSet_shouldFailFastWhileTheBreakerIsOpen() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "xds.registry");
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+
+        new JavaTestKit(system) {{
+            InputStream in = getClass().getClassLoader().getResourceAsStream("RegisterDocumentSet-bRequest_SOAP.xml");
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "POST", "http", null, null, "/xdsregistry", IOUtils.toString(in),
+                    Collections.<String, String>emptyMap(), null
+            );
+            ActorRef actor = system.actorOf(Props.create(RegistryActor.class, testConfig));
+
+            actor.tell(request, getRef());
+
+            FinishRequest response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+            assertEquals(new Integer(503), response.getResponseStatus());
+            assertTrue(response.getResponse().contains(RegistryResponseError.RDS_RESPONSE_ACTION));
+            assertTrue(response.getResponse().contains("urn:uuid:1ec52e14-4aad-4ba1-b7d3-fc9812a21340"));
+            assertTrue(response.getResponse().contains("errorCode=\"" + RegistryResponseError.XDS_REGISTRY_NOT_AVAILABLE + "\""));
+        }};
+    }
+
+    private static long stageCount(String stage) {
+        return MetricsRegistry.getInstance().histogram(
+                StageTimer.DURATION_METRIC, "Latency of each stage of a transaction", MetricsRegistry.labels("stage", stage), Histogram.LATENCY_BUCKETS
+        ).getCount();
+    }
+
+    @Test
+    public void testRegistryStoredQuery_shouldRecordEachStage() throws Exception {
+        final String[] stages = {"registry.parse", "registry.pix", "registry.enrich", "registry.forward", "registry.total"};
+        final long[] before = new long[stages.length];
+        for (int i=0; i<stages.length; i++) {
+            before[i] = stageCount(stages[i]);
+        }
+
+        new JavaTestKit(system) {{
+            Identifier ecid = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+            ActorRef resolvePIDDummy = system.actorOf(
+                    Props.create(DummyResolveIdentifierActor.class, ResolvePatientIdentifier.class, ResolvePatientIdentifierResponse.class, ecid)
+            );
+
+            TestActorRef<RegistryActor> actor = TestActorRef.create(system, Props.create(RegistryActor.class, testConfig));
+            actor.underlyingActor().resolvePatientIDActor = resolvePIDDummy;
+
+            actor.tell(buildTestAdhocQueryRequest(getRef()), getRef());
+            expectMsgClass(Duration.create(60, TimeUnit.SECONDS), FinishRequest.class);
+        }};
+
+        for (int i=0; i<stages.length; i++) {
+            assertEquals("Expected one " + stages[i] + " sample", 1, stageCount(stages[i]) - before[i]);
+        }
+    }
+
     @Test
     public void testUnresolvedPatientId() throws Exception {
         new JavaTestKit(system) {{
@@ -169,6 +287,24 @@ public class RegistryActorTest {
         }};
     }
 
+    @Test
+    public void testIsQuerySuccessful() throws Exception {
+        new JavaTestKit(system) {{
+            TestActorRef<RegistryActor> actor = TestActorRef.create(system, Props.create(RegistryActor.class, testConfig));
+
+            InputStream in = getClass().getClassLoader().getResourceAsStream("adhocQueryResponse_wSOAP.xml");
+            String success = IOUtils.toString(in);
+            String failure = success.replace("ResponseStatusType:Success", "ResponseStatusType:Failure");
+            Map<String, String> headers = Collections.emptyMap();
+
+            assertTrue(actor.underlyingActor().isQuerySuccessful(new MediatorHTTPResponse(success, 200, headers)));
+            assertTrue(actor.underlyingActor().isQuerySuccessful(new MediatorHTTPResponse(success, 202, headers)));
+            assertFalse(actor.underlyingActor().isQuerySuccessful(new MediatorHTTPResponse(failure, 200, headers)));
+            assertFalse(actor.underlyingActor().isQuerySuccessful(new MediatorHTTPResponse(success, 500, headers)));
+            assertFalse(actor.underlyingActor().isQuerySuccessful(new MediatorHTTPResponse(null, 200, headers)));
+        }};
+    }
+
     public static String trimXML(String xml) {
         return xml.replace("\n", "").replaceAll(">\\s*<", "><");
     }
@@ -0,0 +1,190 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class RegistryQueryCacheActorTest {
+
+    static ActorSystem system;
+
+    private final Identifier ecid1 = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+    private final Identifier ecid2 = new Identifier("ECID2", new AssigningAuthority("ECID", "ECID", "ECID"));
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MediatorConfig buildConfig(String ttlSeconds, String maxEntries) {
+        Properties props = new Properties();
+        props.setProperty("registry.cache.ttlSeconds", ttlSeconds);
+        props.setProperty("registry.cache.maxEntries", maxEntries);
+        MediatorConfig config = new MediatorConfig();
+        config.setProperties(props);
+        return config;
+    }
+
+    private static RegistryQueryCacheActor.CachedResponse response(String body) {
+        return new RegistryQueryCacheActor.CachedResponse(body, "application/soap+xml", 200, "urn:uuid:1");
+    }
+
+    private static RegistryQueryCacheActor.CachedResponse lookup(JavaTestKit kit, ActorRef cache, String key) {
+        cache.tell(new RegistryQueryCacheActor.Lookup(key), kit.getRef());
+        return kit.expectMsgClass(RegistryQueryCacheActor.LookupResult.class).getResponse();
+    }
+
+    @Test
+    public void testCanonicalQueryKey() throws Exception {
+        InputStream in = getClass().getClassLoader().getResourceAsStream("adhocQueryRequest_enriched_wSOAP.xml");
+        String query = IOUtils.toString(in);
+
+        //different message id, whitespace and slot order
+        String equivalent = query
+                .replace("urn:uuid:44657c95-9a4a-420e-bb62-93a773e8a5f1", "urn:uuid:other")
+                .replace("<rim:Value>201201010800</rim:Value>", "<rim:Value> 201201010800 </rim:Value>")
+                .replace("$XDSDocumentEntryCreationTimeFrom", "$TEMP")
+                .replace("$XDSDocumentEntryCreationTimeTo", "$XDSDocumentEntryCreationTimeFrom")
+                .replace("$TEMP", "$XDSDocumentEntryCreationTimeTo")
+                .replace("201410010800", "TEMP")
+                .replace("201201010800", "201410010800")
+                .replace("TEMP", "201201010800");
+        String differentPatient = query.replace("ECID1", "ECID2");
+        String differentReturnType = query.replace("returnType=\"LeafClass\"", "returnType=\"ObjectRef\"");
+
+        String key = RegistryQueryCacheActor.canonicalQueryKey(query);
+        assertTrue(key.contains("urn:uuid:14d4debf-8f97-4251-9a74-a90016b0af0d"));
+        assertEquals(key, RegistryQueryCacheActor.canonicalQueryKey(equivalent));
+        assertNotEquals(key, RegistryQueryCacheActor.canonicalQueryKey(differentPatient));
+        assertNotEquals(key, RegistryQueryCacheActor.canonicalQueryKey(differentReturnType));
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef cache = system.actorOf(Props.create(RegistryQueryCacheActor.class, buildConfig("60", "10")));
+
+            assertNull(lookup(this, cache, "q1"));
+
+            cache.tell(new RegistryQueryCacheActor.Put("q1", Collections.singletonList(ecid1), response("<RelatesTo>urn:uuid:1</RelatesTo>"), 0), getRef());
+            RegistryQueryCacheActor.CachedResponse cached = lookup(this, cache, "q1");
+            assertNotNull(cached);
+            assertEquals("<RelatesTo>urn:uuid:2</RelatesTo>", cached.getBodyFor("urn:uuid:2"));
+            assertEquals(200, cached.getStatus());
+        }};
+    }
+
+    @Test
+    public void testGetBodyFor_shouldOnlyRewriteRelatesTo() throws Exception {
+        RegistryQueryCacheActor.CachedResponse cached = response(
+                "<s:Header><a:RelatesTo s:mustUnderstand=\"1\"> urn:uuid:1 </a:RelatesTo></s:Header>" +
+                "<s:Body><rim:Slot><rim:Value>urn:uuid:1</rim:Value></rim:Slot></s:Body>"
+        );
+
+        assertEquals(
+                "<s:Header><a:RelatesTo s:mustUnderstand=\"1\"> urn:uuid:2 </a:RelatesTo></s:Header>" +
+                "<s:Body><rim:Slot><rim:Value>urn:uuid:1</rim:Value></rim:Slot></s:Body>",
+                cached.getBodyFor("urn:uuid:2")
+        );
+        //not related to the cached query
+        assertEquals("<Value>urn:uuid:1</Value>", response("<Value>urn:uuid:1</Value>").getBodyFor("urn:uuid:2"));
+    }
+
+    @Test
+    public void testPut_shouldDropResponsesLookedUpBeforeAnInvalidation() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef cache = system.actorOf(Props.create(RegistryQueryCacheActor.class, buildConfig("60", "10")));
+
+            cache.tell(new RegistryQueryCacheActor.Lookup("q1"), getRef());
+            long q1Generation = expectMsgClass(RegistryQueryCacheActor.LookupResult.class).getGeneration();
+            cache.tell(new RegistryQueryCacheActor.Lookup("q2"), getRef());
+            long q2Generation = expectMsgClass(RegistryQueryCacheActor.LookupResult.class).getGeneration();
+
+            //a new document for the patient is registered while the queries are being forwarded
+            cache.tell(new RegistryQueryCacheActor.InvalidatePatients(Collections.singletonList(ecid1)), getRef());
+            cache.tell(new RegistryQueryCacheActor.Put("q1", Collections.singletonList(ecid1), response("r1"), q1Generation), getRef());
+            cache.tell(new RegistryQueryCacheActor.Put("q2", Collections.singletonList(ecid2), response("r2"), q2Generation), getRef());
+
+            assertNull(lookup(this, cache, "q1"));
+            //other patients are unaffected
+            assertNotNull(lookup(this, cache, "q2"));
+        }};
+    }
+
+    @Test
+    public void testLookup_expired() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef cache = system.actorOf(Props.create(RegistryQueryCacheActor.class, buildConfig("1", "10")));
+
+            cache.tell(new RegistryQueryCacheActor.Put("q1", Collections.singletonList(ecid1), response("r1"), 0), getRef());
+            assertNotNull(lookup(this, cache, "q1"));
+
+            Thread.sleep(1100);
+            assertNull(lookup(this, cache, "q1"));
+        }};
+    }
+
+    @Test
+    public void testSizeBound() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef cache = system.actorOf(Props.create(RegistryQueryCacheActor.class, buildConfig("60", "2")));
+
+            cache.tell(new RegistryQueryCacheActor.Put("q1", Collections.singletonList(ecid1), response("r1"), 0), getRef());
+            cache.tell(new RegistryQueryCacheActor.Put("q2", Collections.singletonList(ecid1), response("r2"), 0), getRef());
+            //q1 is now more recently used than q2
+            assertNotNull(lookup(this, cache, "q1"));
+            cache.tell(new RegistryQueryCacheActor.Put("q3", Collections.singletonList(ecid1), response("r3"), 0), getRef());
+
+            assertNotNull(lookup(this, cache, "q1"));
+            assertNull(lookup(this, cache, "q2"));
+            assertNotNull(lookup(this, cache, "q3"));
+        }};
+    }
+
+    @Test
+    public void testInvalidatePatients() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef cache = system.actorOf(Props.create(RegistryQueryCacheActor.class, buildConfig("60", "10")));
+
+            cache.tell(new RegistryQueryCacheActor.Put("q1", Collections.singletonList(ecid1), response("r1"), 0), getRef());
+            cache.tell(new RegistryQueryCacheActor.Put("q2", Collections.singletonList(ecid1), response("r2"), 0), getRef());
+            cache.tell(new RegistryQueryCacheActor.Put("q3", Collections.singletonList(ecid2), response("r3"), 0), getRef());
+            cache.tell(new RegistryQueryCacheActor.Put("q4", Arrays.asList(ecid2, ecid1), response("r4"), 0), getRef());
+
+            Identifier sameAsEcid1 = new Identifier("ECID1", new AssigningAuthority("ECID", "ECID", "ECID"));
+            cache.tell(new RegistryQueryCacheActor.InvalidatePatients(Collections.singletonList(sameAsEcid1)), getRef());
+
+            assertNull(lookup(this, cache, "q1"));
+            assertNull(lookup(this, cache, "q2"));
+            assertNotNull(lookup(this, cache, "q3"));
+            assertNull(lookup(this, cache, "q4"));
+        }};
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.orchestration;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.openhim.mediator.CircuitBreaker;
+import org.openhim.mediator.SharedResources;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RepositoryActorTest {
+
+    private static final String RETRIEVE_REQUEST =
+            "<Envelope xmlns=\"http://www.w3.org/2003/05/soap-envelope\">" +
+            "<Header>" +
+            "<Action xmlns=\"http://www.w3.org/2005/08/addressing\">urn:ihe:iti:2007:RetrieveDocumentSet</Action>" +
+            "<MessageID xmlns=\"http://www.w3.org/2005/08/addressing\">urn:uuid:retrieve-1</MessageID>" +
+            "</Header>" +
+            "<Body><RetrieveDocumentSetRequest xmlns=\"urn:ihe:iti:xds-b:2007\"/></Body>" +
+            "</Envelope>";
+
+    ActorSystem system;
+    MediatorConfig testConfig;
+
+
+    @Before
+    public void before() throws Exception {
+        system = ActorSystem.create();
+
+        testConfig = new MediatorConfig();
+        testConfig.setName("repository-tests");
+        testConfig.setProperties("mediator-unit-test.properties");
+    }
+
+    @After
+    public void after() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void testRetrieve_shouldFailFastWhileTheBreakerIsOpen() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.forDependency(SharedResources.get(system), testConfig, "xds.repository");
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.tryAcquire();
+            breaker.onFailure();
+        }
+
+        new JavaTestKit(system) {{
+            //no http-connector is running, so only the breaker can answer
+            ActorRef actor = system.actorOf(Props.create(RepositoryActor.class, testConfig));
+            MediatorHTTPRequest request = new MediatorHTTPRequest(
+                    getRef(), getRef(), "unit-test", "POST", "http", null, null, "/xdsrepository", RETRIEVE_REQUEST,
+                    Collections.singletonMap("Content-Type", "application/soap+xml"), null
+            );
+
+            actor.tell(request, getRef());
+
+            FinishRequest response = expectMsgClass(Duration.create(5, TimeUnit.SECONDS), FinishRequest.class);
+            assertEquals(new Integer(503), response.getResponseStatus());
+            assertTrue(response.getResponse().contains("The XDS.b Repository is unavailable"));
+            assertTrue(response.getResponse().contains("urn:ihe:iti:2007:RetrieveDocumentSetResponse"));
+        }};
+    }
+}